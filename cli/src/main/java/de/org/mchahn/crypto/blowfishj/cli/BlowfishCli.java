@@ -0,0 +1,623 @@
+package de.org.mchahn.crypto.blowfishj.cli;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import de.org.mchahn.crypto.blowfishj.BlowfishAuthenticatedInputStream;
+import de.org.mchahn.crypto.blowfishj.BlowfishAuthenticatedOutputStream;
+import de.org.mchahn.crypto.blowfishj.BlowfishSegmentedOutputStream;
+import de.org.mchahn.crypto.blowfishj.BlowfishStreamFactory;
+
+/**
+ * Command line tool encrypting and decrypting single files or whole directory
+ * trees. The files of a tree get processed by a pool of worker threads and
+ * end up at the same relative paths below the target directory. Output is
+ * written to a temporary file next to the target first, which only gets
+ * renamed once it is complete (and verified, if asked for), so a failure
+ * never leaves a partial file behind:
+ * <pre>
+ * java -jar blowfishj-cli.jar encrypt --key-file secret.key data data.enc
+ * java -jar blowfishj-cli.jar decrypt --key-file secret.key --json \
+ *   data.enc data
+ * </pre>
+ * The formats are the one of BlowfishOutputStream ("stream"), the segmented
+ * one, whose segments get encrypted and decrypted by multiple cores, and the
+ * authenticated one, which detects any tampering. For every file the number
+ * of bytes and the throughput get reported, plus the totals and the CPU
+ * utilization at the end, either as text or as a JSON document. The exit
+ * code tells scripts whether everything went fine.
+ */
+public class BlowfishCli {
+
+    /** Exit code if all the files got processed. */
+    public static final int EXIT_OK = 0;
+
+    /** Exit code if at least one of the files failed. */
+    public static final int EXIT_FAILED = 1;
+
+    /** Exit code for invalid arguments, nothing got processed. */
+    public static final int EXIT_USAGE = 2;
+
+    /** Exit code if the output of at least one file did not verify. */
+    public static final int EXIT_VERIFY = 3;
+
+    static final String USAGE = String.join("\n",
+        "usage: blowfishj (encrypt|decrypt) [options] <source> <target>",
+        "",
+        "The source is a file or a directory, whose tree then gets mirrored",
+        "below the target directory.",
+        "",
+        "options:",
+        "  --key-file <path>     read the key material from a file",
+        "  --key-env <name>      take the key material from an environment",
+        "                        variable (UTF-8)",
+        "  --format <name>       stream (default), segmented or authenticated",
+        "  --segment-size <n>    segment size of the segmented format",
+        "  --threads <n>         number of files processed in parallel",
+        "  --verify              decrypt the encrypted output and compare it",
+        "  --overwrite           replace existing target files",
+        "  --json                print a JSON summary instead of text",
+        "  --quiet               only print the summary",
+        "",
+        "exit codes: 0 success, 1 failures, 2 invalid arguments,",
+        "            3 verification failures");
+
+    static final String PART_SUFFIX = ".part";
+
+    static final int BUFFER_SIZE = 1 << 16;
+
+    enum Format {
+        STREAM,
+        SEGMENTED,
+        AUTHENTICATED
+    }
+
+    // the outcome of a single file
+    static final class Result {
+        final Path source;
+        final Path target;
+        long bytes;
+        long nanos;
+        String error;
+        boolean unverified;
+
+        Result(Path source, Path target) {
+            this.source = source;
+            this.target = target;
+        }
+
+        boolean ok() {
+            return null == this.error && !this.unverified;
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    boolean encrypt;
+    Path source;
+    Path target;
+    byte[] key;
+    Format format = Format.STREAM;
+    int segmentSize = BlowfishSegmentedOutputStream.DEFAULT_SEGMENT_SIZE;
+    int threads = Runtime.getRuntime().availableProcessors();
+    boolean verify;
+    boolean overwrite;
+    boolean json;
+    boolean quiet;
+
+    final PrintStream out;
+    final PrintStream err;
+
+    BlowfishStreamFactory factory;
+
+    BlowfishCli(PrintStream out, PrintStream err) {
+        this.out = out;
+        this.err = err;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    void parse(String[] args) throws IOException {
+        List<String> rest = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (!arg.startsWith("--")) {
+                rest.add(arg);
+                continue;
+            }
+            switch (arg) {
+                case "--key-file":
+                    this.key = Files.readAllBytes(Paths.get(value(args, ++i)));
+                    break;
+                case "--key-env":
+                    String name = value(args, ++i);
+                    String env = System.getenv(name);
+                    if (null == env) {
+                        throw new IllegalArgumentException(
+                            "environment variable " + name + " is not set");
+                    }
+                    this.key = env.getBytes(StandardCharsets.UTF_8);
+                    break;
+                case "--format":
+                    String format = value(args, ++i);
+                    try {
+                        this.format = Format.valueOf(
+                            format.toUpperCase(Locale.ROOT));
+                    }
+                    catch (IllegalArgumentException iae) {
+                        throw new IllegalArgumentException(
+                            "unknown format " + format);
+                    }
+                    break;
+                case "--segment-size":
+                    this.segmentSize = number(value(args, ++i));
+                    break;
+                case "--threads":
+                    this.threads = number(value(args, ++i));
+                    break;
+                case "--verify":
+                    this.verify = true;
+                    break;
+                case "--overwrite":
+                    this.overwrite = true;
+                    break;
+                case "--json":
+                    this.json = true;
+                    break;
+                case "--quiet":
+                    this.quiet = true;
+                    break;
+                default:
+                    throw new IllegalArgumentException(
+                        "unknown option " + arg);
+            }
+        }
+
+        if (3 != rest.size()) {
+            throw new IllegalArgumentException(
+                "operation, source and target expected");
+        }
+        switch (rest.get(0)) {
+            case "encrypt":
+                this.encrypt = true;
+                break;
+            case "decrypt":
+                this.encrypt = false;
+                break;
+            default:
+                throw new IllegalArgumentException(
+                    "unknown operation " + rest.get(0));
+        }
+        this.source = Paths.get(rest.get(1));
+        this.target = Paths.get(rest.get(2));
+
+        if (null == this.key || 0 == this.key.length) {
+            throw new IllegalArgumentException("no key material given");
+        }
+        if (!Files.exists(this.source)) {
+            throw new IllegalArgumentException(
+                "source " + this.source + " does not exist");
+        }
+        if (Files.isDirectory(this.source) &&
+            this.target.toAbsolutePath().normalize().startsWith(
+                this.source.toAbsolutePath().normalize())) {
+            throw new IllegalArgumentException(
+                "target must not be inside of the source directory");
+        }
+        if (this.segmentSize > BlowfishSegmentedOutputStream.MAX_SEGMENT_SIZE ||
+            0 != this.segmentSize % 8) {
+            throw new IllegalArgumentException(
+                "invalid segment size " + this.segmentSize);
+        }
+        if (this.verify && !this.encrypt) {
+            throw new IllegalArgumentException(
+                "verification is only available for encryption");
+        }
+    }
+
+    static String value(String[] args, int i) {
+        if (i >= args.length) {
+            throw new IllegalArgumentException(
+                "missing value for " + args[i - 1]);
+        }
+        return args[i];
+    }
+
+    static int number(String value) {
+        try {
+            int result = Integer.parseInt(value);
+            if (result > 0) {
+                return result;
+            }
+        }
+        catch (NumberFormatException nfe) {
+        }
+        throw new IllegalArgumentException("invalid number " + value);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    // pairs every source file with its target, for trees in the order of
+    // their paths
+    List<Result> collect() throws IOException {
+        List<Result> result = new ArrayList<>();
+        if (!Files.isDirectory(this.source)) {
+            Path dst = Files.isDirectory(this.target) ?
+                this.target.resolve(this.source.getFileName().toString()) :
+                this.target;
+            result.add(new Result(this.source, dst));
+            return result;
+        }
+        List<Path> files;
+        try (Stream<Path> walk = Files.walk(this.source)) {
+            files = walk
+                .filter(Files::isRegularFile)
+                .sorted()
+                .collect(Collectors.toList());
+        }
+        for (Path file : files) {
+            Path rel = this.source.relativize(file);
+            result.add(new Result(file,
+                                  this.target.resolve(rel.toString())));
+        }
+        return result;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    OutputStream encrypting(OutputStream os) throws IOException {
+        switch (this.format) {
+            case SEGMENTED:
+                return this.factory.newSegmentedOutputStream(os,
+                    this.segmentSize, ForkJoinPool.commonPool(),
+                    ForkJoinPool.getCommonPoolParallelism() << 1);
+            case AUTHENTICATED:
+                return new BlowfishAuthenticatedOutputStream(
+                    this.key, 0, this.key.length, os);
+            default:
+                // (the stream writes single blocks, so it gets buffered)
+                return this.factory.newOutputStream(
+                    new BufferedOutputStream(os, BUFFER_SIZE));
+        }
+    }
+
+    InputStream decrypting(InputStream is) throws IOException {
+        switch (this.format) {
+            case SEGMENTED:
+                return this.factory.newSegmentedInputStream(is,
+                    ForkJoinPool.commonPool(),
+                    ForkJoinPool.getCommonPoolParallelism() << 1);
+            case AUTHENTICATED:
+                return new BlowfishAuthenticatedInputStream(
+                    this.key, 0, this.key.length, is);
+            default:
+                return this.factory.newInputStream(
+                    new BufferedInputStream(is, BUFFER_SIZE));
+        }
+    }
+
+    static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException nsae) {
+            throw new IllegalStateException(nsae);
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    // processes a single file, never throws
+    Result process(Result result) {
+        long start = System.nanoTime();
+        Path part = result.target.resolveSibling(
+            result.target.getFileName() + PART_SUFFIX);
+        try {
+            if (!this.overwrite && Files.exists(result.target)) {
+                throw new IOException("target exists");
+            }
+            Path parent = result.target.toAbsolutePath().getParent();
+            if (null != parent) {
+                Files.createDirectories(parent);
+            }
+
+            MessageDigest md = sha256();
+            if (this.encrypt) {
+                try (InputStream is = new DigestInputStream(
+                         Files.newInputStream(result.source), md);
+                     OutputStream fos = Files.newOutputStream(part);
+                     OutputStream os = encrypting(fos)) {
+                    result.bytes = is.transferTo(os);
+                }
+            }
+            else {
+                try (InputStream fis = Files.newInputStream(result.source);
+                     InputStream is = decrypting(fis);
+                     OutputStream os = new BufferedOutputStream(
+                         Files.newOutputStream(part), BUFFER_SIZE)) {
+                    result.bytes = is.transferTo(os);
+                }
+            }
+
+            if (this.verify) {
+                MessageDigest check = sha256();
+                try (InputStream fis = Files.newInputStream(part);
+                     InputStream is = new DigestInputStream(
+                         decrypting(fis), check)) {
+                    is.transferTo(OutputStream.nullOutputStream());
+                }
+                catch (IOException ioe) {
+                    // (an output which cannot be read back is unverified)
+                }
+                if (!MessageDigest.isEqual(md.digest(), check.digest())) {
+                    result.unverified = true;
+                    result.error = "verification failed";
+                }
+            }
+
+            if (result.ok()) {
+                if (this.overwrite) {
+                    Files.move(part, result.target,
+                               StandardCopyOption.REPLACE_EXISTING);
+                }
+                else {
+                    Files.move(part, result.target);
+                }
+            }
+        }
+        catch (IOException | RuntimeException e) {
+            result.error = null == e.getMessage() ?
+                e.getClass().getSimpleName() : e.getMessage();
+        }
+        finally {
+            if (!result.ok()) {
+                try {
+                    Files.deleteIfExists(part);
+                }
+                catch (IOException ioe) {
+                    // (nothing we could do about it)
+                }
+            }
+            result.nanos = System.nanoTime() - start;
+        }
+        if (!this.json && !this.quiet) {
+            report(result);
+        }
+        return result;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    static double mbPerSecond(long bytes, long nanos) {
+        return 0L == nanos ? 0.0 : bytes * 1e3 / nanos;
+    }
+
+    // the CPU time used by the whole process, or -1 if unknown
+    static long cpuNanos() {
+        OperatingSystemMXBean osmx =
+            ManagementFactory.getOperatingSystemMXBean();
+        if (osmx instanceof com.sun.management.OperatingSystemMXBean) {
+            return ((com.sun.management.OperatingSystemMXBean)osmx)
+                .getProcessCpuTime();
+        }
+        return -1L;
+    }
+
+    void report(Result result) {
+        String line = String.format(Locale.ROOT,
+            "%s  %,d bytes  %.3f s  %.1f MB/s",
+            result.source, result.bytes, result.nanos / 1e9,
+            mbPerSecond(result.bytes, result.nanos));
+        synchronized (this.out) {
+            if (result.ok()) {
+                this.out.println(line);
+            }
+            else {
+                this.err.println(result.source + "  FAILED: " + result.error);
+            }
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    static String quote(String s) {
+        StringBuilder result = new StringBuilder(s.length() + 2);
+        result.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if ('"' == c || '\\' == c) {
+                result.append('\\').append(c);
+            }
+            else if (c < 0x20) {
+                result.append(String.format("\\u%04x", (int)c));
+            }
+            else {
+                result.append(c);
+            }
+        }
+        return result.append('"').toString();
+    }
+
+    void summary(List<Result> results, long nanos, long cpu, int code) {
+        long bytes = 0L;
+        int failed = 0;
+        for (Result result : results) {
+            bytes += result.bytes;
+            if (!result.ok()) {
+                failed++;
+            }
+        }
+        int processors = Runtime.getRuntime().availableProcessors();
+        // (the share of all the processors the process kept busy)
+        double utilization = 0L > cpu || 0L == nanos ? -1.0 :
+            (double)cpu / nanos / processors;
+
+        if (!this.json) {
+            this.out.println(String.format(Locale.ROOT,
+                "%d files, %d failed, %,d bytes in %.3f s, %.1f MB/s, " +
+                "cpu %.0f%% of %d processors",
+                results.size(), failed, bytes, nanos / 1e9,
+                mbPerSecond(bytes, nanos), utilization * 100.0, processors));
+            return;
+        }
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\n");
+        sb.append("  \"operation\": ")
+          .append(quote(this.encrypt ? "encrypt" : "decrypt")).append(",\n");
+        sb.append("  \"format\": ")
+          .append(quote(this.format.name().toLowerCase(Locale.ROOT)))
+          .append(",\n");
+        sb.append("  \"threads\": ").append(this.threads).append(",\n");
+        sb.append("  \"files\": [");
+        String sep = "\n";
+        for (Result result : results) {
+            sb.append(sep);
+            sb.append(String.format(Locale.ROOT,
+                "    { \"source\": %s, \"target\": %s, \"status\": %s, " +
+                "\"bytes\": %d, \"seconds\": %.6f, \"mbPerSecond\": %.3f",
+                quote(result.source.toString()),
+                quote(result.target.toString()),
+                quote(result.ok() ? "ok" :
+                      result.unverified ? "unverified" : "failed"),
+                result.bytes, result.nanos / 1e9,
+                mbPerSecond(result.bytes, result.nanos)));
+            if (null != result.error) {
+                sb.append(", \"error\": ").append(quote(result.error));
+            }
+            sb.append(" }");
+            sep = ",\n";
+        }
+        sb.append(results.isEmpty() ? "],\n" : "\n  ],\n");
+        sb.append(String.format(Locale.ROOT,
+            "  \"summary\": { \"files\": %d, \"failed\": %d, " +
+            "\"bytes\": %d, \"seconds\": %.6f, \"mbPerSecond\": %.3f, " +
+            "\"cpuUtilization\": %.3f, \"processors\": %d },\n",
+            results.size(), failed, bytes, nanos / 1e9,
+            mbPerSecond(bytes, nanos), utilization, processors));
+        sb.append("  \"exitCode\": ").append(code).append("\n");
+        sb.append("}");
+        this.out.println(sb);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    int execute() throws IOException, InterruptedException {
+        List<Result> results = collect();
+
+        long start = System.nanoTime();
+        long cpu = cpuNanos();
+
+        if (Format.AUTHENTICATED != this.format) {
+            // (one key schedule for all the files)
+            this.factory = new BlowfishStreamFactory(this.key, 0,
+                                                     this.key.length);
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(this.threads);
+        try {
+            List<Future<Result>> futures = new ArrayList<>(results.size());
+            for (Result result : results) {
+                futures.add(pool.submit(() -> process(result)));
+            }
+            for (Future<Result> future : futures) {
+                future.get();
+            }
+        }
+        catch (ExecutionException ee) {
+            // (process() catches everything but errors)
+            throw new IllegalStateException(ee.getCause());
+        }
+        finally {
+            pool.shutdownNow();
+            if (null != this.factory) {
+                this.factory.destroy();
+            }
+        }
+
+        long nanos = System.nanoTime() - start;
+        if (0L <= cpu) {
+            cpu = cpuNanos() - cpu;
+        }
+
+        int code = EXIT_OK;
+        for (Result result : results) {
+            if (result.unverified) {
+                code = EXIT_VERIFY;
+            }
+            else if (!result.ok() && EXIT_OK == code) {
+                code = EXIT_FAILED;
+            }
+        }
+        summary(results, nanos, cpu, code);
+        return code;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Runs the tool.
+     * @param args The command line arguments.
+     * @param out Where reports and the summary get printed to.
+     * @param err Where errors get printed to.
+     * @return The exit code.
+     */
+    public static int run(String[] args, PrintStream out, PrintStream err) {
+        BlowfishCli cli = new BlowfishCli(out, err);
+        try {
+            cli.parse(args);
+            return cli.execute();
+        }
+        catch (IllegalArgumentException iae) {
+            err.println("error: " + iae.getMessage());
+            err.println(USAGE);
+            return EXIT_USAGE;
+        }
+        catch (IOException ioe) {
+            err.println("error: " + ioe.getMessage());
+            return null == cli.source ? EXIT_USAGE : EXIT_FAILED;
+        }
+        catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            err.println("error: interrupted");
+            return EXIT_FAILED;
+        }
+        finally {
+            if (null != cli.key) {
+                Arrays.fill(cli.key, (byte)0);
+            }
+        }
+    }
+
+    /**
+     * The application entry point.
+     * @param args See the usage printed on invalid arguments.
+     */
+    public static void main(String[] args) {
+        System.exit(run(args, System.out, System.err));
+    }
+}
@@ -0,0 +1,201 @@
+package de.org.mchahn.crypto.blowfishj.cli;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.org.mchahn.crypto.blowfishj.BlowfishInputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BlowfishCliTest {
+
+    static final byte[] KEY = "command line key".getBytes();
+
+    Path dir;
+    Path keyFile;
+    ByteArrayOutputStream out;
+    ByteArrayOutputStream err;
+
+    @Before
+    public void setUp() throws IOException {
+        this.dir = Files.createTempDirectory("blowfishj-cli");
+        this.keyFile = this.dir.resolve("key");
+        Files.write(this.keyFile, KEY);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        try (Stream<Path> walk = Files.walk(this.dir)) {
+            walk.sorted(Comparator.reverseOrder())
+                .forEach(p -> p.toFile().delete());
+        }
+    }
+
+    int run(String... args) {
+        this.out = new ByteArrayOutputStream();
+        this.err = new ByteArrayOutputStream();
+        return BlowfishCli.run(args, new PrintStream(this.out, true),
+                               new PrintStream(this.err, true));
+    }
+
+    Path tree() throws IOException {
+        Path src = this.dir.resolve("src");
+        Random rnd = new Random(0xcafebabeL);
+        String[] names = { "empty", "a/small", "a/b/large", "c/block" };
+        int[] sizes = { 0, 13, 300000, 64 };
+        for (int i = 0; i < names.length; i++) {
+            Path file = src.resolve(names[i]);
+            Files.createDirectories(file.getParent());
+            byte[] data = new byte[sizes[i]];
+            rnd.nextBytes(data);
+            Files.write(file, data);
+        }
+        return src;
+    }
+
+    static void assertSameTree(Path expected, Path actual) throws IOException {
+        try (Stream<Path> walk = Files.walk(expected)) {
+            for (Path file : (Iterable<Path>)walk::iterator) {
+                if (Files.isRegularFile(file)) {
+                    Path other = actual.resolve(
+                        expected.relativize(file).toString());
+                    assertArrayEquals(Files.readAllBytes(file),
+                                      Files.readAllBytes(other));
+                }
+            }
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        Path src = tree();
+        for (String format : new String[] {
+                "stream", "segmented", "authenticated" }) {
+            Path enc = this.dir.resolve("enc-" + format);
+            Path dec = this.dir.resolve("dec-" + format);
+            String key = this.keyFile.toString();
+
+            assertEquals(BlowfishCli.EXIT_OK, run("encrypt", "--key-file",
+                key, "--format", format, "--segment-size", "4096",
+                "--threads", "3", "--verify", src.toString(), enc.toString()));
+            assertEquals(5, this.out.toString().split("\n").length);
+            assertTrue(this.out.toString().contains("4 files, 0 failed"));
+
+            assertEquals(BlowfishCli.EXIT_OK, run("decrypt", "--key-file",
+                key, "--format", format, "--quiet", enc.toString(),
+                dec.toString()));
+            assertEquals(1, this.out.toString().split("\n").length);
+            assertSameTree(src, dec);
+        }
+
+        // the default format is the one of the streams
+        Path enc = this.dir.resolve("enc-stream").resolve("a/small");
+        try (InputStream is = new BlowfishInputStream(KEY, 0, KEY.length,
+                Files.newInputStream(enc))) {
+            assertArrayEquals(Files.readAllBytes(src.resolve("a/small")),
+                              is.readAllBytes());
+        }
+
+        // single files, into a directory or to a file
+        Path one = this.dir.resolve("one");
+        Files.createDirectories(one);
+        assertEquals(BlowfishCli.EXIT_OK, run("encrypt", "--key-file",
+            this.keyFile.toString(), src.resolve("a/small").toString(),
+            one.toString()));
+        assertEquals(BlowfishCli.EXIT_OK, run("decrypt", "--key-file",
+            this.keyFile.toString(), one.resolve("small").toString(),
+            one.resolve("plain").toString()));
+        assertArrayEquals(Files.readAllBytes(src.resolve("a/small")),
+                          Files.readAllBytes(one.resolve("plain")));
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    @Test
+    public void testJson() throws IOException {
+        Path src = tree();
+        Path enc = this.dir.resolve("enc");
+        assertEquals(BlowfishCli.EXIT_OK, run("encrypt", "--json",
+            "--key-file", this.keyFile.toString(), src.toString(),
+            enc.toString()));
+        String json = this.out.toString();
+        assertTrue(json.startsWith("{"));
+        assertTrue(json.contains("\"operation\": \"encrypt\""));
+        assertTrue(json.contains("\"format\": \"stream\""));
+        assertTrue(json.contains("\"summary\": { \"files\": 4, " +
+                                 "\"failed\": 0, \"bytes\": 300077,"));
+        assertTrue(json.contains("\"cpuUtilization\""));
+        assertTrue(json.contains("\"exitCode\": 0"));
+        assertEquals(4, json.split("\"status\": \"ok\"").length - 1);
+
+        // a wrong key makes the files fail, nothing partial is left behind
+        Path wrong = this.dir.resolve("wrong");
+        Files.write(wrong, "not the key".getBytes());
+        Path dec = this.dir.resolve("dec");
+        assertEquals(BlowfishCli.EXIT_FAILED, run("decrypt", "--json",
+            "--key-file", wrong.toString(), enc.toString(), dec.toString()));
+        json = this.out.toString();
+        assertTrue(json.contains("\"status\": \"failed\""));
+        assertTrue(json.contains("\"exitCode\": 1"));
+        try (Stream<Path> walk = Files.walk(dec)) {
+            assertFalse(walk.anyMatch(Files::isRegularFile));
+        }
+
+        // existing targets are kept, unless asked for
+        assertEquals(BlowfishCli.EXIT_FAILED, run("encrypt", "--key-file",
+            this.keyFile.toString(), src.toString(), enc.toString()));
+        assertTrue(this.err.toString().contains("target exists"));
+        assertEquals(BlowfishCli.EXIT_OK, run("encrypt", "--overwrite",
+            "--key-file", this.keyFile.toString(), src.toString(),
+            enc.toString()));
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    @Test
+    public void testUsage() throws IOException {
+        Path src = tree();
+        String key = this.keyFile.toString();
+        String[][] invalid = {
+            {},
+            { "encrypt", "--key-file", key, src.toString() },
+            { "scramble", "--key-file", key, src.toString(), "x" },
+            { "encrypt", src.toString(), "x" },
+            { "encrypt", "--key-file", key, "--format", "rot13",
+              src.toString(), "x" },
+            { "encrypt", "--key-file", key, "--threads", "0",
+              src.toString(), "x" },
+            { "encrypt", "--key-file", key, "--threads" },
+            { "encrypt", "--key-file", key, "--format" },
+            { "encrypt", "--key-file", key, "--segment-size", "1001",
+              src.toString(), "x" },
+            { "encrypt", "--key-file", key, "--bogus", src.toString(), "x" },
+            { "encrypt", "--key-file", key, "missing", "x" },
+            { "encrypt", "--key-file", key, src.toString(),
+              src.resolve("inside").toString() },
+            { "decrypt", "--verify", "--key-file", key, src.toString(),
+              "x" },
+        };
+        for (String[] args : invalid) {
+            assertEquals(BlowfishCli.EXIT_USAGE, run(args));
+            assertTrue(this.err.toString().startsWith("error: "));
+            assertTrue(this.err.toString().contains("usage: "));
+        }
+    }
+}
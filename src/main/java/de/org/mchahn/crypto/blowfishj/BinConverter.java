@@ -1,5 +1,13 @@
 package de.org.mchahn.crypto.blowfishj;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
 /**
  * Some helper routines for data conversion. All data is treated in network byte
  * order, as it is the standard for the Blowfish algorithm.
@@ -145,6 +153,312 @@ public class BinConverter {
 
     ///////////////////////////////////////////////////////////////////////////
 
+    // views for accessing byte arrays and buffers in bulk
+
+    static final VarHandle INT_BE = MethodHandles.byteArrayViewVarHandle(
+        int[].class, ByteOrder.BIG_ENDIAN);
+    static final VarHandle INT_LE = MethodHandles.byteArrayViewVarHandle(
+        int[].class, ByteOrder.LITTLE_ENDIAN);
+    static final VarHandle LONG_BE = MethodHandles.byteArrayViewVarHandle(
+        long[].class, ByteOrder.BIG_ENDIAN);
+    static final VarHandle LONG_LE = MethodHandles.byteArrayViewVarHandle(
+        long[].class, ByteOrder.LITTLE_ENDIAN);
+
+    static final VarHandle BUF_INT_BE = MethodHandles.byteBufferViewVarHandle(
+        int[].class, ByteOrder.BIG_ENDIAN);
+    static final VarHandle BUF_INT_LE = MethodHandles.byteBufferViewVarHandle(
+        int[].class, ByteOrder.LITTLE_ENDIAN);
+    static final VarHandle BUF_LONG_BE = MethodHandles.byteBufferViewVarHandle(
+        long[].class, ByteOrder.BIG_ENDIAN);
+    static final VarHandle BUF_LONG_LE = MethodHandles.byteBufferViewVarHandle(
+        long[].class, ByteOrder.LITTLE_ENDIAN);
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Converts bytes from an array into 32bit integers.
+     * @param src The source buffer.
+     * @param srcOfs Where to start reading in the source buffer.
+     * @param dst The target buffer.
+     * @param dstOfs Where to start writing in the target buffer.
+     * @param count The number of integers to convert.
+     * @param order The byte order of the source.
+     */
+    public static final void byteArrayToInts(
+        byte[] src,
+        int srcOfs,
+        int[] dst,
+        int dstOfs,
+        int count,
+        ByteOrder order) {
+        final int end = dstOfs + count;
+
+        if (ByteOrder.BIG_ENDIAN == order) {
+            for (; dstOfs < end; dstOfs++, srcOfs += 4) {
+                dst[dstOfs] = (int)INT_BE.get(src, srcOfs);
+            }
+        }
+        else {
+            for (; dstOfs < end; dstOfs++, srcOfs += 4) {
+                dst[dstOfs] = (int)INT_LE.get(src, srcOfs);
+            }
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Stores 32bit integers into a byte array.
+     * @param src The source buffer.
+     * @param srcOfs Where to start reading in the source buffer.
+     * @param dst The target buffer.
+     * @param dstOfs Where to start writing in the target buffer.
+     * @param count The number of integers to convert.
+     * @param order The byte order of the target.
+     */
+    public static final void intsToByteArray(
+        int[] src,
+        int srcOfs,
+        byte[] dst,
+        int dstOfs,
+        int count,
+        ByteOrder order) {
+        final int end = srcOfs + count;
+
+        if (ByteOrder.BIG_ENDIAN == order) {
+            for (; srcOfs < end; srcOfs++, dstOfs += 4) {
+                INT_BE.set(dst, dstOfs, src[srcOfs]);
+            }
+        }
+        else {
+            for (; srcOfs < end; srcOfs++, dstOfs += 4) {
+                INT_LE.set(dst, dstOfs, src[srcOfs]);
+            }
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Converts bytes from an array into 64bit integers.
+     * @param src The source buffer.
+     * @param srcOfs Where to start reading in the source buffer.
+     * @param dst The target buffer.
+     * @param dstOfs Where to start writing in the target buffer.
+     * @param count The number of integers to convert.
+     * @param order The byte order of the source.
+     */
+    public static final void byteArrayToLongs(
+        byte[] src,
+        int srcOfs,
+        long[] dst,
+        int dstOfs,
+        int count,
+        ByteOrder order) {
+        final int end = dstOfs + count;
+
+        if (ByteOrder.BIG_ENDIAN == order) {
+            for (; dstOfs < end; dstOfs++, srcOfs += 8) {
+                dst[dstOfs] = (long)LONG_BE.get(src, srcOfs);
+            }
+        }
+        else {
+            for (; dstOfs < end; dstOfs++, srcOfs += 8) {
+                dst[dstOfs] = (long)LONG_LE.get(src, srcOfs);
+            }
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Stores 64bit integers into a byte array.
+     * @param src The source buffer.
+     * @param srcOfs Where to start reading in the source buffer.
+     * @param dst The target buffer.
+     * @param dstOfs Where to start writing in the target buffer.
+     * @param count The number of integers to convert.
+     * @param order The byte order of the target.
+     */
+    public static final void longsToByteArray(
+        long[] src,
+        int srcOfs,
+        byte[] dst,
+        int dstOfs,
+        int count,
+        ByteOrder order) {
+        final int end = srcOfs + count;
+
+        if (ByteOrder.BIG_ENDIAN == order) {
+            for (; srcOfs < end; srcOfs++, dstOfs += 8) {
+                LONG_BE.set(dst, dstOfs, src[srcOfs]);
+            }
+        }
+        else {
+            for (; srcOfs < end; srcOfs++, dstOfs += 8) {
+                LONG_LE.set(dst, dstOfs, src[srcOfs]);
+            }
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Reads 32bit integers from a buffer, heap or direct. The byte order set in
+     * the buffer is ignored.
+     * @param src The source buffer, its position gets advanced.
+     * @param dst The target buffer.
+     * @param dstOfs Where to start writing in the target buffer.
+     * @param count The number of integers to read.
+     * @param order The byte order of the source.
+     * @exception BufferUnderflowException If there are not enough bytes left in
+     * the source, in which case nothing gets read.
+     */
+    public static final void byteBufferToInts(
+        ByteBuffer src,
+        int[] dst,
+        int dstOfs,
+        int count,
+        ByteOrder order) {
+        int pos = src.position();
+        if (src.remaining() < (count << 2)) {
+            throw new BufferUnderflowException();
+        }
+
+        if (src.hasArray()) {
+            byteArrayToInts(src.array(), src.arrayOffset() + pos,
+                            dst, dstOfs, count, order);
+        }
+        else {
+            final VarHandle vh = ByteOrder.BIG_ENDIAN == order ?
+                                 BUF_INT_BE : BUF_INT_LE;
+            for (int i = 0; i < count; i++) {
+                dst[dstOfs + i] = (int)vh.get(src, pos + (i << 2));
+            }
+        }
+
+        src.position(pos + (count << 2));
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Writes 32bit integers to a buffer, heap or direct. The byte order set in
+     * the buffer is ignored.
+     * @param src The source buffer.
+     * @param srcOfs Where to start reading in the source buffer.
+     * @param dst The target buffer, its position gets advanced.
+     * @param count The number of integers to write.
+     * @param order The byte order of the target.
+     * @exception BufferOverflowException If there is not enough space left in
+     * the target, in which case nothing gets written.
+     */
+    public static final void intsToByteBuffer(
+        int[] src,
+        int srcOfs,
+        ByteBuffer dst,
+        int count,
+        ByteOrder order) {
+        int pos = dst.position();
+        if (dst.remaining() < (count << 2)) {
+            throw new BufferOverflowException();
+        }
+
+        if (dst.hasArray()) {
+            intsToByteArray(src, srcOfs, dst.array(), dst.arrayOffset() + pos,
+                            count, order);
+        }
+        else {
+            final VarHandle vh = ByteOrder.BIG_ENDIAN == order ?
+                                 BUF_INT_BE : BUF_INT_LE;
+            for (int i = 0; i < count; i++) {
+                vh.set(dst, pos + (i << 2), src[srcOfs + i]);
+            }
+        }
+
+        dst.position(pos + (count << 2));
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Reads 64bit integers from a buffer, heap or direct. The byte order set in
+     * the buffer is ignored.
+     * @param src The source buffer, its position gets advanced.
+     * @param dst The target buffer.
+     * @param dstOfs Where to start writing in the target buffer.
+     * @param count The number of integers to read.
+     * @param order The byte order of the source.
+     * @exception BufferUnderflowException If there are not enough bytes left in
+     * the source, in which case nothing gets read.
+     */
+    public static final void byteBufferToLongs(
+        ByteBuffer src,
+        long[] dst,
+        int dstOfs,
+        int count,
+        ByteOrder order) {
+        int pos = src.position();
+        if (src.remaining() < (count << 3)) {
+            throw new BufferUnderflowException();
+        }
+
+        if (src.hasArray()) {
+            byteArrayToLongs(src.array(), src.arrayOffset() + pos,
+                             dst, dstOfs, count, order);
+        }
+        else {
+            final VarHandle vh = ByteOrder.BIG_ENDIAN == order ?
+                                 BUF_LONG_BE : BUF_LONG_LE;
+            for (int i = 0; i < count; i++) {
+                dst[dstOfs + i] = (long)vh.get(src, pos + (i << 3));
+            }
+        }
+
+        src.position(pos + (count << 3));
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Writes 64bit integers to a buffer, heap or direct. The byte order set in
+     * the buffer is ignored.
+     * @param src The source buffer.
+     * @param srcOfs Where to start reading in the source buffer.
+     * @param dst The target buffer, its position gets advanced.
+     * @param count The number of integers to write.
+     * @param order The byte order of the target.
+     * @exception BufferOverflowException If there is not enough space left in
+     * the target, in which case nothing gets written.
+     */
+    public static final void longsToByteBuffer(
+        long[] src,
+        int srcOfs,
+        ByteBuffer dst,
+        int count,
+        ByteOrder order) {
+        int pos = dst.position();
+        if (dst.remaining() < (count << 3)) {
+            throw new BufferOverflowException();
+        }
+
+        if (dst.hasArray()) {
+            longsToByteArray(src, srcOfs, dst.array(), dst.arrayOffset() + pos,
+                             count, order);
+        }
+        else {
+            final VarHandle vh = ByteOrder.BIG_ENDIAN == order ?
+                                 BUF_LONG_BE : BUF_LONG_LE;
+            for (int i = 0; i < count; i++) {
+                vh.set(dst, pos + (i << 3), src[srcOfs + i]);
+            }
+        }
+
+        dst.position(pos + (count << 3));
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
     static final char[] HEXTAB = {
         '0', '1', '2', '3', '4', '5', '6', '7',
         '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'
@@ -169,17 +483,11 @@ public class BinConverter {
      * @return The hex string, twice the length of the len parameter.
      */
     public static final String bytesToHexStr(byte[] data, int ofs, int len) {
-        StringBuilder sb = new StringBuilder();
-        sb.setLength(len << 1);
+        char[] chars = new char[len << 1];
 
-        int pos = 0;
-        int c = ofs + len;
+        bytesToHex(data, ofs, len, chars, 0);
 
-        while (ofs < c) {
-            sb.setCharAt(pos++, HEXTAB[(data[ofs  ] >> 4) & 0x0f]);
-            sb.setCharAt(pos++, HEXTAB[ data[ofs++]       & 0x0f]);
-        }
-        return sb.toString();
+        return new String(chars);
     }
 
     ///////////////////////////////////////////////////////////////////////////
@@ -249,6 +557,353 @@ public class BinConverter {
 
     ///////////////////////////////////////////////////////////////////////////
 
+    // The tables for the hex codec. Encoding maps a byte to its two lower case
+    // hex characters, the high one in the upper 8 bits. Decoding maps an ASCII
+    // character to its value, or to -1 if it is not a hex character; the
+    // second decoding table has the values already shifted to the high nibble.
+
+    static final int[] HEXENC = new int[256];
+    static final int[] HEXDEC = new int[256];
+    static final int[] HEXDEC_HI = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            HEXENC[i] = (HEXTAB[i >>> 4] << 8) | HEXTAB[i & 0x0f];
+        }
+        Arrays.fill(HEXDEC, -1);
+        for (int i = 0; i < 10; i++) {
+            HEXDEC['0' + i] = i;
+        }
+        for (int i = 0; i < 6; i++) {
+            HEXDEC['a' + i] = HEXDEC['A' + i] = 10 + i;
+        }
+        for (int i = 0; i < 256; i++) {
+            HEXDEC_HI[i] = HEXDEC[i] << 4;
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Converts bytes to lower case hex characters.
+     * @param src The buffer with the bytes.
+     * @param ofs Where to start reading the bytes.
+     * @param len The number of bytes to convert.
+     * @param dst Where to write the characters to.
+     * @param dstOfs Where to start writing.
+     * @return The number of characters written, twice the number of bytes.
+     */
+    public static final int bytesToHex(
+        byte[] src,
+        int ofs,
+        int len,
+        char[] dst,
+        int dstOfs) {
+        final int[] hexenc = HEXENC;
+
+        for (int end = ofs + len, pos = dstOfs; ofs < end; ofs++) {
+            int hex = hexenc[src[ofs] & 0x0ff];
+            dst[pos++] = (char)(hex >>> 8);
+            dst[pos++] = (char)(hex & 0x0ff);
+        }
+
+        return len << 1;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Converts bytes to lower case hex characters, stored as ASCII bytes. Data
+     * gets processed four bytes at a time, writing eight characters at once.
+     * @param src The buffer with the bytes.
+     * @param ofs Where to start reading the bytes.
+     * @param len The number of bytes to convert.
+     * @param dst Where to write the characters to.
+     * @param dstOfs Where to start writing.
+     * @return The number of characters written, twice the number of bytes.
+     */
+    public static final int bytesToHex(
+        byte[] src,
+        int ofs,
+        int len,
+        byte[] dst,
+        int dstOfs) {
+        final int[] hexenc = HEXENC;
+
+        final int end = ofs + len;
+        final int wordEnd = ofs + (len & ~3);
+
+        int pos = dstOfs;
+
+        while (ofs < wordEnd) {
+            long word = ((long)hexenc[src[ofs    ] & 0x0ff] << 48) |
+                        ((long)hexenc[src[ofs + 1] & 0x0ff] << 32) |
+                        ((long)hexenc[src[ofs + 2] & 0x0ff] << 16) |
+                         (long)hexenc[src[ofs + 3] & 0x0ff];
+            LONG_BE.set(dst, pos, word);
+            ofs += 4;
+            pos += 8;
+        }
+
+        while (ofs < end) {
+            int hex = hexenc[src[ofs++] & 0x0ff];
+            dst[pos++] = (byte)(hex >>> 8);
+            dst[pos++] = (byte) hex;
+        }
+
+        return len << 1;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Converts bytes to lower case hex characters, stored as ASCII bytes.
+     * @param src The bytes to convert, from the position to the limit. The
+     * position gets advanced to the limit.
+     * @param dst Where to put the characters. The position gets advanced.
+     * @return The number of characters written, twice the number of bytes.
+     * @exception BufferOverflowException If there is not enough space
+     * left in the target buffer, in which case nothing gets converted.
+     */
+    public static final int bytesToHex(ByteBuffer src, ByteBuffer dst) {
+        final int len = src.remaining();
+
+        if (dst.remaining() < (len << 1)) {
+            throw new BufferOverflowException();
+        }
+
+        if (src.hasArray() && dst.hasArray()) {
+            bytesToHex(
+                src.array(), src.arrayOffset() + src.position(), len,
+                dst.array(), dst.arrayOffset() + dst.position());
+            src.position(src.limit());
+            dst.position(dst.position() + (len << 1));
+        }
+        else {
+            final int[] hexenc = HEXENC;
+            while (src.hasRemaining()) {
+                int hex = hexenc[src.get() & 0x0ff];
+                dst.put((byte)(hex >>> 8));
+                dst.put((byte) hex);
+            }
+        }
+
+        return len << 1;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Converts hex characters to bytes. Upper and lower case are accepted. The
+     * characters get decoded eight at a time, checking for invalid ones only
+     * once per such word.
+     * @param src The buffer with the characters.
+     * @param ofs Where to start reading the characters.
+     * @param len The number of characters, an odd number means that the last
+     * character is invalid.
+     * @param dst Where to write the bytes to.
+     * @param dstOfs Where to start writing.
+     * @return The number of bytes written, or if an invalid character has been
+     * detected (-(offset of the first invalid character) - 1). In latter case
+     * parts of the target buffer might have been written.
+     */
+    public static final int hexToBytes(
+        char[] src,
+        int ofs,
+        int len,
+        byte[] dst,
+        int dstOfs) {
+        final int[] hexdec = HEXDEC;
+
+        final int start = ofs;
+        final int end = ofs + (len & ~1);
+        final int wordEnd = ofs + (len & ~7);
+
+        int pos = dstOfs;
+
+        // (characters beyond the ASCII range turn into negative values)
+
+        final int[] hexdecHi = HEXDEC_HI;
+
+        while (ofs < wordEnd) {
+            int c0 = src[ofs    ], c1 = src[ofs + 1];
+            int c2 = src[ofs + 2], c3 = src[ofs + 3];
+            int c4 = src[ofs + 4], c5 = src[ofs + 5];
+            int c6 = src[ofs + 6], c7 = src[ofs + 7];
+
+            int b0 = hexdecHi[c0 & 0x0ff] | hexdec[c1 & 0x0ff];
+            int b1 = hexdecHi[c2 & 0x0ff] | hexdec[c3 & 0x0ff];
+            int b2 = hexdecHi[c4 & 0x0ff] | hexdec[c5 & 0x0ff];
+            int b3 = hexdecHi[c6 & 0x0ff] | hexdec[c7 & 0x0ff];
+
+            if (0 > (b0 | b1 | b2 | b3) ||
+                0 != ((c0 | c1 | c2 | c3 | c4 | c5 | c6 | c7) >>> 8)) {
+                break;
+            }
+
+            INT_BE.set(dst, pos, (b0 << 24) | (b1 << 16) | (b2 << 8) | b3);
+
+            ofs += 8;
+            pos += 4;
+        }
+
+        for (; ofs < end; ofs += 2) {
+            int c0 = src[ofs], c1 = src[ofs + 1];
+
+            int n0 = hexdec[c0 & 0x0ff] | -(c0 >>> 8);
+            if (0 > n0) {
+                return -ofs - 1;
+            }
+            int n1 = hexdec[c1 & 0x0ff] | -(c1 >>> 8);
+            if (0 > n1) {
+                return -ofs - 2;
+            }
+
+            dst[pos++] = (byte)((n0 << 4) | n1);
+        }
+
+        if (0 != (len & 1)) {
+            return -(start + len);
+        }
+
+        return pos - dstOfs;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Converts hex characters, stored as ASCII bytes, to bytes. Upper and lower
+     * case are accepted. The characters get read and decoded eight at a time,
+     * checking for invalid ones only once per such word.
+     * @param src The buffer with the characters.
+     * @param ofs Where to start reading the characters.
+     * @param len The number of characters, an odd number means that the last
+     * character is invalid.
+     * @param dst Where to write the bytes to.
+     * @param dstOfs Where to start writing.
+     * @return The number of bytes written, or if an invalid character has been
+     * detected (-(offset of the first invalid character) - 1). In latter case
+     * parts of the target buffer might have been written.
+     */
+    public static final int hexToBytes(
+        byte[] src,
+        int ofs,
+        int len,
+        byte[] dst,
+        int dstOfs) {
+        final int[] hexdec = HEXDEC;
+        final int[] hexdecHi = HEXDEC_HI;
+
+        final int start = ofs;
+        final int end = ofs + (len & ~1);
+        final int wordEnd = ofs + (len & ~7);
+
+        int pos = dstOfs;
+
+        while (ofs < wordEnd) {
+            long word = (long)LONG_BE.get(src, ofs);
+
+            int b0 = hexdecHi[(int)(word >>> 56)        ] |
+                     hexdec  [(int)(word >>> 48) & 0x0ff];
+            int b1 = hexdecHi[(int)(word >>> 40) & 0x0ff] |
+                     hexdec  [(int)(word >>> 32) & 0x0ff];
+            int b2 = hexdecHi[(int)(word >>> 24) & 0x0ff] |
+                     hexdec  [(int)(word >>> 16) & 0x0ff];
+            int b3 = hexdecHi[(int)(word >>>  8) & 0x0ff] |
+                     hexdec  [(int) word         & 0x0ff];
+
+            if (0 > (b0 | b1 | b2 | b3)) {
+                break;
+            }
+
+            INT_BE.set(dst, pos, (b0 << 24) | (b1 << 16) | (b2 << 8) | b3);
+
+            ofs += 8;
+            pos += 4;
+        }
+
+        for (; ofs < end; ofs += 2) {
+            int n0 = hexdec[src[ofs] & 0x0ff];
+            if (0 > n0) {
+                return -ofs - 1;
+            }
+            int n1 = hexdec[src[ofs + 1] & 0x0ff];
+            if (0 > n1) {
+                return -ofs - 2;
+            }
+
+            dst[pos++] = (byte)((n0 << 4) | n1);
+        }
+
+        if (0 != (len & 1)) {
+            return -(start + len);
+        }
+
+        return pos - dstOfs;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Converts hex characters, stored as ASCII bytes, to bytes. Upper and lower
+     * case are accepted.
+     * @param src The characters, from the position to the limit. On success the
+     * position gets advanced to the limit.
+     * @param dst Where to put the bytes. On success the position gets advanced.
+     * @return The number of bytes written, or if an invalid character has been
+     * detected (-(offset of the first invalid character, relative to the
+     * position) - 1). In latter case parts of the target buffer might have been
+     * written, but both positions stay where they were.
+     * @exception BufferOverflowException If there is not enough space
+     * left in the target buffer, in which case nothing gets converted.
+     */
+    public static final int hexToBytes(ByteBuffer src, ByteBuffer dst) {
+        final int len = src.remaining();
+
+        if (dst.remaining() < (len >> 1)) {
+            throw new BufferOverflowException();
+        }
+
+        int result;
+
+        if (src.hasArray() && dst.hasArray()) {
+            int base = src.arrayOffset() + src.position();
+            result = hexToBytes(
+                src.array(), base, len,
+                dst.array(), dst.arrayOffset() + dst.position());
+            if (0 > result) {
+                return result + base;
+            }
+        }
+        else {
+            final int[] hexdec = HEXDEC;
+            final int srcPos = src.position();
+            final int dstPos = dst.position();
+            for (int i = 0; i < len; i += 2) {
+                int n0 = hexdec[src.get(srcPos + i) & 0x0ff];
+                if (0 > n0) {
+                    return -i - 1;
+                }
+                if (i + 1 == len) {
+                    return -len;
+                }
+                int n1 = hexdec[src.get(srcPos + i + 1) & 0x0ff];
+                if (0 > n1) {
+                    return -i - 2;
+                }
+                dst.put(dstPos + (i >> 1), (byte)((n0 << 4) | n1));
+            }
+            result = len >> 1;
+        }
+
+        src.position(src.limit());
+        dst.position(dst.position() + result);
+
+        return result;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
     /**
      * Converts bytes into a string. Two bytes are read in big endian and
      * converted to one Unicode character.
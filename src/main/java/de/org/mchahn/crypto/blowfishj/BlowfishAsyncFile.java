@@ -0,0 +1,486 @@
+package de.org.mchahn.crypto.blowfishj;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Asynchronous encryption and decryption of files, in the same format as the
+ * BlowfishOutputStream writes: the IV followed by the cipher-text in CBC mode,
+ * padded with PKCS7. Files are read and written in chunks through
+ * asynchronous file channels, with a configurable number of chunks in flight,
+ * while the cipher work runs on an executor. Encryption has to go through the
+ * chunks in order, due to the chaining, but since the place of every chunk in
+ * the output is known from the start the writes go out right away. Decryption
+ * reads the last cipher-text block of the previous chunk along with each one,
+ * so the chunks get decrypted in parallel.<p>
+ * The futures returned deliver the number of bytes read and written. They can
+ * be cancelled, which stops all the I/O. If an operation fails or gets
+ * cancelled the (incomplete) destination file is deleted. Instances are
+ * thread-safe, any number of operations can run at the same time.</p>
+ */
+public final class BlowfishAsyncFile {
+
+    /** The default size of a chunk. */
+    public static final int DEFAULT_CHUNK_SIZE = 1 << 16;
+
+    /** The default number of chunks in flight. */
+    public static final int DEFAULT_IN_FLIGHT = 4;
+
+    final BlowfishCBC bfc;
+    final Executor executor;
+    final int chunkSize;
+    final int inFlight;
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * The result of an operation.
+     */
+    public static final class Counts {
+        final long read;
+        final long written;
+
+        Counts(long read, long written) {
+            this.read = read;
+            this.written = written;
+        }
+
+        /** @return The number of bytes read from the source. */
+        public long getBytesRead() {
+            return this.read;
+        }
+
+        /** @return The number of bytes written to the destination. */
+        public long getBytesWritten() {
+            return this.written;
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Default constructor, running the cipher work on the common pool, with
+     * the default chunk size and number of chunks in flight.
+     * @param key The buffer with the key material.
+     * @param ofs Where the key material starts in the buffer.
+     * @param len Size of the key material.
+     */
+    public BlowfishAsyncFile(byte[] key, int ofs, int len) {
+        this(key, ofs, len, ForkJoinPool.commonPool(), DEFAULT_CHUNK_SIZE,
+             DEFAULT_IN_FLIGHT);
+    }
+
+    /**
+     * Constructor.
+     * @param key The buffer with the key material.
+     * @param ofs Where the key material starts in the buffer.
+     * @param len Size of the key material.
+     * @param executor Where to run the encryption and decryption of chunks.
+     * @param chunkSize The size of a chunk, a multiple of the block size.
+     * @param inFlight The maximum number of chunks being read, processed or
+     * written at the same time, per operation.
+     */
+    public BlowfishAsyncFile(
+        byte[] key,
+        int ofs,
+        int len,
+        Executor executor,
+        int chunkSize,
+        int inFlight) {
+        if (Blowfish.BLOCKSIZE > chunkSize ||
+            0 != chunkSize % Blowfish.BLOCKSIZE) {
+            throw new IllegalArgumentException("invalid chunk size " +
+                                               chunkSize);
+        }
+        if (1 > inFlight) {
+            throw new IllegalArgumentException("invalid number in flight " +
+                                               inFlight);
+        }
+        this.bfc = BlowfishStreamFactory.createCipher(key, ofs, len);
+        this.executor = executor;
+        this.chunkSize = chunkSize;
+        this.inFlight = inFlight;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Encrypts a file.
+     * @param src The file with the plain-text.
+     * @param dst Where to write the cipher-text to, replaced if it exists.
+     * @return The future result.
+     */
+    public CompletableFuture<Counts> encrypt(Path src, Path dst) {
+        return new Job(src, dst, true).start();
+    }
+
+    /**
+     * Decrypts a file.
+     * @param src The file with the cipher-text.
+     * @param dst Where to write the plain-text to, replaced if it exists.
+     * @return The future result, failing with an IOException if the data is
+     * truncated or the padding is invalid.
+     */
+    public CompletableFuture<Counts> decrypt(Path src, Path dst) {
+        return new Job(src, dst, false).start();
+    }
+
+    /** Wipes the key schedule, after all operations are done. */
+    public void cleanUp() {
+        this.bfc.cleanUp();
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    // a single operation; chunk i is read into slot i % inFlight, and the
+    // slot is reused for the next chunk once the write is done
+    final class Job {
+        final Path src;
+        final Path dst;
+        final boolean encrypt;
+        final CompletableFuture<Counts> result = new CompletableFuture<>();
+
+        volatile AsynchronousFileChannel in;
+        volatile AsynchronousFileChannel out;
+
+        long size;
+        long chunks;
+        long iv;
+        final AtomicLong read = new AtomicLong();
+        final AtomicLong written = new AtomicLong();
+        // writes still to be done, the IV counting as one when encrypting
+        final AtomicLong pending = new AtomicLong();
+
+        volatile Slot[] slots;
+
+        // encryption goes through the chunks in order, only one thread at a
+        // time doing so
+        final AtomicInteger wip = new AtomicInteger();
+        long nextEncrypt;
+
+        Job(Path src, Path dst, boolean encrypt) {
+            this.src = src;
+            this.dst = dst;
+            this.encrypt = encrypt;
+        }
+
+        CompletableFuture<Counts> start() {
+            // (for cancellations, failures clean up before completing)
+            this.result.whenComplete((counts, err) -> {
+                if (null != err) {
+                    discard();
+                }
+            });
+            try {
+                this.in = AsynchronousFileChannel.open(this.src,
+                    StandardOpenOption.READ);
+                this.out = AsynchronousFileChannel.open(this.dst,
+                    StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+                this.size = this.in.size();
+
+                int cs = BlowfishAsyncFile.this.chunkSize;
+                if (this.encrypt) {
+                    // the last chunk is the one getting padded, it might
+                    // consist of the padding only
+                    this.chunks = this.size / cs + 1;
+                    this.pending.set(this.chunks + 1);
+                    this.iv = new SecureRandom().nextLong();
+                    ByteBuffer ivbuf = ByteBuffer.allocate(Blowfish.BLOCKSIZE);
+                    ivbuf.putLong(0, this.iv);
+                    write(ivbuf, 0L);
+                }
+                else {
+                    long payload = this.size - Blowfish.BLOCKSIZE;
+                    if (Blowfish.BLOCKSIZE > payload ||
+                        0 != payload % Blowfish.BLOCKSIZE) {
+                        throw new IOException("truncated file, size is " +
+                                              this.size);
+                    }
+                    this.chunks = (payload + cs - 1) / cs;
+                    this.pending.set(this.chunks);
+                }
+
+                int count = (int)Math.min(BlowfishAsyncFile.this.inFlight,
+                                          this.chunks);
+                Slot[] slots = new Slot[count];
+                for (int s = 0; s < count; s++) {
+                    slots[s] = new Slot();
+                }
+                this.slots = slots;
+                for (int s = 0; s < count; s++) {
+                    slots[s].read(s);
+                }
+            }
+            catch (Throwable err) {
+                fail(err);
+            }
+            // (cancelled while opening)
+            if (this.result.isDone()) {
+                close();
+            }
+            return this.result;
+        }
+
+        void fail(Throwable err) {
+            // (waiting callers must not see the partial output anymore)
+            discard();
+            this.result.completeExceptionally(err);
+        }
+
+        void discard() {
+            close();
+            if (null == this.out) {
+                // (never got created or truncated by us)
+                return;
+            }
+            try {
+                Files.deleteIfExists(this.dst);
+            }
+            catch (IOException ioe) {
+                // (nothing we could do about it)
+            }
+        }
+
+        void close() {
+            for (AsynchronousFileChannel afc : new AsynchronousFileChannel[] {
+                    this.in, this.out }) {
+                try {
+                    if (null != afc) {
+                        afc.close();
+                    }
+                }
+                catch (IOException ioe) {
+                    // (closing after a failure, or a second time)
+                }
+            }
+            if (null != this.slots) {
+                for (Slot slot : this.slots) {
+                    if (null != slot) {
+                        Arrays.fill(slot.buf, (byte)0);
+                    }
+                }
+            }
+        }
+
+        // a write is done, the job too if it was the last one
+        void written(int len) {
+            this.written.addAndGet(len);
+            if (0L == this.pending.decrementAndGet()) {
+                close();
+                this.result.complete(new Counts(this.read.get(),
+                                                this.written.get()));
+            }
+        }
+
+        ///////////////////////////////////////////////////////////////////////
+
+        // writes a buffer completely, without a slot to go back to
+        void write(ByteBuffer buf, long pos) {
+            final int len = buf.remaining();
+            this.out.write(buf, pos, pos,
+                new CompletionHandler<Integer, Long>() {
+                @Override
+                public void completed(Integer done, Long at) {
+                    if (buf.hasRemaining()) {
+                        Job.this.out.write(buf, at + done, at + done, this);
+                    }
+                    else {
+                        written(len);
+                    }
+                }
+                @Override
+                public void failed(Throwable err, Long at) {
+                    fail(err);
+                }
+            });
+        }
+
+        ///////////////////////////////////////////////////////////////////////
+
+        // drives the chunks encrypted in order, as long as the next one got
+        // read already
+        void drainEncrypt() {
+            if (0 != this.wip.getAndIncrement()) {
+                return;
+            }
+            do {
+                while (this.nextEncrypt < this.chunks &&
+                       !this.result.isDone()) {
+                    Slot slot = this.slots[
+                        (int)(this.nextEncrypt % this.slots.length)];
+                    if (!slot.ready || slot.chunk != this.nextEncrypt) {
+                        break;
+                    }
+                    slot.ready = false;
+                    this.nextEncrypt++;
+                    try {
+                        slot.encrypt();
+                    }
+                    catch (Throwable err) {
+                        fail(err);
+                    }
+                }
+            }
+            while (0 != this.wip.decrementAndGet());
+        }
+
+        ///////////////////////////////////////////////////////////////////////
+
+        final class Slot implements CompletionHandler<Integer, Boolean> {
+            final byte[] buf = new byte[BlowfishAsyncFile.this.chunkSize +
+                                        Blowfish.BLOCKSIZE];
+            final ByteBuffer bb = ByteBuffer.wrap(this.buf);
+
+            long chunk;
+            long pos;
+            int len;
+            int wlen;
+            volatile boolean ready;
+
+            // starts reading a chunk, when encrypting just its plain-text,
+            // otherwise the cipher-text along with the block in front of it
+            void read(long chunk) {
+                int cs = BlowfishAsyncFile.this.chunkSize;
+                this.chunk = chunk;
+                this.pos = chunk * cs;
+                long end = Job.this.encrypt ?
+                    Math.min(this.pos + cs, Job.this.size) :
+                    Math.min(this.pos + cs + Blowfish.BLOCKSIZE,
+                             Job.this.size);
+                this.len = (int)(end - this.pos);
+                this.bb.clear().limit(this.len);
+                if (0 == this.len) {
+                    completed(0, Boolean.TRUE);
+                    return;
+                }
+                Job.this.in.read(this.bb, this.pos, Boolean.TRUE, this);
+            }
+
+            boolean last() {
+                return this.chunk == Job.this.chunks - 1;
+            }
+
+            @Override
+            public void completed(Integer done, Boolean reading) {
+                if (Job.this.result.isDone()) {
+                    return;
+                }
+                if (!reading) {
+                    if (this.bb.hasRemaining()) {
+                        Job.this.out.write(this.bb,
+                            this.pos + this.bb.position(), Boolean.FALSE, this);
+                        return;
+                    }
+                    written(this.wlen);
+                    long next = this.chunk + Job.this.slots.length;
+                    if (next < Job.this.chunks) {
+                        read(next);
+                    }
+                    return;
+                }
+                if (-1 == done) {
+                    fail(new IOException("file got truncated while reading"));
+                    return;
+                }
+                if (this.bb.hasRemaining()) {
+                    Job.this.in.read(this.bb, this.pos + this.bb.position(),
+                                     Boolean.TRUE, this);
+                    return;
+                }
+                // (not counting the block read along a second time)
+                Job.this.read.addAndGet(this.len -
+                    (Job.this.encrypt || 0 == this.chunk ?
+                     0 : Blowfish.BLOCKSIZE));
+                try {
+                    if (Job.this.encrypt) {
+                        this.ready = true;
+                        BlowfishAsyncFile.this.executor.execute(
+                            Job.this::drainEncrypt);
+                    }
+                    else {
+                        BlowfishAsyncFile.this.executor.execute(this::decrypt);
+                    }
+                }
+                catch (Throwable err) {
+                    fail(err);
+                }
+            }
+
+            @Override
+            public void failed(Throwable err, Boolean reading) {
+                fail(err);
+            }
+
+            // writes the (processed) buffer, from where the position is
+            void write(int len, long at) {
+                this.wlen = len;
+                this.bb.limit(this.bb.position() + len);
+                this.pos = at - this.bb.position();
+                Job.this.out.write(this.bb, at, Boolean.FALSE, this);
+            }
+
+            void encrypt() {
+                BlowfishCBC bfc = BlowfishAsyncFile.this.bfc;
+                int size;
+                if (last()) {
+                    size = bfc.encryptPadded(Job.this.iv, this.buf, 0,
+                                             this.buf, 0, this.len);
+                }
+                else {
+                    Job.this.iv = bfc.encrypt(Job.this.iv, this.buf, 0,
+                                              this.buf, 0, this.len);
+                    size = this.len;
+                }
+                this.bb.clear();
+                write(size, Blowfish.BLOCKSIZE + this.pos);
+            }
+
+            void decrypt() {
+                if (Job.this.result.isDone()) {
+                    return;
+                }
+                try {
+                    decryptChunk();
+                }
+                catch (Throwable err) {
+                    fail(err);
+                }
+            }
+
+            void decryptChunk() {
+                BlowfishCBC bfc = BlowfishAsyncFile.this.bfc;
+                long iv = BinConverter.byteArrayToLong(this.buf, 0);
+                int size = this.len - Blowfish.BLOCKSIZE;
+                if (last()) {
+                    size = bfc.decryptPadded(iv, this.buf, Blowfish.BLOCKSIZE,
+                                             this.buf, Blowfish.BLOCKSIZE,
+                                             size);
+                    if (-1 == size) {
+                        BlowfishMetrics.paddingFailure();
+                        fail(new IOException("invalid padding detected"));
+                        return;
+                    }
+                }
+                else {
+                    bfc.decrypt(iv, this.buf, Blowfish.BLOCKSIZE, this.buf,
+                                Blowfish.BLOCKSIZE, size);
+                }
+                this.bb.clear().position(Blowfish.BLOCKSIZE);
+                write(size, this.pos);
+            }
+        }
+    }
+}
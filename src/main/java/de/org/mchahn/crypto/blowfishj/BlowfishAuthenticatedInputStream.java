@@ -0,0 +1,277 @@
+package de.org.mchahn.crypto.blowfishj;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.util.Arrays;
+
+import javax.crypto.Mac;
+
+/**
+ * To read from a stream created by an instance of the
+ * BlowfishAuthenticatedOutputStream class. Each chunk gets verified as soon as
+ * it has been read and before any of its data is delivered, so corrupt data
+ * is detected at the chunk it appears in, without reading the rest of the
+ * stream, and never gets decrypted. Once a chunk failed the verification all
+ * further reads fail as well.
+ */
+public class BlowfishAuthenticatedInputStream extends InputStream {
+
+    PushbackInputStream is;
+
+    BlowfishCBC bfc;
+    Mac mac;
+
+    byte[] header;
+    int chunkSize;
+    long index;
+    boolean eof;
+    IOException error;
+
+    // the IV, the cipher-text decrypted in place and the tag
+    byte[] buf;
+    int bufPos;
+    int bufEnd;
+    byte[] tag;
+
+    // for the flight recorder: when the stream got opened, zero if that is not
+    // recorded, and the number of cipher-text bytes passed so far
+    long opened;
+    long transferred;
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Default constructor. The keys get derived from the key material in the
+     * same way as the output stream does.
+     * @param key The buffer with the key material.
+     * @param ofs Where the key material starts in the buffer.
+     * @param len Size of the key material.
+     * @param is The input stream from which data will be read.
+     * @exception IOException If the header couldn't be read or is invalid.
+     */
+    public BlowfishAuthenticatedInputStream(
+        byte[] key,
+        int ofs,
+        int len,
+        InputStream is) throws IOException {
+        long start = BlowfishMetrics.start();
+        this.opened = BlowfishEvents.streamOpened();
+        this.is = new PushbackInputStream(is);
+
+        this.header = new byte[BlowfishAuthenticatedOutputStream.HEADER_SIZE];
+
+        if (this.header.length != readFully(this.header, 0,
+                                            this.header.length)) {
+            throw new IOException("truncated stream, header is missing");
+        }
+
+        if (BlowfishAuthenticatedOutputStream.FORMAT_VERSION !=
+            this.header[0]) {
+            throw new IOException("unsupported format version " +
+                                  this.header[0]);
+        }
+
+        int size = BinConverter.byteArrayToInt(this.header, 1);
+
+        if (size < Blowfish.BLOCKSIZE                                   ||
+            size > BlowfishAuthenticatedOutputStream.MAX_CHUNK_SIZE     ||
+            0 != size % Blowfish.BLOCKSIZE) {
+            throw new IOException("invalid chunk size " + size);
+        }
+
+        this.chunkSize = size;
+
+        this.bfc = BlowfishStreamFactory.createCipher(key, ofs, len);
+        this.mac = BlowfishAuthenticatedOutputStream.createMac(key, ofs, len);
+
+        this.buf = new byte[Blowfish.BLOCKSIZE + size +
+                            BlowfishAuthenticatedOutputStream.TAG_SIZE];
+        this.tag = new byte[this.mac.getMacLength()];
+        BlowfishMetrics.streamOpened(start);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /** @return The size of the chunks, as stored in the header. */
+    public int getChunkSize() {
+        return this.chunkSize;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    int readFully(byte[] buf, int ofs, int len) throws IOException {
+        int total = 0;
+        while (total < len) {
+            int read = this.is.read(buf, ofs + total, len - total);
+            if (-1 == read) {
+                break;
+            }
+            total += read;
+        }
+        this.transferred += total;
+        return total;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    // constant time comparison of the tag computed with the one received
+    boolean verify(int ofs) {
+        int diff = 0;
+        for (int i = 0; i < BlowfishAuthenticatedOutputStream.TAG_SIZE; i++) {
+            diff |= this.tag[i] ^ this.buf[ofs + i];
+        }
+        return 0 == diff;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    void fillBuffer() throws IOException {
+        int size = this.buf.length;
+        int read = readFully(this.buf, 0, size);
+
+        if (read == size) {
+            // peek if this is the end of the stream
+            int val = this.is.read();
+            if (-1 == val) {
+                this.eof = true;
+            }
+            else {
+                this.is.unread(val);
+            }
+        }
+        else {
+            this.eof = true;
+        }
+
+        int count = read - Blowfish.BLOCKSIZE -
+                    BlowfishAuthenticatedOutputStream.TAG_SIZE;
+
+        if (this.eof && (0 >= count || 0 != count % Blowfish.BLOCKSIZE)) {
+            throw new IOException("truncated stream, unexpected end");
+        }
+
+        int end = Blowfish.BLOCKSIZE + count;
+
+        BlowfishAuthenticatedOutputStream.computeTag(this.mac, this.header,
+            this.index, this.eof, this.buf, end, this.tag);
+
+        if (!verify(end)) {
+            throw new IOException("authentication of chunk " + this.index +
+                                  " failed");
+        }
+        this.index++;
+
+        long iv = BinConverter.byteArrayToLong(this.buf, 0);
+
+        if (this.eof) {
+            // validate the padding, which only fails on a broken writer
+            count = this.bfc.decryptPadded(iv, this.buf, Blowfish.BLOCKSIZE,
+                                           this.buf, Blowfish.BLOCKSIZE,
+                                           count);
+            if (-1 == count) {
+                BlowfishMetrics.paddingFailure();
+                throw new IOException("invalid padding detected");
+            }
+            end = Blowfish.BLOCKSIZE + count;
+        }
+        else {
+            this.bfc.decrypt(
+                iv,
+                this.buf,
+                Blowfish.BLOCKSIZE,
+                this.buf,
+                Blowfish.BLOCKSIZE,
+                count);
+        }
+
+        this.bufPos = Blowfish.BLOCKSIZE;
+        this.bufEnd = end;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    // makes data available, returns false at the end of the stream
+    boolean available0() throws IOException {
+        while (this.bufPos >= this.bufEnd) {
+            if (null != this.error) {
+                throw this.error;
+            }
+            if (this.eof || null == this.is) {
+                return false;
+            }
+            try {
+                fillBuffer();
+            }
+            catch (IOException ioe) {
+                this.error = ioe;
+                this.bufPos = this.bufEnd = 0;
+                throw ioe;
+            }
+        }
+        return true;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /** @see java.io.InputStream#read() */
+    @Override
+    public int read() throws IOException {
+        if (!available0()) {
+            return -1;
+        }
+        return this.buf[this.bufPos++] & 0x0ff;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /** @see java.io.InputStream#read(byte[], int, int) */
+    @Override
+    public int read(byte[] buf, int ofs, int len) throws IOException {
+        if (0 == len) {
+            return 0;
+        }
+        long start = BlowfishMetrics.start();
+
+        int result = -1;
+        if (available0()) {
+            result = Math.min(len, this.bufEnd - this.bufPos);
+            System.arraycopy(this.buf, this.bufPos, buf, ofs, result);
+            this.bufPos += result;
+        }
+
+        BlowfishMetrics.streamRead(start);
+        return result;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /** @see java.io.InputStream#available() */
+    @Override
+    public int available() {
+        return this.bufEnd - this.bufPos;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /** @see java.io.InputStream#close() */
+    @Override
+    public void close() throws IOException {
+        if (null == this.is) {
+            return;
+        }
+        long start = BlowfishMetrics.start();
+        BlowfishEvents.Stream ev = BlowfishEvents.beginStreamClose(this.opened);
+
+        this.is.close();
+        this.is = null;
+
+        this.bfc.cleanUp();
+        this.mac.reset();
+        Arrays.fill(this.buf, (byte)0);
+        this.bufPos = this.bufEnd = 0;
+
+        BlowfishMetrics.streamClosed(start);
+        BlowfishEvents.commitStream(ev, this, this.opened, this.transferred);
+    }
+}
@@ -0,0 +1,310 @@
+package de.org.mchahn.crypto.blowfishj;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.crypto.Mac;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * An output stream encrypting and authenticating data in a single pass, using
+ * encrypt-then-MAC. Data gets split into chunks of a fixed size, each of them
+ * is encrypted in CBC mode with its own random IV and followed by a tag, an
+ * HMAC-SHA256 truncated to TAG_SIZE bytes, computed over the cipher-text right
+ * before it gets written. The last chunk is padded with PKCS7 and always holds
+ * less plain-text than a full one, so if data happens to end on a chunk
+ * boundary an extra chunk with just the padding follows.<p>
+ * The stream starts with a header of HEADER_SIZE bytes: the format version,
+ * the chunk size as a 32bit integer and a random 64bit stream nonce. The tag
+ * of each chunk covers the header, the index of the chunk, whether it is the
+ * last one, its IV and its cipher-text, so chunks can neither be modified,
+ * reordered, dropped or moved to another stream, nor can the stream be cut
+ * off at a chunk boundary without this being detected.</p><p>
+ * The encryption key is derived from the key material just like in the
+ * BlowfishOutputStream, the MAC key independently using SHA-256 over a label
+ * and the key material. Use the BlowfishAuthenticatedInputStream class to read
+ * such a stream.</p>
+ */
+public class BlowfishAuthenticatedOutputStream extends OutputStream {
+
+    /** The version of the format, always the first byte of a stream. */
+    public static final int FORMAT_VERSION = 1;
+
+    /** The size of the header, version, chunk size and nonce. */
+    public static final int HEADER_SIZE = 13;
+
+    /** The size of the tag following each chunk. */
+    public static final int TAG_SIZE = 16;
+
+    /** The default size of a chunk in bytes. */
+    public static final int DEFAULT_CHUNK_SIZE = 1 << 16;
+
+    /** The maximum size of a chunk in bytes. */
+    public static final int MAX_CHUNK_SIZE = 1 << 24;
+
+    static final String MAC_ALGORITHM = "HmacSHA256";
+
+    static final byte[] MAC_LABEL =
+        "blowfishj authenticated stream mac".getBytes(
+            StandardCharsets.US_ASCII);
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Creates the MAC, with its key derived from the key material.
+     * @param key The buffer with the key material.
+     * @param ofs Where the key material starts in the buffer.
+     * @param len Size of the key material.
+     * @return The initialized MAC.
+     */
+    static Mac createMac(byte[] key, int ofs, int len) {
+        byte[] mkey = null;
+        try {
+            MessageDigest md = BlowfishStreamFactory.digest("SHA-256");
+            md.update(MAC_LABEL);
+            md.update(key, ofs, len);
+            mkey = md.digest();
+
+            Mac result = Mac.getInstance(MAC_ALGORITHM);
+            result.init(new SecretKeySpec(mkey, MAC_ALGORITHM));
+            return result;
+        }
+        catch (GeneralSecurityException gse) {
+            throw new UnsupportedOperationException(gse);
+        }
+        finally {
+            if (null != mkey) {
+                Arrays.fill(mkey, (byte)0);
+            }
+        }
+    }
+
+    /**
+     * Computes the tag of a chunk. The MAC gets reset afterwards.
+     * @param mac The MAC.
+     * @param header The header of the stream.
+     * @param index The index of the chunk.
+     * @param last Whether this is the last chunk.
+     * @param buf Buffer with the IV and the cipher-text.
+     * @param len Size of the IV plus the cipher-text.
+     * @param tag Where to put the full tag, of the size of the MAC.
+     */
+    static void computeTag(
+        Mac mac,
+        byte[] header,
+        long index,
+        boolean last,
+        byte[] buf,
+        int len,
+        byte[] tag) {
+        mac.update(header);
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            mac.update((byte)(index >>> shift));
+        }
+        mac.update((byte)(last ? 1 : 0));
+        mac.update(buf, 0, len);
+        try {
+            mac.doFinal(tag, 0);
+        }
+        catch (ShortBufferException sbe) {
+            throw new IllegalStateException(sbe);
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    OutputStream os;
+
+    BlowfishCBC bfc;
+    Mac mac;
+    Random rnd;
+
+    byte[] header;
+    int chunkSize;
+    long index;
+
+    // the IV, the plain-text encrypted in place and the room for the tag
+    byte[] buf;
+    int count;
+    byte[] tag;
+
+    // for the flight recorder: when the stream got opened, zero if that is not
+    // recorded, and the number of cipher-text bytes passed so far
+    long opened;
+    long transferred;
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Default constructor, using the default chunk size.
+     * @param key The key buffer.
+     * @param ofs Where the key material starts in the buffer.
+     * @param len Size of the key material.
+     * @param os The output stream to which data will be encrypted to.
+     * @exception IOException If the header couldn't be written.
+     */
+    public BlowfishAuthenticatedOutputStream(
+        byte[] key,
+        int ofs,
+        int len,
+        OutputStream os) throws IOException {
+        this(key, ofs, len, os, DEFAULT_CHUNK_SIZE);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Constructor with a custom chunk size. Smaller chunks make readers fail
+     * earlier on corrupt data and need less memory, at the expense of the
+     * space and time spent on the tags.
+     * @param key The key buffer.
+     * @param ofs Where the key material starts in the buffer.
+     * @param len Size of the key material.
+     * @param os The output stream to which data will be encrypted to.
+     * @param chunkSize Size of a chunk in bytes, must be a multiple of the
+     * block size and not larger than MAX_CHUNK_SIZE.
+     * @exception IOException If the header couldn't be written.
+     */
+    public BlowfishAuthenticatedOutputStream(
+        byte[] key,
+        int ofs,
+        int len,
+        OutputStream os,
+        int chunkSize) throws IOException {
+        if (chunkSize < Blowfish.BLOCKSIZE   ||
+            chunkSize > MAX_CHUNK_SIZE       ||
+            0 != chunkSize % Blowfish.BLOCKSIZE) {
+            throw new IllegalArgumentException(
+                "invalid chunk size " + chunkSize);
+        }
+        long start = BlowfishMetrics.start();
+        this.opened = BlowfishEvents.streamOpened();
+
+        this.bfc = BlowfishStreamFactory.createCipher(key, ofs, len);
+        this.mac = createMac(key, ofs, len);
+        this.rnd = new SecureRandom();
+
+        this.os = os;
+        this.chunkSize = chunkSize;
+        this.buf = new byte[Blowfish.BLOCKSIZE + chunkSize + TAG_SIZE];
+        this.tag = new byte[this.mac.getMacLength()];
+
+        this.header = new byte[HEADER_SIZE];
+        this.header[0] = (byte)FORMAT_VERSION;
+        BinConverter.intToByteArray(chunkSize, this.header, 1);
+        BinConverter.longToByteArray(this.rnd.nextLong(), this.header, 5);
+
+        this.os.write(this.header, 0, this.header.length);
+        this.transferred = this.header.length;
+        BlowfishMetrics.streamOpened(start);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    void writeChunk(boolean last) throws IOException {
+        long iv = this.rnd.nextLong();
+        BinConverter.longToByteArray(iv, this.buf, 0);
+
+        if (last) {
+            this.count = this.bfc.encryptPadded(iv, this.buf,
+                Blowfish.BLOCKSIZE, this.buf, Blowfish.BLOCKSIZE, this.count);
+        }
+        else {
+            this.bfc.encrypt(
+                iv,
+                this.buf,
+                Blowfish.BLOCKSIZE,
+                this.buf,
+                Blowfish.BLOCKSIZE,
+                this.count);
+        }
+
+        int len = Blowfish.BLOCKSIZE + this.count;
+
+        computeTag(this.mac, this.header, this.index++, last, this.buf, len,
+                   this.tag);
+        System.arraycopy(this.tag, 0, this.buf, len, TAG_SIZE);
+
+        this.os.write(this.buf, 0, len + TAG_SIZE);
+        this.transferred += len + TAG_SIZE;
+
+        this.count = 0;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /** @see java.io.OutputStream#write(int) */
+    @Override
+    public void write(int val) throws IOException {
+        this.buf[Blowfish.BLOCKSIZE + this.count++] = (byte)val;
+
+        if (this.count == this.chunkSize) {
+            writeChunk(false);
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /** @see java.io.OutputStream#write(byte[], int, int) */
+    @Override
+    public void write(byte[] buf, int ofs, int len) throws IOException {
+        while (0 < len) {
+            int toCopy = Math.min(len, this.chunkSize - this.count);
+
+            System.arraycopy(buf, ofs, this.buf, Blowfish.BLOCKSIZE +
+                             this.count, toCopy);
+
+            this.count += toCopy;
+            ofs += toCopy;
+            len -= toCopy;
+
+            if (this.count == this.chunkSize) {
+                writeChunk(false);
+            }
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Flushes the underlying stream. Notice that data of a chunk not filled
+     * up yet stays buffered, since there is no way to end a chunk early.
+     * @see java.io.OutputStream#flush()
+     */
+    @Override
+    public void flush() throws IOException {
+        this.os.flush();
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /** @see java.io.OutputStream#close() */
+    @Override
+    public void close() throws IOException {
+        if (null == this.os) {
+            return;
+        }
+        long start = BlowfishMetrics.start();
+        BlowfishEvents.Stream ev = BlowfishEvents.beginStreamClose(this.opened);
+
+        writeChunk(true);
+
+        this.os.close();
+        this.os = null;
+
+        this.bfc.cleanUp();
+        this.bfc = null;
+        this.mac.reset();
+        Arrays.fill(this.buf, (byte)0);
+
+        BlowfishMetrics.streamClosed(start);
+        BlowfishEvents.commitStream(ev, this, this.opened, this.transferred);
+    }
+}
@@ -1,12 +1,15 @@
 package de.org.mchahn.crypto.blowfishj;
 
+import java.util.Arrays;
+
 /** Implementation of the Blowfish encryption algorithm in CBC, which is
  * next to CFB the recommended mode of operation. The initialization vector (IV)
  * represents one block of usually random data, making each encrypted stream
  * unique. The IV has to be stored together with the encrypted data externally,
  * usually it marks the beginning of an encrypted stream. Notice that padding is
- * not handling by this class, thus data not aligning to the size of a block
- * must be appended with extra data. Check out schemes like PKCS7. */
+ * only handled by the encryptPadded() and decryptPadded() methods, using PKCS7,
+ * while the encryptCS3() and decryptCS3() methods avoid it by ciphertext
+ * stealing; all the others expect data aligning to the size of a block. */
 public final class BlowfishCBC extends BlowfishECB {
 
     // the initialization vector (IV)
@@ -123,6 +126,54 @@ public final class BlowfishCBC extends BlowfishECB {
         int len) {
         len -= len % BLOCKSIZE;
 
+        setCBCIV(encrypt(getCBCIV(), inbuf, inpos, outbuf, outpos, len));
+
+        return len;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Encrypts data starting with an IV passed in by the caller. The IV of the
+     * instance is neither read nor modified, so the instance can be shared by
+     * many threads, each of them keeping its own chaining state. Rest data
+     * beyond the last block boundary will not be processed.
+     * @param iv The IV to start with.
+     * @param inbuf The buffer with the plain-text data.
+     * @param inpos Where to start reading the plain-text data.
+     * @param outbuf Buffer to write the cipher-text data to.
+     * @param outpos Where to start writing the cipher-text data.
+     * @param len The number of bytes to encrypt.
+     * @return The IV to continue with, which is the last cipher-text block.
+     */
+    public long encrypt(
+        long iv,
+        byte[] inbuf,
+        int inpos,
+        byte[] outbuf,
+        int outpos,
+        int len) {
+        long start = BlowfishMetrics.start();
+        BlowfishEvents.Cipher ev = BlowfishEvents.beginCipher(len);
+        long result = cbcEncrypt(iv, inbuf, inpos, outbuf, outpos, len);
+        int done = len - len % BLOCKSIZE;
+        BlowfishMetrics.encrypted(BlowfishMetrics.Mode.CBC, done, start);
+        BlowfishEvents.commitCipher(ev, BlowfishMetrics.Mode.CBC, true, done);
+        return result;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    // the actual CBC encryption
+    long cbcEncrypt(
+        long iv,
+        byte[] inbuf,
+        int inpos,
+        byte[] outbuf,
+        int outpos,
+        int len) {
+        len -= len % BLOCKSIZE;
+
         final int c = inpos + len;
 
         final int[] pbox = this.pbox;
@@ -150,21 +201,14 @@ public final class BlowfishCBC extends BlowfishECB {
         final int[] sbox3 = this.sbox3;
         final int[] sbox4 = this.sbox4;
 
-        int ivHi = this.ivHi;
-        int ivLo = this.ivLo;
+        int ivHi = BinConverter.longHi32(iv);
+        int ivLo = BinConverter.longLo32(iv);
 
         int hi, lo;
 
         while (inpos < c) {
-            hi  =  (inbuf[inpos    ] << 24)              |
-                  ((inbuf[inpos + 1] << 16) & 0x0ff0000) |
-                  ((inbuf[inpos + 2] <<  8) & 0x000ff00) |
-                   (inbuf[inpos + 3]        & 0x00000ff);
-
-            lo  =  (inbuf[inpos + 4] << 24)              |
-                  ((inbuf[inpos + 5] << 16) & 0x0ff0000) |
-                  ((inbuf[inpos + 6] <<  8) & 0x000ff00) |
-                   (inbuf[inpos + 7]        & 0x00000ff);
+            hi  = (int)BinConverter.INT_BE.get(inbuf, inpos);
+            lo  = (int)BinConverter.INT_BE.get(inbuf, inpos + 4);
 
             inpos += 8;
 
@@ -190,15 +234,8 @@ public final class BlowfishCBC extends BlowfishECB {
             hi ^= (((sbox1[lo >>> 24] + sbox2[(lo >>> 16) & 0x0ff]) ^ sbox3[(lo >>> 8) & 0x0ff]) + sbox4[lo & 0x0ff]) ^ pbox16;
             lo ^= pbox17;
 
-            outbuf[outpos    ] = (byte)(lo >>> 24);
-            outbuf[outpos + 1] = (byte)(lo >>> 16);
-            outbuf[outpos + 2] = (byte)(lo >>>  8);
-            outbuf[outpos + 3] = (byte) lo;
-
-            outbuf[outpos + 4] = (byte)(hi >>> 24);
-            outbuf[outpos + 5] = (byte)(hi >>> 16);
-            outbuf[outpos + 6] = (byte)(hi >>>  8);
-            outbuf[outpos + 7] = (byte) hi;
+            BinConverter.INT_BE.set(outbuf, outpos, lo);
+            BinConverter.INT_BE.set(outbuf, outpos + 4, hi);
 
             outpos += 8;
 
@@ -206,10 +243,7 @@ public final class BlowfishCBC extends BlowfishECB {
             ivLo = hi;
         }
 
-        this.ivHi = ivHi;
-        this.ivLo = ivLo;
-
-        return len;
+        return BinConverter.makeLong(ivLo, ivHi);
     }
 
     ///////////////////////////////////////////////////////////////////////////
@@ -224,6 +258,54 @@ public final class BlowfishCBC extends BlowfishECB {
         int len) {
         len -= len % BLOCKSIZE;
 
+        setCBCIV(decrypt(getCBCIV(), inbuf, inpos, outbuf, outpos, len));
+
+        return len;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Decrypts data starting with an IV passed in by the caller. The IV of the
+     * instance is neither read nor modified, so the instance can be shared by
+     * many threads, each of them keeping its own chaining state. Rest data
+     * beyond the last block boundary will not be processed.
+     * @param iv The IV to start with.
+     * @param inbuf The buffer with the cipher-text data.
+     * @param inpos Where to start reading the cipher-text data.
+     * @param outbuf Buffer to write the plain-text data to.
+     * @param outpos Where to start writing the plain-text data.
+     * @param len The number of bytes to decrypt.
+     * @return The IV to continue with, which is the last cipher-text block.
+     */
+    public long decrypt(
+        long iv,
+        byte[] inbuf,
+        int inpos,
+        byte[] outbuf,
+        int outpos,
+        int len) {
+        long start = BlowfishMetrics.start();
+        BlowfishEvents.Cipher ev = BlowfishEvents.beginCipher(len);
+        long result = cbcDecrypt(iv, inbuf, inpos, outbuf, outpos, len);
+        int done = len - len % BLOCKSIZE;
+        BlowfishMetrics.decrypted(BlowfishMetrics.Mode.CBC, done, start);
+        BlowfishEvents.commitCipher(ev, BlowfishMetrics.Mode.CBC, false, done);
+        return result;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    // the actual CBC decryption
+    long cbcDecrypt(
+        long iv,
+        byte[] inbuf,
+        int inpos,
+        byte[] outbuf,
+        int outpos,
+        int len) {
+        len -= len % BLOCKSIZE;
+
         final int c = inpos + len;
 
         final int[] pbox = this.pbox;
@@ -251,23 +333,18 @@ public final class BlowfishCBC extends BlowfishECB {
         final int[] sbox3 = this.sbox3;
         final int[] sbox4 = this.sbox4;
 
-        int ivHi = this.ivHi;
-        int ivLo = this.ivLo;
+        int ivHi = BinConverter.longHi32(iv);
+        int ivLo = BinConverter.longLo32(iv);
 
         int tmpHi, tmpLo;
 
         int hi, lo;
 
         while (inpos < c) {
-            hi  =  (inbuf[inpos++] << 24)              |
-                  ((inbuf[inpos++] << 16) & 0x0ff0000) |
-                  ((inbuf[inpos++] <<  8) & 0x000ff00) |
-                   (inbuf[inpos++]        & 0x00000ff);
+            hi  = (int)BinConverter.INT_BE.get(inbuf, inpos);
+            lo  = (int)BinConverter.INT_BE.get(inbuf, inpos + 4);
 
-            lo  =  (inbuf[inpos++] << 24)              |
-                  ((inbuf[inpos++] << 16) & 0x0ff0000) |
-                  ((inbuf[inpos++] <<  8) & 0x000ff00) |
-                   (inbuf[inpos++]        & 0x00000ff);
+            inpos += 8;
 
             // save the current block, it will become the new IV
             tmpHi = hi;
@@ -295,23 +372,679 @@ public final class BlowfishCBC extends BlowfishECB {
             hi ^= ivLo;
             lo ^= ivHi;
 
-            outbuf[outpos++] = (byte)(lo >>> 24);
-            outbuf[outpos++] = (byte)(lo >>> 16);
-            outbuf[outpos++] = (byte)(lo >>>  8);
-            outbuf[outpos++] = (byte) lo;
+            BinConverter.INT_BE.set(outbuf, outpos, lo);
+            BinConverter.INT_BE.set(outbuf, outpos + 4, hi);
 
-            outbuf[outpos++] = (byte)(hi >>> 24);
-            outbuf[outpos++] = (byte)(hi >>> 16);
-            outbuf[outpos++] = (byte)(hi >>>  8);
-            outbuf[outpos++] = (byte) hi;
+            outpos += 8;
 
             ivHi = tmpHi;
             ivLo = tmpLo;
         }
 
-        this.ivHi = ivHi;
-        this.ivLo = ivLo;
+        return BinConverter.makeLong(ivLo, ivHi);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Computes the size of data encrypted with encryptPadded(), which is the
+     * size of the plain-text rounded up to the next block boundary, with a
+     * whole block of padding added if it is aligned already.
+     * @param len The number of plain-text bytes.
+     * @return The number of cipher-text bytes.
+     */
+    public static int outputSize(int len) {
+        return (len & ~(BLOCKSIZE - 1)) + BLOCKSIZE;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Encrypts data of any size in one go, padded with PKCS7. The last partial
+     * block gets padded on the fly, so no extra buffer is needed. Like in the
+     * other methods taking an IV the instance can be shared by many threads.
+     * Input and output may overlap if they start at the same position.
+     * @param iv The IV to start with.
+     * @param inbuf The buffer with the plain-text data.
+     * @param inpos Where to start reading the plain-text data.
+     * @param outbuf Buffer to write the cipher-text data to, with room for
+     * outputSize(len) bytes.
+     * @param outpos Where to start writing the cipher-text data.
+     * @param len The number of bytes to encrypt.
+     * @return The number of bytes written, which is outputSize(len).
+     */
+    public int encryptPadded(
+        long iv,
+        byte[] inbuf,
+        int inpos,
+        byte[] outbuf,
+        int outpos,
+        int len) {
+        long start = BlowfishMetrics.start();
+        int result = outputSize(len);
+        BlowfishEvents.Cipher ev = BlowfishEvents.beginCipher(result);
+
+        int full = result - BLOCKSIZE;
+        iv = cbcEncrypt(iv, inbuf, inpos, outbuf, outpos, full);
+
+        inpos += full;
+        int rest = len - full;
+        long padVal = BLOCKSIZE - rest;
+        long block = 0L;
+        for (int i = 0; i < rest; i++) {
+            block = (block << 8) | (inbuf[inpos + i] & 0x0ff);
+        }
+        for (int i = rest; i < BLOCKSIZE; i++) {
+            block = (block << 8) | padVal;
+        }
+        BinConverter.LONG_BE.set(outbuf, outpos + full,
+                                 encryptBlock(block ^ iv));
+
+        BlowfishMetrics.encrypted(BlowfishMetrics.Mode.CBC, result, start);
+        BlowfishEvents.commitCipher(ev, BlowfishMetrics.Mode.CBC, true, result);
+        return result;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Decrypts data encrypted with PKCS7 padding in one go. The whole last
+     * block including the padding gets written out, the padding is validated
+     * in constant time, so the time taken does not tell anything about how
+     * the padding looks like. Like in the other methods taking an IV the
+     * instance can be shared by many threads.
+     * @param iv The IV to start with.
+     * @param inbuf The buffer with the cipher-text data.
+     * @param inpos Where to start reading the cipher-text data.
+     * @param outbuf Buffer to write the plain-text data to, with room for len
+     * bytes.
+     * @param outpos Where to start writing the plain-text data.
+     * @param len The number of bytes to decrypt, a non-zero multiple of the
+     * block size.
+     * @return The number of plain-text bytes without the padding, or -1 if the
+     * size of the data or the padding is invalid.
+     */
+    public int decryptPadded(
+        long iv,
+        byte[] inbuf,
+        int inpos,
+        byte[] outbuf,
+        int outpos,
+        int len) {
+        if (BLOCKSIZE > len || 0 != len % BLOCKSIZE) {
+            return -1;
+        }
+        long start = BlowfishMetrics.start();
+        BlowfishEvents.Cipher ev = BlowfishEvents.beginCipher(len);
+
+        int full = len - BLOCKSIZE;
+        long last = (long)BinConverter.LONG_BE.get(inbuf, inpos + full);
+        iv = cbcDecrypt(iv, inbuf, inpos, outbuf, outpos, full);
+        long block = decryptBlock(last) ^ iv;
+        BinConverter.LONG_BE.set(outbuf, outpos + full, block);
+        int padVal = padding(block);
+
+        BlowfishMetrics.decrypted(BlowfishMetrics.Mode.CBC, len, start);
+        BlowfishEvents.commitCipher(ev, BlowfishMetrics.Mode.CBC, false, len);
+        return -1 == padVal ? -1 : len - padVal;
+    }
+
+    // validates the PKCS7 padding of a decrypted last block in constant time,
+    // returns the padding value or -1 if it is invalid; out of range values
+    // make bad negative, any padding byte not matching the value leaves bits
+    // behind
+    static int padding(long block) {
+        int padVal = (int)block & 0x0ff;
+        int bad = ((padVal - 1) | (BLOCKSIZE - padVal)) >> 31;
+        for (int i = 0; i < BLOCKSIZE; i++) {
+            int val = (int)(block >>> (i << 3)) & 0x0ff;
+            bad |= (val ^ padVal) & ((i - padVal) >> 31);
+        }
+        return 0 == bad ? padVal : -1;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    // the number of records encrypted side by side
+    static final int LANES = 4;
+
+    // a block of a record, padded with PKCS7 if it is the last one
+    static long paddedBlock(byte[] buf, int pos, int len, int ofs) {
+        if (ofs + BLOCKSIZE <= len) {
+            return (long)BinConverter.LONG_BE.get(buf, pos + ofs);
+        }
+        long padVal = BLOCKSIZE - (len - ofs);
+        long result = 0L;
+        for (int i = ofs; i < len; i++) {
+            result = (result << 8) | (buf[pos + i] & 0x0ff);
+        }
+        for (int i = len; i < ofs + BLOCKSIZE; i++) {
+            result = (result << 8) | padVal;
+        }
+        return result;
+    }
+
+    /**
+     * Encrypts many independent records in one go, each of them with its own
+     * IV and padded with PKCS7, exactly like encryptPadded() does for a single
+     * one. Since every block depends on the one before, a single record keeps
+     * the processor waiting for the results of the table lookups. Here the
+     * rounds of several records get interleaved, so their lookups overlap.
+     * Records of similar sizes are grouped together for that. Like in the
+     * other methods taking an IV the instance can be shared by many threads.
+     * A record may be encrypted in place, but records must not overlap each
+     * other.
+     * @param ivs The IVs to start with, one per record.
+     * @param inbufs The buffers with the plain-text of the records.
+     * @param inpos Where the plain-text of each record starts.
+     * @param outbufs Buffers to write the cipher-text of the records to, with
+     * room for outputSize() of the plain-text size.
+     * @param outpos Where to start writing the cipher-text of each record.
+     * @param lens The plain-text sizes of the records.
+     * @return The number of bytes written for each record.
+     */
+    public int[] encryptPadded(
+        long[] ivs,
+        byte[][] inbufs,
+        int[] inpos,
+        byte[][] outbufs,
+        int[] outpos,
+        int[] lens) {
+        int count = lens.length;
+        int[] result = new int[count];
+
+        // the records by their number of blocks, largest first, so that
+        // records encrypted side by side are of about the same size
+        long[] order = new long[count];
+        int total = 0;
+        for (int r = 0; r < count; r++) {
+            result[r] = outputSize(lens[r]);
+            total += result[r];
+            order[r] = ((long)~result[r] << 32) | r;
+        }
+        Arrays.sort(order);
+
+        long start = BlowfishMetrics.start();
+        BlowfishEvents.Cipher ev = BlowfishEvents.beginCipher(total);
+
+        int g = 0;
+        for (; g + LANES <= count; g += LANES) {
+            encryptLanes(order, g, ivs, inbufs, inpos, outbufs, outpos, lens,
+                         result);
+        }
+        for (; g < count; g++) {
+            int r = (int)order[g];
+            encryptTail(ivs[r], inbufs[r], inpos[r], outbufs[r], outpos[r],
+                        lens[r], 0, result[r]);
+        }
+
+        BlowfishMetrics.encrypted(BlowfishMetrics.Mode.CBC, total, start);
+        BlowfishEvents.commitCipher(ev, BlowfishMetrics.Mode.CBC, true, total);
+        return result;
+    }
+
+    // encrypts the rest of a record, starting with the block at ofs; returns
+    // the IV to continue with
+    long encryptTail(
+        long iv,
+        byte[] inbuf,
+        int inpos,
+        byte[] outbuf,
+        int outpos,
+        int len,
+        int ofs,
+        int size) {
+        for (; ofs < size; ofs += BLOCKSIZE) {
+            iv = encryptBlock(paddedBlock(inbuf, inpos, len, ofs) ^ iv);
+            BinConverter.LONG_BE.set(outbuf, outpos + ofs, iv);
+        }
+        return iv;
+    }
+
+    // encrypts the LANES records of a group side by side for as many blocks
+    // as the smallest of them has, then the rest of each one by one
+    void encryptLanes(
+        long[] order,
+        int g,
+        long[] ivs,
+        byte[][] inbufs,
+        int[] inpos,
+        byte[][] outbufs,
+        int[] outpos,
+        int[] lens,
+        int[] sizes) {
+        final int r0 = (int)order[g];
+        final int r1 = (int)order[g + 1];
+        final int r2 = (int)order[g + 2];
+        final int r3 = (int)order[g + 3];
+
+        final byte[] in0 = inbufs[r0], in1 = inbufs[r1],
+                     in2 = inbufs[r2], in3 = inbufs[r3];
+        final byte[] out0 = outbufs[r0], out1 = outbufs[r1],
+                     out2 = outbufs[r2], out3 = outbufs[r3];
+        final int ip0 = inpos[r0], ip1 = inpos[r1],
+                  ip2 = inpos[r2], ip3 = inpos[r3];
+        final int op0 = outpos[r0], op1 = outpos[r1],
+                  op2 = outpos[r2], op3 = outpos[r3];
+        final int len0 = lens[r0], len1 = lens[r1],
+                  len2 = lens[r2], len3 = lens[r3];
+
+        final int[] pbox = this.pbox;
+        final int pbox00 = pbox[0];
+        final int pbox01 = pbox[1];
+        final int pbox02 = pbox[2];
+        final int pbox03 = pbox[3];
+        final int pbox04 = pbox[4];
+        final int pbox05 = pbox[5];
+        final int pbox06 = pbox[6];
+        final int pbox07 = pbox[7];
+        final int pbox08 = pbox[8];
+        final int pbox09 = pbox[9];
+        final int pbox10 = pbox[10];
+        final int pbox11 = pbox[11];
+        final int pbox12 = pbox[12];
+        final int pbox13 = pbox[13];
+        final int pbox14 = pbox[14];
+        final int pbox15 = pbox[15];
+        final int pbox16 = pbox[16];
+        final int pbox17 = pbox[17];
+
+        final int[] sbox1 = this.sbox1;
+        final int[] sbox2 = this.sbox2;
+        final int[] sbox3 = this.sbox3;
+        final int[] sbox4 = this.sbox4;
+
+        long iv0 = ivs[r0], iv1 = ivs[r1], iv2 = ivs[r2], iv3 = ivs[r3];
+
+        int hi0, lo0, hi1, lo1, hi2, lo2, hi3, lo3;
+        long block;
+
+        // the group is sorted, so the last record is the smallest
+        final int common = sizes[r3];
+
+        int ofs = 0;
+        for (; ofs < common; ofs += BLOCKSIZE) {
+            block = paddedBlock(in0, ip0, len0, ofs) ^ iv0;
+            hi0 = (int)(block >>> 32) ^ pbox00;
+            lo0 = (int)block;
+            block = paddedBlock(in1, ip1, len1, ofs) ^ iv1;
+            hi1 = (int)(block >>> 32) ^ pbox00;
+            lo1 = (int)block;
+            block = paddedBlock(in2, ip2, len2, ofs) ^ iv2;
+            hi2 = (int)(block >>> 32) ^ pbox00;
+            lo2 = (int)block;
+            block = paddedBlock(in3, ip3, len3, ofs) ^ iv3;
+            hi3 = (int)(block >>> 32) ^ pbox00;
+            lo3 = (int)block;
+
+            lo0 ^= (((sbox1[hi0 >>> 24] + sbox2[(hi0 >>> 16) & 0x0ff]) ^ sbox3[(hi0 >>> 8) & 0x0ff]) + sbox4[hi0 & 0x0ff]) ^ pbox01;
+            lo1 ^= (((sbox1[hi1 >>> 24] + sbox2[(hi1 >>> 16) & 0x0ff]) ^ sbox3[(hi1 >>> 8) & 0x0ff]) + sbox4[hi1 & 0x0ff]) ^ pbox01;
+            lo2 ^= (((sbox1[hi2 >>> 24] + sbox2[(hi2 >>> 16) & 0x0ff]) ^ sbox3[(hi2 >>> 8) & 0x0ff]) + sbox4[hi2 & 0x0ff]) ^ pbox01;
+            lo3 ^= (((sbox1[hi3 >>> 24] + sbox2[(hi3 >>> 16) & 0x0ff]) ^ sbox3[(hi3 >>> 8) & 0x0ff]) + sbox4[hi3 & 0x0ff]) ^ pbox01;
+            hi0 ^= (((sbox1[lo0 >>> 24] + sbox2[(lo0 >>> 16) & 0x0ff]) ^ sbox3[(lo0 >>> 8) & 0x0ff]) + sbox4[lo0 & 0x0ff]) ^ pbox02;
+            hi1 ^= (((sbox1[lo1 >>> 24] + sbox2[(lo1 >>> 16) & 0x0ff]) ^ sbox3[(lo1 >>> 8) & 0x0ff]) + sbox4[lo1 & 0x0ff]) ^ pbox02;
+            hi2 ^= (((sbox1[lo2 >>> 24] + sbox2[(lo2 >>> 16) & 0x0ff]) ^ sbox3[(lo2 >>> 8) & 0x0ff]) + sbox4[lo2 & 0x0ff]) ^ pbox02;
+            hi3 ^= (((sbox1[lo3 >>> 24] + sbox2[(lo3 >>> 16) & 0x0ff]) ^ sbox3[(lo3 >>> 8) & 0x0ff]) + sbox4[lo3 & 0x0ff]) ^ pbox02;
+            lo0 ^= (((sbox1[hi0 >>> 24] + sbox2[(hi0 >>> 16) & 0x0ff]) ^ sbox3[(hi0 >>> 8) & 0x0ff]) + sbox4[hi0 & 0x0ff]) ^ pbox03;
+            lo1 ^= (((sbox1[hi1 >>> 24] + sbox2[(hi1 >>> 16) & 0x0ff]) ^ sbox3[(hi1 >>> 8) & 0x0ff]) + sbox4[hi1 & 0x0ff]) ^ pbox03;
+            lo2 ^= (((sbox1[hi2 >>> 24] + sbox2[(hi2 >>> 16) & 0x0ff]) ^ sbox3[(hi2 >>> 8) & 0x0ff]) + sbox4[hi2 & 0x0ff]) ^ pbox03;
+            lo3 ^= (((sbox1[hi3 >>> 24] + sbox2[(hi3 >>> 16) & 0x0ff]) ^ sbox3[(hi3 >>> 8) & 0x0ff]) + sbox4[hi3 & 0x0ff]) ^ pbox03;
+            hi0 ^= (((sbox1[lo0 >>> 24] + sbox2[(lo0 >>> 16) & 0x0ff]) ^ sbox3[(lo0 >>> 8) & 0x0ff]) + sbox4[lo0 & 0x0ff]) ^ pbox04;
+            hi1 ^= (((sbox1[lo1 >>> 24] + sbox2[(lo1 >>> 16) & 0x0ff]) ^ sbox3[(lo1 >>> 8) & 0x0ff]) + sbox4[lo1 & 0x0ff]) ^ pbox04;
+            hi2 ^= (((sbox1[lo2 >>> 24] + sbox2[(lo2 >>> 16) & 0x0ff]) ^ sbox3[(lo2 >>> 8) & 0x0ff]) + sbox4[lo2 & 0x0ff]) ^ pbox04;
+            hi3 ^= (((sbox1[lo3 >>> 24] + sbox2[(lo3 >>> 16) & 0x0ff]) ^ sbox3[(lo3 >>> 8) & 0x0ff]) + sbox4[lo3 & 0x0ff]) ^ pbox04;
+            lo0 ^= (((sbox1[hi0 >>> 24] + sbox2[(hi0 >>> 16) & 0x0ff]) ^ sbox3[(hi0 >>> 8) & 0x0ff]) + sbox4[hi0 & 0x0ff]) ^ pbox05;
+            lo1 ^= (((sbox1[hi1 >>> 24] + sbox2[(hi1 >>> 16) & 0x0ff]) ^ sbox3[(hi1 >>> 8) & 0x0ff]) + sbox4[hi1 & 0x0ff]) ^ pbox05;
+            lo2 ^= (((sbox1[hi2 >>> 24] + sbox2[(hi2 >>> 16) & 0x0ff]) ^ sbox3[(hi2 >>> 8) & 0x0ff]) + sbox4[hi2 & 0x0ff]) ^ pbox05;
+            lo3 ^= (((sbox1[hi3 >>> 24] + sbox2[(hi3 >>> 16) & 0x0ff]) ^ sbox3[(hi3 >>> 8) & 0x0ff]) + sbox4[hi3 & 0x0ff]) ^ pbox05;
+            hi0 ^= (((sbox1[lo0 >>> 24] + sbox2[(lo0 >>> 16) & 0x0ff]) ^ sbox3[(lo0 >>> 8) & 0x0ff]) + sbox4[lo0 & 0x0ff]) ^ pbox06;
+            hi1 ^= (((sbox1[lo1 >>> 24] + sbox2[(lo1 >>> 16) & 0x0ff]) ^ sbox3[(lo1 >>> 8) & 0x0ff]) + sbox4[lo1 & 0x0ff]) ^ pbox06;
+            hi2 ^= (((sbox1[lo2 >>> 24] + sbox2[(lo2 >>> 16) & 0x0ff]) ^ sbox3[(lo2 >>> 8) & 0x0ff]) + sbox4[lo2 & 0x0ff]) ^ pbox06;
+            hi3 ^= (((sbox1[lo3 >>> 24] + sbox2[(lo3 >>> 16) & 0x0ff]) ^ sbox3[(lo3 >>> 8) & 0x0ff]) + sbox4[lo3 & 0x0ff]) ^ pbox06;
+            lo0 ^= (((sbox1[hi0 >>> 24] + sbox2[(hi0 >>> 16) & 0x0ff]) ^ sbox3[(hi0 >>> 8) & 0x0ff]) + sbox4[hi0 & 0x0ff]) ^ pbox07;
+            lo1 ^= (((sbox1[hi1 >>> 24] + sbox2[(hi1 >>> 16) & 0x0ff]) ^ sbox3[(hi1 >>> 8) & 0x0ff]) + sbox4[hi1 & 0x0ff]) ^ pbox07;
+            lo2 ^= (((sbox1[hi2 >>> 24] + sbox2[(hi2 >>> 16) & 0x0ff]) ^ sbox3[(hi2 >>> 8) & 0x0ff]) + sbox4[hi2 & 0x0ff]) ^ pbox07;
+            lo3 ^= (((sbox1[hi3 >>> 24] + sbox2[(hi3 >>> 16) & 0x0ff]) ^ sbox3[(hi3 >>> 8) & 0x0ff]) + sbox4[hi3 & 0x0ff]) ^ pbox07;
+            hi0 ^= (((sbox1[lo0 >>> 24] + sbox2[(lo0 >>> 16) & 0x0ff]) ^ sbox3[(lo0 >>> 8) & 0x0ff]) + sbox4[lo0 & 0x0ff]) ^ pbox08;
+            hi1 ^= (((sbox1[lo1 >>> 24] + sbox2[(lo1 >>> 16) & 0x0ff]) ^ sbox3[(lo1 >>> 8) & 0x0ff]) + sbox4[lo1 & 0x0ff]) ^ pbox08;
+            hi2 ^= (((sbox1[lo2 >>> 24] + sbox2[(lo2 >>> 16) & 0x0ff]) ^ sbox3[(lo2 >>> 8) & 0x0ff]) + sbox4[lo2 & 0x0ff]) ^ pbox08;
+            hi3 ^= (((sbox1[lo3 >>> 24] + sbox2[(lo3 >>> 16) & 0x0ff]) ^ sbox3[(lo3 >>> 8) & 0x0ff]) + sbox4[lo3 & 0x0ff]) ^ pbox08;
+            lo0 ^= (((sbox1[hi0 >>> 24] + sbox2[(hi0 >>> 16) & 0x0ff]) ^ sbox3[(hi0 >>> 8) & 0x0ff]) + sbox4[hi0 & 0x0ff]) ^ pbox09;
+            lo1 ^= (((sbox1[hi1 >>> 24] + sbox2[(hi1 >>> 16) & 0x0ff]) ^ sbox3[(hi1 >>> 8) & 0x0ff]) + sbox4[hi1 & 0x0ff]) ^ pbox09;
+            lo2 ^= (((sbox1[hi2 >>> 24] + sbox2[(hi2 >>> 16) & 0x0ff]) ^ sbox3[(hi2 >>> 8) & 0x0ff]) + sbox4[hi2 & 0x0ff]) ^ pbox09;
+            lo3 ^= (((sbox1[hi3 >>> 24] + sbox2[(hi3 >>> 16) & 0x0ff]) ^ sbox3[(hi3 >>> 8) & 0x0ff]) + sbox4[hi3 & 0x0ff]) ^ pbox09;
+            hi0 ^= (((sbox1[lo0 >>> 24] + sbox2[(lo0 >>> 16) & 0x0ff]) ^ sbox3[(lo0 >>> 8) & 0x0ff]) + sbox4[lo0 & 0x0ff]) ^ pbox10;
+            hi1 ^= (((sbox1[lo1 >>> 24] + sbox2[(lo1 >>> 16) & 0x0ff]) ^ sbox3[(lo1 >>> 8) & 0x0ff]) + sbox4[lo1 & 0x0ff]) ^ pbox10;
+            hi2 ^= (((sbox1[lo2 >>> 24] + sbox2[(lo2 >>> 16) & 0x0ff]) ^ sbox3[(lo2 >>> 8) & 0x0ff]) + sbox4[lo2 & 0x0ff]) ^ pbox10;
+            hi3 ^= (((sbox1[lo3 >>> 24] + sbox2[(lo3 >>> 16) & 0x0ff]) ^ sbox3[(lo3 >>> 8) & 0x0ff]) + sbox4[lo3 & 0x0ff]) ^ pbox10;
+            lo0 ^= (((sbox1[hi0 >>> 24] + sbox2[(hi0 >>> 16) & 0x0ff]) ^ sbox3[(hi0 >>> 8) & 0x0ff]) + sbox4[hi0 & 0x0ff]) ^ pbox11;
+            lo1 ^= (((sbox1[hi1 >>> 24] + sbox2[(hi1 >>> 16) & 0x0ff]) ^ sbox3[(hi1 >>> 8) & 0x0ff]) + sbox4[hi1 & 0x0ff]) ^ pbox11;
+            lo2 ^= (((sbox1[hi2 >>> 24] + sbox2[(hi2 >>> 16) & 0x0ff]) ^ sbox3[(hi2 >>> 8) & 0x0ff]) + sbox4[hi2 & 0x0ff]) ^ pbox11;
+            lo3 ^= (((sbox1[hi3 >>> 24] + sbox2[(hi3 >>> 16) & 0x0ff]) ^ sbox3[(hi3 >>> 8) & 0x0ff]) + sbox4[hi3 & 0x0ff]) ^ pbox11;
+            hi0 ^= (((sbox1[lo0 >>> 24] + sbox2[(lo0 >>> 16) & 0x0ff]) ^ sbox3[(lo0 >>> 8) & 0x0ff]) + sbox4[lo0 & 0x0ff]) ^ pbox12;
+            hi1 ^= (((sbox1[lo1 >>> 24] + sbox2[(lo1 >>> 16) & 0x0ff]) ^ sbox3[(lo1 >>> 8) & 0x0ff]) + sbox4[lo1 & 0x0ff]) ^ pbox12;
+            hi2 ^= (((sbox1[lo2 >>> 24] + sbox2[(lo2 >>> 16) & 0x0ff]) ^ sbox3[(lo2 >>> 8) & 0x0ff]) + sbox4[lo2 & 0x0ff]) ^ pbox12;
+            hi3 ^= (((sbox1[lo3 >>> 24] + sbox2[(lo3 >>> 16) & 0x0ff]) ^ sbox3[(lo3 >>> 8) & 0x0ff]) + sbox4[lo3 & 0x0ff]) ^ pbox12;
+            lo0 ^= (((sbox1[hi0 >>> 24] + sbox2[(hi0 >>> 16) & 0x0ff]) ^ sbox3[(hi0 >>> 8) & 0x0ff]) + sbox4[hi0 & 0x0ff]) ^ pbox13;
+            lo1 ^= (((sbox1[hi1 >>> 24] + sbox2[(hi1 >>> 16) & 0x0ff]) ^ sbox3[(hi1 >>> 8) & 0x0ff]) + sbox4[hi1 & 0x0ff]) ^ pbox13;
+            lo2 ^= (((sbox1[hi2 >>> 24] + sbox2[(hi2 >>> 16) & 0x0ff]) ^ sbox3[(hi2 >>> 8) & 0x0ff]) + sbox4[hi2 & 0x0ff]) ^ pbox13;
+            lo3 ^= (((sbox1[hi3 >>> 24] + sbox2[(hi3 >>> 16) & 0x0ff]) ^ sbox3[(hi3 >>> 8) & 0x0ff]) + sbox4[hi3 & 0x0ff]) ^ pbox13;
+            hi0 ^= (((sbox1[lo0 >>> 24] + sbox2[(lo0 >>> 16) & 0x0ff]) ^ sbox3[(lo0 >>> 8) & 0x0ff]) + sbox4[lo0 & 0x0ff]) ^ pbox14;
+            hi1 ^= (((sbox1[lo1 >>> 24] + sbox2[(lo1 >>> 16) & 0x0ff]) ^ sbox3[(lo1 >>> 8) & 0x0ff]) + sbox4[lo1 & 0x0ff]) ^ pbox14;
+            hi2 ^= (((sbox1[lo2 >>> 24] + sbox2[(lo2 >>> 16) & 0x0ff]) ^ sbox3[(lo2 >>> 8) & 0x0ff]) + sbox4[lo2 & 0x0ff]) ^ pbox14;
+            hi3 ^= (((sbox1[lo3 >>> 24] + sbox2[(lo3 >>> 16) & 0x0ff]) ^ sbox3[(lo3 >>> 8) & 0x0ff]) + sbox4[lo3 & 0x0ff]) ^ pbox14;
+            lo0 ^= (((sbox1[hi0 >>> 24] + sbox2[(hi0 >>> 16) & 0x0ff]) ^ sbox3[(hi0 >>> 8) & 0x0ff]) + sbox4[hi0 & 0x0ff]) ^ pbox15;
+            lo1 ^= (((sbox1[hi1 >>> 24] + sbox2[(hi1 >>> 16) & 0x0ff]) ^ sbox3[(hi1 >>> 8) & 0x0ff]) + sbox4[hi1 & 0x0ff]) ^ pbox15;
+            lo2 ^= (((sbox1[hi2 >>> 24] + sbox2[(hi2 >>> 16) & 0x0ff]) ^ sbox3[(hi2 >>> 8) & 0x0ff]) + sbox4[hi2 & 0x0ff]) ^ pbox15;
+            lo3 ^= (((sbox1[hi3 >>> 24] + sbox2[(hi3 >>> 16) & 0x0ff]) ^ sbox3[(hi3 >>> 8) & 0x0ff]) + sbox4[hi3 & 0x0ff]) ^ pbox15;
+            hi0 ^= (((sbox1[lo0 >>> 24] + sbox2[(lo0 >>> 16) & 0x0ff]) ^ sbox3[(lo0 >>> 8) & 0x0ff]) + sbox4[lo0 & 0x0ff]) ^ pbox16;
+            hi1 ^= (((sbox1[lo1 >>> 24] + sbox2[(lo1 >>> 16) & 0x0ff]) ^ sbox3[(lo1 >>> 8) & 0x0ff]) + sbox4[lo1 & 0x0ff]) ^ pbox16;
+            hi2 ^= (((sbox1[lo2 >>> 24] + sbox2[(lo2 >>> 16) & 0x0ff]) ^ sbox3[(lo2 >>> 8) & 0x0ff]) + sbox4[lo2 & 0x0ff]) ^ pbox16;
+            hi3 ^= (((sbox1[lo3 >>> 24] + sbox2[(lo3 >>> 16) & 0x0ff]) ^ sbox3[(lo3 >>> 8) & 0x0ff]) + sbox4[lo3 & 0x0ff]) ^ pbox16;
+
+            iv0 = BinConverter.makeLong(hi0, lo0 ^ pbox17);
+            iv1 = BinConverter.makeLong(hi1, lo1 ^ pbox17);
+            iv2 = BinConverter.makeLong(hi2, lo2 ^ pbox17);
+            iv3 = BinConverter.makeLong(hi3, lo3 ^ pbox17);
+
+            BinConverter.LONG_BE.set(out0, op0 + ofs, iv0);
+            BinConverter.LONG_BE.set(out1, op1 + ofs, iv1);
+            BinConverter.LONG_BE.set(out2, op2 + ofs, iv2);
+            BinConverter.LONG_BE.set(out3, op3 + ofs, iv3);
+        }
+
+        encryptTail(iv0, in0, ip0, out0, op0, len0, ofs, sizes[r0]);
+        encryptTail(iv1, in1, ip1, out1, op1, len1, ofs, sizes[r1]);
+        encryptTail(iv2, in2, ip2, out2, op2, len2, ofs, sizes[r2]);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    // where the ciphertext stealing starts, which is the second to last block
+    // of data longer than a block, otherwise the only one
+    static int cs3Head(int len) {
+        return Math.max(0, ((len - 1) & ~(BLOCKSIZE - 1)) - BLOCKSIZE);
+    }
+
+    // encrypts the last one or two blocks with ciphertext stealing, the ones
+    // before head got encrypted already, chaining to the given IV
+    void cs3EncryptTail(
+        long iv,
+        byte[] inbuf,
+        int inpos,
+        byte[] outbuf,
+        int outpos,
+        int head,
+        int len) {
+        long prev = (long)BinConverter.LONG_BE.get(inbuf, inpos + head);
+        prev = encryptBlock(prev ^ iv);
+        if (BLOCKSIZE == len) {
+            BinConverter.LONG_BE.set(outbuf, outpos, prev);
+            return;
+        }
+        // the partial block padded with zeros, encrypted and swapped with
+        // the one before, which then gets cut to the size of the partial one
+        int last = head + BLOCKSIZE;
+        int rest = len - last;
+        long tail = 0L;
+        for (int i = last; i < len; i++) {
+            tail = (tail << 8) | (inbuf[inpos + i] & 0x0ff);
+        }
+        tail <<= (BLOCKSIZE - rest) << 3;
+        BinConverter.LONG_BE.set(outbuf, outpos + head,
+                                 encryptBlock(tail ^ prev));
+        for (int i = 0; i < rest; i++) {
+            outbuf[outpos + last + i] = (byte)(prev >>> (56 - (i << 3)));
+        }
+    }
+
+    // decrypts the last one or two blocks stolen from each other, the ones
+    // before head got decrypted already, chaining to the given IV
+    void cs3DecryptTail(
+        long iv,
+        byte[] inbuf,
+        int inpos,
+        byte[] outbuf,
+        int outpos,
+        int head,
+        int len,
+        long swapped) {
+        if (BLOCKSIZE == len) {
+            BinConverter.LONG_BE.set(outbuf, outpos,
+                                     decryptBlock(swapped) ^ iv);
+            return;
+        }
+        int last = head + BLOCKSIZE;
+        int rest = len - last;
+        long stolen = 0L;
+        for (int i = last; i < len; i++) {
+            stolen = (stolen << 8) | (inbuf[inpos + i] & 0x0ff);
+        }
+        stolen <<= (BLOCKSIZE - rest) << 3;
+        // the zeros the partial block got padded with leave the end of the
+        // second to last cipher-text block, which got cut off, exposed
+        long x = decryptBlock(swapped);
+        long mask = -1L << ((BLOCKSIZE - rest) << 3);
+        long prev = stolen | (x & ~mask);
+        long tail = x ^ prev;
+        BinConverter.LONG_BE.set(outbuf, outpos + head,
+                                 decryptBlock(prev) ^ iv);
+        for (int i = 0; i < rest; i++) {
+            outbuf[outpos + last + i] = (byte)(tail >>> (56 - (i << 3)));
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Encrypts data in CBC mode with ciphertext stealing, variant CS3 of the
+     * addendum to NIST SP 800-38A. Data of at least a block does not need
+     * any padding then, the cipher-text has exactly the size of the
+     * plain-text, which saves up to a block for every record. If the data is
+     * not aligned the last partial block gets padded with zeros, and the last
+     * two cipher-text blocks get swapped, the then last one cut to the size
+     * of the partial block. Aligned data gets its last two blocks swapped,
+     * so except for a single block the result always differs from plain CBC.
+     * Like in the other methods taking an IV the instance can be shared by
+     * many threads. Input and output may overlap if they start at the same
+     * position.
+     * @param iv The IV to start with.
+     * @param inbuf The buffer with the plain-text data.
+     * @param inpos Where to start reading the plain-text data.
+     * @param outbuf Buffer to write the cipher-text data to, with room for len
+     * bytes.
+     * @param outpos Where to start writing the cipher-text data.
+     * @param len The number of bytes to encrypt, at least the block size.
+     * @return The number of bytes written, which is len, or -1 if the data
+     * is shorter than a block.
+     */
+    public int encryptCS3(
+        long iv,
+        byte[] inbuf,
+        int inpos,
+        byte[] outbuf,
+        int outpos,
+        int len) {
+        if (BLOCKSIZE > len) {
+            return -1;
+        }
+        long start = BlowfishMetrics.start();
+        BlowfishEvents.Cipher ev = BlowfishEvents.beginCipher(len);
+
+        int head = cs3Head(len);
+        iv = cbcEncrypt(iv, inbuf, inpos, outbuf, outpos, head);
+        cs3EncryptTail(iv, inbuf, inpos, outbuf, outpos, head, len);
 
+        BlowfishMetrics.encrypted(BlowfishMetrics.Mode.CBC, len, start);
+        BlowfishEvents.commitCipher(ev, BlowfishMetrics.Mode.CBC, true, len);
         return len;
     }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Decrypts data encrypted with encryptCS3(). Like in the other methods
+     * taking an IV the instance can be shared by many threads. Input and
+     * output may overlap if they start at the same position.
+     * @param iv The IV to start with.
+     * @param inbuf The buffer with the cipher-text data.
+     * @param inpos Where to start reading the cipher-text data.
+     * @param outbuf Buffer to write the plain-text data to, with room for len
+     * bytes.
+     * @param outpos Where to start writing the plain-text data.
+     * @param len The number of bytes to decrypt, at least the block size.
+     * @return The number of bytes written, which is len, or -1 if the data
+     * is shorter than a block.
+     */
+    public int decryptCS3(
+        long iv,
+        byte[] inbuf,
+        int inpos,
+        byte[] outbuf,
+        int outpos,
+        int len) {
+        if (BLOCKSIZE > len) {
+            return -1;
+        }
+        long start = BlowfishMetrics.start();
+        BlowfishEvents.Cipher ev = BlowfishEvents.beginCipher(len);
+
+        int head = cs3Head(len);
+        // (read before decrypting in place might overwrite it)
+        long swapped = (long)BinConverter.LONG_BE.get(inbuf, inpos + head);
+        iv = cbcDecrypt(iv, inbuf, inpos, outbuf, outpos, head);
+        cs3DecryptTail(iv, inbuf, inpos, outbuf, outpos, head, len, swapped);
+
+        BlowfishMetrics.decrypted(BlowfishMetrics.Mode.CBC, len, start);
+        BlowfishEvents.commitCipher(ev, BlowfishMetrics.Mode.CBC, false, len);
+        return len;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Encrypts many independent records with ciphertext stealing in one go,
+     * each of them with its own IV, exactly like encryptCS3() does for a
+     * single one. The blocks before the stolen ones get encrypted side by
+     * side for several records, as in the batch version of encryptPadded().
+     * A record may be encrypted in place, but records must not overlap each
+     * other.
+     * @param ivs The IVs to start with, one per record.
+     * @param inbufs The buffers with the plain-text of the records.
+     * @param inpos Where the plain-text of each record starts.
+     * @param outbufs Buffers to write the cipher-text of the records to, with
+     * room for the size of the plain-text.
+     * @param outpos Where to start writing the cipher-text of each record.
+     * @param lens The plain-text sizes of the records, at least the block size
+     * each.
+     * @return The number of bytes written over all the records.
+     * @exception IllegalArgumentException If any of the records is shorter
+     * than a block, nothing got encrypted then.
+     */
+    public int encryptCS3(
+        long[] ivs,
+        byte[][] inbufs,
+        int[] inpos,
+        byte[][] outbufs,
+        int[] outpos,
+        int[] lens) {
+        int count = lens.length;
+        int[] heads = new int[count];
+
+        // sorted like for the padded records, by the blocks before the
+        // stolen ones
+        long[] order = new long[count];
+        int total = 0;
+        for (int r = 0; r < count; r++) {
+            if (BLOCKSIZE > lens[r]) {
+                throw new IllegalArgumentException(
+                    "record " + r + " is shorter than a block");
+            }
+            heads[r] = cs3Head(lens[r]);
+            total += lens[r];
+            order[r] = ((long)~heads[r] << 32) | r;
+        }
+        Arrays.sort(order);
+
+        long start = BlowfishMetrics.start();
+        BlowfishEvents.Cipher ev = BlowfishEvents.beginCipher(total);
+
+        // (aligned, so no padding ever gets applied)
+        int g = 0;
+        for (; g + LANES <= count; g += LANES) {
+            encryptLanes(order, g, ivs, inbufs, inpos, outbufs, outpos, heads,
+                         heads);
+        }
+        for (; g < count; g++) {
+            int r = (int)order[g];
+            cbcEncrypt(ivs[r], inbufs[r], inpos[r], outbufs[r], outpos[r],
+                       heads[r]);
+        }
+        for (int r = 0; r < count; r++) {
+            int head = heads[r];
+            long iv = 0 == head ? ivs[r] : (long)BinConverter.LONG_BE.get(
+                outbufs[r], outpos[r] + head - BLOCKSIZE);
+            cs3EncryptTail(iv, inbufs[r], inpos[r], outbufs[r], outpos[r],
+                           head, lens[r]);
+        }
+
+        BlowfishMetrics.encrypted(BlowfishMetrics.Mode.CBC, total, start);
+        BlowfishEvents.commitCipher(ev, BlowfishMetrics.Mode.CBC, true, total);
+        return total;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Decrypts many independent records encrypted with ciphertext stealing,
+     * each of them with its own IV. A record may be decrypted in place, but
+     * records must not overlap each other.
+     * @param ivs The IVs to start with, one per record.
+     * @param inbufs The buffers with the cipher-text of the records.
+     * @param inpos Where the cipher-text of each record starts.
+     * @param outbufs Buffers to write the plain-text of the records to, with
+     * room for the size of the cipher-text.
+     * @param outpos Where to start writing the plain-text of each record.
+     * @param lens The cipher-text sizes of the records, at least the block
+     * size each.
+     * @return The number of bytes written over all the records.
+     * @exception IllegalArgumentException If any of the records is shorter
+     * than a block, nothing got decrypted then.
+     */
+    public int decryptCS3(
+        long[] ivs,
+        byte[][] inbufs,
+        int[] inpos,
+        byte[][] outbufs,
+        int[] outpos,
+        int[] lens) {
+        int count = lens.length;
+        int total = 0;
+        for (int r = 0; r < count; r++) {
+            if (BLOCKSIZE > lens[r]) {
+                throw new IllegalArgumentException(
+                    "record " + r + " is shorter than a block");
+            }
+            total += lens[r];
+        }
+
+        long start = BlowfishMetrics.start();
+        BlowfishEvents.Cipher ev = BlowfishEvents.beginCipher(total);
+
+        // (decryption does not chain, so there is nothing to interleave)
+        for (int r = 0; r < count; r++) {
+            int head = cs3Head(lens[r]);
+            long swapped = (long)BinConverter.LONG_BE.get(inbufs[r],
+                                                          inpos[r] + head);
+            long iv = cbcDecrypt(ivs[r], inbufs[r], inpos[r], outbufs[r],
+                                 outpos[r], head);
+            cs3DecryptTail(iv, inbufs[r], inpos[r], outbufs[r], outpos[r],
+                           head, lens[r], swapped);
+        }
+
+        BlowfishMetrics.decrypted(BlowfishMetrics.Mode.CBC, total, start);
+        BlowfishEvents.commitCipher(ev, BlowfishMetrics.Mode.CBC, false,
+                                    total);
+        return total;
+    }
 }
@@ -93,6 +93,19 @@ public final class BlowfishCFB extends BlowfishECB {
     @Override
     public int encrypt(
             byte[] inbuf, int inpos, byte[] outbuf, int outpos, int len) {
+        long start = BlowfishMetrics.start();
+        BlowfishEvents.Cipher ev = BlowfishEvents.beginCipher(len);
+        int result = cfbEncrypt(inbuf, inpos, outbuf, outpos, len);
+        BlowfishMetrics.encrypted(BlowfishMetrics.Mode.CFB, result, start);
+        BlowfishEvents.commitCipher(ev, BlowfishMetrics.Mode.CFB, true, result);
+        return result;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    // the actual CFB encryption
+    int cfbEncrypt(
+        byte[] inbuf, int inpos, byte[] outbuf, int outpos, int len) {
         int end = inpos + len;
 
         final byte[] iv = this.iv;
@@ -110,6 +123,7 @@ public final class BlowfishCFB extends BlowfishECB {
         for (; ivpos < BLOCKSIZE; inpos++, outpos++, ivpos++) {
             iv[ivpos] = outbuf[outpos] = (byte)(inbuf[inpos] ^ iv[ivpos]);
         }
+        final int total = len;
         len -= ivBytesLeft;
 
         final int[] sbox1 = this.sbox1;
@@ -177,27 +191,13 @@ public final class BlowfishCFB extends BlowfishECB {
                 break;
             }
 
-            hi ^=  (inbuf[inpos    ] << 24)               |
-                  ((inbuf[inpos + 1] << 16) & 0x00ff0000) |
-                  ((inbuf[inpos + 2] <<  8) & 0x0000ff00) |
-                   (inbuf[inpos + 3]        & 0x000000ff);
-
-            lo ^=  (inbuf[inpos + 4] << 24)               |
-                  ((inbuf[inpos + 5] << 16) & 0x00ff0000) |
-                  ((inbuf[inpos + 6] <<  8) & 0x0000ff00) |
-                   (inbuf[inpos + 7]        & 0x000000ff);
+            hi ^= (int)BinConverter.INT_BE.get(inbuf, inpos);
+            lo ^= (int)BinConverter.INT_BE.get(inbuf, inpos + 4);
 
             inpos += 8;
 
-            outbuf[outpos    ] = (byte)(hi >>> 24);
-            outbuf[outpos + 1] = (byte)(hi >>> 16);
-            outbuf[outpos + 2] = (byte)(hi >>>  8);
-            outbuf[outpos + 3] = (byte) hi;
-
-            outbuf[outpos + 4] = (byte)(lo >>> 24);
-            outbuf[outpos + 5] = (byte)(lo >>> 16);
-            outbuf[outpos + 6] = (byte)(lo >>>  8);
-            outbuf[outpos + 7] = (byte) lo;
+            BinConverter.INT_BE.set(outbuf, outpos, hi);
+            BinConverter.INT_BE.set(outbuf, outpos + 4, lo);
 
             outpos += 8;
         }
@@ -217,7 +217,7 @@ public final class BlowfishCFB extends BlowfishECB {
 
         this.ivBytesLeft = iv.length - rest;
 
-        return len;
+        return total;
     }
 
     ///////////////////////////////////////////////////////////////////////////
@@ -229,6 +229,19 @@ public final class BlowfishCFB extends BlowfishECB {
      */
     @Override
     public int decrypt(
+        byte[] inbuf, int inpos, byte[] outbuf, int outpos, int len) {
+        long start = BlowfishMetrics.start();
+        BlowfishEvents.Cipher ev = BlowfishEvents.beginCipher(len);
+        int result = cfbDecrypt(inbuf, inpos, outbuf, outpos, len);
+        BlowfishMetrics.decrypted(BlowfishMetrics.Mode.CFB, result, start);
+        BlowfishEvents.commitCipher(ev, BlowfishMetrics.Mode.CFB, false, result);
+        return result;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    // the actual CFB decryption
+    int cfbDecrypt(
         byte[] inbuf, int inpos, byte[] outbuf, int outpos, int len) {
         int end = inpos + len;
 
@@ -241,14 +254,17 @@ public final class BlowfishCFB extends BlowfishECB {
             for (; inpos < end; inpos++, outpos++, ivpos++) {
                 int b = inbuf[inpos];
                 outbuf[outpos] = (byte)(b ^ iv[ivpos]);
-                inbuf[inpos] = (byte)b;
+                iv[ivpos] = (byte)b;
             }
             this.ivBytesLeft = iv.length - ivpos;
             return len;
         }
-        for (int i = 0; ivpos < BLOCKSIZE; i++, inpos++) {
-            iv[ivpos] = outbuf[outpos + i] = (byte)(inbuf[inpos + i] ^ iv[ivpos]);
+        for (; ivpos < BLOCKSIZE; inpos++, outpos++, ivpos++) {
+            int b = inbuf[inpos];
+            outbuf[outpos] = (byte)(b ^ iv[ivpos]);
+            iv[ivpos] = (byte)b;
         }
+        final int total = len;
         len -= ivBytesLeft;
 
         final int[] sbox1 = this.sbox1;
@@ -317,30 +333,17 @@ public final class BlowfishCFB extends BlowfishECB {
                 break;
             }
 
-            int chi = (inbuf[inpos    ] << 24)               |
-                     ((inbuf[inpos + 1] << 16) & 0x00ff0000) |
-                     ((inbuf[inpos + 2] <<  8) & 0x0000ff00) |
-                      (inbuf[inpos + 3]        & 0x000000ff);
+            int chi = (int)BinConverter.INT_BE.get(inbuf, inpos);
 
-            int clo = (inbuf[inpos + 4] << 24)               |
-                     ((inbuf[inpos + 5] << 16) & 0x00ff0000) |
-                     ((inbuf[inpos + 6] <<  8) & 0x0000ff00) |
-                      (inbuf[inpos + 7]        & 0x000000ff);
+            int clo = (int)BinConverter.INT_BE.get(inbuf, inpos + 4);
 
             inpos += 8;
 
             hi ^= chi;
             lo ^= clo;
 
-            outbuf[outpos]     = (byte)(hi >>> 24);
-            outbuf[outpos + 1] = (byte)(hi >>> 16);
-            outbuf[outpos + 2] = (byte)(hi >>>  8);
-            outbuf[outpos + 3] = (byte) hi;
-
-            outbuf[outpos + 4] = (byte)(lo >>> 24);
-            outbuf[outpos + 5] = (byte)(lo >>> 16);
-            outbuf[outpos + 6] = (byte)(lo >>>  8);
-            outbuf[outpos + 7] = (byte) lo;
+            BinConverter.INT_BE.set(outbuf, outpos, hi);
+            BinConverter.INT_BE.set(outbuf, outpos + 4, lo);
 
             outpos += 8;
 
@@ -365,6 +368,6 @@ public final class BlowfishCFB extends BlowfishECB {
 
         this.ivBytesLeft = iv.length - rest;
 
-        return len;
+        return total;
     }
 }
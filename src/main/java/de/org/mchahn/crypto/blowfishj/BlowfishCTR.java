@@ -0,0 +1,175 @@
+package de.org.mchahn.crypto.blowfishj;
+
+import java.util.Arrays;
+
+/**
+ * Implementation of the Blowfish encryption algorithm in counter (CTR) mode.
+ * The key stream is made of encrypted counter values, the counter starts at
+ * an initial value (the nonce) and gets incremented for every block. Like in
+ * CFB mode data can be processed byte-per-byte, encryption and decryption are
+ * the very same operation. <p>
+ * Notice that a counter value must never be used twice with the same key, so
+ * the nonce needs to be chosen randomly and stored together with the encrypted
+ * data. Given the 64bit block size the amount of data encrypted with a single
+ * key should also stay well below 2^32 blocks.</p>
+ */
+public final class BlowfishCTR extends BlowfishECB {
+
+    // the number of key stream blocks computed in advance
+    static final int KEYSTREAM_BLOCKS = 64;
+
+    // the counter of the next block to produce key stream for, plus the key
+    // stream buffer with the number of bytes in it and of those used up
+    long counter;
+    byte[] keyStream = new byte[KEYSTREAM_BLOCKS * BLOCKSIZE];
+    int keyStreamLen;
+    int keyStreamPos;
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Gets the counter value of the next block. If a block has been processed
+     * only partially so far, this is the counter value of the block after it.
+     * @return The counter of the next full block.
+     */
+    public long getCounter() {
+        return this.counter - ((this.keyStreamLen - this.keyStreamPos) >>> 3);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Sets the counter, for a new nonce or to continue at a block boundary.
+     * @param newCounter The counter value of the next block.
+     */
+    public void setCounter(long newCounter) {
+        this.counter = newCounter;
+        this.keyStreamLen = this.keyStreamPos = 0;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Constructor, uses a zero counter.
+     * @param key Key material, up to MAXKEYLENGTH bytes.
+     * @param ofs Where to start reading the key.
+     * @param len Size of the key in bytes.
+     */
+    public BlowfishCTR(byte[] key, int ofs, int len) {
+        super(key, ofs, len);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Constructor to define key and initial counter value (nonce).
+     * @param key Key material, up to MAXKEYLENGTH bytes.
+     * @param ofs Where to start reading the key.
+     * @param len Size of the key in bytes.
+     * @param nonce The counter value of the first block.
+     */
+    public BlowfishCTR(byte[] key, int ofs, int len, long nonce) {
+        super(key, ofs, len);
+        setCounter(nonce);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /** @see de.org.mchahn.crypto.blowfishj.BlowfishECB#cleanUp() */
+    @Override
+    public void cleanUp() {
+        Arrays.fill(this.keyStream, (byte)0);
+        this.counter = 0L;
+        this.keyStreamLen = this.keyStreamPos = 0;
+        super.cleanUp();
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    // computes key stream for the given number of blocks, by encrypting the
+    // counter values in place
+    void refill(int blocks) {
+        final byte[] keyStream = this.keyStream;
+
+        long ctr = this.counter;
+        for (int i = 0, c = blocks << 3; i < c; i += BLOCKSIZE) {
+            BinConverter.LONG_BE.set(keyStream, i, ctr++);
+        }
+        this.counter = ctr;
+
+        this.keyStreamLen = encryptPrv(keyStream, 0, keyStream, 0, blocks << 3);
+        this.keyStreamPos = 0;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * @param len The number of bytes to encrypt. Does <b>not</b> have to be
+     * aligned on a block size boundary.
+     * @see de.org.mchahn.crypto.blowfishj.BlowfishECB#encrypt(byte[], int, byte[], int, int)
+     */
+    @Override
+    public int encrypt(
+        byte[] inbuf, int inpos, byte[] outbuf, int outpos, int len) {
+        long start = BlowfishMetrics.start();
+        BlowfishEvents.Cipher ev = BlowfishEvents.beginCipher(len);
+        int result = crypt(inbuf, inpos, outbuf, outpos, len);
+        BlowfishMetrics.encrypted(BlowfishMetrics.Mode.CTR, result, start);
+        BlowfishEvents.commitCipher(ev, BlowfishMetrics.Mode.CTR, true, result);
+        return result;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    // XORs the key stream over the data, which is both en- and decryption
+    int crypt(
+        byte[] inbuf, int inpos, byte[] outbuf, int outpos, int len) {
+        final byte[] keyStream = this.keyStream;
+
+        int left = len;
+
+        while (0 < left) {
+            if (this.keyStreamPos == this.keyStreamLen) {
+                refill(Math.min(KEYSTREAM_BLOCKS, (left + 7) >>> 3));
+            }
+
+            int ksPos = this.keyStreamPos;
+            int count = Math.min(left, this.keyStreamLen - ksPos);
+            int end = inpos + count;
+
+            // (whole words where possible, the rest byte-per-byte)
+
+            for (; inpos + 8 <= end; inpos += 8, outpos += 8, ksPos += 8) {
+                BinConverter.LONG_BE.set(outbuf, outpos,
+                    (long)BinConverter.LONG_BE.get(inbuf, inpos) ^
+                    (long)BinConverter.LONG_BE.get(keyStream, ksPos));
+            }
+            for (; inpos < end; inpos++, outpos++, ksPos++) {
+                outbuf[outpos] = (byte)(inbuf[inpos] ^ keyStream[ksPos]);
+            }
+
+            this.keyStreamPos = ksPos;
+            left -= count;
+        }
+
+        return len;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * @param len The number of bytes to decrypt. Does <b>not</b> have to be
+     * aligned on a block size boundary.
+     * @see de.org.mchahn.crypto.blowfishj.BlowfishECB#decrypt(byte[], int, byte[], int, int)
+     */
+    @Override
+    public int decrypt(
+        byte[] inbuf, int inpos, byte[] outbuf, int outpos, int len) {
+        long start = BlowfishMetrics.start();
+        BlowfishEvents.Cipher ev = BlowfishEvents.beginCipher(len);
+        int result = crypt(inbuf, inpos, outbuf, outpos, len);
+        BlowfishMetrics.decrypted(BlowfishMetrics.Mode.CTR, result, start);
+        BlowfishEvents.commitCipher(ev, BlowfishMetrics.Mode.CTR, false, result);
+        return result;
+    }
+}
@@ -0,0 +1,277 @@
+package de.org.mchahn.crypto.blowfishj;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * To read from a stream created by an instance of the
+ * BlowfishCompressedOutputStream class. The mode and whether the payload is
+ * compressed are taken from the header. Cipher-text gets decrypted in place
+ * and the inflater reads right from there, into the buffer of the caller.
+ * Reads return whatever is available, without waiting for a buffer to fill
+ * up, so data flushed by the writer arrives right away.
+ */
+public class BlowfishCompressedInputStream extends InputStream {
+
+    InputStream is;
+
+    Inflater inflater;
+    BlowfishCBC bfc;
+    BlowfishCFB bff;
+    long iv;
+    int flags;
+    boolean eof;
+    boolean padded;
+
+    // plain-text ready between pos and lim, cipher-text not decrypted yet
+    // between lim and end
+    byte[] buf;
+    int pos;
+    int lim;
+    int end;
+    byte[] single;
+
+    // for the flight recorder: when the stream got opened, zero if that is not
+    // recorded, and the number of cipher-text bytes passed so far
+    long opened;
+    long transferred;
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Default constructor.
+     * @param key The buffer with the key material.
+     * @param ofs Where the key material starts in the buffer.
+     * @param len Size of the key material.
+     * @param is The input stream from which data will be read.
+     * @exception IOException If the header couldn't be read or is invalid.
+     */
+    public BlowfishCompressedInputStream(
+        byte[] key,
+        int ofs,
+        int len,
+        InputStream is) throws IOException {
+        long start = BlowfishMetrics.start();
+        this.opened = BlowfishEvents.streamOpened();
+        this.is = is;
+
+        byte[] header = new byte[BlowfishCompressedOutputStream.HEADER_SIZE +
+                                 Blowfish.BLOCKSIZE];
+
+        if (header.length != is.readNBytes(header, 0, header.length)) {
+            throw new IOException("truncated stream, header is missing");
+        }
+        this.transferred = header.length;
+
+        if (BlowfishCompressedOutputStream.FORMAT_VERSION != header[0]) {
+            throw new IOException("unsupported format version " + header[0]);
+        }
+
+        this.flags = header[1] & 0x0ff;
+        if (0 != (this.flags & ~(BlowfishCompressedOutputStream.FLAG_DEFLATE |
+                                 BlowfishCompressedOutputStream.FLAG_CFB))) {
+            throw new IOException("unknown flags " + this.flags);
+        }
+
+        if (isCFB()) {
+            byte[] ckey = BlowfishStreamFactory.hashKey(key, ofs, len);
+            this.bff = new BlowfishCFB(ckey, 0, ckey.length, header,
+                BlowfishCompressedOutputStream.HEADER_SIZE);
+            Arrays.fill(ckey, (byte)0);
+        }
+        else {
+            this.bfc = BlowfishStreamFactory.createCipher(key, ofs, len);
+            this.iv = BinConverter.byteArrayToLong(header,
+                BlowfishCompressedOutputStream.HEADER_SIZE);
+        }
+
+        if (isCompressed()) {
+            this.inflater = new Inflater();
+        }
+
+        this.buf = new byte[BlowfishCompressedOutputStream.BUFFER_SIZE];
+        this.single = new byte[1];
+        BlowfishMetrics.streamOpened(start);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /** @return True if the payload is compressed. */
+    public boolean isCompressed() {
+        return 0 != (this.flags & BlowfishCompressedOutputStream.FLAG_DEFLATE);
+    }
+
+    /** @return True if the payload is encrypted in CFB mode, false for CBC. */
+    public boolean isCFB() {
+        return 0 != (this.flags & BlowfishCompressedOutputStream.FLAG_CFB);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    // reads and decrypts the next portion, after everything available got
+    // consumed; returns false at the end of the stream
+    boolean fill() throws IOException {
+        int rest = this.end - this.lim;
+        System.arraycopy(this.buf, this.lim, this.buf, 0, rest);
+        this.pos = this.lim = 0;
+        this.end = rest;
+
+        for (;;) {
+            if (!this.eof) {
+                int read = this.is.read(this.buf, this.end,
+                                        this.buf.length - this.end);
+                if (-1 == read) {
+                    this.eof = true;
+                }
+                else {
+                    this.end += read;
+                    this.transferred += read;
+                }
+            }
+
+            if (null != this.bff) {
+                this.lim = this.bff.decrypt(this.buf, 0, this.buf, 0,
+                                            this.end);
+                if (0 < this.lim || this.eof) {
+                    return 0 < this.lim;
+                }
+                continue;
+            }
+
+            if (this.eof) {
+                if (this.padded) {
+                    return false;
+                }
+                if (0 == this.end || 0 != this.end % Blowfish.BLOCKSIZE) {
+                    throw new IOException("truncated stream, unexpected end");
+                }
+                // the last block, with the padding
+                int len = this.bfc.decryptPadded(this.iv, this.buf, 0,
+                                                 this.buf, 0, this.end);
+                if (-1 == len) {
+                    BlowfishMetrics.paddingFailure();
+                    throw new IOException("invalid padding detected");
+                }
+                this.padded = true;
+                this.lim = this.end = len;
+                return 0 < len;
+            }
+
+            // hold back the last complete block, it might carry the padding
+            int len = (this.end & ~(Blowfish.BLOCKSIZE - 1)) -
+                      Blowfish.BLOCKSIZE;
+            if (0 < len) {
+                this.iv = this.bfc.decrypt(this.iv, this.buf, 0, this.buf, 0,
+                                           len);
+                this.lim = len;
+                return true;
+            }
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    int inflate(byte[] buf, int ofs, int len) throws IOException {
+        Inflater inf = this.inflater;
+        for (;;) {
+            int result;
+            try {
+                result = inf.inflate(buf, ofs, len);
+            }
+            catch (DataFormatException dfe) {
+                throw new IOException("corrupt compressed data", dfe);
+            }
+            if (0 < result) {
+                return result;
+            }
+            if (inf.finished()) {
+                // all that may follow is the padding
+                if (0 != inf.getRemaining() || fill()) {
+                    throw new IOException("unexpected data at the end");
+                }
+                return -1;
+            }
+            if (inf.needsDictionary()) {
+                throw new IOException("corrupt compressed data");
+            }
+            if (!fill()) {
+                throw new IOException("truncated stream, unexpected end");
+            }
+            inf.setInput(this.buf, this.pos, this.lim - this.pos);
+            this.pos = this.lim;
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /** @see java.io.InputStream#read() */
+    @Override
+    public int read() throws IOException {
+        int read = read(this.single, 0, 1);
+        return -1 == read ? -1 : this.single[0] & 0x0ff;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /** @see java.io.InputStream#read(byte[], int, int) */
+    @Override
+    public int read(byte[] buf, int ofs, int len) throws IOException {
+        if (0 == len) {
+            return 0;
+        }
+        if (null == this.is) {
+            return -1;
+        }
+        long start = BlowfishMetrics.start();
+
+        int result;
+        if (null != this.inflater) {
+            result = inflate(buf, ofs, len);
+        }
+        else if (this.pos < this.lim || fill()) {
+            result = Math.min(len, this.lim - this.pos);
+            System.arraycopy(this.buf, this.pos, buf, ofs, result);
+            this.pos += result;
+        }
+        else {
+            result = -1;
+        }
+
+        BlowfishMetrics.streamRead(start);
+        return result;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /** @see java.io.InputStream#close() */
+    @Override
+    public void close() throws IOException {
+        if (null == this.is) {
+            return;
+        }
+        long start = BlowfishMetrics.start();
+        BlowfishEvents.Stream ev = BlowfishEvents.beginStreamClose(this.opened);
+
+        this.is.close();
+        this.is = null;
+
+        if (null != this.inflater) {
+            this.inflater.end();
+        }
+        if (null != this.bff) {
+            this.bff.cleanUp();
+        }
+        else {
+            this.bfc.cleanUp();
+        }
+        Arrays.fill(this.buf, (byte)0);
+
+        BlowfishMetrics.streamClosed(start);
+        BlowfishEvents.commitStream(ev, this, null == this.bff ?
+            BlowfishMetrics.Mode.CBC : BlowfishMetrics.Mode.CFB,
+            this.opened, this.transferred);
+    }
+}
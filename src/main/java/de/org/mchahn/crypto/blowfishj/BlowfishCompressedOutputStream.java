@@ -0,0 +1,272 @@
+package de.org.mchahn.crypto.blowfishj;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+/**
+ * An output stream compressing data with deflate before encrypting it, in CBC
+ * or CFB mode. Compression and encryption share a single buffer: the deflater
+ * writes into it, the cipher-text then replaces the compressed data in place
+ * and goes out from there, so there are no copies between the two stages.<p>
+ * The stream starts with a header of HEADER_SIZE bytes, the format version
+ * followed by the flags, which are in the clear, so readers can tell how the
+ * payload was produced without decrypting anything. The IV comes next, then
+ * the cipher-text, padded with PKCS7 in CBC mode. If created with a level of
+ * Deflater.NO_COMPRESSION the data does not pass through the deflater at all
+ * and the FLAG_DEFLATE flag stays cleared. Key material is hashed to a 160bit
+ * final key using SHA-1, just like in the BlowfishOutputStream.</p><p>
+ * A flush() does a sync flush of the deflater, so everything written so far
+ * can be read right away on the other side. In CBC mode up to one block less
+ * a byte has to stay behind until the next flush or the stream gets closed,
+ * in CFB mode nothing does. Use the BlowfishCompressedInputStream class to
+ * read such a stream.</p>
+ */
+public class BlowfishCompressedOutputStream extends OutputStream {
+
+    /** The version of the format, always the first byte of a stream. */
+    public static final int FORMAT_VERSION = 1;
+
+    /** The size of the header, version plus flags. */
+    public static final int HEADER_SIZE = 2;
+
+    /** Flag set if the payload is deflated. */
+    public static final int FLAG_DEFLATE = 0x01;
+
+    /** Flag set if the payload is encrypted in CFB mode instead of CBC. */
+    public static final int FLAG_CFB = 0x02;
+
+    // the size of the buffer shared by compression and encryption
+    static final int BUFFER_SIZE = 1 << 16;
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    OutputStream os;
+
+    Deflater deflater;
+    BlowfishCBC bfc;
+    BlowfishCFB bff;
+    long iv;
+
+    byte[] buf;
+    int count;
+    byte[] single;
+
+    // for the flight recorder: when the stream got opened, zero if that is not
+    // recorded, and the number of cipher-text bytes passed so far
+    long opened;
+    long transferred;
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Default constructor, using CBC mode and the default compression level.
+     * @param key The key buffer.
+     * @param ofs Where the key material starts in the buffer.
+     * @param len Size of the key material.
+     * @param os The output stream to which data will be encrypted to.
+     * @exception IOException If the header couldn't be written.
+     */
+    public BlowfishCompressedOutputStream(
+        byte[] key,
+        int ofs,
+        int len,
+        OutputStream os) throws IOException {
+        this(key, ofs, len, os, false, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Constructor with all the settings.
+     * @param key The key buffer.
+     * @param ofs Where the key material starts in the buffer.
+     * @param len Size of the key material.
+     * @param os The output stream to which data will be encrypted to.
+     * @param cfb True to encrypt in CFB mode, false for CBC.
+     * @param level The compression level, from Deflater.NO_COMPRESSION, which
+     * turns compression off, to Deflater.BEST_COMPRESSION, or
+     * Deflater.DEFAULT_COMPRESSION.
+     * @exception IOException If the header couldn't be written.
+     */
+    public BlowfishCompressedOutputStream(
+        byte[] key,
+        int ofs,
+        int len,
+        OutputStream os,
+        boolean cfb,
+        int level) throws IOException {
+        long start = BlowfishMetrics.start();
+        this.opened = BlowfishEvents.streamOpened();
+
+        this.buf = new byte[BUFFER_SIZE];
+        this.single = new byte[1];
+
+        int flags = 0;
+        if (Deflater.NO_COMPRESSION != level) {
+            this.deflater = new Deflater(level);
+            flags |= FLAG_DEFLATE;
+        }
+
+        byte[] ivBuf = new byte[Blowfish.BLOCKSIZE];
+        new SecureRandom().nextBytes(ivBuf);
+
+        if (cfb) {
+            byte[] ckey = BlowfishStreamFactory.hashKey(key, ofs, len);
+            this.bff = new BlowfishCFB(ckey, 0, ckey.length, ivBuf, 0);
+            Arrays.fill(ckey, (byte)0);
+            flags |= FLAG_CFB;
+        }
+        else {
+            this.bfc = BlowfishStreamFactory.createCipher(key, ofs, len);
+            this.iv = BinConverter.byteArrayToLong(ivBuf, 0);
+        }
+
+        this.os = os;
+
+        byte[] header = new byte[HEADER_SIZE + Blowfish.BLOCKSIZE];
+        header[0] = (byte)FORMAT_VERSION;
+        header[1] = (byte)flags;
+        System.arraycopy(ivBuf, 0, header, HEADER_SIZE, ivBuf.length);
+
+        this.os.write(header, 0, header.length);
+        this.transferred = header.length;
+        BlowfishMetrics.streamOpened(start);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    // encrypts what is in the buffer in place and writes it out; in CBC mode
+    // the partial block at the end stays, unless it's the last one which then
+    // gets padded
+    void emit(boolean last) throws IOException {
+        int len;
+        if (null != this.bff) {
+            len = this.bff.encrypt(this.buf, 0, this.buf, 0, this.count);
+        }
+        else if (last) {
+            len = this.bfc.encryptPadded(this.iv, this.buf, 0, this.buf, 0,
+                                         this.count);
+        }
+        else {
+            len = this.count & ~(Blowfish.BLOCKSIZE - 1);
+            this.iv = this.bfc.encrypt(this.iv, this.buf, 0, this.buf, 0,
+                                       len);
+        }
+
+        if (0 < len) {
+            this.os.write(this.buf, 0, len);
+            this.transferred += len;
+        }
+
+        int rest = Math.max(this.count - len, 0);
+        System.arraycopy(this.buf, len, this.buf, 0, rest);
+        this.count = rest;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    // runs the deflater until it doesn't fill the buffer anymore, which means
+    // that it has consumed all the input or completed the flush
+    void deflate(int flush) throws IOException {
+        for (;;) {
+            this.count += this.deflater.deflate(this.buf, this.count,
+                this.buf.length - this.count, flush);
+            if (this.count < this.buf.length) {
+                return;
+            }
+            emit(false);
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /** @see java.io.OutputStream#write(int) */
+    @Override
+    public void write(int val) throws IOException {
+        this.single[0] = (byte)val;
+        write(this.single, 0, 1);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /** @see java.io.OutputStream#write(byte[], int, int) */
+    @Override
+    public void write(byte[] buf, int ofs, int len) throws IOException {
+        if (0 == len) {
+            return;
+        }
+        if (null != this.deflater) {
+            this.deflater.setInput(buf, ofs, len);
+            deflate(Deflater.NO_FLUSH);
+            return;
+        }
+        while (0 < len) {
+            int toCopy = Math.min(len, this.buf.length - this.count);
+
+            System.arraycopy(buf, ofs, this.buf, this.count, toCopy);
+
+            this.count += toCopy;
+            ofs += toCopy;
+            len -= toCopy;
+
+            if (this.count == this.buf.length) {
+                emit(false);
+            }
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Writes out everything written so far, as far as the mode allows.
+     * @see java.io.OutputStream#flush()
+     */
+    @Override
+    public void flush() throws IOException {
+        if (null != this.deflater) {
+            deflate(Deflater.SYNC_FLUSH);
+        }
+        emit(false);
+        this.os.flush();
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /** @see java.io.OutputStream#close() */
+    @Override
+    public void close() throws IOException {
+        if (null == this.os) {
+            return;
+        }
+        long start = BlowfishMetrics.start();
+        BlowfishEvents.Stream ev = BlowfishEvents.beginStreamClose(this.opened);
+
+        if (null != this.deflater) {
+            this.deflater.finish();
+            while (!this.deflater.finished()) {
+                deflate(Deflater.NO_FLUSH);
+            }
+            this.deflater.end();
+        }
+        emit(true);
+
+        this.os.close();
+        this.os = null;
+
+        if (null != this.bff) {
+            this.bff.cleanUp();
+        }
+        else {
+            this.bfc.cleanUp();
+        }
+        Arrays.fill(this.buf, (byte)0);
+
+        BlowfishMetrics.streamClosed(start);
+        BlowfishEvents.commitStream(ev, this, null == this.bff ?
+            BlowfishMetrics.Mode.CBC : BlowfishMetrics.Mode.CFB,
+            this.opened, this.transferred);
+    }
+}
@@ -41,6 +41,17 @@ public class BlowfishECB extends Blowfish {
      * cheap obfuscation techniques.
      */
     public void initialize(byte[] key, int ofs, int len) {
+        long start = BlowfishMetrics.start();
+        BlowfishEvents.KeySetup ev = BlowfishEvents.beginKeySetup();
+        setup(key, ofs, len);
+        BlowfishMetrics.keySetup(start);
+        BlowfishEvents.commitKeySetup(ev, len);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    // the actual key setup, computing the boxes
+    final void setup(byte[] key, int ofs, int len) {
         System.arraycopy(PBOX_INIT , 0, this.pbox , 0, 18);
         System.arraycopy(SBOX1_INIT, 0, this.sbox1, 0, 256);
         System.arraycopy(SBOX2_INIT, 0, this.sbox2, 0, 256);
@@ -221,6 +232,18 @@ public class BlowfishECB extends Blowfish {
             return (1 == this.weakKey);
         }
 
+        BlowfishEvents.WeakKeyCheck ev = BlowfishEvents.beginWeakKeyCheck();
+
+        boolean result = hasWeakKey();
+        this.weakKey = result ? 1 : 0;
+
+        BlowfishEvents.commitWeakKeyCheck(ev, result);
+        return result;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    boolean hasWeakKey() {
         // a weak key is defined to create identical entries in at least one of
         // the s-boxes...
 
@@ -235,14 +258,11 @@ public class BlowfishECB extends Blowfish {
                     || (sbox2[i] == sbox2[j])
                     || (sbox3[i] == sbox3[j])
                     || (sbox4[i] == sbox4[j])) {
-                    this.weakKey = 1;
                     return true;
                 }
             }
         }
 
-        this.weakKey = 0;
-
         return false;
     }
 
@@ -289,15 +309,8 @@ public class BlowfishECB extends Blowfish {
         int hi, lo;
 
         while (inpos < c) {
-            hi =  (inbuf[inpos    ] << 24)              |
-                 ((inbuf[inpos + 1] << 16) & 0x0ff0000) |
-                 ((inbuf[inpos + 2] <<  8) & 0x000ff00) |
-                  (inbuf[inpos + 3]        & 0x00000ff);
-
-            lo =  (inbuf[inpos + 4] << 24)              |
-                 ((inbuf[inpos + 5] << 16) & 0x0ff0000) |
-                 ((inbuf[inpos + 6] <<  8) & 0x000ff00) |
-                  (inbuf[inpos + 7]        & 0x00000ff);
+            hi = (int)BinConverter.INT_BE.get(inbuf, inpos);
+            lo = (int)BinConverter.INT_BE.get(inbuf, inpos + 4);
 
             inpos += 8;
 
@@ -320,15 +333,8 @@ public class BlowfishECB extends Blowfish {
             hi ^= (((sbox1[lo >>> 24] + sbox2[(lo >>> 16) & 0x0ff]) ^ sbox3[(lo >>> 8) & 0x0ff]) + sbox4[lo & 0x0ff]) ^ pbox16;
             lo ^= pbox17;
 
-            outbuf[outpos    ] = (byte)(lo >>> 24);
-            outbuf[outpos + 1] = (byte)(lo >>> 16);
-            outbuf[outpos + 2] = (byte)(lo >>>  8);
-            outbuf[outpos + 3] = (byte) lo;
-
-            outbuf[outpos + 4] = (byte)(hi >>> 24);
-            outbuf[outpos + 5] = (byte)(hi >>> 16);
-            outbuf[outpos + 6] = (byte)(hi >>>  8);
-            outbuf[outpos + 7] = (byte) hi;
+            BinConverter.INT_BE.set(outbuf, outpos, lo);
+            BinConverter.INT_BE.set(outbuf, outpos + 4, hi);
 
             outpos += 8;
         }
@@ -354,7 +360,12 @@ public class BlowfishECB extends Blowfish {
         byte[] outbuf,
         int outpos,
         int len) {
-        return encryptPrv(inbuf, inpos, outbuf, outpos, len);
+        long start = BlowfishMetrics.start();
+        BlowfishEvents.Cipher ev = BlowfishEvents.beginCipher(len);
+        int result = encryptPrv(inbuf, inpos, outbuf, outpos, len);
+        BlowfishMetrics.encrypted(BlowfishMetrics.Mode.ECB, result, start);
+        BlowfishEvents.commitCipher(ev, BlowfishMetrics.Mode.ECB, true, result);
+        return result;
     }
 
     ///////////////////////////////////////////////////////////////////////////
@@ -370,6 +381,86 @@ public class BlowfishECB extends Blowfish {
      * @return The number of bytes to encrypted.
      */
     public int decrypt(
+        byte[] inbuf,
+        int inpos,
+        byte[] outbuf,
+        int outpos,
+        int len) {
+        long start = BlowfishMetrics.start();
+        BlowfishEvents.Cipher ev = BlowfishEvents.beginCipher(len);
+        int result = decryptPrv(inbuf, inpos, outbuf, outpos, len);
+        BlowfishMetrics.decrypted(BlowfishMetrics.Mode.ECB, result, start);
+        BlowfishEvents.commitCipher(ev, BlowfishMetrics.Mode.ECB, false, result);
+        return result;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Encrypts many small rows, each of them with its own key schedule, like
+     * fields of a table encrypted with a key per tenant. Rows sharing the same
+     * instance are processed together, keeping the boxes in the cache, and
+     * instances run in parallel on a fork-join pool. Each row is encrypted to
+     * its own place, so the results match the order of the rows. Rest data
+     * beyond the last block boundary of a row will not be processed. An
+     * instance must not be used by others during the call.
+     * @param keys The key schedule for each row.
+     * @param inbufs The buffers with the plain-text of the rows.
+     * @param inpos Where the plain-text of each row starts.
+     * @param outbufs Buffers to write the cipher-text of the rows to.
+     * @param outpos Where to start writing the cipher-text of each row.
+     * @param lens The number of bytes of each row.
+     * @return The number of bytes encrypted, over all the rows.
+     */
+    public static int encryptRows(
+        BlowfishECB[] keys,
+        byte[][] inbufs,
+        int[] inpos,
+        byte[][] outbufs,
+        int[] outpos,
+        int[] lens) {
+        long start = BlowfishMetrics.start();
+        BlowfishECBBatch batch = new BlowfishECBBatch(keys, inbufs, inpos,
+            outbufs, outpos, lens, true);
+        BlowfishEvents.Cipher ev = BlowfishEvents.beginCipher(batch.total);
+        int result = batch.apply();
+        BlowfishMetrics.encrypted(BlowfishMetrics.Mode.ECB, result, start);
+        BlowfishEvents.commitCipher(ev, BlowfishMetrics.Mode.ECB, true, result);
+        return result;
+    }
+
+    /**
+     * Decrypts many small rows, each of them with its own key schedule. The
+     * counterpart of encryptRows().
+     * @param keys The key schedule for each row.
+     * @param inbufs The buffers with the cipher-text of the rows.
+     * @param inpos Where the cipher-text of each row starts.
+     * @param outbufs Buffers to write the plain-text of the rows to.
+     * @param outpos Where to start writing the plain-text of each row.
+     * @param lens The number of bytes of each row.
+     * @return The number of bytes decrypted, over all the rows.
+     */
+    public static int decryptRows(
+        BlowfishECB[] keys,
+        byte[][] inbufs,
+        int[] inpos,
+        byte[][] outbufs,
+        int[] outpos,
+        int[] lens) {
+        long start = BlowfishMetrics.start();
+        BlowfishECBBatch batch = new BlowfishECBBatch(keys, inbufs, inpos,
+            outbufs, outpos, lens, false);
+        BlowfishEvents.Cipher ev = BlowfishEvents.beginCipher(batch.total);
+        int result = batch.apply();
+        BlowfishMetrics.decrypted(BlowfishMetrics.Mode.ECB, result, start);
+        BlowfishEvents.commitCipher(ev, BlowfishMetrics.Mode.ECB, false, result);
+        return result;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    // the actual ECB decryption
+    final int decryptPrv(
         byte[] inbuf,
         int inpos,
         byte[] outbuf,
@@ -407,15 +498,8 @@ public class BlowfishECB extends Blowfish {
         int hi, lo;
 
         while (inpos < c) {
-            hi = (inbuf[inpos    ] << 24)              |
-                ((inbuf[inpos + 1] << 16) & 0x0ff0000) |
-                ((inbuf[inpos + 2] <<  8) & 0x000ff00) |
-                 (inbuf[inpos + 3]        & 0x00000ff);
-
-            lo =  (inbuf[inpos + 4] << 24)              |
-                 ((inbuf[inpos + 5] << 16) & 0x0ff0000) |
-                 ((inbuf[inpos + 6] <<  8) & 0x000ff00) |
-                  (inbuf[inpos + 7]        & 0x00000ff);
+            hi = (int)BinConverter.INT_BE.get(inbuf, inpos);
+            lo = (int)BinConverter.INT_BE.get(inbuf, inpos + 4);
 
             inpos += 8;
 
@@ -438,15 +522,8 @@ public class BlowfishECB extends Blowfish {
             hi ^= (((sbox1[lo >>> 24] + sbox2[(lo >>> 16) & 0x0ff]) ^ sbox3[(lo >>> 8) & 0x0ff]) + sbox4[lo & 0x0ff]) ^ pbox01;
             lo ^= pbox00;
 
-            outbuf[outpos    ] = (byte)(lo >>> 24);
-            outbuf[outpos + 1] = (byte)(lo >>> 16);
-            outbuf[outpos + 2] = (byte)(lo >>>  8);
-            outbuf[outpos + 3] = (byte) lo;
-
-            outbuf[outpos + 4] = (byte)(hi >>> 24);
-            outbuf[outpos + 5] = (byte)(hi >>> 16);
-            outbuf[outpos + 6] = (byte)(hi >>>  8);
-            outbuf[outpos + 7] = (byte) hi;
+            BinConverter.INT_BE.set(outbuf, outpos, lo);
+            BinConverter.INT_BE.set(outbuf, outpos + 4, hi);
 
             outpos += 8;
         }
@@ -456,6 +533,86 @@ public class BlowfishECB extends Blowfish {
 
     ///////////////////////////////////////////////////////////////////////////
 
+    /**
+     * Encrypts a single block, passed in as a 64bit integer. The first byte of
+     * the block is the highest one of the integer.
+     * @param block The plain-text block.
+     * @return The cipher-text block.
+     */
+    public long encryptBlock(long block) {
+        final int[] pbox = this.pbox;
+        final int[] sbox1 = this.sbox1;
+        final int[] sbox2 = this.sbox2;
+        final int[] sbox3 = this.sbox3;
+        final int[] sbox4 = this.sbox4;
+
+        int hi = (int)(block >>> 32);
+        int lo = (int) block;
+
+        hi ^= pbox[0];
+        lo ^= (((sbox1[hi >>> 24] + sbox2[(hi >>> 16) & 0x0ff]) ^ sbox3[(hi >>> 8) & 0x0ff]) + sbox4[hi & 0x0ff]) ^ pbox[1];
+        hi ^= (((sbox1[lo >>> 24] + sbox2[(lo >>> 16) & 0x0ff]) ^ sbox3[(lo >>> 8) & 0x0ff]) + sbox4[lo & 0x0ff]) ^ pbox[2];
+        lo ^= (((sbox1[hi >>> 24] + sbox2[(hi >>> 16) & 0x0ff]) ^ sbox3[(hi >>> 8) & 0x0ff]) + sbox4[hi & 0x0ff]) ^ pbox[3];
+        hi ^= (((sbox1[lo >>> 24] + sbox2[(lo >>> 16) & 0x0ff]) ^ sbox3[(lo >>> 8) & 0x0ff]) + sbox4[lo & 0x0ff]) ^ pbox[4];
+        lo ^= (((sbox1[hi >>> 24] + sbox2[(hi >>> 16) & 0x0ff]) ^ sbox3[(hi >>> 8) & 0x0ff]) + sbox4[hi & 0x0ff]) ^ pbox[5];
+        hi ^= (((sbox1[lo >>> 24] + sbox2[(lo >>> 16) & 0x0ff]) ^ sbox3[(lo >>> 8) & 0x0ff]) + sbox4[lo & 0x0ff]) ^ pbox[6];
+        lo ^= (((sbox1[hi >>> 24] + sbox2[(hi >>> 16) & 0x0ff]) ^ sbox3[(hi >>> 8) & 0x0ff]) + sbox4[hi & 0x0ff]) ^ pbox[7];
+        hi ^= (((sbox1[lo >>> 24] + sbox2[(lo >>> 16) & 0x0ff]) ^ sbox3[(lo >>> 8) & 0x0ff]) + sbox4[lo & 0x0ff]) ^ pbox[8];
+        lo ^= (((sbox1[hi >>> 24] + sbox2[(hi >>> 16) & 0x0ff]) ^ sbox3[(hi >>> 8) & 0x0ff]) + sbox4[hi & 0x0ff]) ^ pbox[9];
+        hi ^= (((sbox1[lo >>> 24] + sbox2[(lo >>> 16) & 0x0ff]) ^ sbox3[(lo >>> 8) & 0x0ff]) + sbox4[lo & 0x0ff]) ^ pbox[10];
+        lo ^= (((sbox1[hi >>> 24] + sbox2[(hi >>> 16) & 0x0ff]) ^ sbox3[(hi >>> 8) & 0x0ff]) + sbox4[hi & 0x0ff]) ^ pbox[11];
+        hi ^= (((sbox1[lo >>> 24] + sbox2[(lo >>> 16) & 0x0ff]) ^ sbox3[(lo >>> 8) & 0x0ff]) + sbox4[lo & 0x0ff]) ^ pbox[12];
+        lo ^= (((sbox1[hi >>> 24] + sbox2[(hi >>> 16) & 0x0ff]) ^ sbox3[(hi >>> 8) & 0x0ff]) + sbox4[hi & 0x0ff]) ^ pbox[13];
+        hi ^= (((sbox1[lo >>> 24] + sbox2[(lo >>> 16) & 0x0ff]) ^ sbox3[(lo >>> 8) & 0x0ff]) + sbox4[lo & 0x0ff]) ^ pbox[14];
+        lo ^= (((sbox1[hi >>> 24] + sbox2[(hi >>> 16) & 0x0ff]) ^ sbox3[(hi >>> 8) & 0x0ff]) + sbox4[hi & 0x0ff]) ^ pbox[15];
+        hi ^= (((sbox1[lo >>> 24] + sbox2[(lo >>> 16) & 0x0ff]) ^ sbox3[(lo >>> 8) & 0x0ff]) + sbox4[lo & 0x0ff]) ^ pbox[16];
+        lo ^= pbox[17];
+
+        return BinConverter.makeLong(hi, lo);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Decrypts a single block, passed in as a 64bit integer. The first byte of
+     * the block is the highest one of the integer.
+     * @param block The cipher-text block.
+     * @return The plain-text block.
+     */
+    public long decryptBlock(long block) {
+        final int[] pbox = this.pbox;
+        final int[] sbox1 = this.sbox1;
+        final int[] sbox2 = this.sbox2;
+        final int[] sbox3 = this.sbox3;
+        final int[] sbox4 = this.sbox4;
+
+        int hi = (int)(block >>> 32);
+        int lo = (int) block;
+
+        hi ^= pbox[17];
+        lo ^= (((sbox1[hi >>> 24] + sbox2[(hi >>> 16) & 0x0ff]) ^ sbox3[(hi >>> 8) & 0x0ff]) + sbox4[hi & 0x0ff]) ^ pbox[16];
+        hi ^= (((sbox1[lo >>> 24] + sbox2[(lo >>> 16) & 0x0ff]) ^ sbox3[(lo >>> 8) & 0x0ff]) + sbox4[lo & 0x0ff]) ^ pbox[15];
+        lo ^= (((sbox1[hi >>> 24] + sbox2[(hi >>> 16) & 0x0ff]) ^ sbox3[(hi >>> 8) & 0x0ff]) + sbox4[hi & 0x0ff]) ^ pbox[14];
+        hi ^= (((sbox1[lo >>> 24] + sbox2[(lo >>> 16) & 0x0ff]) ^ sbox3[(lo >>> 8) & 0x0ff]) + sbox4[lo & 0x0ff]) ^ pbox[13];
+        lo ^= (((sbox1[hi >>> 24] + sbox2[(hi >>> 16) & 0x0ff]) ^ sbox3[(hi >>> 8) & 0x0ff]) + sbox4[hi & 0x0ff]) ^ pbox[12];
+        hi ^= (((sbox1[lo >>> 24] + sbox2[(lo >>> 16) & 0x0ff]) ^ sbox3[(lo >>> 8) & 0x0ff]) + sbox4[lo & 0x0ff]) ^ pbox[11];
+        lo ^= (((sbox1[hi >>> 24] + sbox2[(hi >>> 16) & 0x0ff]) ^ sbox3[(hi >>> 8) & 0x0ff]) + sbox4[hi & 0x0ff]) ^ pbox[10];
+        hi ^= (((sbox1[lo >>> 24] + sbox2[(lo >>> 16) & 0x0ff]) ^ sbox3[(lo >>> 8) & 0x0ff]) + sbox4[lo & 0x0ff]) ^ pbox[9];
+        lo ^= (((sbox1[hi >>> 24] + sbox2[(hi >>> 16) & 0x0ff]) ^ sbox3[(hi >>> 8) & 0x0ff]) + sbox4[hi & 0x0ff]) ^ pbox[8];
+        hi ^= (((sbox1[lo >>> 24] + sbox2[(lo >>> 16) & 0x0ff]) ^ sbox3[(lo >>> 8) & 0x0ff]) + sbox4[lo & 0x0ff]) ^ pbox[7];
+        lo ^= (((sbox1[hi >>> 24] + sbox2[(hi >>> 16) & 0x0ff]) ^ sbox3[(hi >>> 8) & 0x0ff]) + sbox4[hi & 0x0ff]) ^ pbox[6];
+        hi ^= (((sbox1[lo >>> 24] + sbox2[(lo >>> 16) & 0x0ff]) ^ sbox3[(lo >>> 8) & 0x0ff]) + sbox4[lo & 0x0ff]) ^ pbox[5];
+        lo ^= (((sbox1[hi >>> 24] + sbox2[(hi >>> 16) & 0x0ff]) ^ sbox3[(hi >>> 8) & 0x0ff]) + sbox4[hi & 0x0ff]) ^ pbox[4];
+        hi ^= (((sbox1[lo >>> 24] + sbox2[(lo >>> 16) & 0x0ff]) ^ sbox3[(lo >>> 8) & 0x0ff]) + sbox4[lo & 0x0ff]) ^ pbox[3];
+        lo ^= (((sbox1[hi >>> 24] + sbox2[(hi >>> 16) & 0x0ff]) ^ sbox3[(hi >>> 8) & 0x0ff]) + sbox4[hi & 0x0ff]) ^ pbox[2];
+        hi ^= (((sbox1[lo >>> 24] + sbox2[(lo >>> 16) & 0x0ff]) ^ sbox3[(lo >>> 8) & 0x0ff]) + sbox4[lo & 0x0ff]) ^ pbox[1];
+        lo ^= pbox[0];
+
+        return BinConverter.makeLong(hi, lo);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
     // Initialization data for all the boxes.
 
     static final int[] PBOX_INIT = {
@@ -0,0 +1,149 @@
+package de.org.mchahn.crypto.blowfishj;
+
+import java.util.IdentityHashMap;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Runs the multi-key batch operations of BlowfishECB. Rows get grouped by
+ * their key schedule, so the boxes of one key stay in the cache while all of
+ * its rows are processed, and the groups then run on a fork-join pool: the
+ * pool of the calling thread if it is a worker, otherwise the common pool.
+ * Every row is written to its own place, so the results end up in the order
+ * of the rows no matter in which order the groups got processed.
+ */
+final class BlowfishECBBatch {
+
+    // the number of rows processed by a single task
+    static final int CHUNK = 1024;
+
+    // the rows sorted by their key schedule, and where the group of each
+    // schedule starts in there, with an extra entry marking the end
+    final int[] rows;
+    final int[] starts;
+    final int[] groupOf;
+
+    final BlowfishECB[] keys;
+    final byte[][] inbufs;
+    final int[] inpos;
+    final byte[][] outbufs;
+    final int[] outpos;
+    final int[] lens;
+    final boolean encrypt;
+
+    // the number of bytes to process, over all the rows
+    final int total;
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    BlowfishECBBatch(
+        BlowfishECB[] keys,
+        byte[][] inbufs,
+        int[] inpos,
+        byte[][] outbufs,
+        int[] outpos,
+        int[] lens,
+        boolean encrypt) {
+        this.keys = keys;
+        this.inbufs = inbufs;
+        this.inpos = inpos;
+        this.outbufs = outbufs;
+        this.outpos = outpos;
+        this.lens = lens;
+        this.encrypt = encrypt;
+
+        // (a counting sort, the rows of a group stay in their order)
+        int count = lens.length;
+        IdentityHashMap<BlowfishECB, int[]> groups = new IdentityHashMap<>();
+        this.groupOf = new int[count];
+        for (int r = 0; r < count; r++) {
+            int[] group = groups.get(keys[r]);
+            if (null == group) {
+                group = new int[] { groups.size() };
+                groups.put(keys[r], group);
+            }
+            this.groupOf[r] = group[0];
+        }
+        this.starts = new int[groups.size() + 1];
+        int total = 0;
+        for (int r = 0; r < count; r++) {
+            this.starts[this.groupOf[r] + 1]++;
+            total += lens[r] - lens[r] % Blowfish.BLOCKSIZE;
+        }
+        this.total = total;
+        for (int g = 1; g < this.starts.length; g++) {
+            this.starts[g] += this.starts[g - 1];
+        }
+        this.rows = new int[count];
+        int[] next = this.starts.clone();
+        for (int r = 0; r < count; r++) {
+            this.rows[next[this.groupOf[r]]++] = r;
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    // a range of the sorted rows, split in halves until small enough
+    final class Slice extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        final int from;
+        final int to;
+
+        Slice(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (this.to - this.from <= CHUNK) {
+                run(this.from, this.to);
+                return;
+            }
+            // prefer to cut between two groups, so the tables of a key get
+            // used by one worker only
+            int cut = (this.from + this.to) >>> 1;
+            int group = BlowfishECBBatch.this.groupOf[
+                BlowfishECBBatch.this.rows[cut]];
+            int start = BlowfishECBBatch.this.starts[group];
+            int end = BlowfishECBBatch.this.starts[group + 1];
+            if (this.from < start) {
+                cut = start;
+            }
+            else if (end < this.to) {
+                cut = end;
+            }
+            invokeAll(new Slice(this.from, cut), new Slice(cut, this.to));
+        }
+    }
+
+    // processes the sorted rows between from and to
+    void run(int from, int to) {
+        for (int i = from; i < to; i++) {
+            int r = this.rows[i];
+            BlowfishECB key = this.keys[r];
+            if (this.encrypt) {
+                key.encryptPrv(this.inbufs[r], this.inpos[r],
+                               this.outbufs[r], this.outpos[r], this.lens[r]);
+            }
+            else {
+                key.decryptPrv(this.inbufs[r], this.inpos[r],
+                               this.outbufs[r], this.outpos[r], this.lens[r]);
+            }
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    // processes all the rows, returns the number of bytes done
+    int apply() {
+        int count = this.rows.length;
+        if (CHUNK >= count) {
+            run(0, count);
+        }
+        else {
+            new Slice(0, count).invoke();
+        }
+        return this.total;
+    }
+}
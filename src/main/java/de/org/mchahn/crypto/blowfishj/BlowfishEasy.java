@@ -1,18 +1,93 @@
 package de.org.mchahn.crypto.blowfishj;
 
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
 import java.util.Random;
+import java.util.stream.Stream;
 
 /**
  * Support class for easy string encryption with the Blowfish algorithm. Works
- * in CBC mode using SHA-1 for key setup and applies padding.
+ * in CBC mode using SHA-1 for key setup and applies padding. Instances are
+ * thread-safe: the key schedule is only read from and the chaining state is
+ * kept local to each call, so one instance can be shared by all threads.<p>
+ * Next to the methods producing strings there are overloads working with
+ * buffers provided by the caller. They do hex conversion, encryption and
+ * padding in a single pass and do not create any garbage once the buffers
+ * are in place.</p><p>
+ * The original format, hex characters of the encrypted UTF-16 characters, is
+ * not the most compact one. Thus there is the option to pack the characters
+ * as UTF-8 and to produce URL-safe Base64 or raw bytes instead. Such output
+ * starts with a header byte telling the packing, so decryption can detect the
+ * format on its own.</p><p>
+ * Large numbers of strings can be processed in batches, which spreads the work
+ * over the cores of a fork-join pool.</p>
  */
 public class BlowfishEasy {
 
+    /** How characters get turned into bytes before encryption. */
+    public enum Packing {
+        /** Two bytes per character, as in the original hex format. */
+        UTF16,
+        /** UTF-8 encoding, usually much shorter for Latin text. */
+        UTF8
+    }
+
+    // header byte of the compact format: the upper half marks the format, the
+    // lowest bit tells if UTF-8 packing got used, the others are reserved; it
+    // also makes sure that Base64 output never starts with a hex character,
+    // which is how the formats are told apart
+    static final int HEADER_MAGIC = 0xb0;
+    static final int HEADER_MAGIC_MASK = 0xfe;
+    static final int HEADER_UTF8 = 0x01;
+    static final int HEADER_SIZE = 1;
+
+    // the largest scratch buffer kept per thread, bigger ones are used once
+    static final int MAX_POOLED_CHARS = 1 << 16;
+
+    // per-thread state: the random generator, with a pool of IV material, and
+    // a scratch buffer for the characters, all of it reused between calls
+    static final class Context {
+        final SecureRandom rnd = new SecureRandom();
+        final byte[] ivs = new byte[Blowfish.BLOCKSIZE * 32];
+        int ivPos = this.ivs.length;
+        char[] chars = new char[256];
+
+        long nextIV() {
+            if (this.ivPos == this.ivs.length) {
+                this.rnd.nextBytes(this.ivs);
+                this.ivPos = 0;
+            }
+            long result = BinConverter.byteArrayToLong(this.ivs, this.ivPos);
+            this.ivPos += Blowfish.BLOCKSIZE;
+            return result;
+        }
+
+        char[] chars(int size) {
+            if (this.chars.length < size) {
+                // (a single large string must not pin a huge buffer in every
+                // thread of a pool for good)
+                if (MAX_POOLED_CHARS < size) {
+                    return new char[size];
+                }
+                this.chars = new char[Math.min(MAX_POOLED_CHARS,
+                    Math.max(size, this.chars.length << 1))];
+            }
+            return this.chars;
+        }
+    }
+
+    static final ThreadLocal<Context> CONTEXT =
+        ThreadLocal.withInitial(Context::new);
+
+    ///////////////////////////////////////////////////////////////////////////
+
     BlowfishCBC bfc;
-    SecureRandom srnd = new SecureRandom();
 
     ///////////////////////////////////////////////////////////////////////////
 
@@ -24,13 +99,7 @@ public class BlowfishEasy {
      */
     public BlowfishEasy(char[] passw) {
         // hash down the password to a 160bit key, using SHA-1
-        MessageDigest md = null;
-        try {
-            md = MessageDigest.getInstance("SHA-1");
-        }
-        catch (NoSuchAlgorithmException nse) {
-            throw new UnsupportedOperationException();
-        }
+        MessageDigest md = BlowfishStreamFactory.digest("SHA-1");
 
         for (int i = 0, c = passw.length; i < c; i++) {
             char pc = passw[i];
@@ -48,18 +117,44 @@ public class BlowfishEasy {
     ///////////////////////////////////////////////////////////////////////////
 
     /**
-     * Encrypts a string, using the internal random generator.
+     * Computes the size of an encrypted string.
+     * @param plainChars The number of characters to encrypt.
+     * @return The number of characters the encrypted string will have.
+     */
+    public static int encryptedLength(int plainChars) {
+        return ((plainChars >> 2) + 2) << 4;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Computes the maximum size of a decrypted string.
+     * @param cipherChars The number of characters of the encrypted string.
+     * @return The maximum number of characters decryption can produce.
+     */
+    public static int decryptedLength(int cipherChars) {
+        return Math.max(0, ((cipherChars >> 4) - 1) << 2);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Encrypts a string, using the internal random generator of the calling
+     * thread.
      * @param plainText The string to encrypt.
      * @return The encrypted string.
      */
     public String encryptString(String plainText) {
-        return encStr(plainText, this.srnd.nextLong());
+        Context ctx = CONTEXT.get();
+        return encStr(plainText, ctx.nextIV(), ctx);
     }
 
     ///////////////////////////////////////////////////////////////////////////
 
     /**
      * Encrypts a string with a provided random number generator instance.
+     * Notice that the generator must be thread-safe if it is used by multiple
+     * threads at the same time.
      * @param plaintext The string to encrypt.
      * @param rndgen Random number generator to use. Usually an instance of
      * java.security.SecureRandom.
@@ -68,107 +163,524 @@ public class BlowfishEasy {
     public String encryptString(
         String plaintext,
         Random rndgen) {
-        return encStr(plaintext, rndgen.nextLong());
+        return encStr(plaintext, rndgen.nextLong(), CONTEXT.get());
     }
 
     ///////////////////////////////////////////////////////////////////////////
 
     /**
-     * Internal routine for string encryption.
+     * Encrypts characters into a buffer.
+     * @param plainText The characters to encrypt.
+     * @param out Where to write the encrypted string to. Must be able to take
+     * encryptedLength() characters.
+     * @param outOfs Where to start writing.
+     * @return The number of characters written.
+     */
+    public int encryptString(CharSequence plainText, char[] out, int outOfs) {
+        return encChars(plainText, null, 0, plainText.length(),
+                        CONTEXT.get().nextIV(), out, outOfs);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Encrypts characters from an array into a buffer.
+     * @param plainText The buffer with the characters to encrypt.
+     * @param ofs Where to start reading the characters.
+     * @param len The number of characters to encrypt.
+     * @param out Where to write the encrypted string to. Must be able to take
+     * encryptedLength() characters.
+     * @param outOfs Where to start writing.
+     * @return The number of characters written.
      */
-    private String encStr(String plainText, long newCBCIV) {
-        int strlen = plainText.length();
-        byte[] buf = new byte[((strlen << 1) & ~7) + 8];
+    public int encryptString(
+        char[] plainText,
+        int ofs,
+        int len,
+        char[] out,
+        int outOfs) {
+        return encChars(null, plainText, ofs, len,
+                        CONTEXT.get().nextIV(), out, outOfs);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Encrypts characters and appends the result to a string builder.
+     * @param plainText The characters to encrypt.
+     * @param out Where to append the encrypted string to.
+     */
+    public void encryptString(CharSequence plainText, StringBuilder out) {
+        Context ctx = CONTEXT.get();
+
+        int len = plainText.length();
+        char[] chars = ctx.chars(encryptedLength(len));
+
+        int count = encChars(plainText, null, 0, len, ctx.nextIV(), chars, 0);
+
+        out.append(chars, 0, count);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Encrypts characters and puts the result as ASCII bytes into a buffer.
+     * @param plainText The characters to encrypt.
+     * @param out Where to put the encrypted string, starting at its current
+     * position, which gets advanced.
+     * @exception BufferOverflowException If the buffer has not enough space
+     * left, in which case nothing gets written.
+     */
+    public void encryptString(CharSequence plainText, ByteBuffer out) {
+        Context ctx = CONTEXT.get();
+
+        int len = plainText.length();
+        int count = encryptedLength(len);
 
-        int pos = 0;
-        for (int i = 0; i < strlen; i++) {
-            char achar = plainText.charAt(i);
-            buf[pos++] = (byte)((achar >> 8) & 0x0ff);
-            buf[pos++] = (byte) (achar & 0x0ff);
+        if (out.remaining() < count) {
+            throw new BufferOverflowException();
         }
 
-        byte padval = (byte) (buf.length - (strlen << 1));
-        while (pos < buf.length) {
-            buf[pos++] = padval;
+        char[] chars = ctx.chars(count);
+
+        encChars(plainText, null, 0, len, ctx.nextIV(), chars, 0);
+
+        for (int i = 0; i < count; i++) {
+            out.put((byte)chars[i]);
         }
+    }
 
-        this.bfc.setCBCIV(newCBCIV);
-        this.bfc.encrypt(buf, 0, buf, 0, buf.length);
+    ///////////////////////////////////////////////////////////////////////////
 
-        byte[] newIV = new byte[Blowfish.BLOCKSIZE];
+    /**
+     * Internal routine for string encryption.
+     */
+    private String encStr(String plainText, long newCBCIV, Context ctx) {
+        int len = plainText.length();
+        char[] chars = ctx.chars(encryptedLength(len));
 
-        BinConverter.longToByteArray(newCBCIV, newIV, 0);
+        int count = encChars(plainText, null, 0, len, newCBCIV, chars, 0);
 
-        return
-            BinConverter.bytesToHexStr(newIV, 0, Blowfish.BLOCKSIZE)
-          + BinConverter.bytesToHexStr(buf, 0, buf.length);
+        return new String(chars, 0, count);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    // The fused encryption stage. Characters are taken either from a sequence
+    // or from an array, packed into blocks with the padding done in the last
+    // one, and then encrypted and converted to hex right away.
+
+    int encChars(
+        CharSequence src,
+        char[] srcArr,
+        int ofs,
+        int len,
+        long iv,
+        char[] dst,
+        int dstOfs) {
+        final BlowfishCBC bfc = this.bfc;
+
+        int pos = putHex(iv, dst, dstOfs);
+
+        final int end = ofs + (len & ~3);
+
+        long block;
+
+        while (ofs < end) {
+            if (null == srcArr) {
+                block = ((long)src.charAt(ofs    ) << 48) |
+                        ((long)src.charAt(ofs + 1) << 32) |
+                        ((long)src.charAt(ofs + 2) << 16) |
+                         (long)src.charAt(ofs + 3);
+            }
+            else {
+                block = ((long)srcArr[ofs    ] << 48) |
+                        ((long)srcArr[ofs + 1] << 32) |
+                        ((long)srcArr[ofs + 2] << 16) |
+                         (long)srcArr[ofs + 3];
+            }
+            ofs += 4;
+
+            iv = bfc.encryptBlock(block ^ iv);
+            pos = putHex(iv, dst, pos);
+        }
+
+        // the last block, padded with PKCS7
+
+        final int rest = len & 3;
+        final long padVal = Blowfish.BLOCKSIZE - (rest << 1);
+
+        block = 0;
+        for (int i = 0; i < rest; i++, ofs++) {
+            block = (block << 16) |
+                    (null == srcArr ? src.charAt(ofs) : srcArr[ofs]);
+        }
+        for (int i = rest << 1; i < Blowfish.BLOCKSIZE; i++) {
+            block = (block << 8) | padVal;
+        }
+
+        iv = bfc.encryptBlock(block ^ iv);
+        pos = putHex(iv, dst, pos);
+
+        return pos - dstOfs;
+    }
+
+    static int putHex(long val, char[] dst, int pos) {
+        final int[] hexenc = BinConverter.HEXENC;
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            int hex = hexenc[(int)(val >>> shift) & 0x0ff];
+            dst[pos++] = (char)(hex >>> 8);
+            dst[pos++] = (char)(hex & 0x0ff);
+        }
+        return pos;
     }
 
     ///////////////////////////////////////////////////////////////////////////
 
     /**
      * Decrypts a string formerly encrypted with the encryptString() method.
+     * Both the original hex and the compact Base64 format are accepted.
      * @param cipherText The string to decrypt.
      * @return The decrypted string or null if the input data is invalid.
      */
     public String decryptString(String cipherText) {
-        int len = (cipherText.length() >> 1) & ~7;
+        int len = cipherText.length();
+
+        if (0 < len && 0 > Character.digit(cipherText.charAt(0), 16)) {
+            byte[] data;
+            try {
+                data = Base64.getUrlDecoder().decode(cipherText);
+            }
+            catch (IllegalArgumentException iae) {
+                return null;
+            }
+            return decryptBytes(data, 0, data.length);
+        }
 
-        if (Blowfish.BLOCKSIZE > len) {
-            return null;
+        char[] chars = CONTEXT.get().chars(decryptedLength(len));
+
+        int count = decChars(cipherText, null, len, chars, 0);
+
+        return 0 > count ? null : new String(chars, 0, count);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Decrypts a string into a buffer.
+     * @param cipherText The encrypted string.
+     * @param out Where to write the decrypted characters to. Must be able to
+     * take decryptedLength() characters.
+     * @param outOfs Where to start writing.
+     * @return The number of characters decrypted or -1 if the input data is
+     * invalid. In latter case parts of the buffer might have been written.
+     */
+    public int decryptString(CharSequence cipherText, char[] out, int outOfs) {
+        return decChars(cipherText, null, cipherText.length(), out, outOfs);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Decrypts a string and appends the result to a string builder.
+     * @param cipherText The encrypted string.
+     * @param out Where to append the decrypted characters to.
+     * @return The number of characters decrypted or -1 if the input data is
+     * invalid, in which case nothing gets appended.
+     */
+    public int decryptString(CharSequence cipherText, StringBuilder out) {
+        int len = cipherText.length();
+
+        char[] chars = CONTEXT.get().chars(decryptedLength(len));
+
+        int count = decChars(cipherText, null, len, chars, 0);
+
+        if (0 < count) {
+            out.append(chars, 0, count);
         }
+        return count;
+    }
 
-        byte[] cbciv = new byte[Blowfish.BLOCKSIZE];
+    ///////////////////////////////////////////////////////////////////////////
 
-        int numOfBytes =
-            BinConverter.hexStrToBytes(
-                cipherText,
-                cbciv,
-                0,
-                0,
-                Blowfish.BLOCKSIZE);
+    /**
+     * Decrypts a string, available as ASCII bytes in a buffer.
+     * @param cipherText The buffer with the encrypted string, from its current
+     * position up to the limit. On success the position gets advanced.
+     * @param out Where to write the decrypted characters to. Must be able to
+     * take decryptedLength() characters.
+     * @param outOfs Where to start writing.
+     * @return The number of characters decrypted or -1 if the input data is
+     * invalid. In latter case parts of the buffer might have been written.
+     */
+    public int decryptString(ByteBuffer cipherText, char[] out, int outOfs) {
+        int len = cipherText.remaining();
 
-        if (numOfBytes < Blowfish.BLOCKSIZE) {
-            return null;
+        int count = decChars(null, cipherText, len, out, outOfs);
+
+        if (0 <= count) {
+            cipherText.position(cipherText.position() + (len & ~15));
         }
+        return count;
+    }
 
-        this.bfc.setCBCIV(cbciv, 0);
+    ///////////////////////////////////////////////////////////////////////////
 
-        len -= Blowfish.BLOCKSIZE;
-        if (len == 0) {
-            return "";
+    // The fused decryption stage. Hex characters are taken either from a
+    // sequence or from a buffer, decoded into blocks which get decrypted right
+    // away and then turned into characters, with the last block unpadded.
+    // Like it always has been characters beyond the last full block are
+    // ignored, and so is a padding value out of range.
+
+    int decChars(
+        CharSequence src,
+        ByteBuffer bsrc,
+        int len,
+        char[] dst,
+        int dstOfs) {
+        final BlowfishCBC bfc = this.bfc;
+
+        final int blocks = len >> 4;
+        if (1 > blocks) {
+            return -1;
         }
 
-        byte[] buf = new byte[len];
+        final int base = null == bsrc ? 0 : bsrc.position();
 
-        numOfBytes =
-            BinConverter.hexStrToBytes(
-                cipherText,
-                buf,
-                Blowfish.BLOCKSIZE << 1,
-                0,
-                len);
+        long hi = hexToInt(src, bsrc, base);
+        long lo = hexToInt(src, bsrc, base + 8);
+        if (0 > (hi | lo)) {
+            return -1;
+        }
 
-        if (numOfBytes < len) {
-            return null;
+        long iv = (hi << 32) | lo;
+
+        int pos = dstOfs;
+
+        for (int b = 1; b < blocks; b++) {
+            int ofs = base + (b << 4);
+
+            hi = hexToInt(src, bsrc, ofs);
+            lo = hexToInt(src, bsrc, ofs + 8);
+            if (0 > (hi | lo)) {
+                return -1;
+            }
+
+            long cblock = (hi << 32) | lo;
+            long block = bfc.decryptBlock(cblock) ^ iv;
+            iv = cblock;
+
+            int chars = 4;
+
+            if (b == blocks - 1) {
+                int padVal = (int)block & 0x0ff;
+                if (Blowfish.BLOCKSIZE < padVal) {
+                    padVal = 0;
+                }
+                chars = (Blowfish.BLOCKSIZE - padVal) >> 1;
+            }
+
+            for (int i = 0, shift = 48; i < chars; i++, shift -= 16) {
+                dst[pos++] = (char)(block >>> shift);
+            }
+        }
+
+        return pos - dstOfs;
+    }
+
+    // decodes eight hex characters, returns -1 if any of them is invalid
+    static long hexToInt(CharSequence src, ByteBuffer bsrc, int ofs) {
+        final int[] hexdec = BinConverter.HEXDEC;
+        long result = 0;
+        int bad = 0;
+        for (int i = 0; i < 8; i++) {
+            int c = null == src ?
+                bsrc.get(ofs + i) & 0x0ff :
+                src.charAt(ofs + i);
+
+            int nibble = hexdec[c & 0x0ff] | -(c >>> 8);
+            bad |= nibble;
+            result = (result << 4) | (nibble & 0x0f);
         }
+        return 0 > bad ? -1 : result;
+    }
 
-        this.bfc.decrypt(buf, 0, buf, 0, buf.length);
+    ///////////////////////////////////////////////////////////////////////////
 
-        int padbyte = buf[buf.length - 1] & 0x0ff;
+    /**
+     * Encrypts a string into the compact format, as URL-safe Base64 without
+     * any padding characters.
+     * @param plainText The string to encrypt.
+     * @param packing How to turn the characters into bytes.
+     * @return The encrypted string.
+     */
+    public String encryptString(String plainText, Packing packing) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(
+            encryptBytes(plainText, packing));
+    }
 
-        // try to get everything, even if the padding seem to be wrong
-        if (Blowfish.BLOCKSIZE < padbyte) {
-            padbyte = 0;
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Encrypts a string into the compact format, as raw bytes.
+     * @param plainText The string to encrypt.
+     * @param packing How to turn the characters into bytes.
+     * @return The header, the IV and the cipher-text.
+     */
+    public byte[] encryptBytes(String plainText, Packing packing) {
+        final int dataOfs = HEADER_SIZE + Blowfish.BLOCKSIZE;
+
+        byte[] utf8 = null;
+        int len;
+
+        if (Packing.UTF8 == packing) {
+            utf8 = plainText.getBytes(StandardCharsets.UTF_8);
+            len = utf8.length;
+        }
+        else {
+            len = plainText.length() << 1;
         }
 
-        numOfBytes -= padbyte;
+        byte[] result = new byte[dataOfs + BlowfishCBC.outputSize(len)];
+
+        result[0] = (byte)(HEADER_MAGIC | (null == utf8 ? 0 : HEADER_UTF8));
 
-        if (numOfBytes < 0) {
-            return "";
+        long iv = CONTEXT.get().nextIV();
+        BinConverter.longToByteArray(iv, result, HEADER_SIZE);
+
+        // UTF-8 gets encrypted right from where it is, characters in place
+        if (null == utf8) {
+            for (int i = 0, pos = dataOfs; i < len; i += 2) {
+                char achar = plainText.charAt(i >> 1);
+                result[pos++] = (byte)(achar >> 8);
+                result[pos++] = (byte) achar;
+            }
+            this.bfc.encryptPadded(iv, result, dataOfs, result, dataOfs, len);
+        }
+        else {
+            this.bfc.encryptPadded(iv, utf8, 0, result, dataOfs, len);
+        }
+
+        return result;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Decrypts data in the compact format, as produced by encryptBytes().
+     * @param data The buffer with the data.
+     * @param ofs Where the data starts.
+     * @param len The number of bytes.
+     * @return The decrypted string or null if the input data is invalid.
+     */
+    public String decryptBytes(byte[] data, int ofs, int len) {
+        final int dataOfs = HEADER_SIZE + Blowfish.BLOCKSIZE;
+
+        len -= dataOfs;
+
+        if (Blowfish.BLOCKSIZE > len || 0 != len % Blowfish.BLOCKSIZE) {
+            return null;
         }
 
-        return BinConverter.byteArrayToStr(buf, 0, numOfBytes);
+        int header = data[ofs] & 0x0ff;
+        if (HEADER_MAGIC != (header & HEADER_MAGIC_MASK)) {
+            return null;
+        }
+
+        long iv = BinConverter.byteArrayToLong(data, ofs + HEADER_SIZE);
+
+        byte[] buf = new byte[len];
+        len = this.bfc.decryptPadded(iv, data, ofs + dataOfs, buf, 0, len);
+        if (-1 == len) {
+            return null;
+        }
+
+        if (0 != (header & HEADER_UTF8)) {
+            return new String(buf, 0, len, StandardCharsets.UTF_8);
+        }
+
+        return BinConverter.byteArrayToStr(buf, 0, len);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Encrypts many strings at once, in parallel on a fork-join pool. That is
+     * the pool of the calling thread if it is a worker of one, otherwise the
+     * common pool.
+     * @param plainTexts The strings to encrypt. Null values stay null.
+     * @return The encrypted strings, in the same order.
+     */
+    public String[] encryptStrings(String[] plainTexts) {
+        return BlowfishEasyBatch.apply(plainTexts, this::encryptString);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Encrypts many strings at once, in parallel on a fork-join pool.
+     * @param plainTexts The strings to encrypt. Null values stay null.
+     * @return The encrypted strings, in the same order.
+     * @see #encryptStrings(String[])
+     */
+    public List<String> encryptStrings(List<String> plainTexts) {
+        return Arrays.asList(encryptStrings(
+            plainTexts.toArray(new String[plainTexts.size()])));
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Encrypts a stream of strings, of any length. Values are pulled from the
+     * source in chunks and encrypted in parallel on a fork-join pool, with
+     * just a few chunks in progress at any time, so memory usage is constant.
+     * Nothing happens until the returned stream gets consumed.
+     * @param plainTexts The strings to encrypt. Null values stay null.
+     * @return Sequential stream of the encrypted strings, in the same order.
+     * Closing it closes the source stream.
+     * @see #encryptStrings(String[])
+     */
+    public Stream<String> encryptStrings(Stream<String> plainTexts) {
+        return BlowfishEasyBatch.apply(plainTexts, this::encryptString);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Decrypts many strings at once, in parallel on a fork-join pool.
+     * @param cipherTexts The strings to decrypt. Null values stay null.
+     * @return The decrypted strings, in the same order. Invalid input results
+     * in null, just like in decryptString().
+     * @see #encryptStrings(String[])
+     */
+    public String[] decryptStrings(String[] cipherTexts) {
+        return BlowfishEasyBatch.apply(cipherTexts, this::decryptString);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Decrypts many strings at once, in parallel on a fork-join pool.
+     * @param cipherTexts The strings to decrypt. Null values stay null.
+     * @return The decrypted strings, in the same order.
+     * @see #decryptStrings(String[])
+     */
+    public List<String> decryptStrings(List<String> cipherTexts) {
+        return Arrays.asList(decryptStrings(
+            cipherTexts.toArray(new String[cipherTexts.size()])));
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Decrypts a stream of strings, of any length, with constant memory usage.
+     * @param cipherTexts The strings to decrypt. Null values stay null.
+     * @return Sequential stream of the decrypted strings, in the same order.
+     * Closing it closes the source stream.
+     * @see #encryptStrings(Stream)
+     */
+    public Stream<String> decryptStrings(Stream<String> cipherTexts) {
+        return BlowfishEasyBatch.apply(cipherTexts, this::decryptString);
     }
 
     ///////////////////////////////////////////////////////////////////////////
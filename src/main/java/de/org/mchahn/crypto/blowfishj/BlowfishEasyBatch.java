@@ -0,0 +1,173 @@
+package de.org.mchahn.crypto.blowfishj;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.UnaryOperator;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Runs the batch operations of BlowfishEasy on a fork-join pool. Tasks go to
+ * the pool of the calling thread if it is a worker, otherwise to the common
+ * pool. Every worker uses its own context of BlowfishEasy, while the key
+ * schedule is shared. Null values get passed through as they are.
+ */
+final class BlowfishEasyBatch {
+
+    // the number of values processed by a single task
+    static final int CHUNK = 256;
+
+    private BlowfishEasyBatch() {}
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    // a range of values, split in halves until small enough
+    static final class Slice extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        final String[] in;
+        final String[] out;
+        final int from;
+        final int to;
+        final UnaryOperator<String> op;
+
+        Slice(
+            String[] in,
+            String[] out,
+            int from,
+            int to,
+            UnaryOperator<String> op) {
+            this.in = in;
+            this.out = out;
+            this.from = from;
+            this.to = to;
+            this.op = op;
+        }
+
+        @Override
+        protected void compute() {
+            if (this.to - this.from <= CHUNK) {
+                run(this.in, this.out, this.from, this.to, this.op);
+                return;
+            }
+            int mid = (this.from + this.to) >>> 1;
+            invokeAll(new Slice(this.in, this.out, this.from, mid, this.op),
+                      new Slice(this.in, this.out, mid, this.to, this.op));
+        }
+    }
+
+    static void run(
+        String[] in,
+        String[] out,
+        int from,
+        int to,
+        UnaryOperator<String> op) {
+        for (int i = from; i < to; i++) {
+            String val = in[i];
+            out[i] = null == val ? null : op.apply(val);
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    static String[] apply(String[] in, UnaryOperator<String> op) {
+        String[] result = new String[in.length];
+
+        if (CHUNK >= in.length) {
+            run(in, result, 0, in.length, op);
+        }
+        else {
+            new Slice(in, result, 0, in.length, op).invoke();
+        }
+
+        return result;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    // pulls values from the source in chunks and keeps a bounded number of
+    // them in progress, delivering the results in the original order
+    static final class Windowed implements Iterator<String> {
+        final Iterator<String> src;
+        final UnaryOperator<String> op;
+        final int window;
+        final ArrayDeque<ForkJoinTask<String[]>> pending;
+
+        String[] current;
+        int pos;
+
+        Windowed(Iterator<String> src, UnaryOperator<String> op, int window) {
+            this.src = src;
+            this.op = op;
+            this.window = window;
+            this.pending = new ArrayDeque<>(window);
+        }
+
+        void fill() {
+            while (this.pending.size() < this.window && this.src.hasNext()) {
+                String[] chunk = new String[CHUNK];
+                int count = 0;
+                do {
+                    chunk[count++] = this.src.next();
+                }
+                while (count < CHUNK && this.src.hasNext());
+
+                final String[] in = count == CHUNK ?
+                    chunk : Arrays.copyOf(chunk, count);
+                final UnaryOperator<String> op = this.op;
+
+                this.pending.addLast(ForkJoinTask.adapt(() -> {
+                    run(in, in, 0, in.length, op);
+                    return in;
+                }).fork());
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (null != this.current && this.pos < this.current.length) {
+                return true;
+            }
+            this.current = null;
+            fill();
+            ForkJoinTask<String[]> next = this.pending.pollFirst();
+            if (null == next) {
+                return false;
+            }
+            this.current = next.join();
+            this.pos = 0;
+            // (keep the workers busy while the consumer is at it)
+            fill();
+            return true;
+        }
+
+        @Override
+        public String next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return this.current[this.pos++];
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    static Stream<String> apply(Stream<String> in, UnaryOperator<String> op) {
+        ForkJoinPool pool = ForkJoinTask.inForkJoinPool() ?
+            ForkJoinTask.getPool() : ForkJoinPool.commonPool();
+
+        Iterator<String> it = new Windowed(
+            in.iterator(), op, (pool.getParallelism() << 1) + 1);
+
+        return StreamSupport.stream(
+            Spliterators.spliteratorUnknownSize(it, Spliterator.ORDERED),
+            false).onClose(in::close);
+    }
+}
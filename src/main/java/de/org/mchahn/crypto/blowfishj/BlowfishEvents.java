@@ -0,0 +1,281 @@
+package de.org.mchahn.crypto.blowfishj;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+
+import jdk.jfr.Category;
+import jdk.jfr.Configuration;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Java Flight Recorder events of the library. All of them are disabled by
+ * default, so they cost nothing unless a recording turns them on, which is
+ * what the settings profile "blowfishj.jfc" next to this class does. It can be
+ * passed to the JVM, e.g. -XX:StartFlightRecording:settings=blowfishj.jfc
+ * after extracting it, or to a recording created in code via settings().<p>
+ * Bulk encryption and decryption calls only create events if they process at
+ * least MIN_BYTES bytes, to not drown the recording in tiny calls. The limit
+ * can be set with the system property "blowfishj.jfr.minBytes".</p><p>
+ * As long as the flight recorder is not initialized, which in most processes
+ * is never, no events get created at all. Loading the first event class
+ * registers it with the recorder, which would otherwise dominate the time a
+ * fresh process needs to get its first block encrypted.</p>
+ */
+public final class BlowfishEvents {
+
+    /** The name of the settings profile, a resource next to this class. */
+    public static final String SETTINGS = "blowfishj.jfc";
+
+    /** The minimum size of a bulk call to be recorded. */
+    public static final int MIN_BYTES =
+        Integer.getInteger("blowfishj.jfr.minBytes", 4096);
+
+    static final String PREFIX = "de.org.mchahn.crypto.blowfishj.";
+    static final String CATEGORY = "Blowfish";
+
+    private BlowfishEvents() {}
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /** Expansion of a key into the boxes. */
+    @Name(PREFIX + "KeySetup")
+    @Label("Key Setup")
+    @Category(CATEGORY)
+    @Description("Expansion of key material into the P- and S-boxes")
+    @Enabled(false)
+    static final class KeySetup extends Event {
+        @Label("Key Length")
+        @DataAmount
+        int keyLength;
+    }
+
+    /** Check for a weak key, which compares all entries of the S-boxes. */
+    @Name(PREFIX + "WeakKeyCheck")
+    @Label("Weak Key Check")
+    @Category(CATEGORY)
+    @Enabled(false)
+    static final class WeakKeyCheck extends Event {
+        @Label("Weak")
+        boolean weak;
+    }
+
+    /** A bulk encryption or decryption call. */
+    @Name(PREFIX + "Cipher")
+    @Label("Bulk Cipher Operation")
+    @Category(CATEGORY)
+    @Description("Bulk encryption or decryption call above the size limit")
+    @Enabled(false)
+    @StackTrace(false)
+    static final class Cipher extends Event {
+        @Label("Mode")
+        String mode;
+
+        @Label("Encrypt")
+        boolean encrypt;
+
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+    }
+
+    /** The whole life of a stream, committed when it gets closed. */
+    @Name(PREFIX + "Stream")
+    @Label("Stream")
+    @Category(CATEGORY)
+    @Description("Life of a stream, the duration is the one of closing it")
+    @Enabled(false)
+    static final class Stream extends Event {
+        @Label("Stream Class")
+        Class<?> streamClass;
+
+        @Label("Mode")
+        String mode;
+
+        @Label("Cipher-Text Bytes")
+        @DataAmount
+        long transferred;
+
+        @Label("Lifetime")
+        @Timespan(Timespan.NANOSECONDS)
+        long lifetime;
+    }
+
+    /** A lookup in a cache of key schedules. */
+    @Name(PREFIX + "KeyCache")
+    @Label("Key Cache Lookup")
+    @Category(CATEGORY)
+    @Enabled(false)
+    @StackTrace(false)
+    static final class KeyCache extends Event {
+        @Label("Cache")
+        String cache;
+
+        @Label("Key Fingerprint")
+        String key;
+
+        @Label("Hit")
+        boolean hit;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    // whether events can be recorded at all
+    static boolean recording() {
+        return FlightRecorder.isInitialized();
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    // a new and started key setup event, or null if not recording
+    static KeySetup beginKeySetup() {
+        if (!recording()) {
+            return null;
+        }
+        KeySetup result = new KeySetup();
+        result.begin();
+        return result;
+    }
+
+    static void commitKeySetup(KeySetup ev, int keyLength) {
+        if (null != ev && ev.shouldCommit()) {
+            ev.keyLength = keyLength;
+            ev.commit();
+        }
+    }
+
+    // a new and started weak key check event, or null if not recording
+    static WeakKeyCheck beginWeakKeyCheck() {
+        if (!recording()) {
+            return null;
+        }
+        WeakKeyCheck result = new WeakKeyCheck();
+        result.begin();
+        return result;
+    }
+
+    static void commitWeakKeyCheck(WeakKeyCheck ev, boolean weak) {
+        if (null != ev && ev.shouldCommit()) {
+            ev.weak = weak;
+            ev.commit();
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    // a new and started event for a bulk call, or null if the call is too
+    // small or the event is disabled
+    static Cipher beginCipher(int len) {
+        if (MIN_BYTES > len || !recording()) {
+            return null;
+        }
+        Cipher result = new Cipher();
+        if (!result.isEnabled()) {
+            return null;
+        }
+        result.begin();
+        return result;
+    }
+
+    static void commitCipher(
+        Cipher ev,
+        BlowfishMetrics.Mode mode,
+        boolean encrypt,
+        int bytes) {
+        if (null != ev && ev.shouldCommit()) {
+            ev.mode = mode.name();
+            ev.encrypt = encrypt;
+            ev.bytes = bytes;
+            ev.commit();
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    // the start of the life of a stream, or zero if not recorded
+    static long streamOpened() {
+        return recording() && new Stream().isEnabled() ?
+            System.nanoTime() : 0L;
+    }
+
+    // the event for the start of the closing of a stream; null if disabled
+    static Stream beginStreamClose(long opened) {
+        if (0L == opened) {
+            return null;
+        }
+        Stream result = new Stream();
+        result.begin();
+        return result;
+    }
+
+    static void commitStream(
+        Stream ev,
+        Object stream,
+        long opened,
+        long transferred) {
+        commitStream(ev, stream, BlowfishMetrics.Mode.CBC, opened,
+                     transferred);
+    }
+
+    static void commitStream(
+        Stream ev,
+        Object stream,
+        BlowfishMetrics.Mode mode,
+        long opened,
+        long transferred) {
+        if (null != ev && ev.shouldCommit()) {
+            ev.streamClass = stream.getClass();
+            ev.mode = mode.name();
+            ev.transferred = transferred;
+            ev.lifetime = System.nanoTime() - opened;
+            ev.commit();
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    static void keyCacheLookup(String cache, String key, boolean hit) {
+        if (!recording()) {
+            return;
+        }
+        KeyCache ev = new KeyCache();
+        if (ev.shouldCommit()) {
+            ev.cache = cache;
+            ev.key = key;
+            ev.hit = hit;
+            ev.commit();
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Loads the settings profile, for recordings started in code.
+     * @return The configuration enabling all the events of the library.
+     * @exception IOException If the profile couldn't be read.
+     */
+    public static Configuration settings() throws IOException {
+        try (InputStream is =
+                 BlowfishEvents.class.getResourceAsStream(SETTINGS)) {
+            if (null == is) {
+                throw new IOException("missing " + SETTINGS);
+            }
+            Reader rdr = new InputStreamReader(is, StandardCharsets.UTF_8);
+            return Configuration.create(rdr);
+        }
+        catch (ParseException pe) {
+            throw new IOException(pe);
+        }
+    }
+}
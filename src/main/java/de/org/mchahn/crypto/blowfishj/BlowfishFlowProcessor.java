@@ -0,0 +1,793 @@
+package de.org.mchahn.crypto.blowfishj;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reactive encryption and decryption of byte buffers. A processor subscribes
+ * to a publisher of plain- or cipher-text and publishes the result to a single
+ * subscriber. Input gets requested one buffer at a time and only while the
+ * subscriber has demand, so a slow subscriber slows down the upstream.<p>
+ * Input buffers are consumed, i.e. their position gets advanced. They are
+ * processed straight from their backing array, only the partial block at their
+ * end is kept until the next buffer arrives. The output buffers come from a
+ * pool, a subscriber done with one can hand it back via release().</p><p>
+ * Key material is hashed to a 160bit final key using SHA-1 in all the modes.
+ * The data formats are:</p>
+ * <ul>
+ * <li>CBC: the IV followed by the cipher-text padded with PKCS7, which is the
+ * same as written by the BlowfishOutputStream.</li>
+ * <li>CFB: the IV followed by the cipher-text, no padding.</li>
+ * <li>CTR: the nonce (initial counter value) followed by the cipher-text, no
+ * padding.</li>
+ * </ul>
+ * Truncated data or invalid padding are reported via onError() with an
+ * IOException.
+ */
+public abstract class BlowfishFlowProcessor
+    implements Flow.Processor<ByteBuffer, ByteBuffer> {
+
+    /** The minimum capacity of the buffers in the pool. */
+    public static final int MIN_BUFFER_SIZE = 8192;
+
+    // the maximum number of buffers in the pool
+    static final int MAX_POOLED = 16;
+
+    final ConcurrentLinkedQueue<ByteBuffer> pool =
+        new ConcurrentLinkedQueue<>();
+    final AtomicInteger pooled = new AtomicInteger();
+
+    // the subscriptions and what's ready to be delivered; state changes are
+    // acted upon in drain(), which only ever runs on one thread at a time
+
+    volatile Flow.Subscription upstream;
+    volatile Flow.Subscriber<? super ByteBuffer> downstream;
+    boolean subscribed;
+
+    final ConcurrentLinkedQueue<ByteBuffer> ready =
+        new ConcurrentLinkedQueue<>();
+    final AtomicLong demand = new AtomicLong();
+    final AtomicInteger wip = new AtomicInteger();
+
+    volatile boolean requested;
+    volatile boolean done;
+    volatile boolean cancelled;
+    volatile Throwable error;
+    volatile boolean terminated;
+
+    // the processor itself plus the calls processing input right now; the
+    // key schedule gets wiped once it drops to zero, so a cancellation never
+    // pulls it away from under an onNext() still running on another thread
+    final AtomicInteger users = new AtomicInteger(1);
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Processes the next input buffer.
+     * @param in The input, to be consumed completely.
+     * @return The output, or null if there is none yet.
+     * @exception IOException If the data is invalid.
+     */
+    abstract ByteBuffer process(ByteBuffer in) throws IOException;
+
+    /**
+     * Finishes processing, after the last input buffer.
+     * @return The final output, or null if there is none.
+     * @exception IOException If the data is invalid or incomplete.
+     */
+    abstract ByteBuffer finish() throws IOException;
+
+    /** Wipes the key schedule and any other sensitive data. */
+    abstract void cleanUp();
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Creates a processor encrypting in CBC mode.
+     * @param key The buffer with the key material.
+     * @param ofs Where the key material starts in the buffer.
+     * @param len Size of the key material.
+     * @return The new processor.
+     */
+    public static BlowfishFlowProcessor cbcEncryptor(
+        byte[] key, int ofs, int len) {
+        return new CBCEncryptor(
+            BlowfishStreamFactory.createCipher(key, ofs, len),
+            new SecureRandom().nextLong());
+    }
+
+    /**
+     * Creates a processor decrypting in CBC mode.
+     * @param key The buffer with the key material.
+     * @param ofs Where the key material starts in the buffer.
+     * @param len Size of the key material.
+     * @return The new processor.
+     */
+    public static BlowfishFlowProcessor cbcDecryptor(
+        byte[] key, int ofs, int len) {
+        return new CBCDecryptor(
+            BlowfishStreamFactory.createCipher(key, ofs, len));
+    }
+
+    /**
+     * Creates a processor encrypting in CFB mode.
+     * @param key The buffer with the key material.
+     * @param ofs Where the key material starts in the buffer.
+     * @param len Size of the key material.
+     * @return The new processor.
+     */
+    public static BlowfishFlowProcessor cfbEncryptor(
+        byte[] key, int ofs, int len) {
+        byte[] ckey = BlowfishStreamFactory.hashKey(key, ofs, len);
+        BlowfishCFB bff = new BlowfishCFB(ckey, 0, ckey.length);
+        Arrays.fill(ckey, (byte)0);
+        return new StreamModeProcessor(bff, true);
+    }
+
+    /**
+     * Creates a processor decrypting in CFB mode.
+     * @param key The buffer with the key material.
+     * @param ofs Where the key material starts in the buffer.
+     * @param len Size of the key material.
+     * @return The new processor.
+     */
+    public static BlowfishFlowProcessor cfbDecryptor(
+        byte[] key, int ofs, int len) {
+        byte[] ckey = BlowfishStreamFactory.hashKey(key, ofs, len);
+        BlowfishCFB bff = new BlowfishCFB(ckey, 0, ckey.length);
+        Arrays.fill(ckey, (byte)0);
+        return new StreamModeProcessor(bff, false);
+    }
+
+    /**
+     * Creates a processor encrypting in CTR mode.
+     * @param key The buffer with the key material.
+     * @param ofs Where the key material starts in the buffer.
+     * @param len Size of the key material.
+     * @return The new processor.
+     */
+    public static BlowfishFlowProcessor ctrEncryptor(
+        byte[] key, int ofs, int len) {
+        byte[] ckey = BlowfishStreamFactory.hashKey(key, ofs, len);
+        BlowfishCTR bft = new BlowfishCTR(ckey, 0, ckey.length);
+        Arrays.fill(ckey, (byte)0);
+        return new StreamModeProcessor(bft, true);
+    }
+
+    /**
+     * Creates a processor decrypting in CTR mode.
+     * @param key The buffer with the key material.
+     * @param ofs Where the key material starts in the buffer.
+     * @param len Size of the key material.
+     * @return The new processor.
+     */
+    public static BlowfishFlowProcessor ctrDecryptor(
+        byte[] key, int ofs, int len) {
+        byte[] ckey = BlowfishStreamFactory.hashKey(key, ofs, len);
+        BlowfishCTR bft = new BlowfishCTR(ckey, 0, ckey.length);
+        Arrays.fill(ckey, (byte)0);
+        return new StreamModeProcessor(bft, false);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Gets a buffer from the pool, or allocates a new one.
+     * @param size The minimum capacity needed.
+     * @return The buffer, cleared and with its limit set to the size.
+     */
+    ByteBuffer take(int size) {
+        ByteBuffer result = this.pool.poll();
+        if (null != result) {
+            this.pooled.decrementAndGet();
+            if (result.capacity() < size) {
+                result = null;
+            }
+        }
+        if (null == result) {
+            result = ByteBuffer.allocate(Math.max(size, MIN_BUFFER_SIZE));
+        }
+        result.clear().limit(size);
+        return result;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Hands an output buffer back to the pool, after the subscriber is done
+     * with it. Using the buffer afterwards will produce garbage.
+     * @param buf The buffer, as received in onNext().
+     */
+    public void release(ByteBuffer buf) {
+        if (!buf.hasArray() || 0 != buf.arrayOffset()) {
+            return;
+        }
+        if (MAX_POOLED > this.pooled.getAndIncrement()) {
+            this.pool.offer(buf);
+        }
+        else {
+            this.pooled.decrementAndGet();
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /** @see java.util.concurrent.Flow.Publisher#subscribe(java.util.concurrent.Flow.Subscriber) */
+    @Override
+    public void subscribe(Flow.Subscriber<? super ByteBuffer> subscriber) {
+        Objects.requireNonNull(subscriber);
+
+        synchronized (this) {
+            if (this.subscribed) {
+                subscriber.onSubscribe(new Flow.Subscription() {
+                    @Override public void request(long n) { }
+                    @Override public void cancel() { }
+                });
+                subscriber.onError(new IllegalStateException(
+                    "only a single subscriber is supported"));
+                return;
+            }
+            this.subscribed = true;
+        }
+
+        subscriber.onSubscribe(new Flow.Subscription() {
+            @Override
+            public void request(long n) {
+                if (0 >= n) {
+                    Flow.Subscription up = BlowfishFlowProcessor.this.upstream;
+                    if (null != up) {
+                        up.cancel();
+                    }
+                    fail(new IllegalArgumentException(
+                        "non-positive request " + n));
+                    return;
+                }
+                BlowfishFlowProcessor.this.demand.getAndUpdate(d ->
+                    Long.MAX_VALUE - d < n ? Long.MAX_VALUE : d + n);
+                drain();
+            }
+
+            @Override
+            public void cancel() {
+                BlowfishFlowProcessor.this.cancelled = true;
+                Flow.Subscription up = BlowfishFlowProcessor.this.upstream;
+                if (null != up) {
+                    up.cancel();
+                }
+                drain();
+            }
+        });
+
+        // (nothing gets delivered before the subscriber has been set up)
+        this.downstream = subscriber;
+        drain();
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /** @see java.util.concurrent.Flow.Subscriber#onSubscribe(java.util.concurrent.Flow.Subscription) */
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+        if (null != this.upstream || this.cancelled || this.done) {
+            subscription.cancel();
+            return;
+        }
+        this.upstream = subscription;
+        drain();
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /** @see java.util.concurrent.Flow.Subscriber#onNext(java.lang.Object) */
+    @Override
+    public void onNext(ByteBuffer item) {
+        // (items may still arrive after a cancellation)
+        if (this.done || this.cancelled || this.terminated || !enter()) {
+            return;
+        }
+
+        try {
+            ByteBuffer out = process(item);
+            if (null != out) {
+                this.ready.offer(out);
+            }
+        }
+        catch (IOException | RuntimeException e) {
+            this.upstream.cancel();
+            leave();
+            fail(e);
+            return;
+        }
+        leave();
+
+        this.requested = false;
+        drain();
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /** @see java.util.concurrent.Flow.Subscriber#onError(java.lang.Throwable) */
+    @Override
+    public void onError(Throwable throwable) {
+        fail(throwable);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /** @see java.util.concurrent.Flow.Subscriber#onComplete() */
+    @Override
+    public void onComplete() {
+        if (this.done || this.cancelled || this.terminated || !enter()) {
+            return;
+        }
+
+        try {
+            ByteBuffer out = finish();
+            if (null != out) {
+                this.ready.offer(out);
+            }
+        }
+        catch (IOException | RuntimeException e) {
+            leave();
+            fail(e);
+            return;
+        }
+        leave();
+
+        this.done = true;
+        drain();
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    void fail(Throwable err) {
+        if (null == this.error) {
+            this.error = err;
+        }
+        this.done = true;
+        drain();
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    // delivers what's ready as far as there's demand, signals termination and
+    // requests more input when everything got delivered; calls made while
+    // another thread is in here make that thread do another round instead
+    void drain() {
+        if (0 != this.wip.getAndIncrement()) {
+            return;
+        }
+
+        int missed = 1;
+
+        for (;;) {
+            Flow.Subscriber<? super ByteBuffer> ds = this.downstream;
+
+            if (null != ds && !this.terminated) {
+                if (this.cancelled) {
+                    terminate();
+                }
+                else if (null != this.error) {
+                    terminate();
+                    ds.onError(this.error);
+                }
+                else {
+                    long d = this.demand.get();
+                    long emitted = 0;
+
+                    while (emitted != d) {
+                        ByteBuffer buf = this.ready.poll();
+                        if (null == buf) {
+                            break;
+                        }
+                        ds.onNext(buf);
+                        emitted++;
+                    }
+
+                    if (0 != emitted && Long.MAX_VALUE != d) {
+                        this.demand.addAndGet(-emitted);
+                    }
+
+                    if (this.ready.isEmpty()) {
+                        Flow.Subscription up = this.upstream;
+                        if (this.done) {
+                            terminate();
+                            ds.onComplete();
+                        }
+                        else if (null != up        &&
+                                 !this.requested   &&
+                                 0 < this.demand.get()) {
+                            this.requested = true;
+                            up.request(1);
+                        }
+                    }
+                }
+            }
+
+            missed = this.wip.addAndGet(-missed);
+            if (0 == missed) {
+                break;
+            }
+        }
+    }
+
+    void terminate() {
+        this.terminated = true;
+        this.ready.clear();
+        leave();
+    }
+
+    // registers a call about to use the cipher, fails if it got wiped already
+    boolean enter() {
+        for (;;) {
+            int u = this.users.get();
+            if (0 == u) {
+                return false;
+            }
+            if (this.users.compareAndSet(u, u + 1)) {
+                return true;
+            }
+        }
+    }
+
+    void leave() {
+        if (0 == this.users.decrementAndGet()) {
+            cleanUp();
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    // processes blocks from the input, straight from its array if it has one,
+    // otherwise after copying it into the output where it then gets processed
+    // in place
+    static int crypt(
+        BlowfishECB cipher,
+        boolean encrypt,
+        ByteBuffer in,
+        byte[] out,
+        int outPos,
+        int len) {
+        byte[] src;
+        int srcPos;
+
+        if (in.hasArray()) {
+            src = in.array();
+            srcPos = in.arrayOffset() + in.position();
+            in.position(in.position() + len);
+        }
+        else {
+            in.get(out, outPos, len);
+            src = out;
+            srcPos = outPos;
+        }
+
+        return encrypt ?
+            cipher.encrypt(src, srcPos, out, outPos, len) :
+            cipher.decrypt(src, srcPos, out, outPos, len);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    // CBC encryption, with the IV first and PKCS7 padding at the end
+    static final class CBCEncryptor extends BlowfishFlowProcessor {
+        final BlowfishCBC bfc;
+        final byte[] carry = new byte[Blowfish.BLOCKSIZE];
+        int carried;
+        long iv;
+        boolean started;
+
+        CBCEncryptor(BlowfishCBC bfc, long iv) {
+            this.bfc = bfc;
+            this.iv = iv;
+        }
+
+        int start(byte[] out) {
+            if (this.started) {
+                return 0;
+            }
+            this.started = true;
+            BinConverter.longToByteArray(this.iv, out, 0);
+            return Blowfish.BLOCKSIZE;
+        }
+
+        @Override
+        ByteBuffer process(ByteBuffer in) {
+            final byte[] carry = this.carry;
+
+            int blocks = (this.carried + in.remaining()) & ~7;
+            int size = blocks + (this.started ? 0 : Blowfish.BLOCKSIZE);
+            if (0 == size) {
+                int rest = in.remaining();
+                in.get(carry, this.carried, rest);
+                this.carried += rest;
+                return null;
+            }
+
+            ByteBuffer result = take(size);
+            byte[] out = result.array();
+            int pos = start(out);
+
+            if (0 < this.carried && 0 < blocks) {
+                in.get(carry, this.carried,
+                       Blowfish.BLOCKSIZE - this.carried);
+                this.iv = this.bfc.encrypt(this.iv, carry, 0, out, pos,
+                                           Blowfish.BLOCKSIZE);
+                this.carried = 0;
+                pos += Blowfish.BLOCKSIZE;
+                blocks -= Blowfish.BLOCKSIZE;
+            }
+
+            if (0 < blocks) {
+                byte[] src;
+                int srcPos;
+                if (in.hasArray()) {
+                    src = in.array();
+                    srcPos = in.arrayOffset() + in.position();
+                    in.position(in.position() + blocks);
+                }
+                else {
+                    in.get(out, pos, blocks);
+                    src = out;
+                    srcPos = pos;
+                }
+                this.iv = this.bfc.encrypt(this.iv, src, srcPos, out, pos,
+                                           blocks);
+                pos += blocks;
+            }
+
+            int rest = in.remaining();
+            in.get(carry, this.carried, rest);
+            this.carried += rest;
+
+            return result;
+        }
+
+        @Override
+        ByteBuffer finish() {
+            final byte[] carry = this.carry;
+
+            ByteBuffer result = take(Blowfish.BLOCKSIZE +
+                (this.started ? 0 : Blowfish.BLOCKSIZE));
+            byte[] out = result.array();
+            int pos = start(out);
+
+            this.bfc.encryptPadded(this.iv, carry, 0, out, pos, this.carried);
+            this.carried = 0;
+
+            return result;
+        }
+
+        @Override
+        void cleanUp() {
+            Arrays.fill(this.carry, (byte)0);
+            this.bfc.cleanUp();
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    // CBC decryption; the last block gets held back, since it might be the
+    // one with the padding
+    static final class CBCDecryptor extends BlowfishFlowProcessor {
+        final BlowfishCBC bfc;
+        final byte[] carry = new byte[Blowfish.BLOCKSIZE];
+        final byte[] held = new byte[Blowfish.BLOCKSIZE];
+        int carried;
+        long iv;
+        boolean started;
+        boolean holding;
+
+        CBCDecryptor(BlowfishCBC bfc) {
+            this.bfc = bfc;
+        }
+
+        @Override
+        ByteBuffer process(ByteBuffer in) {
+            final byte[] carry = this.carry;
+
+            if (!this.started) {
+                int toCopy = Math.min(in.remaining(),
+                                      Blowfish.BLOCKSIZE - this.carried);
+                in.get(carry, this.carried, toCopy);
+                this.carried += toCopy;
+                if (Blowfish.BLOCKSIZE > this.carried) {
+                    return null;
+                }
+                this.iv = BinConverter.byteArrayToLong(carry, 0);
+                this.carried = 0;
+                this.started = true;
+            }
+
+            int blocks = (this.carried + in.remaining()) & ~7;
+            if (0 == blocks) {
+                int rest = in.remaining();
+                in.get(carry, this.carried, rest);
+                this.carried += rest;
+                return null;
+            }
+
+            ByteBuffer result = take(blocks + Blowfish.BLOCKSIZE);
+            byte[] out = result.array();
+            int pos = 0;
+
+            if (this.holding) {
+                System.arraycopy(this.held, 0, out, 0, Blowfish.BLOCKSIZE);
+                pos = Blowfish.BLOCKSIZE;
+            }
+
+            if (0 < this.carried) {
+                in.get(carry, this.carried,
+                       Blowfish.BLOCKSIZE - this.carried);
+                this.iv = this.bfc.decrypt(this.iv, carry, 0, out, pos,
+                                           Blowfish.BLOCKSIZE);
+                this.carried = 0;
+                pos += Blowfish.BLOCKSIZE;
+                blocks -= Blowfish.BLOCKSIZE;
+            }
+
+            if (0 < blocks) {
+                byte[] src;
+                int srcPos;
+                if (in.hasArray()) {
+                    src = in.array();
+                    srcPos = in.arrayOffset() + in.position();
+                    in.position(in.position() + blocks);
+                }
+                else {
+                    in.get(out, pos, blocks);
+                    src = out;
+                    srcPos = pos;
+                }
+                this.iv = this.bfc.decrypt(this.iv, src, srcPos, out, pos,
+                                           blocks);
+                pos += blocks;
+            }
+
+            pos -= Blowfish.BLOCKSIZE;
+            System.arraycopy(out, pos, this.held, 0, Blowfish.BLOCKSIZE);
+            this.holding = true;
+
+            int rest = in.remaining();
+            in.get(carry, this.carried, rest);
+            this.carried += rest;
+
+            if (0 == pos) {
+                release(result);
+                return null;
+            }
+            result.limit(pos);
+            return result;
+        }
+
+        @Override
+        ByteBuffer finish() throws IOException {
+            if (!this.holding || 0 != this.carried) {
+                throw new IOException("truncated data");
+            }
+
+            final byte[] held = this.held;
+
+            // (the block got decrypted already, so just the same constant
+            // time check as in decryptPadded())
+            int padVal = BlowfishCBC.padding(
+                BinConverter.byteArrayToLong(held, 0));
+            if (-1 == padVal) {
+                BlowfishMetrics.paddingFailure();
+                throw new IOException("invalid padding");
+            }
+
+            int len = Blowfish.BLOCKSIZE - padVal;
+            if (0 == len) {
+                return null;
+            }
+
+            ByteBuffer result = take(len);
+            result.put(held, 0, len).flip();
+            return result;
+        }
+
+        @Override
+        void cleanUp() {
+            Arrays.fill(this.carry, (byte)0);
+            Arrays.fill(this.held, (byte)0);
+            this.bfc.cleanUp();
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    // CFB and CTR, byte-oriented and thus without any padding; the IV or the
+    // nonce comes first
+    static final class StreamModeProcessor extends BlowfishFlowProcessor {
+        final BlowfishECB cipher;
+        final boolean encrypt;
+        final byte[] iv = new byte[Blowfish.BLOCKSIZE];
+        int ivLen;
+
+        StreamModeProcessor(BlowfishECB cipher, boolean encrypt) {
+            this.cipher = cipher;
+            this.encrypt = encrypt;
+            if (encrypt) {
+                new SecureRandom().nextBytes(this.iv);
+                start();
+            }
+        }
+
+        void start() {
+            if (this.cipher instanceof BlowfishCFB) {
+                ((BlowfishCFB)this.cipher).setIV(this.iv, 0);
+            }
+            else {
+                ((BlowfishCTR)this.cipher).setCounter(
+                    BinConverter.byteArrayToLong(this.iv, 0));
+            }
+        }
+
+        @Override
+        ByteBuffer process(ByteBuffer in) {
+            int pos = 0;
+            ByteBuffer result;
+
+            if (this.encrypt) {
+                if (Blowfish.BLOCKSIZE == this.ivLen) {
+                    result = take(in.remaining());
+                }
+                else {
+                    result = take(Blowfish.BLOCKSIZE + in.remaining());
+                    result.put(this.iv);
+                    this.ivLen = pos = Blowfish.BLOCKSIZE;
+                }
+            }
+            else {
+                if (Blowfish.BLOCKSIZE > this.ivLen) {
+                    int toCopy = Math.min(in.remaining(),
+                                          Blowfish.BLOCKSIZE - this.ivLen);
+                    in.get(this.iv, this.ivLen, toCopy);
+                    this.ivLen += toCopy;
+                    if (Blowfish.BLOCKSIZE > this.ivLen) {
+                        return null;
+                    }
+                    start();
+                }
+                if (!in.hasRemaining()) {
+                    return null;
+                }
+                result = take(in.remaining());
+            }
+
+            crypt(this.cipher, this.encrypt, in, result.array(), pos,
+                  in.remaining());
+
+            result.position(0);
+            return result;
+        }
+
+        @Override
+        ByteBuffer finish() throws IOException {
+            if (Blowfish.BLOCKSIZE == this.ivLen) {
+                return null;
+            }
+            if (!this.encrypt) {
+                throw new IOException("truncated data");
+            }
+            ByteBuffer result = take(Blowfish.BLOCKSIZE);
+            result.put(this.iv).flip();
+            this.ivLen = Blowfish.BLOCKSIZE;
+            return result;
+        }
+
+        @Override
+        void cleanUp() {
+            Arrays.fill(this.iv, (byte)0);
+            this.cipher.cleanUp();
+        }
+    }
+}
@@ -4,8 +4,6 @@ import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PushbackInputStream;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 
 /**
  * To read from a stream created by an instance of the
@@ -16,11 +14,18 @@ public class BlowfishInputStream extends InputStream {
     PushbackInputStream is;
 
     BlowfishCBC bfc;
+    boolean sharedCipher;
+    long iv;
 
     byte[] buf;
     int bufPos;
     int bufCount;
 
+    // for the flight recorder: when the stream got opened, zero if that is not
+    // recorded, and the number of cipher-text bytes passed so far
+    long opened;
+    long transferred;
+
     ///////////////////////////////////////////////////////////////////////////
 
     void init(
@@ -28,24 +33,19 @@ public class BlowfishInputStream extends InputStream {
         int ofs,
         int len,
         InputStream is) throws IOException {
-        this.bufPos = this.bufCount = 0;
-
-        this.is = new PushbackInputStream(new BufferedInputStream(is));
+        this.bfc = BlowfishStreamFactory.createCipher(key, ofs, len);
+        this.sharedCipher = false;
 
-        MessageDigest md = null;
-        try {
-            md = MessageDigest.getInstance("SHA-1");
-        }
-        catch (NoSuchAlgorithmException nse) {
-            throw new UnsupportedOperationException();
-        }
+        start(is);
+    }
 
-        md.update(key, ofs, len);
+    ///////////////////////////////////////////////////////////////////////////
 
-        byte[] ckey = md.digest();
-        md.reset();
+    void start(InputStream is) throws IOException {
+        this.opened = BlowfishEvents.streamOpened();
+        this.bufPos = this.bufCount = 0;
 
-        this.bfc = new BlowfishCBC(ckey, 0, ckey.length, 0);
+        this.is = new PushbackInputStream(new BufferedInputStream(is));
 
         this.buf = new byte[Blowfish.BLOCKSIZE];
 
@@ -58,7 +58,8 @@ public class BlowfishInputStream extends InputStream {
             this.buf[i] = (byte)val;
         }
 
-        this.bfc.setCBCIV(this.buf, 0);
+        this.iv = BinConverter.byteArrayToLong(this.buf, 0);
+        this.transferred = this.buf.length;
     }
 
     ///////////////////////////////////////////////////////////////////////////
@@ -74,35 +75,32 @@ public class BlowfishInputStream extends InputStream {
             this.buf[i] = (byte)val;
         }
 
-        // decrypt the buffer
-        this.bfc.decrypt(this.buf, 0, this.buf, 0, this.buf.length);
+        this.transferred += this.buf.length;
 
         // peek if this is the end of the stream
         val = this.is.read();
         if (-1 == val) {
             // this is the last block, so we can read out how much we actually
-            // got left
+            // got left, with the padding validated in constant time
 
-            int c = this.buf[this.buf.length - 1];
+            this.bufCount = this.bfc.decryptPadded(
+                this.iv, this.buf, 0, this.buf, 0, this.buf.length);
 
-            // validate the padding
-            if (c > this.buf.length || 0 > c) {
-                throw new IOException("unknown padding value detected");
+            if (-1 == this.bufCount) {
+                this.bufCount = 0;
+                BlowfishMetrics.paddingFailure();
+                throw new IOException("invalid padding detected");
             }
 
-            this.bufCount = this.buf.length - c;
-
-            for (int i = this.bufCount; i < this.buf.length; i++) {
-                if (this.buf[i] != (byte)c) {
-                    throw new IOException("invalid padding data detected");
-                }
+            if (!this.sharedCipher) {
+                this.bfc.cleanUp();
             }
-
-            this.bfc.cleanUp();
             this.bfc = null;
         }
         else {
             this.is.unread(val);
+            this.iv = this.bfc.decrypt(
+                this.iv, this.buf, 0, this.buf, 0, this.buf.length);
             this.bufCount = this.buf.length;
         }
 
@@ -125,7 +123,28 @@ public class BlowfishInputStream extends InputStream {
         int ofs,
         int len,
         InputStream is) throws IOException {
+        long start = BlowfishMetrics.start();
         init(key, ofs, len, is);
+        BlowfishMetrics.streamOpened(start);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Constructor for streams sharing the key schedule of a factory.
+     * @param bfc The key schedule, which is only read from.
+     * @param is The input stream from which data will be read.
+     * @exception IOException If the IV couldn't be read out
+     */
+    BlowfishInputStream(
+        BlowfishCBC bfc,
+        InputStream is) throws IOException {
+        long start = BlowfishMetrics.start();
+        this.bfc = bfc;
+        this.sharedCipher = true;
+
+        start(is);
+        BlowfishMetrics.streamOpened(start);
     }
 
     ///////////////////////////////////////////////////////////////////////////
@@ -149,12 +168,78 @@ public class BlowfishInputStream extends InputStream {
 
     ///////////////////////////////////////////////////////////////////////////
 
+    /** @see java.io.InputStream#read(byte[], int, int) */
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        long start = BlowfishMetrics.start();
+        int result = super.read(b, off, len);
+        BlowfishMetrics.streamRead(start);
+        return result;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Skips data without decrypting it. In CBC a block only depends on the
+     * cipher-text block before it, so whole blocks get skipped in the
+     * underlying stream, which for files is just a change of the position,
+     * and the last of them is read as the IV to continue with. The last block
+     * of the stream carries the padding, so it always gets decrypted, which
+     * is why only as much data is jumped over as the underlying stream
+     * reports as available beyond it. Streams not knowing about that, like
+     * most network ones, get the skipped data decrypted as usual.
+     * @see java.io.InputStream#skip(long)
+     */
+    @Override
+    public long skip(long n) throws IOException {
+        long result = 0L;
+        while (0L < n) {
+            if (this.bufCount <= this.bufPos) {
+                if (null == this.bfc) {
+                    break;
+                }
+                // (the block after the jump has to exist, it might be the
+                // last one)
+                long jump = Math.min(n / Blowfish.BLOCKSIZE,
+                    (this.is.available() - Blowfish.BLOCKSIZE) /
+                    Blowfish.BLOCKSIZE);
+                if (0L < jump) {
+                    int len = this.buf.length;
+                    this.is.skipNBytes((jump - 1L) * len);
+                    if (len != this.is.readNBytes(this.buf, 0, len)) {
+                        throw new IOException(
+                            "truncated stream, unexpected end");
+                    }
+                    this.iv = BinConverter.byteArrayToLong(this.buf, 0);
+                    this.transferred += jump * len;
+                    result += jump * len;
+                    n -= jump * len;
+                    continue;
+                }
+                fillBuffer();
+            }
+            int skipped = (int)Math.min(n, this.bufCount - this.bufPos);
+            this.bufPos += skipped;
+            result += skipped;
+            n -= skipped;
+        }
+        return result;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
     /** @see java.io.InputStream#close() */
     @Override
     public void close() throws IOException {
         if (null != this.is) {
+            long start = BlowfishMetrics.start();
+            BlowfishEvents.Stream ev =
+                BlowfishEvents.beginStreamClose(this.opened);
             this.is.close();
             this.is = null;
+            BlowfishMetrics.streamClosed(start);
+            BlowfishEvents.commitStream(ev, this, this.opened,
+                                        this.transferred);
         }
     }
 }
@@ -0,0 +1,503 @@
+package de.org.mchahn.crypto.blowfishj;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.ObjectName;
+
+/**
+ * Instrumentation of the library: bytes processed per mode, key setups,
+ * streams opened and closed, padding failures, plus latency histograms. It is
+ * off by default and gets switched on by setting the system property
+ * "blowfishj.metrics" to "true" at startup. The switch is a constant, so when
+ * it is off the JIT compiler removes the hooks completely.<p>
+ * All numbers can be pulled via the static methods, and once enabled they are
+ * also published as an MXBean under the name given by OBJECT_NAME. Counting
+ * is lock-free and contention spread out, so the hooks stay cheap even on
+ * busy paths. All times are in nanoseconds.</p>
+ */
+public final class BlowfishMetrics {
+
+    /** Whether the instrumentation is active, fixed at startup. */
+    public static final boolean ENABLED =
+        Boolean.getBoolean("blowfishj.metrics");
+
+    /** The name of the MXBean. */
+    public static final String OBJECT_NAME =
+        "de.org.mchahn.crypto.blowfishj:type=Metrics";
+
+    /** The modes counted separately. */
+    public enum Mode {
+        /** Electronic codebook. */
+        ECB,
+        /** Cipher block chaining. */
+        CBC,
+        /** Cipher feedback. */
+        CFB,
+        /** Counter mode. */
+        CTR
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Histogram with a log-linear bucket layout, like HDR histograms have it:
+     * every power of two is split into 16 buckets, so the values reported are
+     * accurate within 1/16 of their size, over the whole range of a long.
+     * Recording is lock-free.
+     */
+    public static final class Histogram {
+        static final int SUB_BITS = 4;
+        static final int SUB_COUNT = 1 << SUB_BITS;
+        static final int BUCKETS = (Long.SIZE - SUB_BITS) * SUB_COUNT;
+
+        final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        final LongAdder count = new LongAdder();
+        final LongAdder sum = new LongAdder();
+        final LongAccumulator max = new LongAccumulator(Math::max, 0L);
+
+        static int index(long val) {
+            if (SUB_COUNT << 1 > val) {
+                return (int)Math.max(0L, val);
+            }
+            int exp = 63 - Long.numberOfLeadingZeros(val);
+            return ((exp - SUB_BITS + 1) << SUB_BITS) |
+                   (int)((val >>> (exp - SUB_BITS)) & (SUB_COUNT - 1));
+        }
+
+        // the highest value falling into a bucket
+        static long highest(int idx) {
+            if (SUB_COUNT << 1 > idx) {
+                return idx;
+            }
+            int shift = (idx >>> SUB_BITS) - 1;
+            long lowest = (long)(SUB_COUNT | (idx & (SUB_COUNT - 1))) << shift;
+            return lowest + (1L << shift) - 1;
+        }
+
+        /**
+         * Records a value.
+         * @param val The value, negative ones are counted as zero.
+         */
+        public void record(long val) {
+            this.counts.getAndIncrement(index(val));
+            this.count.increment();
+            this.sum.add(val);
+            this.max.accumulate(val);
+        }
+
+        /** @return The number of values recorded. */
+        public long getCount() {
+            return this.count.sum();
+        }
+
+        /** @return The sum of all values recorded. */
+        public long getSum() {
+            return this.sum.sum();
+        }
+
+        /** @return The largest value recorded. */
+        public long getMax() {
+            return this.max.get();
+        }
+
+        /** @return The average, zero if nothing got recorded. */
+        public long getMean() {
+            long cnt = getCount();
+            return 0 == cnt ? 0 : getSum() / cnt;
+        }
+
+        /** @return The median. */
+        public long getP50() {
+            return getValueAtPercentile(50.0);
+        }
+
+        /** @return The 90th percentile. */
+        public long getP90() {
+            return getValueAtPercentile(90.0);
+        }
+
+        /** @return The 99th percentile. */
+        public long getP99() {
+            return getValueAtPercentile(99.0);
+        }
+
+        /** @return The 99.9th percentile. */
+        public long getP999() {
+            return getValueAtPercentile(99.9);
+        }
+
+        /**
+         * Computes a percentile. Values recorded while this is running might
+         * or might not be taken into account.
+         * @param percentile The percentile, between 0 and 100.
+         * @return The value, zero if nothing got recorded.
+         */
+        public long getValueAtPercentile(double percentile) {
+            final AtomicLongArray counts = this.counts;
+
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                total += counts.get(i);
+            }
+            if (0 == total) {
+                return 0;
+            }
+            long rank = Math.max(1L, (long)Math.ceil(
+                Math.min(100.0, percentile) / 100.0 * total));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts.get(i);
+                if (seen >= rank) {
+                    return Math.min(highest(i), getMax());
+                }
+            }
+            return getMax();
+        }
+
+        void reset() {
+            for (int i = 0; i < BUCKETS; i++) {
+                this.counts.set(i, 0L);
+            }
+            this.count.reset();
+            this.sum.reset();
+            this.max.reset();
+        }
+
+        @Override
+        public String toString() {
+            return String.format(
+                "count=%d mean=%d p50=%d p90=%d p99=%d p99.9=%d max=%d",
+                getCount(), getMean(), getP50(), getP90(), getP99(),
+                getP999(), getMax());
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * The management interface, reporting the same as the static methods.
+     */
+    public interface MetricsMXBean {
+        /** @return The bytes encrypted in ECB mode. */
+        long getBytesEncryptedECB();
+        /** @return The bytes decrypted in ECB mode. */
+        long getBytesDecryptedECB();
+        /** @return The bytes encrypted in CBC mode. */
+        long getBytesEncryptedCBC();
+        /** @return The bytes decrypted in CBC mode. */
+        long getBytesDecryptedCBC();
+        /** @return The bytes encrypted in CFB mode. */
+        long getBytesEncryptedCFB();
+        /** @return The bytes decrypted in CFB mode. */
+        long getBytesDecryptedCFB();
+        /** @return The bytes encrypted in CTR mode. */
+        long getBytesEncryptedCTR();
+        /** @return The bytes decrypted in CTR mode. */
+        long getBytesDecryptedCTR();
+        /** @return The number of key setups. */
+        long getKeySetups();
+        /** @return The number of streams opened. */
+        long getStreamsOpened();
+        /** @return The number of streams closed. */
+        long getStreamsClosed();
+        /** @return The number of padding failures. */
+        long getPaddingFailures();
+        /** @return The key setup times. */
+        Histogram getKeySetupTimes();
+        /** @return The times of the bulk encryption calls. */
+        Histogram getEncryptTimes();
+        /** @return The times of the bulk decryption calls. */
+        Histogram getDecryptTimes();
+        /** @return The stream opening times. */
+        Histogram getStreamOpenTimes();
+        /** @return The stream read times. */
+        Histogram getStreamReadTimes();
+        /** @return The stream closing times. */
+        Histogram getStreamCloseTimes();
+        /** Resets all the numbers. */
+        void reset();
+    }
+
+    static final class Bean implements MetricsMXBean {
+        @Override
+        public long getBytesEncryptedECB() {
+            return getBytesEncrypted(Mode.ECB);
+        }
+
+        @Override
+        public long getBytesDecryptedECB() {
+            return getBytesDecrypted(Mode.ECB);
+        }
+
+        @Override
+        public long getBytesEncryptedCBC() {
+            return getBytesEncrypted(Mode.CBC);
+        }
+
+        @Override
+        public long getBytesDecryptedCBC() {
+            return getBytesDecrypted(Mode.CBC);
+        }
+
+        @Override
+        public long getBytesEncryptedCFB() {
+            return getBytesEncrypted(Mode.CFB);
+        }
+
+        @Override
+        public long getBytesDecryptedCFB() {
+            return getBytesDecrypted(Mode.CFB);
+        }
+
+        @Override
+        public long getBytesEncryptedCTR() {
+            return getBytesEncrypted(Mode.CTR);
+        }
+
+        @Override
+        public long getBytesDecryptedCTR() {
+            return getBytesDecrypted(Mode.CTR);
+        }
+
+        @Override
+        public long getKeySetups() {
+            return BlowfishMetrics.getKeySetups();
+        }
+
+        @Override
+        public long getStreamsOpened() {
+            return BlowfishMetrics.getStreamsOpened();
+        }
+
+        @Override
+        public long getStreamsClosed() {
+            return BlowfishMetrics.getStreamsClosed();
+        }
+
+        @Override
+        public long getPaddingFailures() {
+            return BlowfishMetrics.getPaddingFailures();
+        }
+
+        @Override
+        public Histogram getKeySetupTimes() {
+            return KEY_SETUP;
+        }
+
+        @Override
+        public Histogram getEncryptTimes() {
+            return ENCRYPT;
+        }
+
+        @Override
+        public Histogram getDecryptTimes() {
+            return DECRYPT;
+        }
+
+        @Override
+        public Histogram getStreamOpenTimes() {
+            return STREAM_OPEN;
+        }
+
+        @Override
+        public Histogram getStreamReadTimes() {
+            return STREAM_READ;
+        }
+
+        @Override
+        public Histogram getStreamCloseTimes() {
+            return STREAM_CLOSE;
+        }
+
+        @Override
+        public void reset() {
+            BlowfishMetrics.reset();
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    static final LongAdder[] ENCRYPTED = adders(Mode.values().length);
+    static final LongAdder[] DECRYPTED = adders(Mode.values().length);
+    static final LongAdder STREAMS_OPENED = new LongAdder();
+    static final LongAdder STREAMS_CLOSED = new LongAdder();
+    static final LongAdder PADDING_FAILURES = new LongAdder();
+
+    static final Histogram KEY_SETUP = new Histogram();
+    static final Histogram ENCRYPT = new Histogram();
+    static final Histogram DECRYPT = new Histogram();
+    static final Histogram STREAM_OPEN = new Histogram();
+    static final Histogram STREAM_READ = new Histogram();
+    static final Histogram STREAM_CLOSE = new Histogram();
+
+    static LongAdder[] adders(int count) {
+        LongAdder[] result = new LongAdder[count];
+        for (int i = 0; i < count; i++) {
+            result[i] = new LongAdder();
+        }
+        return result;
+    }
+
+    static {
+        if (ENABLED) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(
+                    new Bean(), new ObjectName(OBJECT_NAME));
+            }
+            catch (Exception e) {
+                // (already registered by another class loader, or no JMX
+                // available, the pull methods still work)
+            }
+        }
+    }
+
+    private BlowfishMetrics() {}
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    // the hooks, called by the instrumented code; a hook takes the value
+    // start() returned when the operation began, which is zero if disabled
+
+    static long start() {
+        return ENABLED ? System.nanoTime() : 0L;
+    }
+
+    static void keySetup(long start) {
+        if (ENABLED) {
+            KEY_SETUP.record(System.nanoTime() - start);
+        }
+    }
+
+    static void encrypted(Mode mode, int bytes, long start) {
+        if (ENABLED) {
+            ENCRYPT.record(System.nanoTime() - start);
+            ENCRYPTED[mode.ordinal()].add(bytes);
+        }
+    }
+
+    static void decrypted(Mode mode, int bytes, long start) {
+        if (ENABLED) {
+            DECRYPT.record(System.nanoTime() - start);
+            DECRYPTED[mode.ordinal()].add(bytes);
+        }
+    }
+
+    static void streamOpened(long start) {
+        if (ENABLED) {
+            STREAM_OPEN.record(System.nanoTime() - start);
+            STREAMS_OPENED.increment();
+        }
+    }
+
+    static void streamRead(long start) {
+        if (ENABLED) {
+            STREAM_READ.record(System.nanoTime() - start);
+        }
+    }
+
+    static void streamClosed(long start) {
+        if (ENABLED) {
+            STREAM_CLOSE.record(System.nanoTime() - start);
+            STREAMS_CLOSED.increment();
+        }
+    }
+
+    static void paddingFailure() {
+        if (ENABLED) {
+            PADDING_FAILURES.increment();
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * @param mode The mode.
+     * @return The number of bytes encrypted in the given mode.
+     */
+    public static long getBytesEncrypted(Mode mode) {
+        return ENCRYPTED[mode.ordinal()].sum();
+    }
+
+    /**
+     * @param mode The mode.
+     * @return The number of bytes decrypted in the given mode.
+     */
+    public static long getBytesDecrypted(Mode mode) {
+        return DECRYPTED[mode.ordinal()].sum();
+    }
+
+    /** @return The number of key setups done. */
+    public static long getKeySetups() {
+        return KEY_SETUP.getCount();
+    }
+
+    /** @return The number of streams opened. */
+    public static long getStreamsOpened() {
+        return STREAMS_OPENED.sum();
+    }
+
+    /** @return The number of streams closed. */
+    public static long getStreamsClosed() {
+        return STREAMS_CLOSED.sum();
+    }
+
+    /** @return The number of times invalid padding got detected. */
+    public static long getPaddingFailures() {
+        return PADDING_FAILURES.sum();
+    }
+
+    /** @return The times of the key setups. */
+    public static Histogram getKeySetupTimes() {
+        return KEY_SETUP;
+    }
+
+    /** @return The times of the bulk encryption calls, all modes. */
+    public static Histogram getEncryptTimes() {
+        return ENCRYPT;
+    }
+
+    /** @return The times of the bulk decryption calls, all modes. */
+    public static Histogram getDecryptTimes() {
+        return DECRYPT;
+    }
+
+    /** @return The times to open streams, including key setup and IV. */
+    public static Histogram getStreamOpenTimes() {
+        return STREAM_OPEN;
+    }
+
+    /** @return The times of the bulk reads from input streams. */
+    public static Histogram getStreamReadTimes() {
+        return STREAM_READ;
+    }
+
+    /** @return The times to close streams, including final padding. */
+    public static Histogram getStreamCloseTimes() {
+        return STREAM_CLOSE;
+    }
+
+    /**
+     * Resets all the numbers. Operations running concurrently might be
+     * counted partially.
+     */
+    public static void reset() {
+        for (LongAdder la : ENCRYPTED) {
+            la.reset();
+        }
+        for (LongAdder la : DECRYPTED) {
+            la.reset();
+        }
+        STREAMS_OPENED.reset();
+        STREAMS_CLOSED.reset();
+        PADDING_FAILURES.reset();
+        KEY_SETUP.reset();
+        ENCRYPT.reset();
+        DECRYPT.reset();
+        STREAM_OPEN.reset();
+        STREAM_READ.reset();
+        STREAM_CLOSE.reset();
+    }
+}
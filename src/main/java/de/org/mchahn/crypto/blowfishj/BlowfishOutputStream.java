@@ -2,10 +2,8 @@ package de.org.mchahn.crypto.blowfishj;
 
 import java.io.IOException;
 import java.io.OutputStream;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
-import java.util.Arrays;
+import java.util.Random;
 
 /**
  * An output stream that encrypts data using the Blowfish algorithm in CBC mode,
@@ -16,11 +14,18 @@ public class BlowfishOutputStream extends OutputStream {
     OutputStream os;
 
     BlowfishCBC bfc;
+    boolean sharedCipher;
+    long iv;
 
     byte[] bufIn;
     byte[] bufOut;
     int bytesInBuf;
 
+    // for the flight recorder: when the stream got opened, zero if that is not
+    // recorded, and the number of cipher-text bytes passed so far
+    long opened;
+    long transferred;
+
     ///////////////////////////////////////////////////////////////////////////
 
     void initialize(
@@ -28,32 +33,19 @@ public class BlowfishOutputStream extends OutputStream {
         int ofs,
         int len,
         OutputStream os) throws IOException {
-        this.os = os;
-
-        this.bytesInBuf = 0;
+        this.bfc = BlowfishStreamFactory.createCipher(key, ofs, len);
+        this.sharedCipher = false;
 
-        MessageDigest md = null;
-        try {
-            md = MessageDigest.getInstance("SHA-1");
-        }
-        catch (NoSuchAlgorithmException nse) {
-            throw new UnsupportedOperationException();
-        }
-        md.update(key, ofs, len);
+        start(os, new SecureRandom());
+    }
 
-        byte[] ckey = md.digest();
-        md.reset();
+    ///////////////////////////////////////////////////////////////////////////
 
-        this.bfc = new BlowfishCBC(
-            ckey,
-            0,
-            ckey.length);
+    void start(OutputStream os, Random rnd) throws IOException {
+        this.opened = BlowfishEvents.streamOpened();
+        this.os = os;
 
-        Arrays.fill(
-            ckey,
-            0,
-            ckey.length,
-            (byte)0);
+        this.bytesInBuf = 0;
 
         this.bufIn = new byte[Blowfish.BLOCKSIZE];
         this.bufOut = new byte[Blowfish.BLOCKSIZE];
@@ -61,11 +53,11 @@ public class BlowfishOutputStream extends OutputStream {
         // make sure the IV is written to output stream - these are always the
         // first eight bytes written out
 
-        SecureRandom srnd = new SecureRandom();
-        srnd.nextBytes(this.bufIn);
+        rnd.nextBytes(this.bufIn);
 
         this.os.write(this.bufIn, 0, this.bufIn.length);
-        this.bfc.setCBCIV(this.bufIn, 0);
+        this.transferred = this.bufIn.length;
+        this.iv = BinConverter.byteArrayToLong(this.bufIn, 0);
     }
 
     ///////////////////////////////////////////////////////////////////////////
@@ -84,7 +76,30 @@ public class BlowfishOutputStream extends OutputStream {
         int ofs,
         int len,
         OutputStream os) throws IOException {
+        long start = BlowfishMetrics.start();
         initialize(key, ofs, len, os);
+        BlowfishMetrics.streamOpened(start);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Constructor for streams sharing the key schedule of a factory.
+     * @param bfc The key schedule, which is only read from.
+     * @param rnd The generator for the IV.
+     * @param os The output stream to which data will be encrypted to.
+     * @exception IOException If the IV couldn't be written.
+     */
+    BlowfishOutputStream(
+        BlowfishCBC bfc,
+        Random rnd,
+        OutputStream os) throws IOException {
+        long start = BlowfishMetrics.start();
+        this.bfc = bfc;
+        this.sharedCipher = true;
+
+        start(os, rnd);
+        BlowfishMetrics.streamOpened(start);
     }
 
     ///////////////////////////////////////////////////////////////////////////
@@ -102,7 +117,8 @@ public class BlowfishOutputStream extends OutputStream {
         this.bufIn[this.bytesInBuf - 1] = (byte)val;
         this.bytesInBuf = 0;
 
-        this.bfc.encrypt(
+        this.iv = this.bfc.encrypt(
+            this.iv,
             this.bufIn,
             0,
             this.bufOut,
@@ -113,6 +129,7 @@ public class BlowfishOutputStream extends OutputStream {
             this.bufOut,
             0,
             this.bufOut.length);
+        this.transferred += this.bufOut.length;
     }
 
     ///////////////////////////////////////////////////////////////////////////
@@ -123,6 +140,8 @@ public class BlowfishOutputStream extends OutputStream {
         if (null == this.os) {
             return;
         }
+        long start = BlowfishMetrics.start();
+        BlowfishEvents.Stream ev = BlowfishEvents.beginStreamClose(this.opened);
 
         // This output stream always writes out even blocks of 8 bytes. If it
         // happens that data cannot be aligned to a block boundary, then the
@@ -130,29 +149,30 @@ public class BlowfishOutputStream extends OutputStream {
         // be a number between 1 and Blowfish.BLOCKSIZE. If this means adding an
         // extra block just for the pad count, then so be it.
 
-        byte padVal = (byte)(this.bufIn.length - this.bytesInBuf);
-
-        while (this.bytesInBuf < this.bufIn.length) {
-            this.bufIn[this.bytesInBuf] = padVal;
-            ++this.bytesInBuf;
-        }
-
-        this.bfc.encrypt(
+        this.bfc.encryptPadded(
+            this.iv,
             this.bufIn,
             0,
             this.bufOut,
             0,
-            this.bufIn.length);
+            this.bytesInBuf);
 
         this.os.write(
             this.bufOut,
             0,
             this.bufOut.length);
+        this.transferred += this.bufOut.length;
 
         this.os.close();
         this.os = null;
 
-        this.bfc.cleanUp();
+        if (!this.sharedCipher) {
+            this.bfc.cleanUp();
+        }
+        this.bfc = null;
+
+        BlowfishMetrics.streamClosed(start);
+        BlowfishEvents.commitStream(ev, this, this.opened, this.transferred);
     }
 
     ///////////////////////////////////////////////////////////////////////////
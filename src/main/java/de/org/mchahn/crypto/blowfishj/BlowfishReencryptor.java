@@ -0,0 +1,647 @@
+package de.org.mchahn.crypto.blowfishj;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Re-encrypts objects in the format of the BlowfishOutputStream from an old to
+ * a new key, as needed when rotating keys. Each object gets streamed through a
+ * single buffer, decrypted and encrypted again in place, so the plain-text is
+ * never stored anywhere else. Many objects are processed at the same time by a
+ * pool of a fixed number of threads.<p>
+ * Objects live in a Store. The new version of an object gets staged first and
+ * then replaces the old one, and both steps are recorded in a journal file,
+ * which is forced to disk after each entry. A run that got interrupted can be
+ * repeated with the same journal: objects done are skipped, staged ones get
+ * committed, so no object ever gets re-encrypted twice, which would mean
+ * decrypting it with the wrong key.</p><p>
+ * Objects which are truncated or whose padding is invalid fail and stay
+ * untouched. Notice however that the format carries no authentication, so an
+ * object not encrypted with the old key is only detected with a probability
+ * of about 255/256, by its padding. Otherwise it gets decrypted to garbage and
+ * re-encrypted, which cannot be undone. Make sure that all the objects passed
+ * really are under the old key.</p><p>
+ * Progress can be polled at any time or gets delivered to a listener after
+ * each object, with the throughput and an estimate of the time left.</p>
+ */
+public final class BlowfishReencryptor {
+
+    /** Where the objects come from and go to. */
+    public interface Store {
+        /**
+         * @param name The name of the object.
+         * @return The size of the object in bytes.
+         * @exception IOException If the size couldn't be determined.
+         */
+        long size(String name) throws IOException;
+
+        /**
+         * Opens an object for reading.
+         * @param name The name of the object.
+         * @return The stream with the current content.
+         * @exception IOException If the object couldn't be opened.
+         */
+        InputStream open(String name) throws IOException;
+
+        /**
+         * Creates the staged version of an object, replacing any former one.
+         * Its content must be durable once the stream has been closed.
+         * @param name The name of the object.
+         * @return The stream to write the new content to.
+         * @exception IOException If the staged object couldn't be created.
+         */
+        OutputStream stage(String name) throws IOException;
+
+        /**
+         * @param name The name of the object.
+         * @return True if there is a staged version of the object.
+         * @exception IOException If that couldn't be determined.
+         */
+        boolean isStaged(String name) throws IOException;
+
+        /**
+         * Replaces an object by its staged version, atomically. The change
+         * must be durable once the call returns, since it gets recorded as
+         * done in the journal right afterwards.
+         * @param name The name of the object.
+         * @exception IOException If the object couldn't be replaced.
+         */
+        void commit(String name) throws IOException;
+
+        /**
+         * Removes the staged version of an object, if there is one, after
+         * re-encrypting it failed.
+         * @param name The name of the object.
+         * @exception IOException If the staged version couldn't be removed.
+         */
+        void discard(String name) throws IOException;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Store of the files in a directory, with the objects named by their
+     * relative paths. Staged versions are kept next to the original files.
+     */
+    public static final class FileStore implements Store {
+
+        /** The suffix of the files with the staged versions. */
+        public static final String STAGED_SUFFIX = ".rekey";
+
+        final Path dir;
+
+        /**
+         * Default constructor.
+         * @param dir The directory of the files.
+         */
+        public FileStore(Path dir) {
+            this.dir = dir;
+        }
+
+        Path staged(String name) {
+            return this.dir.resolve(name + STAGED_SUFFIX);
+        }
+
+        @Override
+        public long size(String name) throws IOException {
+            return Files.size(this.dir.resolve(name));
+        }
+
+        @Override
+        public InputStream open(String name) throws IOException {
+            return Files.newInputStream(this.dir.resolve(name));
+        }
+
+        @Override
+        public OutputStream stage(String name) throws IOException {
+            final FileChannel fc = FileChannel.open(staged(name),
+                StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+            return new FilterOutputStream(Channels.newOutputStream(fc)) {
+                @Override
+                public void write(byte[] buf, int ofs, int len)
+                    throws IOException {
+                    this.out.write(buf, ofs, len);
+                }
+                @Override
+                public void close() throws IOException {
+                    try {
+                        fc.force(true);
+                    }
+                    finally {
+                        fc.close();
+                    }
+                }
+            };
+        }
+
+        @Override
+        public boolean isStaged(String name) {
+            return Files.exists(staged(name));
+        }
+
+        @Override
+        public void commit(String name) throws IOException {
+            Path path = this.dir.resolve(name);
+            Files.move(staged(name), path,
+                       StandardCopyOption.ATOMIC_MOVE,
+                       StandardCopyOption.REPLACE_EXISTING);
+            // (the rename lives in the directory, so that's what to force)
+            forceDirectory(path.toAbsolutePath().getParent());
+        }
+
+        @Override
+        public void discard(String name) throws IOException {
+            Files.deleteIfExists(staged(name));
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    // makes entries created, renamed or removed in a directory durable
+    static void forceDirectory(Path dir) throws IOException {
+        try (FileChannel fc = FileChannel.open(dir, StandardOpenOption.READ)) {
+            fc.force(true);
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /** A snapshot of the progress of a run. */
+    public static final class Progress {
+        final int objects;
+        final int objectsDone;
+        final int objectsFailed;
+        final long bytes;
+        final long bytesDone;
+        final long elapsedNanos;
+
+        Progress(
+            int objects,
+            int objectsDone,
+            int objectsFailed,
+            long bytes,
+            long bytesDone,
+            long elapsedNanos) {
+            this.objects = objects;
+            this.objectsDone = objectsDone;
+            this.objectsFailed = objectsFailed;
+            this.bytes = bytes;
+            this.bytesDone = bytesDone;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        /** @return The number of objects to re-encrypt in this run. */
+        public int getObjects() {
+            return this.objects;
+        }
+
+        /** @return The number of objects re-encrypted. */
+        public int getObjectsDone() {
+            return this.objectsDone;
+        }
+
+        /** @return The number of objects which couldn't be re-encrypted. */
+        public int getObjectsFailed() {
+            return this.objectsFailed;
+        }
+
+        /** @return The total size of the objects to re-encrypt. */
+        public long getBytes() {
+            return this.bytes;
+        }
+
+        /** @return The number of bytes processed, including failures. */
+        public long getBytesDone() {
+            return this.bytesDone;
+        }
+
+        /** @return The time passed since the start of the run. */
+        public long getElapsedNanos() {
+            return this.elapsedNanos;
+        }
+
+        /** @return True if all the objects have been processed. */
+        public boolean isDone() {
+            return this.objectsDone + this.objectsFailed == this.objects;
+        }
+
+        /** @return The throughput so far, in bytes per second. */
+        public double getThroughput() {
+            return 0L == this.elapsedNanos ? 0.0 :
+                this.bytesDone * 1e9 / this.elapsedNanos;
+        }
+
+        /**
+         * @return The estimated time left, in nanoseconds, or -1 if it cannot
+         * be estimated yet.
+         */
+        public long getRemainingNanos() {
+            if (isDone()) {
+                return 0L;
+            }
+            if (0L == this.bytesDone) {
+                return -1L;
+            }
+            return (long)((double)(this.bytes - this.bytesDone) *
+                          this.elapsedNanos / this.bytesDone);
+        }
+
+        @Override
+        public String toString() {
+            return String.format(
+                "%d/%d objects (%d failed), %d/%d bytes, %.1f MB/s, %s left",
+                this.objectsDone, this.objects, this.objectsFailed,
+                this.bytesDone, this.bytes, getThroughput() / 1e6,
+                -1L == getRemainingNanos() ? "?" :
+                    TimeUnit.NANOSECONDS.toSeconds(getRemainingNanos()) + "s");
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /** The size of the buffer each object gets streamed through. */
+    public static final int BUFFER_SIZE = 1 << 16;
+
+    static final char JOURNAL_STAGED = '+';
+    static final char JOURNAL_DONE = '=';
+
+    final BlowfishCBC oldCipher;
+    final BlowfishCBC newCipher;
+    final Path journal;
+    final int parallelism;
+
+    final ThreadLocal<byte[]> buffers =
+        ThreadLocal.withInitial(() -> new byte[BUFFER_SIZE]);
+    final ThreadLocal<SecureRandom> rnd =
+        ThreadLocal.withInitial(SecureRandom::new);
+
+    FileChannel journalChannel;
+
+    final Map<String, IOException> failures =
+        Collections.synchronizedMap(new TreeMap<>());
+
+    volatile long started;
+    volatile int objects;
+    volatile long bytes;
+    final AtomicInteger objectsDone = new AtomicInteger();
+    final AtomicInteger objectsFailed = new AtomicInteger();
+    final AtomicLong bytesDone = new AtomicLong();
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Default constructor. Both keys get hashed with SHA-1, like the streams
+     * do it.
+     * @param oldKey The buffer with the old key material.
+     * @param oldOfs Where the old key material starts in the buffer.
+     * @param oldLen Size of the old key material.
+     * @param newKey The buffer with the new key material.
+     * @param newOfs Where the new key material starts in the buffer.
+     * @param newLen Size of the new key material.
+     * @param journal The journal file, created if it doesn't exist yet.
+     * @param parallelism The number of objects processed at the same time.
+     */
+    public BlowfishReencryptor(
+        byte[] oldKey,
+        int oldOfs,
+        int oldLen,
+        byte[] newKey,
+        int newOfs,
+        int newLen,
+        Path journal,
+        int parallelism) {
+        if (1 > parallelism) {
+            throw new IllegalArgumentException(
+                "invalid parallelism " + parallelism);
+        }
+        this.oldCipher = BlowfishStreamFactory.createCipher(
+            oldKey, oldOfs, oldLen);
+        this.newCipher = BlowfishStreamFactory.createCipher(
+            newKey, newOfs, newLen);
+        this.journal = journal;
+        this.parallelism = parallelism;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Re-encrypts the objects which haven't been done yet according to the
+     * journal. Objects failing are left untouched and reported.
+     * @param store Where the objects are.
+     * @param names The names of all the objects to re-encrypt. They must not
+     * contain line breaks.
+     * @param listener Gets the progress after each object, may be null. It
+     * gets called by the worker threads, but never concurrently.
+     * @return The final progress.
+     * @exception IOException If the journal couldn't be read or written, or
+     * a staged object couldn't be committed.
+     * @exception InterruptedException If the calling thread got interrupted.
+     */
+    public Progress run(
+        final Store store,
+        Collection<String> names,
+        final Consumer<Progress> listener)
+        throws IOException, InterruptedException {
+        for (String name : names) {
+            if (name.indexOf('\n') != -1 || name.indexOf('\r') != -1) {
+                throw new IllegalArgumentException("invalid name " + name);
+            }
+        }
+
+        boolean created = !Files.exists(this.journal);
+        this.journalChannel = FileChannel.open(this.journal,
+            StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE,
+            StandardOpenOption.APPEND);
+        ExecutorService pool = null;
+        try {
+            // (a new journal must not get lost, along with what it records)
+            if (created) {
+                forceDirectory(this.journal.toAbsolutePath().getParent());
+            }
+
+            List<String> todo = recover(store, names);
+
+            long total = 0L;
+            for (String name : todo) {
+                total += store.size(name);
+            }
+            this.objects = todo.size();
+            this.bytes = total;
+            this.objectsDone.set(0);
+            this.objectsFailed.set(0);
+            this.bytesDone.set(0L);
+            this.failures.clear();
+            this.started = System.nanoTime();
+
+            pool = Executors.newFixedThreadPool(this.parallelism, r -> {
+                Thread result = new Thread(r, "blowfishj-reencryptor");
+                result.setDaemon(true);
+                return result;
+            });
+
+            List<Future<?>> futures = new ArrayList<>(todo.size());
+            for (final String name : todo) {
+                futures.add(pool.submit(() -> {
+                    process(store, name);
+                    if (null != listener) {
+                        Progress progress = getProgress();
+                        synchronized (listener) {
+                            listener.accept(progress);
+                        }
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                }
+                catch (ExecutionException ee) {
+                    Throwable cause = ee.getCause();
+                    if (cause instanceof IOException) {
+                        throw (IOException)cause;
+                    }
+                    throw new IOException(cause);
+                }
+            }
+            return getProgress();
+        }
+        finally {
+            if (null != pool) {
+                pool.shutdownNow();
+            }
+            this.journalChannel.close();
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    // reads the journal, finishes what got staged and returns what's left
+    List<String> recover(
+        Store store,
+        Collection<String> names) throws IOException {
+        Set<String> staged = new HashSet<>();
+        Set<String> done = new HashSet<>();
+
+        String content = new String(Files.readAllBytes(this.journal),
+                                    StandardCharsets.UTF_8);
+
+        // a line cut short by a crash gets ignored, but must not be continued
+        if (!content.isEmpty() && !content.endsWith("\n")) {
+            this.journalChannel.write(ByteBuffer.wrap(new byte[] { '\n' }));
+        }
+        for (String line : content.split("\n")) {
+            if (line.isEmpty()) {
+                continue;
+            }
+            String name = line.substring(1);
+            if (JOURNAL_STAGED == line.charAt(0)) {
+                staged.add(name);
+            }
+            else if (JOURNAL_DONE == line.charAt(0)) {
+                done.add(name);
+            }
+        }
+
+        // if the staged version is gone it has been committed already
+        staged.removeAll(done);
+        for (String name : staged) {
+            if (store.isStaged(name)) {
+                store.commit(name);
+            }
+            log(JOURNAL_DONE, name);
+            done.add(name);
+        }
+
+        List<String> result = new ArrayList<>(names.size());
+        for (String name : names) {
+            if (!done.contains(name)) {
+                result.add(name);
+            }
+        }
+        return result;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    void log(char type, String name) throws IOException {
+        ByteBuffer entry = ByteBuffer.wrap(
+            (type + name + "\n").getBytes(StandardCharsets.UTF_8));
+        synchronized (this.journalChannel) {
+            while (entry.hasRemaining()) {
+                this.journalChannel.write(entry);
+            }
+            this.journalChannel.force(false);
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    // re-encrypts a single object; failures of the object itself get
+    // recorded, failures of the journal or the commit are thrown
+    void process(Store store, String name) throws IOException {
+        try {
+            try (InputStream is = store.open(name);
+                 OutputStream os = store.stage(name)) {
+                reencrypt(is, os);
+            }
+        }
+        catch (IOException ioe) {
+            // (nothing incomplete gets left next to the original)
+            try {
+                store.discard(name);
+            }
+            catch (IOException ioe2) {
+                ioe.addSuppressed(ioe2);
+            }
+            this.failures.put(name, ioe);
+            this.objectsFailed.incrementAndGet();
+            return;
+        }
+        log(JOURNAL_STAGED, name);
+        store.commit(name);
+        log(JOURNAL_DONE, name);
+        this.objectsDone.incrementAndGet();
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    static int readFully(InputStream is, byte[] buf, int ofs, int len)
+        throws IOException {
+        int total = 0;
+        while (total < len) {
+            int read = is.read(buf, ofs + total, len - total);
+            if (-1 == read) {
+                break;
+            }
+            total += read;
+        }
+        return total;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Re-encrypts a single stream, decrypting with the old key and encrypting
+     * with the new one, in place in a buffer of the calling thread. The last
+     * complete block read is always held back, since it might be the one with
+     * the padding.
+     * @param is Where to read from, in the format of the BlowfishOutputStream.
+     * @param os Where to write to, in the same format.
+     * @exception IOException If reading or writing failed or the data is
+     * invalid.
+     */
+    void reencrypt(InputStream is, OutputStream os) throws IOException {
+        final byte[] buf = this.buffers.get();
+        final int bs = Blowfish.BLOCKSIZE;
+
+        if (bs != readFully(is, buf, 0, bs)) {
+            throw new IOException("truncated stream, IV is missing");
+        }
+        long oldIV = BinConverter.byteArrayToLong(buf, 0);
+        long newIV = this.rnd.get().nextLong();
+        BinConverter.longToByteArray(newIV, buf, 0);
+        os.write(buf, 0, bs);
+        this.bytesDone.addAndGet(bs);
+
+        int count = 0;
+        try {
+            for (;;) {
+                int read = readFully(is, buf, count, buf.length - count);
+                count += read;
+                this.bytesDone.addAndGet(read);
+
+                if (count < buf.length) {
+                    // the end, with the padding
+                    int len = this.oldCipher.decryptPadded(
+                        oldIV, buf, 0, buf, 0, count);
+                    if (-1 == len) {
+                        if (0 == count || 0 != count % bs) {
+                            throw new IOException(
+                                "truncated stream, unexpected end");
+                        }
+                        BlowfishMetrics.paddingFailure();
+                        throw new IOException("invalid padding detected");
+                    }
+                    len = this.newCipher.encryptPadded(
+                        newIV, buf, 0, buf, 0, len);
+                    os.write(buf, 0, len);
+                    return;
+                }
+
+                int len = count - bs;
+                oldIV = this.oldCipher.decrypt(oldIV, buf, 0, buf, 0, len);
+                newIV = this.newCipher.encrypt(newIV, buf, 0, buf, 0, len);
+                os.write(buf, 0, len);
+
+                System.arraycopy(buf, len, buf, 0, bs);
+                count = bs;
+            }
+        }
+        finally {
+            Arrays.fill(buf, (byte)0);
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /** @return The progress of the current or last run. */
+    public Progress getProgress() {
+        long started = this.started;
+        return new Progress(
+            this.objects,
+            this.objectsDone.get(),
+            this.objectsFailed.get(),
+            this.bytes,
+            this.bytesDone.get(),
+            0L == started ? 0L : System.nanoTime() - started);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /** @return The objects which failed in the last run, with the reasons. */
+    public Map<String, IOException> getFailures() {
+        synchronized (this.failures) {
+            return new TreeMap<>(this.failures);
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /** Wipes both key schedules. The instance cannot be used anymore. */
+    public void destroy() {
+        this.oldCipher.cleanUp();
+        this.newCipher.cleanUp();
+    }
+}
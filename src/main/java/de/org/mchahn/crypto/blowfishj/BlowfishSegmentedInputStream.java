@@ -0,0 +1,374 @@
+package de.org.mchahn.crypto.blowfishj;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * To read from a stream created by an instance of the
+ * BlowfishSegmentedOutputStream class. Segments are read ahead and decrypted
+ * in parallel by a worker pool, while data gets delivered in order.
+ */
+public class BlowfishSegmentedInputStream extends InputStream {
+
+    // a segment, carrying the IV plus the cipher-text which gets decrypted in
+    // place; instances get recycled once they have been consumed
+    static final class Segment {
+        final byte[] buf;
+        int count;
+        int pos;
+        boolean last;
+        IOException error;
+        CompletableFuture<Void> done;
+
+        Segment(int segmentSize) {
+            this.buf = new byte[Blowfish.BLOCKSIZE + segmentSize];
+        }
+
+        void decrypt(BlowfishCBC bfc) {
+            long iv = BinConverter.byteArrayToLong(this.buf, 0);
+
+            if (!this.last) {
+                bfc.decrypt(iv, this.buf, Blowfish.BLOCKSIZE, this.buf,
+                            Blowfish.BLOCKSIZE, this.count);
+                return;
+            }
+
+            // the last one, with the padding validated in constant time
+            int count = bfc.decryptPadded(iv, this.buf, Blowfish.BLOCKSIZE,
+                                          this.buf, Blowfish.BLOCKSIZE,
+                                          this.count);
+            if (-1 == count) {
+                BlowfishMetrics.paddingFailure();
+                this.error = new IOException("invalid padding detected");
+                return;
+            }
+
+            this.count = count;
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    PushbackInputStream is;
+
+    BlowfishCBC bfc;
+    boolean sharedCipher;
+
+    Executor executor;
+    int segmentSize;
+    int readAhead;
+    boolean eof;
+
+    ArrayDeque<Segment> pending;
+    ArrayDeque<Segment> free;
+
+    // for the flight recorder: when the stream got opened, zero if that is not
+    // recorded, and the number of cipher-text bytes passed so far
+    long opened;
+    long transferred;
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    void init(
+        InputStream is,
+        Executor executor,
+        int readAhead) throws IOException {
+        if (1 > readAhead) {
+            throw new IllegalArgumentException(
+                "invalid number of segments to read ahead " + readAhead);
+        }
+
+        this.opened = BlowfishEvents.streamOpened();
+        this.is = new PushbackInputStream(is);
+        this.executor = executor;
+        this.readAhead = readAhead;
+
+        byte[] header = new byte[BlowfishSegmentedOutputStream.HEADER_SIZE];
+
+        if (header.length != readFully(header, 0, header.length)) {
+            throw new IOException("truncated stream, header is missing");
+        }
+
+        if (BlowfishSegmentedOutputStream.FORMAT_VERSION != header[0]) {
+            throw new IOException("unsupported format version " + header[0]);
+        }
+
+        int segSize = BinConverter.byteArrayToInt(header, 1);
+
+        if (segSize < Blowfish.BLOCKSIZE                               ||
+            segSize > BlowfishSegmentedOutputStream.MAX_SEGMENT_SIZE   ||
+            0 != segSize % Blowfish.BLOCKSIZE) {
+            throw new IOException("invalid segment size " + segSize);
+        }
+
+        this.segmentSize = segSize;
+
+        this.pending = new ArrayDeque<>(readAhead);
+        this.free = new ArrayDeque<>(readAhead);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Default constructor, using the common fork-join pool for decryption.
+     * @param key The buffer with the key material.
+     * @param ofs Where the key material starts in the buffer.
+     * @param len Size of the key material.
+     * @param is The input stream from which data will be read.
+     * @exception IOException If the header couldn't be read or is invalid.
+     */
+    public BlowfishSegmentedInputStream(
+        byte[] key,
+        int ofs,
+        int len,
+        InputStream is) throws IOException {
+        this(key, ofs, len, is, ForkJoinPool.commonPool(),
+             ForkJoinPool.getCommonPoolParallelism() << 1);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Constructor with all the settings.
+     * @param key The buffer with the key material.
+     * @param ofs Where the key material starts in the buffer.
+     * @param len Size of the key material.
+     * @param is The input stream from which data will be read.
+     * @param executor Where the segments get decrypted.
+     * @param readAhead The maximum number of segments read and decrypted in
+     * advance. Each of them holds a buffer of the size of a segment.
+     * @exception IOException If the header couldn't be read or is invalid.
+     */
+    public BlowfishSegmentedInputStream(
+        byte[] key,
+        int ofs,
+        int len,
+        InputStream is,
+        Executor executor,
+        int readAhead) throws IOException {
+        long start = BlowfishMetrics.start();
+        init(is, executor, readAhead);
+
+        this.bfc = BlowfishStreamFactory.createCipher(key, ofs, len);
+        this.sharedCipher = false;
+        BlowfishMetrics.streamOpened(start);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Constructor for streams sharing the key schedule of a factory.
+     * @param bfc The key schedule, which is only read from.
+     * @param is The input stream from which data will be read.
+     * @param executor Where the segments get decrypted.
+     * @param readAhead The maximum number of segments read in advance.
+     * @exception IOException If the header couldn't be read or is invalid.
+     */
+    BlowfishSegmentedInputStream(
+        BlowfishCBC bfc,
+        InputStream is,
+        Executor executor,
+        int readAhead) throws IOException {
+        long start = BlowfishMetrics.start();
+        init(is, executor, readAhead);
+
+        this.bfc = bfc;
+        this.sharedCipher = true;
+        BlowfishMetrics.streamOpened(start);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /** @return The size of the segments, as stored in the header. */
+    public int getSegmentSize() {
+        return this.segmentSize;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    int readFully(byte[] buf, int ofs, int len) throws IOException {
+        int total = 0;
+        while (total < len) {
+            int read = this.is.read(buf, ofs + total, len - total);
+            if (-1 == read) {
+                break;
+            }
+            total += read;
+        }
+        this.transferred += total;
+        return total;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    void readAhead() throws IOException {
+        while (!this.eof && this.pending.size() < this.readAhead) {
+            Segment seg = this.free.pollFirst();
+            if (null == seg) {
+                seg = new Segment(this.segmentSize);
+            }
+
+            int size = seg.buf.length;
+            int read = readFully(seg.buf, 0, size);
+
+            if (read == size) {
+                // peek if this is the end of the stream
+                int val = this.is.read();
+                if (-1 == val) {
+                    this.eof = true;
+                }
+                else {
+                    this.is.unread(val);
+                }
+            }
+            else {
+                this.eof = true;
+            }
+
+            int count = read - Blowfish.BLOCKSIZE;
+
+            if (this.eof && (0 >= count || 0 != count % Blowfish.BLOCKSIZE)) {
+                throw new IOException("truncated stream, unexpected end");
+            }
+
+            seg.last = this.eof;
+            seg.count = count;
+            seg.pos = Blowfish.BLOCKSIZE;
+            seg.error = null;
+
+            submit(seg);
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    void submit(Segment seg) {
+        final BlowfishCBC bfc = this.bfc;
+        seg.done = CompletableFuture.runAsync(() -> seg.decrypt(bfc),
+                                              this.executor);
+        this.pending.addLast(seg);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    Segment current() throws IOException {
+        for (;;) {
+            Segment seg = this.pending.peekFirst();
+
+            if (null != seg) {
+                try {
+                    seg.done.join();
+                }
+                catch (CompletionException ce) {
+                    throw new IOException("segment decryption failed",
+                                          ce.getCause());
+                }
+                if (null != seg.error) {
+                    throw seg.error;
+                }
+                if (seg.pos < Blowfish.BLOCKSIZE + seg.count) {
+                    return seg;
+                }
+                this.pending.removeFirst();
+                seg.done = null;
+                this.free.addLast(seg);
+            }
+            else if (this.eof || null == this.is) {
+                return null;
+            }
+
+            readAhead();
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /** @see java.io.InputStream#read() */
+    @Override
+    public int read() throws IOException {
+        Segment seg = current();
+        if (null == seg) {
+            return -1;
+        }
+        return seg.buf[seg.pos++] & 0x0ff;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /** @see java.io.InputStream#read(byte[], int, int) */
+    @Override
+    public int read(byte[] buf, int ofs, int len) throws IOException {
+        if (0 == len) {
+            return 0;
+        }
+        long start = BlowfishMetrics.start();
+
+        int total = 0;
+
+        while (total < len) {
+            // only block for new data if nothing got delivered yet
+            if (0 < total && !isAvailable()) {
+                break;
+            }
+
+            Segment seg = current();
+            if (null == seg) {
+                break;
+            }
+
+            int toCopy = Math.min(len - total,
+                                  Blowfish.BLOCKSIZE + seg.count - seg.pos);
+
+            System.arraycopy(seg.buf, seg.pos, buf, ofs + total, toCopy);
+
+            seg.pos += toCopy;
+            total += toCopy;
+        }
+
+        BlowfishMetrics.streamRead(start);
+
+        return 0 == total ? -1 : total;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    boolean isAvailable() {
+        Segment seg = this.pending.peekFirst();
+        return null != seg && seg.done.isDone();
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /** @see java.io.InputStream#close() */
+    @Override
+    public void close() throws IOException {
+        if (null == this.is) {
+            return;
+        }
+        long start = BlowfishMetrics.start();
+        BlowfishEvents.Stream ev = BlowfishEvents.beginStreamClose(this.opened);
+
+        this.is.close();
+        this.is = null;
+
+        // let the workers finish before wiping the key schedule
+        for (Segment seg : this.pending) {
+            seg.done.exceptionally(ex -> null).join();
+        }
+        this.pending.clear();
+        this.free.clear();
+
+        if (!this.sharedCipher) {
+            this.bfc.cleanUp();
+        }
+
+        BlowfishMetrics.streamClosed(start);
+        BlowfishEvents.commitStream(ev, this, this.opened, this.transferred);
+    }
+}
@@ -0,0 +1,366 @@
+package de.org.mchahn.crypto.blowfishj;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * An output stream encrypting data in independent segments of a fixed size,
+ * so that multiple cores can work on a single stream. Every segment gets its
+ * own random IV and is encrypted in CBC mode by a worker pool, while the
+ * results are written out in the original order. The plain-text of the last
+ * segment is always shorter than a full one and gets padded with PKCS7, so
+ * its cipher-text can still take up a full segment, and if data happens to
+ * end on a segment boundary an extra segment holding just the padding
+ * follows.<p>
+ * The stream starts with a header of HEADER_SIZE bytes: the format version
+ * followed by the segment size as a 32bit integer. Each segment then consists
+ * of its IV and the cipher-text. Key material is hashed to a 160bit final key
+ * using SHA-1, just like in the BlowfishOutputStream.</p>
+ * Use the BlowfishSegmentedInputStream class to read such a stream.
+ */
+public class BlowfishSegmentedOutputStream extends OutputStream {
+
+    /** The version of the format, always the first byte of a stream. */
+    public static final int FORMAT_VERSION = 1;
+
+    /** The size of the header, version plus segment size. */
+    public static final int HEADER_SIZE = 5;
+
+    /** The default size of a segment in bytes. */
+    public static final int DEFAULT_SEGMENT_SIZE = 1 << 20;
+
+    /** The maximum size of a segment in bytes. */
+    public static final int MAX_SEGMENT_SIZE = 1 << 26;
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    // a segment, carrying the IV plus the plain-text which gets encrypted in
+    // place; instances get recycled once they have been written out
+    static final class Segment {
+        final byte[] buf;
+        int count;
+        long iv;
+        boolean last;
+        CompletableFuture<Void> done;
+        // taken by the worker when it starts, or by close() to drop it
+        final AtomicBoolean claimed = new AtomicBoolean();
+
+        Segment(int segmentSize) {
+            this.buf = new byte[Blowfish.BLOCKSIZE + segmentSize];
+        }
+
+        void encrypt(BlowfishCBC bfc) {
+            BinConverter.longToByteArray(this.iv, this.buf, 0);
+
+            if (this.last) {
+                this.count = bfc.encryptPadded(this.iv, this.buf,
+                    Blowfish.BLOCKSIZE, this.buf, Blowfish.BLOCKSIZE,
+                    this.count);
+                return;
+            }
+
+            bfc.encrypt(
+                this.iv,
+                this.buf,
+                Blowfish.BLOCKSIZE,
+                this.buf,
+                Blowfish.BLOCKSIZE,
+                this.count);
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    OutputStream os;
+
+    BlowfishCBC bfc;
+    boolean sharedCipher;
+    Random rnd;
+
+    Executor executor;
+    int segmentSize;
+    int maxPending;
+
+    Segment current;
+    ArrayDeque<Segment> pending;
+    ArrayDeque<Segment> free;
+
+    // for the flight recorder: when the stream got opened, zero if that is not
+    // recorded, and the number of cipher-text bytes passed so far
+    long opened;
+    long transferred;
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    void initialize(
+        OutputStream os,
+        Random rnd,
+        int segmentSize,
+        Executor executor,
+        int maxPending) throws IOException {
+        if (segmentSize < Blowfish.BLOCKSIZE       ||
+            segmentSize > MAX_SEGMENT_SIZE         ||
+            0 != segmentSize % Blowfish.BLOCKSIZE) {
+            throw new IllegalArgumentException(
+                "invalid segment size " + segmentSize);
+        }
+        if (1 > maxPending) {
+            throw new IllegalArgumentException(
+                "invalid number of pending segments " + maxPending);
+        }
+
+        this.opened = BlowfishEvents.streamOpened();
+        this.os = os;
+        this.segmentSize = segmentSize;
+        this.executor = executor;
+        this.maxPending = maxPending;
+
+        this.rnd = rnd;
+
+        this.pending = new ArrayDeque<>(maxPending);
+        this.free = new ArrayDeque<>(maxPending);
+        this.current = new Segment(segmentSize);
+
+        byte[] header = new byte[HEADER_SIZE];
+        header[0] = (byte)FORMAT_VERSION;
+        BinConverter.intToByteArray(segmentSize, header, 1);
+
+        this.os.write(header, 0, header.length);
+        this.transferred = header.length;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Default constructor, using the default segment size and the common
+     * fork-join pool for encryption.
+     * @param key The key buffer.
+     * @param ofs Where the key material starts in the buffer.
+     * @param len Size of the key material.
+     * @param os The output stream to which data will be encrypted to.
+     * @exception IOException If the header couldn't be written.
+     */
+    public BlowfishSegmentedOutputStream(
+        byte[] key,
+        int ofs,
+        int len,
+        OutputStream os) throws IOException {
+        this(key, ofs, len, os, DEFAULT_SEGMENT_SIZE, ForkJoinPool.commonPool(),
+             ForkJoinPool.getCommonPoolParallelism() << 1);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Constructor with all the settings.
+     * @param key The key buffer.
+     * @param ofs Where the key material starts in the buffer.
+     * @param len Size of the key material.
+     * @param os The output stream to which data will be encrypted to.
+     * @param segmentSize Size of a segment in bytes, must be a multiple of the
+     * block size and not larger than MAX_SEGMENT_SIZE.
+     * @param executor Where the segments get encrypted.
+     * @param maxPending The maximum number of segments being encrypted at the
+     * same time. Each of them holds a buffer of the size of a segment.
+     * @exception IOException If the header couldn't be written.
+     */
+    public BlowfishSegmentedOutputStream(
+        byte[] key,
+        int ofs,
+        int len,
+        OutputStream os,
+        int segmentSize,
+        Executor executor,
+        int maxPending) throws IOException {
+        long start = BlowfishMetrics.start();
+        this.bfc = BlowfishStreamFactory.createCipher(key, ofs, len);
+        this.sharedCipher = false;
+
+        initialize(os, new SecureRandom(), segmentSize, executor, maxPending);
+        BlowfishMetrics.streamOpened(start);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Constructor for streams sharing the key schedule of a factory.
+     * @param bfc The key schedule, which is only read from.
+     * @param rnd The generator for the IVs.
+     * @param os The output stream to which data will be encrypted to.
+     * @param segmentSize Size of a segment in bytes.
+     * @param executor Where the segments get encrypted.
+     * @param maxPending The maximum number of segments being encrypted.
+     * @exception IOException If the header couldn't be written.
+     */
+    BlowfishSegmentedOutputStream(
+        BlowfishCBC bfc,
+        Random rnd,
+        OutputStream os,
+        int segmentSize,
+        Executor executor,
+        int maxPending) throws IOException {
+        long start = BlowfishMetrics.start();
+        this.bfc = bfc;
+        this.sharedCipher = true;
+
+        initialize(os, rnd, segmentSize, executor, maxPending);
+        BlowfishMetrics.streamOpened(start);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    void submit(boolean last) throws IOException {
+        if (this.pending.size() >= this.maxPending) {
+            writeNext();
+        }
+
+        final Segment seg = this.current;
+        final BlowfishCBC bfc = this.bfc;
+
+        seg.iv = this.rnd.nextLong();
+        seg.last = last;
+        seg.claimed.set(false);
+        seg.done = CompletableFuture.runAsync(() -> {
+            if (seg.claimed.compareAndSet(false, true)) {
+                seg.encrypt(bfc);
+            }
+        }, this.executor);
+
+        this.pending.addLast(seg);
+
+        if (!last) {
+            Segment next = this.free.pollFirst();
+            this.current = null == next ? new Segment(this.segmentSize) : next;
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    void writeNext() throws IOException {
+        Segment seg = this.pending.removeFirst();
+        try {
+            seg.done.join();
+        }
+        catch (CompletionException ce) {
+            throw new IOException("segment encryption failed", ce.getCause());
+        }
+
+        this.os.write(seg.buf, 0, Blowfish.BLOCKSIZE + seg.count);
+        this.transferred += Blowfish.BLOCKSIZE + seg.count;
+
+        seg.done = null;
+        seg.count = 0;
+        this.free.addLast(seg);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /** @see java.io.OutputStream#write(int) */
+    @Override
+    public void write(int val) throws IOException {
+        Segment seg = this.current;
+
+        seg.buf[Blowfish.BLOCKSIZE + seg.count++] = (byte)val;
+
+        if (seg.count == this.segmentSize) {
+            submit(false);
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /** @see java.io.OutputStream#write(byte[], int, int) */
+    @Override
+    public void write(byte[] buf, int ofs, int len) throws IOException {
+        while (0 < len) {
+            Segment seg = this.current;
+
+            int toCopy = Math.min(len, this.segmentSize - seg.count);
+
+            System.arraycopy(buf, ofs, seg.buf, Blowfish.BLOCKSIZE + seg.count,
+                             toCopy);
+
+            seg.count += toCopy;
+            ofs += toCopy;
+            len -= toCopy;
+
+            if (seg.count == this.segmentSize) {
+                submit(false);
+            }
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Writes out all the segments which have been completed so far. Notice
+     * that data of a segment not filled up yet stays buffered, since there is
+     * no way to end a segment early.
+     * @see java.io.OutputStream#flush()
+     */
+    @Override
+    public void flush() throws IOException {
+        while (!this.pending.isEmpty()) {
+            writeNext();
+        }
+        this.os.flush();
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /** @see java.io.OutputStream#close() */
+    @Override
+    public void close() throws IOException {
+        if (null == this.os) {
+            return;
+        }
+        long start = BlowfishMetrics.start();
+        BlowfishEvents.Stream ev = BlowfishEvents.beginStreamClose(this.opened);
+
+        try {
+            submit(true);
+
+            while (!this.pending.isEmpty()) {
+                writeNext();
+            }
+        }
+        finally {
+            // (after a failure segments not started yet get dropped, and the
+            // ones being encrypted right now are waited for, so the key
+            // schedule isn't wiped from under them)
+            for (Segment seg : this.pending) {
+                if (seg.claimed.compareAndSet(false, true)) {
+                    seg.done.cancel(false);
+                }
+                else {
+                    seg.done.exceptionally(ex -> null).join();
+                }
+            }
+            this.pending.clear();
+
+            OutputStream os = this.os;
+            this.os = null;
+
+            if (!this.sharedCipher) {
+                this.bfc.cleanUp();
+            }
+            this.bfc = null;
+
+            this.current = null;
+            this.free.clear();
+
+            os.close();
+        }
+
+        BlowfishMetrics.streamClosed(start);
+        BlowfishEvents.commitStream(ev, this, this.opened, this.transferred);
+    }
+}
@@ -0,0 +1,682 @@
+package de.org.mchahn.crypto.blowfishj;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Local encryption service, for processes on the same host which are not
+ * running on a JVM. Listens on a Unix domain socket and encrypts and decrypts
+ * data in the very same format as the BlowfishOutputStream does, i.e. key
+ * material hashed with SHA-1, the IV followed by the CBC cipher-text padded
+ * with PKCS7.<p>
+ * Each connection gets served on its own task of the executor. On runtimes
+ * with virtual threads an executor creating one of those per task is the best
+ * choice, otherwise a pool of platform threads gets used.</p><p>
+ * The protocol is a sequence of requests, each of them answered with a single
+ * response. All numbers are unsigned and in big-endian order.</p>
+ * <pre>
+ * request:  length (4), operation (1), key length (2), key, data
+ * response: length (4), status (1), data or UTF-8 error message
+ * </pre>
+ * The length covers all of the bytes following it. Operations are
+ * OP_ENCRYPT and OP_DECRYPT, the status is either STATUS_OK or STATUS_ERROR.
+ * A request exceeding the maximum frame size gets answered with an error and
+ * the connection is closed, other errors leave the connection usable.<p>
+ * Key schedules are cached, so the expensive setup happens once for every
+ * key. Statistics are kept per key, which is identified by a fingerprint
+ * not revealing it, for the keys cached and a limited number of those dropped
+ * from the cache most recently.</p>
+ */
+public final class BlowfishServer implements Closeable {
+
+    /** Request operation to encrypt the data. */
+    public static final int OP_ENCRYPT = 1;
+    /** Request operation to decrypt the data. */
+    public static final int OP_DECRYPT = 2;
+
+    /** Response status if the data got processed. */
+    public static final int STATUS_OK = 0;
+    /** Response status if the request failed, the message follows. */
+    public static final int STATUS_ERROR = 1;
+
+    /** The default maximum size of a request frame. */
+    public static final int DEFAULT_MAX_FRAME = 16 << 20;
+
+    // the number of key schedules cached, the least recently used one gets
+    // dropped when a new key arrives
+    static final int MAX_KEYS = 64;
+
+    // the number of keys dropped from the cache whose statistics are kept, so
+    // clients sending random keys cannot make them grow without a limit
+    static final int MAX_RETIRED = 256;
+
+    // how long closing waits for the connections of the own executor to end
+    static final long CLOSE_TIMEOUT_MILLIS = 10000;
+
+    // the sizes of the frame and request headers
+    static final int LENGTH_SIZE = 4;
+    static final int REQUEST_HEADER_SIZE = 3;
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Statistics of a single key. Latencies are measured from the moment a
+     * request has been read to when the response is ready to be sent.
+     */
+    public static final class Statistics {
+        final LongAdder requests = new LongAdder();
+        final LongAdder errors = new LongAdder();
+        final LongAdder bytesIn = new LongAdder();
+        final LongAdder bytesOut = new LongAdder();
+        final LongAdder nanos = new LongAdder();
+        final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0L);
+
+        void record(int in, int out, long took, boolean failed) {
+            this.requests.increment();
+            if (failed) {
+                this.errors.increment();
+            }
+            this.bytesIn.add(in);
+            this.bytesOut.add(out);
+            this.nanos.add(took);
+            this.maxNanos.accumulate(took);
+        }
+
+        /** @return The number of requests served. */
+        public long getRequests() {
+            return this.requests.sum();
+        }
+
+        /** @return The number of requests which failed. */
+        public long getErrors() {
+            return this.errors.sum();
+        }
+
+        /** @return The number of data bytes received. */
+        public long getBytesIn() {
+            return this.bytesIn.sum();
+        }
+
+        /** @return The number of data bytes sent back. */
+        public long getBytesOut() {
+            return this.bytesOut.sum();
+        }
+
+        /** @return The total time spent on the requests, in nanoseconds. */
+        public long getTotalNanos() {
+            return this.nanos.sum();
+        }
+
+        /** @return The longest time spent on a request, in nanoseconds. */
+        public long getMaxNanos() {
+            return this.maxNanos.get();
+        }
+
+        /** @return The average latency in nanoseconds, zero if idle. */
+        public long getAverageNanos() {
+            long reqs = getRequests();
+            return 0 == reqs ? 0 : getTotalNanos() / reqs;
+        }
+
+        /** @return The data bytes received per second of processing. */
+        public double getThroughput() {
+            long took = getTotalNanos();
+            return 0 == took ? 0.0 : getBytesIn() * 1e9 / took;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(
+                "requests=%d errors=%d in=%d out=%d avg=%dns max=%dns " +
+                "throughput=%.1fMB/s",
+                getRequests(), getErrors(), getBytesIn(), getBytesOut(),
+                getAverageNanos(), getMaxNanos(), getThroughput() / 1e6);
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    // a cached key schedule, shared by all connections; the number of
+    // requests using it and whether it got dropped from the cache are guarded
+    // by the lock of the cache, the schedule gets wiped once both allow it
+    static final class Key {
+        final BlowfishCBC bfc;
+        final String id;
+        final Statistics stats;
+        int users;
+        boolean evicted;
+
+        Key(BlowfishCBC bfc, String id, Statistics stats) {
+            this.bfc = bfc;
+            this.id = id;
+            this.stats = stats;
+        }
+    }
+
+    // thrown for requests which can be answered, the connection stays open
+    static final class RequestException extends Exception {
+        private static final long serialVersionUID = -4315367104537011392L;
+
+        RequestException(String msg) {
+            super(msg, null, false, false);
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    final Path path;
+    final ServerSocketChannel server;
+    final Executor executor;
+    final ExecutorService ownExecutor;
+    final int maxFrame;
+
+    final Map<ByteBuffer, Key> keys = new LinkedHashMap<>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<ByteBuffer, Key> e) {
+            // (removed here, since wiping the key changes its hash code)
+            if (MAX_KEYS < size()) {
+                remove(e.getKey());
+                evict(e.getKey(), e.getValue());
+            }
+            return false;
+        }
+    };
+    // statistics of keys dropped from the cache, guarded by the lock of the
+    // cache as well
+    final Map<String, Statistics> retired =
+        new LinkedHashMap<>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Statistics> e) {
+            return MAX_RETIRED < size();
+        }
+    };
+    final Set<SocketChannel> connections = ConcurrentHashMap.newKeySet();
+
+    Thread acceptor;
+    volatile boolean closed;
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Default constructor, serving connections on platform threads owned by
+     * the server.
+     * @param path Where to create the socket file, must not exist.
+     * @exception IOException If the socket couldn't be bound.
+     */
+    public BlowfishServer(Path path) throws IOException {
+        this(path, null, DEFAULT_MAX_FRAME);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Constructor with a custom executor, which is not shut down on close.
+     * @param path Where to create the socket file, must not exist.
+     * @param executor Runs the connections, one task each, for their whole
+     * lifetime. If null the server uses its own pool of daemon threads.
+     * @param maxFrame The largest request frame accepted.
+     * @exception IOException If the socket couldn't be bound.
+     */
+    public BlowfishServer(
+        Path path,
+        Executor executor,
+        int maxFrame) throws IOException {
+        if (LENGTH_SIZE + REQUEST_HEADER_SIZE > maxFrame) {
+            throw new IllegalArgumentException("maximum frame too small");
+        }
+        this.path = path;
+        this.maxFrame = maxFrame;
+
+        if (null == executor) {
+            this.ownExecutor = Executors.newCachedThreadPool(r -> {
+                Thread result = new Thread(r, "blowfish-connection");
+                result.setDaemon(true);
+                return result;
+            });
+            this.executor = this.ownExecutor;
+        }
+        else {
+            this.ownExecutor = null;
+            this.executor = executor;
+        }
+
+        this.server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        try {
+            this.server.bind(UnixDomainSocketAddress.of(path));
+        }
+        catch (IOException ioe) {
+            this.server.close();
+            if (null != this.ownExecutor) {
+                this.ownExecutor.shutdown();
+            }
+            throw ioe;
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Starts accepting connections, on a thread of its own.
+     */
+    public synchronized void start() {
+        if (null != this.acceptor) {
+            throw new IllegalStateException("already started");
+        }
+        this.acceptor = new Thread(this::accept, "blowfish-acceptor");
+        this.acceptor.setDaemon(true);
+        this.acceptor.start();
+    }
+
+    void accept() {
+        while (!this.closed) {
+            SocketChannel conn;
+            try {
+                conn = this.server.accept();
+            }
+            catch (IOException ioe) {
+                // (closed, or nothing we could do about it anyway)
+                break;
+            }
+            this.connections.add(conn);
+            if (this.closed) {
+                closeQuietly(conn);
+                break;
+            }
+            try {
+                this.executor.execute(() -> serve(conn));
+            }
+            catch (RuntimeException re) {
+                closeQuietly(conn);
+            }
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Stops the server, closes all connections and removes the socket file.
+     * @exception IOException If the socket file couldn't be deleted.
+     */
+    @Override
+    public void close() throws IOException {
+        if (this.closed) {
+            return;
+        }
+        this.closed = true;
+
+        closeQuietly(this.server);
+        for (SocketChannel conn : this.connections) {
+            closeQuietly(conn);
+        }
+        if (null != this.ownExecutor) {
+            this.ownExecutor.shutdown();
+            // (the connections are closed, so their requests end soon)
+            try {
+                this.ownExecutor.awaitTermination(CLOSE_TIMEOUT_MILLIS,
+                                                  TimeUnit.MILLISECONDS);
+            }
+            catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        // (schedules still used by requests, on an executor not owned or one
+        // which didn't end in time, get wiped when those are done)
+        synchronized (this.keys) {
+            for (Map.Entry<ByteBuffer, Key> e : this.keys.entrySet()) {
+                evict(e.getKey(), e.getValue());
+            }
+            this.keys.clear();
+        }
+
+        Files.deleteIfExists(this.path);
+    }
+
+    static void closeQuietly(Closeable c) {
+        try {
+            c.close();
+        }
+        catch (IOException ioe) {
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Gets the statistics of the keys cached, plus those of the keys dropped
+     * from the cache most recently, up to a fixed number of them. A key
+     * coming back in the meantime continues with its former statistics.
+     * @return The statistics, by key fingerprint.
+     */
+    public Map<String, Statistics> getStatistics() {
+        Map<String, Statistics> result = new TreeMap<>();
+        synchronized (this.keys) {
+            result.putAll(this.retired);
+            for (Key key : this.keys.values()) {
+                result.put(key.id, key.stats);
+            }
+        }
+        return Collections.unmodifiableMap(result);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Computes the fingerprint of key material, under which its statistics
+     * are reported.
+     * @param key The buffer with the key material.
+     * @param ofs Where the key material starts in the buffer.
+     * @param len Size of the key material.
+     * @return The fingerprint, 16 hex characters.
+     */
+    public static String fingerprint(byte[] key, int ofs, int len) {
+        byte[] ckey = BlowfishStreamFactory.hashKey(key, ofs, len);
+        String result = fingerprint(ckey);
+        Arrays.fill(ckey, (byte)0);
+        return result;
+    }
+
+    // the fingerprint is (part of) the hash of the final key, so it can be
+    // logged or published without giving the key away
+    static String fingerprint(byte[] ckey) {
+        MessageDigest md = BlowfishStreamFactory.digest("SHA-1");
+        return BinConverter.bytesToHexStr(md.digest(ckey), 0, 8);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    // gets a key schedule for a request, to be released when it is done
+    Key key(byte[] buf, int ofs, int len) {
+        byte[] ckey = BlowfishStreamFactory.hashKey(buf, ofs, len);
+        ByteBuffer lookup = ByteBuffer.wrap(ckey);
+
+        Key result;
+        synchronized (this.keys) {
+            result = this.keys.get(lookup);
+            if (null != result) {
+                result.users++;
+            }
+        }
+        if (null != result) {
+            Arrays.fill(ckey, (byte)0);
+            BlowfishEvents.keyCacheLookup("server", result.id, true);
+            return result;
+        }
+
+        // (setting up the key outside of the lock, the rare race of two
+        // connections doing the same is harmless)
+        String id = fingerprint(ckey);
+        BlowfishEvents.keyCacheLookup("server", id, false);
+        BlowfishCBC bfc = new BlowfishCBC(ckey, 0, ckey.length);
+
+        synchronized (this.keys) {
+            result = this.keys.get(lookup);
+            if (null != result) {
+                bfc.cleanUp();
+                Arrays.fill(ckey, (byte)0);
+            }
+            else {
+                Statistics stats = this.retired.remove(id);
+                result = new Key(bfc, id,
+                                 null == stats ? new Statistics() : stats);
+                this.keys.put(lookup, result);
+            }
+            result.users++;
+        }
+        return result;
+    }
+
+    void release(Key key) {
+        synchronized (this.keys) {
+            if (0 == --key.users && key.evicted) {
+                key.bfc.cleanUp();
+            }
+        }
+    }
+
+    // wipes a key dropped from the cache, and its schedule unless requests
+    // still use it, while its statistics get retired; to be called with the
+    // lock of the cache held
+    void evict(ByteBuffer ckey, Key key) {
+        this.retired.put(key.id, key.stats);
+        Arrays.fill(ckey.array(), (byte)0);
+        key.evicted = true;
+        if (0 == key.users) {
+            key.bfc.cleanUp();
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    // per connection state: the buffers grow with the requests, up to the
+    // maximum frame size, and get reused
+    final class Connection {
+        final SocketChannel channel;
+        final SecureRandom rnd = new SecureRandom();
+        final ByteBuffer header = ByteBuffer.allocate(LENGTH_SIZE);
+        byte[] req = new byte[256];
+        byte[] resp = new byte[256];
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        // reads the next request, returns its length or -1 at the end
+        int read() throws IOException {
+            this.header.clear();
+            if (!readFully(this.header, true)) {
+                return -1;
+            }
+            int len = this.header.getInt(0);
+            if (REQUEST_HEADER_SIZE > len || maxFrame - LENGTH_SIZE < len) {
+                return -2;
+            }
+            if (this.req.length < len) {
+                this.req = new byte[Math.max(len, Math.min(
+                    this.req.length << 1, maxFrame - LENGTH_SIZE))];
+            }
+            readFully(ByteBuffer.wrap(this.req, 0, len), false);
+            return len;
+        }
+
+        boolean readFully(ByteBuffer buf, boolean eofOk) throws IOException {
+            while (buf.hasRemaining()) {
+                if (-1 == this.channel.read(buf)) {
+                    if (eofOk && 0 == buf.position()) {
+                        return false;
+                    }
+                    throw new EOFException();
+                }
+            }
+            return true;
+        }
+
+        byte[] response(int dataLen) {
+            int size = LENGTH_SIZE + 1 + dataLen;
+            if (this.resp.length < size) {
+                this.resp = new byte[Math.max(size, this.resp.length << 1)];
+            }
+            return this.resp;
+        }
+
+        void write(int status, int dataLen) throws IOException {
+            byte[] resp = this.resp;
+            BinConverter.INT_BE.set(resp, 0, 1 + dataLen);
+            resp[LENGTH_SIZE] = (byte)status;
+            ByteBuffer buf = ByteBuffer.wrap(resp, 0, LENGTH_SIZE + 1 + dataLen);
+            while (buf.hasRemaining()) {
+                this.channel.write(buf);
+            }
+        }
+
+        void writeError(String msg) throws IOException {
+            byte[] raw = msg.getBytes(StandardCharsets.UTF_8);
+            System.arraycopy(raw, 0, response(raw.length), LENGTH_SIZE + 1,
+                             raw.length);
+            write(STATUS_ERROR, raw.length);
+        }
+
+        // handles a single request, the response goes into the buffer and the
+        // number of data bytes gets returned
+        int handle(int op, BlowfishCBC bfc, int ofs, int len)
+            throws RequestException {
+            final byte[] req = this.req;
+            final int outOfs = LENGTH_SIZE + 1;
+
+            if (OP_ENCRYPT == op) {
+                byte[] out = response(Blowfish.BLOCKSIZE +
+                                      BlowfishCBC.outputSize(len));
+
+                long iv = this.rnd.nextLong();
+                BinConverter.LONG_BE.set(out, outOfs, iv);
+
+                return Blowfish.BLOCKSIZE + bfc.encryptPadded(iv, req, ofs, out,
+                    outOfs + Blowfish.BLOCKSIZE, len);
+            }
+            if (OP_DECRYPT == op) {
+                if (Blowfish.BLOCKSIZE * 2 > len ||
+                    0 != len % Blowfish.BLOCKSIZE) {
+                    throw new RequestException("truncated data");
+                }
+                int dataLen = len - Blowfish.BLOCKSIZE;
+                byte[] out = response(dataLen);
+
+                long iv = (long)BinConverter.LONG_BE.get(req, ofs);
+                int result = bfc.decryptPadded(iv, req,
+                    ofs + Blowfish.BLOCKSIZE, out, outOfs, dataLen);
+                if (-1 == result) {
+                    BlowfishMetrics.paddingFailure();
+                    throw new RequestException("invalid padding");
+                }
+                return result;
+            }
+            throw new RequestException("unknown operation " + op);
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    void serve(SocketChannel channel) {
+        Connection conn = new Connection(channel);
+        try {
+            for (;;) {
+                int len = conn.read();
+                if (-1 == len) {
+                    break;
+                }
+                if (-2 == len) {
+                    conn.writeError("frame too large");
+                    break;
+                }
+                long start = System.nanoTime();
+
+                final byte[] req = conn.req;
+                int op = req[0] & 0x0ff;
+                int keyLen = ((req[1] & 0x0ff) << 8) | (req[2] & 0x0ff);
+                int dataOfs = REQUEST_HEADER_SIZE + keyLen;
+                if (0 == keyLen || len < dataOfs) {
+                    Arrays.fill(req, 0, len, (byte)0);
+                    conn.writeError("invalid key length");
+                    continue;
+                }
+                Key key = key(req, REQUEST_HEADER_SIZE, keyLen);
+                Arrays.fill(req, REQUEST_HEADER_SIZE, dataOfs, (byte)0);
+
+                int dataLen = len - dataOfs;
+                int outLen = 0;
+                String error = null;
+                try {
+                    outLen = conn.handle(op, key.bfc, dataOfs, dataLen);
+                }
+                catch (RequestException rqe) {
+                    error = rqe.getMessage();
+                }
+                finally {
+                    release(key);
+                }
+                // (no plain-text left behind in the buffer)
+                Arrays.fill(req, dataOfs, len, (byte)0);
+
+                // (counted before responding, so clients always find their
+                // requests in the statistics)
+                key.stats.record(dataLen, outLen, System.nanoTime() - start,
+                                 null != error);
+                try {
+                    if (null == error) {
+                        conn.write(STATUS_OK, outLen);
+                    }
+                    else {
+                        conn.writeError(error);
+                    }
+                }
+                finally {
+                    Arrays.fill(conn.resp, 0, LENGTH_SIZE + 1 + outLen,
+                                (byte)0);
+                }
+            }
+        }
+        catch (IOException ioe) {
+            // (server shutdown, or the client went away or misbehaved, there
+            // is nobody to report it to)
+        }
+        finally {
+            this.connections.remove(channel);
+            closeQuietly(channel);
+            Arrays.fill(conn.req, (byte)0);
+            Arrays.fill(conn.resp, (byte)0);
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Runs the server until the process gets terminated, printing the
+     * statistics every minute.
+     * @param args The path of the socket file.
+     * @throws Exception If the server couldn't be started.
+     */
+    public static void main(String[] args) throws Exception {
+        if (1 != args.length) {
+            System.err.println("usage: BlowfishServer [socket path]");
+            System.exit(1);
+        }
+        BlowfishServer srv = new BlowfishServer(Paths.get(args[0]));
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            closeQuietly(srv);
+        }));
+        srv.start();
+        for (;;) {
+            Thread.sleep(60000);
+            srv.getStatistics().forEach((id, st) ->
+                System.out.println(id + " " + st));
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package de.org.mchahn.crypto.blowfishj;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
+/**
+ * Factory for encrypted streams all using the same key. The key material gets
+ * hashed and expanded only once, the resulting key schedule is then shared by
+ * all the streams created, which makes their construction very cheap. IVs are
+ * drawn from a random generator owned by the calling thread, unless a shared
+ * one is passed in. Instances are thread-safe.
+ */
+public final class BlowfishStreamFactory {
+
+    final BlowfishCBC bfc;
+    final ThreadLocal<SecureRandom> rnd;
+
+    // Digests looked up by their names, which goes through the providers and
+    // instantiates via reflection. Each one is only looked up once, all the
+    // instances handed out are clones of the (untouched) prototypes.
+    static final ConcurrentHashMap<String, MessageDigest> DIGESTS =
+        new ConcurrentHashMap<>();
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Creates a new message digest instance.
+     * @param algorithm The name of the algorithm, like "SHA-1".
+     * @return The digest instance, ready for use.
+     * @exception UnsupportedOperationException If the algorithm is unknown.
+     */
+    static MessageDigest digest(String algorithm) {
+        MessageDigest proto = DIGESTS.get(algorithm);
+        try {
+            if (null == proto) {
+                proto = MessageDigest.getInstance(algorithm);
+                MessageDigest other = DIGESTS.putIfAbsent(algorithm, proto);
+                if (null != other) {
+                    proto = other;
+                }
+            }
+            return (MessageDigest)proto.clone();
+        }
+        catch (CloneNotSupportedException cnse) {
+            try {
+                return MessageDigest.getInstance(algorithm);
+            }
+            catch (NoSuchAlgorithmException nse) {
+                throw new UnsupportedOperationException(nse);
+            }
+        }
+        catch (NoSuchAlgorithmException nse) {
+            throw new UnsupportedOperationException(nse);
+        }
+    }
+
+    /**
+     * Derives the final key by hashing the material with SHA-1. This is how
+     * all the streams and processors turn key material into a key.
+     * @param key The buffer with the key material.
+     * @param ofs Where the key material starts in the buffer.
+     * @param len Size of the key material.
+     * @return The 160bit key, to be wiped by the caller after use.
+     */
+    static byte[] hashKey(byte[] key, int ofs, int len) {
+        MessageDigest md = digest("SHA-1");
+        md.update(key, ofs, len);
+
+        return md.digest();
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Derives the final key and runs the key setup. This is how all the
+     * streams create their cipher.
+     * @param key The buffer with the key material.
+     * @param ofs Where the key material starts in the buffer.
+     * @param len Size of the key material.
+     * @return The cipher instance, with a zero IV.
+     */
+    static BlowfishCBC createCipher(byte[] key, int ofs, int len) {
+        byte[] ckey = hashKey(key, ofs, len);
+
+        BlowfishCBC result = new BlowfishCBC(ckey, 0, ckey.length);
+
+        Arrays.fill(ckey, (byte)0);
+
+        return result;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Default constructor. Every thread creating output streams gets its own
+     * random generator for the IVs, so there is no contention.
+     * @param key The buffer with the key material.
+     * @param ofs Where the key material starts in the buffer.
+     * @param len Size of the key material.
+     */
+    public BlowfishStreamFactory(byte[] key, int ofs, int len) {
+        this.bfc = createCipher(key, ofs, len);
+        this.rnd = ThreadLocal.withInitial(SecureRandom::new);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Constructor with a random generator shared by all the threads.
+     * @param key The buffer with the key material.
+     * @param ofs Where the key material starts in the buffer.
+     * @param len Size of the key material.
+     * @param rnd The generator for the IVs.
+     */
+    public BlowfishStreamFactory(
+        byte[] key,
+        int ofs,
+        int len,
+        SecureRandom rnd) {
+        this.bfc = createCipher(key, ofs, len);
+        this.rnd = ThreadLocal.withInitial(() -> rnd);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Creates a new output stream, compatible with the BlowfishOutputStream
+     * created with the same key material.
+     * @param os The output stream to which data will be encrypted to.
+     * @return The new stream.
+     * @exception IOException If the IV couldn't be written.
+     */
+    public BlowfishOutputStream newOutputStream(
+        OutputStream os) throws IOException {
+        return new BlowfishOutputStream(this.bfc, this.rnd.get(), os);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Creates a new input stream, to read what has been written by an output
+     * stream using the same key material.
+     * @param is The input stream from which data will be read.
+     * @return The new stream.
+     * @exception IOException If the IV couldn't be read out.
+     */
+    public BlowfishInputStream newInputStream(
+        InputStream is) throws IOException {
+        return new BlowfishInputStream(this.bfc, is);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Creates a new segmented output stream.
+     * @param os The output stream to which data will be encrypted to.
+     * @param segmentSize Size of a segment in bytes.
+     * @param executor Where the segments get encrypted.
+     * @param maxPending The maximum number of segments being encrypted.
+     * @return The new stream.
+     * @exception IOException If the header couldn't be written.
+     * @see BlowfishSegmentedOutputStream#BlowfishSegmentedOutputStream(byte[], int, int, OutputStream, int, Executor, int)
+     */
+    public BlowfishSegmentedOutputStream newSegmentedOutputStream(
+        OutputStream os,
+        int segmentSize,
+        Executor executor,
+        int maxPending) throws IOException {
+        return new BlowfishSegmentedOutputStream(
+            this.bfc, this.rnd.get(), os, segmentSize, executor, maxPending);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Creates a new segmented input stream.
+     * @param is The input stream from which data will be read.
+     * @param executor Where the segments get decrypted.
+     * @param readAhead The maximum number of segments read in advance.
+     * @return The new stream.
+     * @exception IOException If the header couldn't be read or is invalid.
+     * @see BlowfishSegmentedInputStream#BlowfishSegmentedInputStream(byte[], int, int, InputStream, Executor, int)
+     */
+    public BlowfishSegmentedInputStream newSegmentedInputStream(
+        InputStream is,
+        Executor executor,
+        int readAhead) throws IOException {
+        return new BlowfishSegmentedInputStream(
+            this.bfc, is, executor, readAhead);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Destroys the key schedule, so no sensitive data is left in memory.
+     * Notice that streams still in use will produce garbage afterwards, and
+     * that the factory is <b>not</b> valid anymore and should be abandoned!
+     */
+    public void destroy() {
+        this.bfc.cleanUp();
+    }
+}
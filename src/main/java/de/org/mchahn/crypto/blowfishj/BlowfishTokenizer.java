@@ -0,0 +1,298 @@
+package de.org.mchahn.crypto.blowfishj;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/**
+ * Maps 64bit integers, like database IDs, to tokens of the same size and
+ * back, by encrypting them as a single block in ECB mode. The mapping is a
+ * permutation, so every ID has its own token, and neither direction
+ * allocates anything. Notice that the same ID always gets the same token,
+ * which is the point of it, but also means that tokens only hide the IDs,
+ * not whether two of them are equal.<p>
+ * Optionally recent mappings get cached, so IDs asked for frequently cost a
+ * hash lookup instead of the 16 rounds. The cache is a table of fixed size
+ * with open addressing and random replacement, without any locking, so the
+ * instance can be shared by many threads, with or without a cache.</p>
+ */
+public final class BlowfishTokenizer {
+
+    /** The maximum number of mappings a cache can hold. */
+    public static final int MAX_CACHE_SIZE = 1 << 24;
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    // a table of mappings for one direction, each entry consisting of the
+    // key, the value and a check of both; writers store the key last, and
+    // readers only trust an entry whose check matches, so entries torn by
+    // concurrent writers or still being written are just misses
+    static final class Cache {
+
+        static final VarHandle LONGS = MethodHandles.arrayElementVarHandle(
+            long[].class);
+
+        // the number of entries an entry can be placed in, next to its home
+        static final int PROBES = 4;
+
+        static final int STRIDE = 3;
+
+        final long[] table;
+        final int mask;
+        final long salt;
+        final BlowfishECB bfe;
+        final boolean encrypt;
+        Cache inverse;
+
+        Cache(int size, long salt, BlowfishECB bfe, boolean encrypt) {
+            this.table = new long[size * STRIDE];
+            this.mask = size - 1;
+            this.salt = salt;
+            this.bfe = bfe;
+            this.encrypt = encrypt;
+        }
+
+        int home(long key) {
+            return (int)(((key ^ this.salt) * 0x9e3779b97f4a7c15L) >>> 40) &
+                   this.mask;
+        }
+
+        long check(long key, long value) {
+            return (key * 0xbf58476d1ce4e5b9L) ^ value ^ this.salt;
+        }
+
+        // maps a key, from the table if possible, otherwise the mapping gets
+        // computed and put into this and the inverse table
+        long map(long key) {
+            final long[] table = this.table;
+            int home = home(key);
+            for (int p = 0; p < PROBES; p++) {
+                int i = ((home + p) & this.mask) * STRIDE;
+                if (key == (long)LONGS.getAcquire(table, i)) {
+                    long value = (long)LONGS.getOpaque(table, i + 1);
+                    if (check(key, value) ==
+                        (long)LONGS.getOpaque(table, i + 2)) {
+                        return value;
+                    }
+                }
+            }
+            long result = this.encrypt ? this.bfe.encryptBlock(key) :
+                                         this.bfe.decryptBlock(key);
+            put(key, result);
+            this.inverse.put(result, key);
+            return result;
+        }
+
+        void put(long key, long value) {
+            final long[] table = this.table;
+            int home = home(key);
+            // (the value is about random, thus so is the victim)
+            int slot = (home + ((int)value & (PROBES - 1))) & this.mask;
+            for (int p = 0; p < PROBES; p++) {
+                int e = (home + p) & this.mask;
+                int i = e * STRIDE;
+                long check = (long)LONGS.getOpaque(table, i + 2);
+                long other = (long)LONGS.getOpaque(table, i);
+                if (key == other) {
+                    return;
+                }
+                if (0L == check) {
+                    slot = e;
+                    break;
+                }
+            }
+            int i = slot * STRIDE;
+            LONGS.setOpaque(table, i + 1, value);
+            LONGS.setOpaque(table, i + 2, check(key, value));
+            LONGS.setRelease(table, i, key);
+        }
+
+        void clear() {
+            Arrays.fill(this.table, 0L);
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    final BlowfishECB bfe;
+
+    // from IDs to tokens and the other way around, both null if disabled
+    final Cache tokens;
+    final Cache ids;
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Default constructor, without a cache.
+     * @param key The buffer with the key material.
+     * @param ofs Where the key material starts in the buffer.
+     * @param len Size of the key material.
+     */
+    public BlowfishTokenizer(byte[] key, int ofs, int len) {
+        this(key, ofs, len, 0);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Constructor with a cache. Each direction gets a table of the given
+     * size, which takes 24 bytes per mapping.
+     * @param key The buffer with the key material.
+     * @param ofs Where the key material starts in the buffer.
+     * @param len Size of the key material.
+     * @param cacheSize The number of mappings to keep for each direction,
+     * rounded up to the next power of two, or zero for no cache at all.
+     * @exception IllegalArgumentException If the cache size is negative or
+     * larger than MAX_CACHE_SIZE.
+     */
+    public BlowfishTokenizer(byte[] key, int ofs, int len, int cacheSize) {
+        if (0 > cacheSize || MAX_CACHE_SIZE < cacheSize) {
+            throw new IllegalArgumentException(
+                "invalid cache size " + cacheSize);
+        }
+        this.bfe = new BlowfishECB(key, ofs, len);
+        if (0 == cacheSize) {
+            this.tokens = this.ids = null;
+            return;
+        }
+        int size = Math.max(Cache.PROBES,
+                            Integer.highestOneBit(cacheSize - 1) << 1);
+        // (a random salt, so nobody can pick IDs colliding in the cache)
+        SecureRandom rnd = new SecureRandom();
+        this.tokens = new Cache(size, rnd.nextLong() | 1L, this.bfe, true);
+        this.ids = new Cache(size, rnd.nextLong() | 1L, this.bfe, false);
+        this.tokens.inverse = this.ids;
+        this.ids.inverse = this.tokens;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * @return The number of mappings cached for each direction, zero if there
+     * is no cache.
+     */
+    public int getCacheSize() {
+        return null == this.tokens ? 0 : this.tokens.mask + 1;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Maps an ID to its token.
+     * @param id The ID.
+     * @return The token.
+     */
+    public long tokenize(long id) {
+        final Cache tokens = this.tokens;
+        return null == tokens ? this.bfe.encryptBlock(id) : tokens.map(id);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Maps a token back to its ID.
+     * @param token The token.
+     * @return The ID.
+     */
+    public long detokenize(long token) {
+        final Cache ids = this.ids;
+        return null == ids ? this.bfe.decryptBlock(token) : ids.map(token);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Maps many IDs to their tokens. Source and destination may be the same
+     * array, if the positions are the same too.
+     * @param src The IDs.
+     * @param srcpos Where the IDs start.
+     * @param dst Where to write the tokens to.
+     * @param dstpos Where to start writing the tokens.
+     * @param count The number of IDs.
+     */
+    public void tokenize(
+        long[] src,
+        int srcpos,
+        long[] dst,
+        int dstpos,
+        int count) {
+        long start = BlowfishMetrics.start();
+        int len = count * Blowfish.BLOCKSIZE;
+        BlowfishEvents.Cipher ev = BlowfishEvents.beginCipher(len);
+        final Cache tokens = this.tokens;
+        if (null == tokens) {
+            final BlowfishECB bfe = this.bfe;
+            for (int i = 0; i < count; i++) {
+                dst[dstpos + i] = bfe.encryptBlock(src[srcpos + i]);
+            }
+        }
+        else {
+            for (int i = 0; i < count; i++) {
+                dst[dstpos + i] = tokens.map(src[srcpos + i]);
+            }
+        }
+        BlowfishMetrics.encrypted(BlowfishMetrics.Mode.ECB, len, start);
+        BlowfishEvents.commitCipher(ev, BlowfishMetrics.Mode.ECB, true, len);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Maps many tokens back to their IDs. Source and destination may be the
+     * same array, if the positions are the same too.
+     * @param src The tokens.
+     * @param srcpos Where the tokens start.
+     * @param dst Where to write the IDs to.
+     * @param dstpos Where to start writing the IDs.
+     * @param count The number of tokens.
+     */
+    public void detokenize(
+        long[] src,
+        int srcpos,
+        long[] dst,
+        int dstpos,
+        int count) {
+        long start = BlowfishMetrics.start();
+        int len = count * Blowfish.BLOCKSIZE;
+        BlowfishEvents.Cipher ev = BlowfishEvents.beginCipher(len);
+        final Cache ids = this.ids;
+        if (null == ids) {
+            final BlowfishECB bfe = this.bfe;
+            for (int i = 0; i < count; i++) {
+                dst[dstpos + i] = bfe.decryptBlock(src[srcpos + i]);
+            }
+        }
+        else {
+            for (int i = 0; i < count; i++) {
+                dst[dstpos + i] = ids.map(src[srcpos + i]);
+            }
+        }
+        BlowfishMetrics.decrypted(BlowfishMetrics.Mode.ECB, len, start);
+        BlowfishEvents.commitCipher(ev, BlowfishMetrics.Mode.ECB, false, len);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Forgets all the cached mappings. Other threads using the instance at
+     * the same time might put some of theirs back in right away.
+     */
+    public void clearCache() {
+        if (null != this.tokens) {
+            this.tokens.clear();
+            this.ids.clear();
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Destroys the key schedule and the cached mappings, so no sensitive data
+     * is left in memory. The instance is not valid anymore afterwards.
+     */
+    public void cleanUp() {
+        clearCache();
+        this.bfe.cleanUp();
+    }
+}
@@ -0,0 +1,182 @@
+package de.org.mchahn.crypto.blowfishj;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for the BlowfishAsyncFile, on files in a temporary directory.
+ */
+public class AsyncFileTest {
+
+    static final byte[] KEY = "async file test key".getBytes();
+
+    static final int CHUNK = 64;
+
+    static final int[] SIZES = {
+        0, 1, 7, 8, 9, CHUNK - 1, CHUNK, CHUNK + 1, CHUNK * 3, 10000
+    };
+
+    Path dir;
+    ExecutorService executor;
+    BlowfishAsyncFile baf;
+
+    @Before
+    public void setUp() throws IOException {
+        this.dir = Files.createTempDirectory("bfasync");
+        this.executor = Executors.newFixedThreadPool(3);
+        this.baf = new BlowfishAsyncFile(KEY, 0, KEY.length, this.executor,
+                                         CHUNK, 3);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        this.baf.cleanUp();
+        this.executor.shutdown();
+        try (Stream<Path> paths = Files.list(this.dir)) {
+            for (Path path : (Iterable<Path>)paths::iterator) {
+                Files.delete(path);
+            }
+        }
+        Files.delete(this.dir);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        Path src = this.dir.resolve("src");
+        Path enc = this.dir.resolve("enc");
+        Path dec = this.dir.resolve("dec");
+
+        for (int size : SIZES) {
+            byte[] plain = TestData.plain(size);
+            Files.write(src, plain);
+
+            BlowfishAsyncFile.Counts counts = this.baf.encrypt(src, enc).get();
+            int encSize = Blowfish.BLOCKSIZE + BlowfishCBC.outputSize(size);
+            assertEquals(size, counts.getBytesRead());
+            assertEquals(encSize, counts.getBytesWritten());
+            assertEquals(encSize, Files.size(enc));
+
+            // the format is the one of the streams, both ways
+            BlowfishInputStream bis = new BlowfishInputStream(KEY, 0,
+                KEY.length, new ByteArrayInputStream(Files.readAllBytes(enc)));
+            assertArrayEquals(plain, bis.readAllBytes());
+            bis.close();
+
+            counts = this.baf.decrypt(enc, dec).get();
+            assertEquals(encSize, counts.getBytesRead());
+            assertEquals(size, counts.getBytesWritten());
+            assertArrayEquals(plain, Files.readAllBytes(dec));
+
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            BlowfishOutputStream bos = new BlowfishOutputStream(KEY, 0,
+                KEY.length, baos);
+            bos.write(plain);
+            bos.close();
+            Files.write(enc, baos.toByteArray());
+            this.baf.decrypt(enc, dec).get();
+            assertArrayEquals(plain, Files.readAllBytes(dec));
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    @Test
+    public void testErrors() throws Exception {
+        Path src = this.dir.resolve("src");
+        Path enc = this.dir.resolve("enc");
+        Path dec = this.dir.resolve("dec");
+
+        Files.write(src, TestData.plain(1000));
+        this.baf.encrypt(src, enc).get();
+        byte[] data = Files.readAllBytes(enc);
+
+        for (int cut : new int[] { 1, data.length - 8, data.length - 15 }) {
+            Files.write(enc, Arrays.copyOf(data, data.length - cut));
+            try {
+                this.baf.decrypt(enc, dec).get();
+                fail();
+            }
+            catch (ExecutionException ee) {
+                assertTrue(ee.getCause() instanceof IOException);
+            }
+            assertFalse(Files.exists(dec));
+        }
+
+        // the data is aligned, so the last block is all padding of 8; flipping
+        // its lowest bit in the block before turns the last byte into a 9
+        data[data.length - 9] ^= 1;
+        Files.write(enc, data);
+        try {
+            this.baf.decrypt(enc, dec).get();
+            fail();
+        }
+        catch (ExecutionException ee) {
+            assertEquals("invalid padding detected",
+                         ee.getCause().getMessage());
+        }
+        assertFalse(Files.exists(dec));
+
+        try {
+            this.baf.encrypt(this.dir.resolve("missing"), enc).get();
+            fail();
+        }
+        catch (ExecutionException ee) {
+            assertTrue(ee.getCause() instanceof IOException);
+        }
+        assertTrue(Files.exists(enc));
+
+        try {
+            new BlowfishAsyncFile(KEY, 0, KEY.length, this.executor, 12, 1);
+            fail();
+        }
+        catch (IllegalArgumentException iae) {
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    @Test
+    public void testCancel() throws Exception {
+        Path src = this.dir.resolve("src");
+        Path enc = this.dir.resolve("enc");
+        Files.write(src, TestData.plain(1 << 20));
+
+        // nothing gets encrypted before the cancellation
+        ExecutorService paused = Executors.newSingleThreadExecutor();
+        CompletableFuture<Void> gate = new CompletableFuture<>();
+        paused.execute(gate::join);
+        BlowfishAsyncFile baf = new BlowfishAsyncFile(KEY, 0, KEY.length,
+                                                      paused, CHUNK, 2);
+
+        CompletableFuture<BlowfishAsyncFile.Counts> cf = baf.encrypt(src, enc);
+        assertTrue(cf.cancel(true));
+        assertTrue(cf.isCancelled());
+        gate.complete(null);
+        paused.shutdown();
+        assertTrue(paused.awaitTermination(10, TimeUnit.SECONDS));
+        assertFalse(Files.exists(enc));
+        baf.cleanUp();
+    }
+}
@@ -0,0 +1,207 @@
+package de.org.mchahn.crypto.blowfishj;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for the BlowfishAuthenticatedInputStream and
+ * BlowfishAuthenticatedOutputStream.
+ */
+public class AuthenticatedStreamTest {
+
+    static final int[] SIZES = { 0, 1, 7, 8, 9, 31, 32, 33, 1000, 65537 };
+
+    static final int[] CHUNK_SIZES = { 8, 32, 1024 };
+
+    static final byte[] KEY = "authenticated stream test key".getBytes();
+
+    static final int CHUNK_OVERHEAD =
+        Blowfish.BLOCKSIZE + BlowfishAuthenticatedOutputStream.TAG_SIZE;
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    static byte[] encrypt(
+        byte[] plain,
+        int chunkSize,
+        boolean bytewise) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+
+        BlowfishAuthenticatedOutputStream bfos =
+            new BlowfishAuthenticatedOutputStream(
+                KEY, 0, KEY.length, baos, chunkSize);
+
+        if (bytewise) {
+            for (byte b : plain) {
+                bfos.write(b);
+            }
+        }
+        else {
+            for (int ofs = 0; ofs < plain.length;) {
+                int len = Math.min(plain.length - ofs, 1 + (ofs % 37));
+                bfos.write(plain, ofs, len);
+                ofs += len;
+            }
+        }
+        bfos.close();
+        bfos.close();
+
+        return baos.toByteArray();
+    }
+
+    static byte[] decrypt(byte[] key, byte[] enc) throws IOException {
+        BlowfishAuthenticatedInputStream bfis =
+            new BlowfishAuthenticatedInputStream(
+                key, 0, key.length, new ByteArrayInputStream(enc));
+        byte[] result = bfis.readAllBytes();
+        assertEquals(-1, bfis.read());
+        bfis.close();
+        bfis.close();
+        return result;
+    }
+
+    static void expectFailure(byte[] enc, String msg) {
+        try {
+            decrypt(KEY, enc);
+            fail();
+        }
+        catch (IOException ioe) {
+            assertTrue(ioe.getMessage(), ioe.getMessage().startsWith(msg));
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        for (int chunkSize : CHUNK_SIZES) {
+            for (int size : SIZES) {
+                byte[] plain = TestData.plain(size);
+                for (int mode = 0; mode < 2; mode++) {
+                    byte[] enc = encrypt(plain, chunkSize, 0 != mode);
+
+                    int chunks = size / chunkSize + 1;
+                    int last = size % chunkSize;
+                    assertEquals(
+                        BlowfishAuthenticatedOutputStream.HEADER_SIZE +
+                        chunks * CHUNK_OVERHEAD +
+                        (size - last) +
+                        (last - last % Blowfish.BLOCKSIZE) +
+                        Blowfish.BLOCKSIZE,
+                        enc.length);
+
+                    assertArrayEquals(plain, decrypt(KEY, enc));
+                }
+            }
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    @Test
+    public void testTampering() throws IOException {
+        final int chunkSize = 64;
+        final int full = CHUNK_OVERHEAD + chunkSize;
+        final int hdr = BlowfishAuthenticatedOutputStream.HEADER_SIZE;
+
+        byte[] plain = TestData.plain(chunkSize * 4 + 10);
+        byte[] enc = encrypt(plain, chunkSize, false);
+
+        // every single bit flip gets caught
+        for (int pos = hdr; pos < enc.length; pos += 5) {
+            byte[] bad = enc.clone();
+            bad[pos] ^= 1 << (pos & 7);
+            expectFailure(bad, "authentication of chunk " +
+                               (pos - hdr) / full);
+        }
+
+        // a corrupt chunk fails right away, with all the data before it
+        // delivered and none of the chunk itself
+        byte[] bad = enc.clone();
+        bad[hdr + full * 2 + 20] ^= 0x40;
+        BlowfishAuthenticatedInputStream bfis =
+            new BlowfishAuthenticatedInputStream(
+                KEY, 0, KEY.length, new ByteArrayInputStream(bad));
+        byte[] buf = new byte[plain.length];
+        int total = 0;
+        try {
+            for (;;) {
+                int read = bfis.read(buf, total, buf.length - total);
+                assertTrue(-1 != read);
+                total += read;
+            }
+        }
+        catch (IOException ioe) {
+            assertEquals(chunkSize * 2, total);
+            assertArrayEquals(Arrays.copyOf(plain, total),
+                              Arrays.copyOf(buf, total));
+        }
+        try {
+            bfis.read();
+            fail();
+        }
+        catch (IOException ioe) {
+        }
+        bfis.close();
+
+        // swapped chunks
+        bad = enc.clone();
+        System.arraycopy(enc, hdr, bad, hdr + full, full);
+        System.arraycopy(enc, hdr + full, bad, hdr, full);
+        expectFailure(bad, "authentication of chunk 0");
+
+        // cut off at a chunk boundary, a dropped chunk
+        expectFailure(Arrays.copyOf(enc, hdr + full * 2),
+                      "authentication of chunk 1");
+        bad = new byte[enc.length - full];
+        System.arraycopy(enc, 0, bad, 0, hdr + full);
+        System.arraycopy(enc, hdr + full * 2, bad, hdr + full,
+                         enc.length - hdr - full * 2);
+        expectFailure(bad, "authentication of chunk 1");
+
+        // a chunk from another stream with the same key
+        byte[] other = encrypt(plain, chunkSize, false);
+        bad = enc.clone();
+        System.arraycopy(other, hdr, bad, hdr, full);
+        expectFailure(bad, "authentication of chunk 0");
+
+        // truncated, wrong version, wrong key
+        expectFailure(Arrays.copyOf(enc, enc.length - 1), "truncated");
+        expectFailure(Arrays.copyOf(enc, 3), "truncated");
+        bad = enc.clone();
+        bad[0] = 2;
+        expectFailure(bad, "unsupported format version");
+        try {
+            decrypt("wrong key".getBytes(), enc);
+            fail();
+        }
+        catch (IOException ioe) {
+            assertEquals("authentication of chunk 0 failed",
+                         ioe.getMessage());
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    @Test
+    public void testInvalidChunkSize() throws IOException {
+        for (int chunkSize : new int[] { 0, 7, 12,
+                BlowfishAuthenticatedOutputStream.MAX_CHUNK_SIZE + 8 }) {
+            try {
+                new BlowfishAuthenticatedOutputStream(KEY, 0, KEY.length,
+                    new ByteArrayOutputStream(), chunkSize);
+                fail();
+            }
+            catch (IllegalArgumentException iae) {
+            }
+        }
+    }
+}
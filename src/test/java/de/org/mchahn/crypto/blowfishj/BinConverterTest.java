@@ -1,10 +1,20 @@
 package de.org.mchahn.crypto.blowfishj;
 
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.Random;
+
 import org.junit.Test;
 
 import de.org.mchahn.crypto.blowfishj.BinConverter;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
 
 /**
  * Test cases for the binary converters.
@@ -177,6 +187,223 @@ public class BinConverterTest {
 
     ///////////////////////////////////////////////////////////////////////////
 
+    @Test
+    public void testBulkConversions() {
+        byte[] bytes = new byte[2 + 4 * 8];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte)(0x10 + i * 0x11);
+        }
+
+        for (ByteOrder order : new ByteOrder[] {
+            ByteOrder.BIG_ENDIAN, ByteOrder.LITTLE_ENDIAN }) {
+            ByteBuffer ref = ByteBuffer.wrap(bytes).order(order);
+
+            int[] ints = new int[9];
+            BinConverter.byteArrayToInts(bytes, 2, ints, 1, 8, order);
+            assertEquals(0, ints[0]);
+            for (int i = 0; i < 8; i++) {
+                assertEquals(ref.getInt(2 + (i << 2)), ints[1 + i]);
+            }
+
+            long[] longs = new long[5];
+            BinConverter.byteArrayToLongs(bytes, 2, longs, 1, 4, order);
+            assertEquals(0L, longs[0]);
+            for (int i = 0; i < 4; i++) {
+                assertEquals(ref.getLong(2 + (i << 3)), longs[1 + i]);
+            }
+
+            byte[] back = bytes.clone();
+            Arrays.fill(back, 2, back.length, (byte)0);
+            BinConverter.intsToByteArray(ints, 1, back, 2, 8, order);
+            assertArrayEquals(bytes, back);
+
+            Arrays.fill(back, 2, back.length, (byte)0);
+            BinConverter.longsToByteArray(longs, 1, back, 2, 4, order);
+            assertArrayEquals(bytes, back);
+
+            for (int direct = 0; direct < 2; direct++) {
+                ByteBuffer buf = 0 == direct ?
+                    ByteBuffer.allocate(bytes.length + 8) :
+                    ByteBuffer.allocateDirect(bytes.length + 8);
+                // (the buffer's own byte order must not matter)
+                buf.order(ByteOrder.LITTLE_ENDIAN == order ?
+                          ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
+                buf.put(bytes).flip().position(2);
+
+                int[] ints2 = new int[8];
+                BinConverter.byteBufferToInts(buf, ints2, 0, 8, order);
+                assertEquals(buf.limit(), buf.position());
+                assertArrayEquals(Arrays.copyOfRange(ints, 1, 9), ints2);
+
+                buf.position(2);
+                long[] longs2 = new long[4];
+                BinConverter.byteBufferToLongs(buf, longs2, 0, 4, order);
+                assertArrayEquals(Arrays.copyOfRange(longs, 1, 5), longs2);
+
+                buf.clear().position(1);
+                BinConverter.intsToByteBuffer(ints2, 0, buf, 8, order);
+                assertEquals(33, buf.position());
+                BinConverter.longsToByteBuffer(longs2, 3, buf, 1, order);
+                assertEquals(41, buf.position());
+
+                byte[] out = new byte[40];
+                buf.flip().position(1);
+                buf.get(out);
+                assertArrayEquals(Arrays.copyOfRange(bytes, 2, 34),
+                                  Arrays.copyOfRange(out, 0, 32));
+                assertArrayEquals(Arrays.copyOfRange(bytes, 26, 34),
+                                  Arrays.copyOfRange(out, 32, 40));
+
+                // too little data or space, nothing gets touched
+                buf.clear().position(buf.limit() - 7);
+                try {
+                    BinConverter.byteBufferToLongs(buf, longs2, 0, 1, order);
+                    fail();
+                }
+                catch (BufferUnderflowException expected) {
+                }
+                try {
+                    BinConverter.intsToByteBuffer(ints2, 0, buf, 2, order);
+                    fail();
+                }
+                catch (BufferOverflowException expected) {
+                }
+                assertEquals(buf.limit() - 7, buf.position());
+            }
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    @Test
+    public void testHexCodec() {
+        Random rnd = new Random(31);
+
+        for (int len = 0; len < 50; len++) {
+            byte[] data = new byte[len + 3];
+            rnd.nextBytes(data);
+
+            String ref = HexFormat.of().formatHex(data, 1, 1 + len);
+
+            char[] chars = new char[len * 2 + 1];
+            assertEquals(len * 2,
+                BinConverter.bytesToHex(data, 1, len, chars, 1));
+            assertEquals(ref, new String(chars, 1, len * 2));
+            assertEquals(ref, BinConverter.bytesToHexStr(data, 1, len));
+
+            byte[] ascii = new byte[len * 2 + 2];
+            assertEquals(len * 2,
+                BinConverter.bytesToHex(data, 1, len, ascii, 2));
+            assertEquals(ref, new String(ascii, 2, len * 2));
+
+            byte[] dec = new byte[len + 1];
+            assertEquals(len,
+                BinConverter.hexToBytes(chars, 1, len * 2, dec, 1));
+            assertArrayEquals(HexFormat.of().parseHex(ref),
+                Arrays.copyOfRange(dec, 1, len + 1));
+
+            char[] upper = ref.toUpperCase().toCharArray();
+            dec = new byte[len];
+            assertEquals(len,
+                BinConverter.hexToBytes(upper, 0, upper.length, dec, 0));
+            assertEquals(ref, BinConverter.bytesToHexStr(dec));
+
+            dec = new byte[len];
+            assertEquals(len,
+                BinConverter.hexToBytes(ascii, 2, len * 2, dec, 0));
+            assertEquals(ref, BinConverter.bytesToHexStr(dec));
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    @Test
+    public void testHexCodecInvalid() {
+        String hex = "0123456789abcdefABCDEF0123456789";
+        byte[] dst = new byte[hex.length()];
+
+        // every position, inside and outside of the eight character words
+        for (int i = 0; i < hex.length(); i++) {
+            for (char bad : new char[] { 'g', 'G', ' ', '/', ':', '@', '`',
+                                         '\u0130', '\u0161', '\uff10' }) {
+                char[] chars = hex.toCharArray();
+                chars[i] = bad;
+                assertEquals(-i - 1,
+                    BinConverter.hexToBytes(chars, 0, chars.length, dst, 0));
+
+                if (0x80 > bad) {
+                    byte[] ascii = new String(chars).getBytes();
+                    assertEquals(-i - 1,
+                        BinConverter.hexToBytes(ascii, 0, ascii.length, dst, 0));
+                    ascii[i] = (byte)(bad | 0x80);
+                    assertEquals(-i - 1,
+                        BinConverter.hexToBytes(ascii, 0, ascii.length, dst, 0));
+                }
+            }
+        }
+
+        // odd lengths, the last character is the invalid one
+        assertEquals(-5, BinConverter.hexToBytes(
+            hex.toCharArray(), 2, 3, dst, 0));
+        assertEquals(-17, BinConverter.hexToBytes(
+            hex.getBytes(), 0, 17, dst, 0));
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    @Test
+    public void testHexCodecBuffers() {
+        byte[] data = new byte[37];
+        new Random(5).nextBytes(data);
+        String ref = BinConverter.bytesToHexStr(data);
+
+        for (int direct = 0; direct < 2; direct++) {
+            ByteBuffer src = 0 == direct ? ByteBuffer.allocate(40) :
+                                           ByteBuffer.allocateDirect(40);
+            src.position(2);
+            src.put(data).flip().position(2);
+
+            ByteBuffer hex = 0 == direct ? ByteBuffer.allocate(80) :
+                                           ByteBuffer.allocateDirect(80);
+            hex.position(1);
+            assertEquals(74, BinConverter.bytesToHex(src, hex));
+            assertEquals(0, src.remaining());
+            assertEquals(75, hex.position());
+
+            byte[] ascii = new byte[74];
+            hex.flip().position(1);
+            hex.duplicate().get(ascii);
+            assertEquals(ref, new String(ascii));
+
+            ByteBuffer dec = 0 == direct ? ByteBuffer.allocate(37) :
+                                           ByteBuffer.allocateDirect(37);
+            assertEquals(37, BinConverter.hexToBytes(hex, dec));
+            assertEquals(0, hex.remaining());
+            dec.flip();
+            byte[] back = new byte[37];
+            dec.get(back);
+            assertArrayEquals(data, back);
+
+            // invalid character, positions stay untouched
+            hex.position(1);
+            hex.put(11, (byte)'x');
+            dec.clear();
+            assertEquals(-11, BinConverter.hexToBytes(hex, dec));
+            assertEquals(1, hex.position());
+            assertEquals(0, dec.position());
+
+            // not enough space
+            try {
+                BinConverter.hexToBytes(hex, ByteBuffer.allocate(36));
+                fail();
+            }
+            catch (BufferOverflowException expected) {
+            }
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
     @Test
     public void testByteArrayToStr() {
         byte[] testb = new byte[52];
@@ -0,0 +1,328 @@
+package de.org.mchahn.crypto.blowfishj;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for the BlowfishServer, talking to it like a foreign client would.
+ */
+public class BlowfishServerTest {
+
+    static final byte[] KEY = "server test key".getBytes();
+
+    Path dir;
+    Path sock;
+    BlowfishServer server;
+
+    @Before
+    public void setUp() throws IOException {
+        this.dir = Files.createTempDirectory("bfsrv");
+        this.sock = this.dir.resolve("bf.sock");
+        this.server = new BlowfishServer(this.sock);
+        this.server.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        this.server.close();
+        Files.deleteIfExists(this.sock);
+        Files.delete(this.dir);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    SocketChannel connect() throws IOException {
+        SocketChannel result = SocketChannel.open(StandardProtocolFamily.UNIX);
+        result.connect(UnixDomainSocketAddress.of(this.sock));
+        return result;
+    }
+
+    static void send(
+        SocketChannel ch,
+        int op,
+        byte[] key,
+        byte[] data) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(4 + 3 + key.length + data.length);
+        buf.putInt(3 + key.length + data.length)
+           .put((byte)op)
+           .putShort((short)key.length)
+           .put(key)
+           .put(data)
+           .flip();
+        while (buf.hasRemaining()) {
+            ch.write(buf);
+        }
+    }
+
+    static void readFully(SocketChannel ch, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            if (-1 == ch.read(buf)) {
+                throw new IOException("unexpected end");
+            }
+        }
+        buf.flip();
+    }
+
+    // returns the status followed by the data
+    static byte[] receive(SocketChannel ch) throws IOException {
+        ByteBuffer len = ByteBuffer.allocate(4);
+        readFully(ch, len);
+        ByteBuffer resp = ByteBuffer.allocate(len.getInt());
+        readFully(ch, resp);
+        return resp.array();
+    }
+
+    static byte[] call(
+        SocketChannel ch,
+        int op,
+        byte[] key,
+        byte[] data) throws IOException {
+        send(ch, op, key, data);
+        byte[] resp = receive(ch);
+        assertEquals(BlowfishServer.STATUS_OK, resp[0]);
+        byte[] result = new byte[resp.length - 1];
+        System.arraycopy(resp, 1, result, 0, result.length);
+        return result;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        try (SocketChannel ch = connect()) {
+            for (int size : new int[] { 0, 1, 7, 8, 9, 100, 70000 }) {
+                byte[] plain = TestData.plain(size);
+
+                byte[] enc = call(ch, BlowfishServer.OP_ENCRYPT, KEY, plain);
+                assertEquals(((size >> 3) + 2) << 3, enc.length);
+                assertArrayEquals(plain,
+                    call(ch, BlowfishServer.OP_DECRYPT, KEY, enc));
+
+                // same format as the streams, in both directions
+                BlowfishInputStream bis = new BlowfishInputStream(
+                    KEY, 0, KEY.length, new ByteArrayInputStream(enc));
+                assertArrayEquals(plain, bis.readAllBytes());
+                bis.close();
+
+                ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                BlowfishOutputStream bos = new BlowfishOutputStream(
+                    KEY, 0, KEY.length, baos);
+                bos.write(plain);
+                bos.close();
+                assertArrayEquals(plain, call(ch, BlowfishServer.OP_DECRYPT,
+                    KEY, baos.toByteArray()));
+            }
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    @Test
+    public void testConnections() throws Exception {
+        final byte[][] keys = {
+            "key one".getBytes(), "key two".getBytes(), "key three".getBytes()
+        };
+        final int clients = 6;
+        final int rounds = 50;
+
+        ExecutorService exec = Executors.newFixedThreadPool(clients);
+        try {
+            List<Future<Boolean>> results = new ArrayList<>();
+            for (int c = 0; c < clients; c++) {
+                final byte[] key = keys[c % keys.length];
+                final int seed = c;
+                results.add(exec.submit(() -> {
+                    try (SocketChannel ch = connect()) {
+                        for (int r = 0; r < rounds; r++) {
+                            byte[] plain = TestData.plain(seed * 31 + r);
+                            byte[] enc = call(ch, BlowfishServer.OP_ENCRYPT,
+                                              key, plain);
+                            byte[] dec = call(ch, BlowfishServer.OP_DECRYPT,
+                                              key, enc);
+                            if (!Arrays.equals(plain, dec)) {
+                                return false;
+                            }
+                        }
+                    }
+                    return true;
+                }));
+            }
+            for (Future<Boolean> res : results) {
+                assertTrue(res.get());
+            }
+        }
+        finally {
+            exec.shutdown();
+        }
+
+        // statistics per key, under the fingerprint
+        Map<String, BlowfishServer.Statistics> stats =
+            this.server.getStatistics();
+        assertEquals(keys.length, stats.size());
+        for (byte[] key : keys) {
+            BlowfishServer.Statistics st = stats.get(
+                BlowfishServer.fingerprint(key, 0, key.length));
+            assertEquals(2 * rounds * (clients / keys.length),
+                         st.getRequests());
+            assertEquals(0, st.getErrors());
+            assertTrue(0 < st.getBytesIn());
+            assertTrue(st.getMaxNanos() >= st.getAverageNanos());
+            assertTrue(0.0 < st.getThroughput());
+        }
+        assertEquals(keys.length, this.server.keys.size());
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    @Test
+    public void testKeyCache() throws IOException {
+        byte[] first = "first".getBytes();
+        byte[] busy = "busy".getBytes();
+        BlowfishServer.Key k0 = this.server.key(first, 0, first.length);
+        this.server.release(k0);
+        BlowfishServer.Key k1 = this.server.key(busy, 0, busy.length);
+        assertEquals(1, k1.users);
+
+        // (pushes the two out, the second one still being used)
+        for (int i = 0; i < BlowfishServer.MAX_KEYS; i++) {
+            byte[] key = ("key" + i).getBytes();
+            this.server.release(this.server.key(key, 0, key.length));
+        }
+        assertEquals(BlowfishServer.MAX_KEYS, this.server.keys.size());
+        assertTrue(k0.evicted);
+        assertTrue(k1.evicted);
+        for (ByteBuffer ckey : this.server.keys.keySet()) {
+            assertFalse(Arrays.equals(new byte[ckey.capacity()],
+                                      ckey.array()));
+        }
+        assertEquals(1, k1.users);
+        this.server.release(k1);
+        assertEquals(0, k1.users);
+        assertEquals(BlowfishServer.MAX_KEYS + 2,
+                     this.server.getStatistics().size());
+
+        // the same key again gets a new schedule, which works, and continues
+        // with the former statistics
+        BlowfishServer.Key k2 = this.server.key(first, 0, first.length);
+        assertTrue(k0 != k2);
+        assertTrue(k0.stats == k2.stats);
+        this.server.release(k2);
+
+        // only so many statistics of dropped keys are kept
+        for (int i = 0; i < BlowfishServer.MAX_RETIRED * 2; i++) {
+            byte[] key = ("more" + i).getBytes();
+            this.server.release(this.server.key(key, 0, key.length));
+        }
+        assertEquals(BlowfishServer.MAX_KEYS + BlowfishServer.MAX_RETIRED,
+                     this.server.getStatistics().size());
+        try (SocketChannel ch = connect()) {
+            byte[] enc = call(ch, BlowfishServer.OP_ENCRYPT, first,
+                              TestData.plain(50));
+            assertArrayEquals(TestData.plain(50),
+                              call(ch, BlowfishServer.OP_DECRYPT, first, enc));
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    @Test
+    public void testErrors() throws IOException {
+        try (SocketChannel ch = connect()) {
+            byte[] enc = call(ch, BlowfishServer.OP_ENCRYPT, KEY,
+                              TestData.plain(20));
+
+            // truncated data, unknown operations, bad padding and missing keys,
+            // all with the connection staying open
+            byte[][] bad = {
+                Arrays.copyOf(enc, enc.length - 3),
+                Arrays.copyOf(enc, 8)
+            };
+            for (byte[] data : bad) {
+                send(ch, BlowfishServer.OP_DECRYPT, KEY, data);
+                byte[] resp = receive(ch);
+                assertEquals(BlowfishServer.STATUS_ERROR, resp[0]);
+                assertEquals("truncated data", new String(resp, 1,
+                    resp.length - 1, StandardCharsets.UTF_8));
+            }
+            send(ch, 99, KEY, enc);
+            assertEquals(BlowfishServer.STATUS_ERROR, receive(ch)[0]);
+
+            // (a zero block after a zero IV, thus a zero padding value)
+            byte[] zeroPad = new byte[16];
+            BlowfishCBC bfc = BlowfishStreamFactory.createCipher(
+                KEY, 0, KEY.length);
+            bfc.encrypt(0L, zeroPad, 8, zeroPad, 8, 8);
+            bfc.cleanUp();
+            send(ch, BlowfishServer.OP_DECRYPT, KEY, zeroPad);
+            byte[] resp = receive(ch);
+            assertEquals(BlowfishServer.STATUS_ERROR, resp[0]);
+            assertEquals("invalid padding", new String(resp, 1,
+                resp.length - 1, StandardCharsets.UTF_8));
+
+            send(ch, BlowfishServer.OP_ENCRYPT, new byte[0], enc);
+            assertEquals(BlowfishServer.STATUS_ERROR, receive(ch)[0]);
+
+            // still usable
+            assertEquals(16, call(ch, BlowfishServer.OP_ENCRYPT, KEY,
+                                  TestData.plain(1)).length);
+
+            BlowfishServer.Statistics st = this.server.getStatistics().get(
+                BlowfishServer.fingerprint(KEY, 0, KEY.length));
+            assertEquals(6, st.getRequests());
+            assertEquals(4, st.getErrors());
+        }
+
+        // oversized frames end the connection
+        try (SocketChannel ch = connect()) {
+            ByteBuffer buf = ByteBuffer.allocate(4);
+            buf.putInt(BlowfishServer.DEFAULT_MAX_FRAME).flip();
+            ch.write(buf);
+            assertEquals(BlowfishServer.STATUS_ERROR, receive(ch)[0]);
+            assertEquals(-1, ch.read(ByteBuffer.allocate(1)));
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    @Test
+    public void testClose() throws IOException {
+        SocketChannel ch = connect();
+        call(ch, BlowfishServer.OP_ENCRYPT, KEY, TestData.plain(10));
+
+        this.server.close();
+        assertFalse(Files.exists(this.sock));
+        assertEquals(-1, ch.read(ByteBuffer.allocate(1)));
+        ch.close();
+
+        // the path can be used again
+        this.server = new BlowfishServer(this.sock);
+        this.server.start();
+        try (SocketChannel ch2 = connect()) {
+            call(ch2, BlowfishServer.OP_ENCRYPT, KEY, TestData.plain(10));
+        }
+    }
+}
@@ -1,19 +1,31 @@
 package de.org.mchahn.crypto.blowfishj;
 
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import org.junit.Test;
 
 import de.org.mchahn.crypto.blowfishj.Blowfish;
 import de.org.mchahn.crypto.blowfishj.BlowfishCBC;
 import de.org.mchahn.crypto.blowfishj.BlowfishCFB;
+import de.org.mchahn.crypto.blowfishj.BlowfishCTR;
 import de.org.mchahn.crypto.blowfishj.BlowfishECB;
 import de.org.mchahn.crypto.blowfishj.BlowfishEasy;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
 
 /**
  * All test cases for the BlowfishJ core classes.
@@ -218,6 +230,253 @@ public class BlowfishTests {
 
     ///////////////////////////////////////////////////////////////////////////
 
+    @Test
+    public void testBlowfishEasyConcurrent() throws InterruptedException {
+        final BlowfishEasy bfes = new BlowfishEasy("shared".toCharArray());
+
+        Thread[] threads = new Thread[8];
+        final String[] errors = new String[threads.length];
+
+        for (int t = 0; t < threads.length; t++) {
+            final int tn = t;
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 2000; i++) {
+                    String ptxt = "thread " + tn + ", round " + i;
+                    String ctxt = bfes.encryptString(ptxt);
+                    if (!ptxt.equals(bfes.decryptString(ctxt))) {
+                        errors[tn] = ptxt;
+                        return;
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (int t = 0; t < threads.length; t++) {
+            threads[t].join();
+            assertNull(errors[t]);
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    // (produced with the original implementation, to make sure that the fused
+    // encryption does not change the format)
+
+    static final String BFEASY_REF_KEY = "secret";
+    static final String[] BFEASY_REF_PLAIN = {
+        "Protect me.", "\u20ac\u0000\uffffabc"
+    };
+    static final long[] BFEASY_REF_SEED = { 42, 7 };
+    static final String[] BFEASY_REF_CIPHER = {
+        "ba419d350dfe8af7570b6b0320cdfe441cbf7994e48337b2f8d9a3f3e4289fdf",
+        "bb0f1798a37734186ed9b0e32b2ed475130eaccf0a6e495e"
+    };
+
+    @Test
+    public void testBlowfishEasyBatch() throws Exception {
+        final BlowfishEasy bfes = new BlowfishEasy("batch".toCharArray());
+
+        for (int count : new int[] { 0, 1, 255, 256, 257, 5000 }) {
+            String[] plain = new String[count];
+            for (int i = 0; i < count; i++) {
+                plain[i] = 0 == i % 97 ? null : "value #" + i;
+            }
+
+            String[] enc = bfes.encryptStrings(plain);
+            assertEquals(count, enc.length);
+            for (int i = 0; i < count; i++) {
+                if (null == plain[i]) {
+                    assertNull(enc[i]);
+                }
+                else {
+                    assertEquals(plain[i], bfes.decryptString(enc[i]));
+                }
+            }
+            assertArrayEquals(plain, bfes.decryptStrings(enc));
+
+            List<String> encList = bfes.encryptStrings(Arrays.asList(plain));
+            assertEquals(Arrays.asList(plain), bfes.decryptStrings(encList));
+
+            List<String> roundTrip = bfes.decryptStrings(
+                bfes.encryptStrings(Arrays.stream(plain)))
+                .collect(Collectors.toList());
+            assertEquals(Arrays.asList(plain), roundTrip);
+        }
+
+        // unbounded input, only as much as consumed gets processed
+        final AtomicInteger pulled = new AtomicInteger();
+        Stream<String> endless = Stream.iterate(0, i -> i + 1)
+            .peek(i -> pulled.incrementAndGet())
+            .map(String::valueOf);
+        String[] first = bfes.decryptStrings(bfes.encryptStrings(endless))
+            .limit(10000)
+            .toArray(String[]::new);
+        for (int i = 0; i < first.length; i++) {
+            assertEquals(String.valueOf(i), first[i]);
+        }
+        assertTrue(pulled.get() < 10000 + 1000 * 256);
+
+        // called from a worker the batch runs in that pool
+        ForkJoinPool pool = new ForkJoinPool(3);
+        try {
+            String[] plain = new String[1000];
+            Arrays.fill(plain, "pooled");
+            String[] dec = pool.submit(() ->
+                bfes.decryptStrings(bfes.encryptStrings(plain))).get();
+            assertArrayEquals(plain, dec);
+        }
+        finally {
+            pool.shutdown();
+        }
+
+        bfes.destroy();
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    @Test
+    public void testBlowfishEasyBuffers() {
+        BlowfishEasy bfes = new BlowfishEasy(BFEASY_REF_KEY.toCharArray());
+
+        for (int i = 0; i < BFEASY_REF_PLAIN.length; i++) {
+            String ctxt = bfes.encryptString(BFEASY_REF_PLAIN[i],
+                new java.util.Random(BFEASY_REF_SEED[i]));
+            assertEquals(BFEASY_REF_CIPHER[i], ctxt);
+            assertEquals(BFEASY_REF_PLAIN[i],
+                bfes.decryptString(BFEASY_REF_CIPHER[i].toUpperCase()));
+        }
+
+        char[] cbuf = new char[1000];
+        char[] pbuf = new char[1000];
+        StringBuilder sb = new StringBuilder();
+        ByteBuffer bb = ByteBuffer.allocate(1000);
+
+        for (int len = 0; len < 40; len++) {
+            char[] ptxt = new char[len];
+            for (int i = 0; i < len; i++) {
+                ptxt[i] = (char)(i * 4567);
+            }
+            String pstr = new String(ptxt);
+
+            int clen = BlowfishEasy.encryptedLength(len);
+
+            // all the encryption variants, cross-checked with decryption
+
+            assertEquals(clen, bfes.encryptString(ptxt, 0, len, cbuf, 3));
+            String ctxt = new String(cbuf, 3, clen);
+            assertEquals(pstr, bfes.decryptString(ctxt));
+
+            assertEquals(clen, bfes.encryptString(pstr, cbuf, 0));
+            assertEquals(len, bfes.decryptString(
+                java.nio.CharBuffer.wrap(cbuf, 0, clen), pbuf, 1));
+            assertEquals(pstr, new String(pbuf, 1, len));
+
+            sb.setLength(0);
+            sb.append('#');
+            bfes.encryptString(pstr, sb);
+            assertEquals(clen + 1, sb.length());
+            assertEquals(pstr, bfes.decryptString(sb.substring(1)));
+
+            StringBuilder sb2 = new StringBuilder("#");
+            assertEquals(len, bfes.decryptString(sb.subSequence(1, clen + 1),
+                                                 sb2));
+            assertEquals("#" + pstr, sb2.toString());
+
+            bb.clear();
+            bfes.encryptString(pstr, bb);
+            assertEquals(clen, bb.position());
+            bb.flip();
+            assertEquals(len, bfes.decryptString(bb, pbuf, 0));
+            assertEquals(0, bb.remaining());
+            assertEquals(pstr, new String(pbuf, 0, len));
+
+            assertTrue(len <= BlowfishEasy.decryptedLength(clen));
+        }
+
+        // strings larger than the pooled scratch buffer, which stays small
+        char[] big = new char[BlowfishEasy.MAX_POOLED_CHARS];
+        java.util.Arrays.fill(big, 'x');
+        String bigStr = new String(big);
+        assertEquals(bigStr, bfes.decryptString(bfes.encryptString(bigStr)));
+        BlowfishEasy.Context ctx = BlowfishEasy.CONTEXT.get();
+        assertTrue(BlowfishEasy.MAX_POOLED_CHARS >= ctx.chars.length);
+        char[] once = ctx.chars(BlowfishEasy.MAX_POOLED_CHARS + 1);
+        assertTrue(once != ctx.chars);
+        assertTrue(ctx.chars(100) == ctx.chars);
+
+        // invalid input
+
+        assertNull(bfes.decryptString("0123456789abcde"));
+        assertNull(bfes.decryptString("0123456789abcdeg"));
+        assertEquals("", bfes.decryptString("0123456789abcdef"));
+        assertEquals(-1, bfes.decryptString(
+            BFEASY_REF_CIPHER[0].replace('d', 'x'), pbuf, 0));
+
+        try {
+            bfes.encryptString("too long", ByteBuffer.allocate(10));
+            fail();
+        }
+        catch (BufferOverflowException expected) {
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    @Test
+    public void testBlowfishEasyCompact() {
+        BlowfishEasy bfes = new BlowfishEasy("compact".toCharArray());
+
+        for (int len = 0; len < 100; len++) {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < len; i++) {
+                sb.append((char)(0 == (len & 1) ? 'a' + (i % 26) : i * 1013));
+            }
+            String ptxt = sb.toString();
+
+            String hex = bfes.encryptString(ptxt);
+
+            for (BlowfishEasy.Packing packing : BlowfishEasy.Packing.values()) {
+                String b64 = bfes.encryptString(ptxt, packing);
+                assertEquals(ptxt, bfes.decryptString(b64));
+                assertTrue(b64.length() < hex.length());
+                for (int i = 0; i < b64.length(); i++) {
+                    char c = b64.charAt(i);
+                    assertTrue(Character.isLetterOrDigit(c) ||
+                               '-' == c || '_' == c);
+                }
+
+                byte[] bin = bfes.encryptBytes(ptxt, packing);
+                byte[] bin2 = new byte[bin.length + 2];
+                System.arraycopy(bin, 0, bin2, 1, bin.length);
+                assertEquals(ptxt, bfes.decryptBytes(bin2, 1, bin.length));
+            }
+
+            // the original format must still be readable
+            assertEquals(ptxt, bfes.decryptString(hex));
+        }
+
+        // ASCII in UTF-8 must be a lot smaller than the original format
+        String ascii = "0123456789012345678901234567890123456789";
+        assertEquals(BlowfishEasy.encryptedLength(ascii.length()),
+                     bfes.encryptString(ascii).length());
+        assertEquals(1 + 8 + 48, bfes.encryptBytes(ascii,
+                     BlowfishEasy.Packing.UTF8).length);
+
+        // invalid input
+
+        byte[] bin = bfes.encryptBytes("x", BlowfishEasy.Packing.UTF8);
+        assertNull(bfes.decryptBytes(bin, 0, bin.length - 1));
+        bin[0] = 0x42;
+        assertNull(bfes.decryptBytes(bin, 0, bin.length));
+        assertNull(bfes.decryptString("s!!"));
+        assertNull(bfes.decryptString("sAAA"));
+        assertNotEquals("wrong key", new BlowfishEasy("bad".toCharArray())
+            .decryptString(bfes.encryptString("wrong key",
+                                              BlowfishEasy.Packing.UTF8)));
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
     static final byte[] KEYSETUPBUG_K0 = { 0, 1, 2 };
     static final byte[] KEYSETUPBUG_K1 = { 1, 2 };
 
@@ -285,5 +544,380 @@ public class BlowfishTests {
         for (int i = 0; i < len; i++) {
             assertEquals(OPENSSL_BFCFB_REFCTXT[i], buf[i]);
         }
+
+        // both directions in all kinds of chunks, crossing block boundaries
+        for (int chunk = 1; chunk < 20; chunk++) {
+            byte[] enc = new byte[len];
+            byte[] dec = new byte[len];
+            BlowfishCFB bfe = new BlowfishCFB(OPENSSL_BFCFB_REFKEY, 0,
+                OPENSSL_BFCFB_REFKEY.length, OPENSSL_BFCFB_REFIV, 0);
+            BlowfishCFB bfd = new BlowfishCFB(OPENSSL_BFCFB_REFKEY, 0,
+                OPENSSL_BFCFB_REFKEY.length, OPENSSL_BFCFB_REFIV, 0);
+            for (int ofs = 0; ofs < len; ofs += chunk) {
+                int clen = Math.min(chunk, len - ofs);
+                assertEquals(clen, bfe.encrypt(
+                    OPENSSL_BFCFB_REFDATA, ofs, enc, ofs, clen));
+                assertEquals(clen, bfd.decrypt(
+                    OPENSSL_BFCFB_REFCTXT, ofs, dec, ofs, clen));
+            }
+            assertArrayEquals(OPENSSL_BFCFB_REFCTXT, enc);
+            assertArrayEquals(OPENSSL_BFCFB_REFDATA, dec);
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    @Test
+    public void testCTR() {
+        byte[] key = "counter mode".getBytes();
+        long nonce = 0xfffffffffffffffeL;
+
+        // the key stream is made of the encrypted counter values, wrapping
+        // around at the end
+        BlowfishECB bfe = new BlowfishECB(key, 0, key.length);
+        byte[] plain = new byte[1000];
+        for (int i = 0; i < plain.length; i++) {
+            plain[i] = (byte)(i * 3);
+        }
+        byte[] ref = new byte[plain.length];
+        for (int i = 0; i < plain.length; i++) {
+            long ks = bfe.encryptBlock(nonce + (i >> 3));
+            ref[i] = (byte)(plain[i] ^ (ks >>> (56 - ((i & 7) << 3))));
+        }
+
+        for (int chunk = 1; chunk < 600; chunk += 37) {
+            BlowfishCTR bft = new BlowfishCTR(key, 0, key.length, nonce);
+            byte[] enc = new byte[plain.length];
+            for (int ofs = 0; ofs < plain.length; ofs += chunk) {
+                int len = Math.min(chunk, plain.length - ofs);
+                assertEquals(len, bft.encrypt(plain, ofs, enc, ofs, len));
+            }
+            assertArrayEquals(ref, enc);
+            assertEquals(nonce + ((plain.length + 7) >> 3), bft.getCounter());
+
+            bft.setCounter(nonce);
+            bft.decrypt(enc, 0, enc, 0, enc.length);
+            assertArrayEquals(plain, enc);
+            bft.cleanUp();
+        }
+
+        // continuing at a block boundary
+        BlowfishCTR bft = new BlowfishCTR(key, 0, key.length);
+        bft.setCounter(nonce + 5);
+        byte[] part = new byte[16];
+        bft.encrypt(plain, 40, part, 0, 16);
+        assertArrayEquals(Arrays.copyOfRange(ref, 40, 56), part);
+        assertEquals(nonce + 7, bft.getCounter());
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    @Test
+    public void testCBCPadded() {
+        byte[] key = "padded".getBytes();
+        long iv = 0x0123456789abcdefL;
+        BlowfishCBC bfc = new BlowfishCBC(key, 0, key.length);
+
+        for (int len = 0; len < 40; len++) {
+            byte[] plain = new byte[len];
+            for (int i = 0; i < len; i++) {
+                plain[i] = (byte)(i * 13 + len);
+            }
+
+            // the same as padding by hand and encrypting the blocks
+            int size = BlowfishCBC.outputSize(len);
+            assertEquals(((len >> 3) + 1) << 3, size);
+            byte[] ref = Arrays.copyOf(plain, size);
+            Arrays.fill(ref, len, size, (byte)(size - len));
+            bfc.encrypt(iv, ref, 0, ref, 0, size);
+
+            byte[] enc = new byte[size + 3];
+            assertEquals(size, bfc.encryptPadded(iv, plain, 0, enc, 3, len));
+            assertArrayEquals(ref, Arrays.copyOfRange(enc, 3, size + 3));
+
+            byte[] dec = new byte[size + 1];
+            assertEquals(len, bfc.decryptPadded(iv, enc, 3, dec, 1, size));
+            assertArrayEquals(plain, Arrays.copyOfRange(dec, 1, len + 1));
+
+            // in place
+            byte[] buf = Arrays.copyOf(plain, size);
+            bfc.encryptPadded(iv, buf, 0, buf, 0, len);
+            assertArrayEquals(ref, buf);
+            assertEquals(len, bfc.decryptPadded(iv, buf, 0, buf, 0, size));
+            assertArrayEquals(plain, Arrays.copyOf(buf, len));
+        }
+
+        // every invalid padding of the last block
+        byte[] buf = new byte[16];
+        byte[] enc = new byte[16];
+        for (int padVal = 0; padVal < 256; padVal++) {
+            for (int bad = -1; bad < 8; bad++) {
+                Arrays.fill(buf, 8, 16, (byte)padVal);
+                if (-1 != bad) {
+                    buf[15 - bad] ^= 0x40;
+                }
+                int last = buf[15] & 0x0ff;
+                int expected = 1 <= last && 8 >= last ? 16 - last : -1;
+                for (int i = 16 - last; -1 != expected && i < 16; i++) {
+                    if (last != buf[i]) {
+                        expected = -1;
+                    }
+                }
+                bfc.encrypt(iv, buf, 0, enc, 0, 16);
+                assertEquals(expected,
+                             bfc.decryptPadded(iv, enc, 0, buf, 0, 16));
+            }
+        }
+        assertEquals(-1, bfc.decryptPadded(iv, enc, 0, buf, 0, 0));
+        assertEquals(-1, bfc.decryptPadded(iv, enc, 0, buf, 0, 12));
+
+        // the instance IV is left alone
+        assertEquals(0L, bfc.getCBCIV());
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    @Test
+    public void testCBCPaddedRecords() {
+        byte[] key = "padded records".getBytes();
+        BlowfishCBC bfc = new BlowfishCBC(key, 0, key.length);
+        Random rnd = new Random(0xcbc);
+
+        for (int count : new int[] { 0, 1, 3, 4, 5, 9, 100 }) {
+            long[] ivs = new long[count];
+            byte[][] inbufs = new byte[count][];
+            int[] inpos = new int[count];
+            byte[][] outbufs = new byte[count][];
+            int[] outpos = new int[count];
+            int[] lens = new int[count];
+            byte[][] refs = new byte[count][];
+
+            for (int r = 0; r < count; r++) {
+                ivs[r] = rnd.nextLong();
+                lens[r] = rnd.nextInt(0 == r % 7 ? 300 : 40);
+                inpos[r] = rnd.nextInt(5);
+                inbufs[r] = new byte[inpos[r] + lens[r] + rnd.nextInt(3)];
+                rnd.nextBytes(inbufs[r]);
+                int size = BlowfishCBC.outputSize(lens[r]);
+                refs[r] = new byte[size];
+                assertEquals(size, bfc.encryptPadded(ivs[r], inbufs[r],
+                    inpos[r], refs[r], 0, lens[r]));
+
+                // every third one in place
+                if (0 == r % 3) {
+                    inbufs[r] = Arrays.copyOf(inbufs[r], inpos[r] + size);
+                    outbufs[r] = inbufs[r];
+                    outpos[r] = inpos[r];
+                }
+                else {
+                    outpos[r] = rnd.nextInt(5);
+                    outbufs[r] = new byte[outpos[r] + size];
+                }
+            }
+
+            int[] sizes = bfc.encryptPadded(ivs, inbufs, inpos, outbufs,
+                                            outpos, lens);
+            assertEquals(count, sizes.length);
+            for (int r = 0; r < count; r++) {
+                assertEquals(refs[r].length, sizes[r]);
+                assertArrayEquals(refs[r], Arrays.copyOfRange(outbufs[r],
+                    outpos[r], outpos[r] + sizes[r]));
+            }
+        }
+        assertEquals(0L, bfc.getCBCIV());
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    @Test
+    public void testECBRows() {
+        BlowfishECB[] tenants = new BlowfishECB[300];
+        for (int t = 0; t < tenants.length; t++) {
+            byte[] key = ("tenant" + t).getBytes();
+            tenants[t] = new BlowfishECB(key, 0, key.length);
+        }
+        Random rnd = new Random(0xecb);
+
+        // below and above the size processed by a single task
+        for (int count : new int[] { 0, 1, 50, 10000 }) {
+            BlowfishECB[] keys = new BlowfishECB[count];
+            byte[][] inbufs = new byte[count][];
+            int[] inpos = new int[count];
+            byte[][] outbufs = new byte[count][];
+            int[] outpos = new int[count];
+            int[] lens = new int[count];
+            int total = 0;
+            for (int r = 0; r < count; r++) {
+                // most rows going to a few tenants
+                keys[r] = tenants[0 == (r & 1) ? r % 5 :
+                                  rnd.nextInt(tenants.length)];
+                lens[r] = 8 + rnd.nextInt(28);
+                inpos[r] = rnd.nextInt(3);
+                inbufs[r] = new byte[inpos[r] + lens[r]];
+                rnd.nextBytes(inbufs[r]);
+                outpos[r] = rnd.nextInt(3);
+                outbufs[r] = new byte[outpos[r] + lens[r]];
+                total += lens[r] & ~7;
+            }
+
+            assertEquals(total, BlowfishECB.encryptRows(keys, inbufs, inpos,
+                                                        outbufs, outpos, lens));
+            for (int r = 0; r < count; r++) {
+                int len = lens[r] & ~7;
+                byte[] ref = new byte[len];
+                keys[r].encrypt(inbufs[r], inpos[r], ref, 0, len);
+                assertArrayEquals(ref, Arrays.copyOfRange(outbufs[r],
+                    outpos[r], outpos[r] + len));
+            }
+
+            byte[][] decbufs = new byte[count][];
+            for (int r = 0; r < count; r++) {
+                decbufs[r] = new byte[lens[r]];
+            }
+            assertEquals(total, BlowfishECB.decryptRows(keys, outbufs, outpos,
+                decbufs, new int[count], lens));
+            for (int r = 0; r < count; r++) {
+                int len = lens[r] & ~7;
+                assertArrayEquals(
+                    Arrays.copyOfRange(inbufs[r], inpos[r], inpos[r] + len),
+                    Arrays.copyOf(decbufs[r], len));
+            }
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    // the CBC cipher-text of the same reference data, zero padded to 32 bytes,
+    // from Eric Young's test vectors
+    static final String BFCBC_REFCTXT =
+        "6b77b4d63006dee605b156e27403979358deb9e7154616d959f1652bd5ff92cc";
+
+    // CS3 is CBC with the last block padded with zeros, the last two blocks
+    // swapped and the then last one cut to the size of the data
+    static byte[] cs3Reference(BlowfishCBC bfc, long iv, byte[] plain) {
+        int len = plain.length;
+        int size = (len + 7) & ~7;
+        byte[] cbc = Arrays.copyOf(plain, size);
+        bfc.encrypt(iv, cbc, 0, cbc, 0, size);
+        if (8 == len) {
+            return cbc;
+        }
+        byte[] result = new byte[len];
+        System.arraycopy(cbc, 0, result, 0, size - 16);
+        System.arraycopy(cbc, size - 8, result, size - 16, 8);
+        System.arraycopy(cbc, size - 16, result, size - 8, len - size + 8);
+        return result;
+    }
+
+    @Test
+    public void testCBCCS3() {
+        BlowfishCBC bfc = new BlowfishCBC(OPENSSL_BFCFB_REFKEY, 0,
+                                          OPENSSL_BFCFB_REFKEY.length);
+        long iv = BinConverter.byteArrayToLong(OPENSSL_BFCFB_REFIV, 0);
+
+        // the reference vector, in both its unaligned and padded form
+        byte[] padded = Arrays.copyOf(OPENSSL_BFCFB_REFDATA, 32);
+        byte[] enc = new byte[32];
+        bfc.encrypt(iv, padded, 0, enc, 0, 32);
+        assertEquals(BFCBC_REFCTXT, BinConverter.bytesToHexStr(enc));
+        assertEquals(29, bfc.encryptCS3(iv, OPENSSL_BFCFB_REFDATA, 0, enc, 0,
+                                        29));
+        assertEquals(BFCBC_REFCTXT.substring(0, 32) +
+                     BFCBC_REFCTXT.substring(48, 64) +
+                     BFCBC_REFCTXT.substring(32, 42),
+                     BinConverter.bytesToHexStr(enc, 0, 29));
+        assertEquals(32, bfc.encryptCS3(iv, padded, 0, enc, 0, 32));
+        assertEquals(BFCBC_REFCTXT.substring(0, 32) +
+                     BFCBC_REFCTXT.substring(48, 64) +
+                     BFCBC_REFCTXT.substring(32, 48),
+                     BinConverter.bytesToHexStr(enc));
+        byte[] ctxt = new byte[29];
+        BinConverter.hexStrToBytes(
+            "6b77b4d63006dee605b156e27403979359f1652bd5ff92cc58deb9e715",
+            ctxt, 0, 0, 29);
+        byte[] dec = new byte[29];
+        assertEquals(29, bfc.decryptCS3(iv, ctxt, 0, dec, 0, 29));
+        assertArrayEquals(OPENSSL_BFCFB_REFDATA, dec);
+
+        Random rnd = new Random(0xc53);
+        for (int len = 8; len < 70; len++) {
+            byte[] plain = new byte[len];
+            rnd.nextBytes(plain);
+            iv = rnd.nextLong();
+            byte[] ref = cs3Reference(bfc, iv, plain);
+
+            enc = new byte[len + 3];
+            assertEquals(len, bfc.encryptCS3(iv, plain, 0, enc, 3, len));
+            assertArrayEquals(ref, Arrays.copyOfRange(enc, 3, len + 3));
+
+            dec = new byte[len + 1];
+            assertEquals(len, bfc.decryptCS3(iv, enc, 3, dec, 1, len));
+            assertArrayEquals(plain, Arrays.copyOfRange(dec, 1, len + 1));
+
+            // in place
+            byte[] buf = plain.clone();
+            bfc.encryptCS3(iv, buf, 0, buf, 0, len);
+            assertArrayEquals(ref, buf);
+            bfc.decryptCS3(iv, buf, 0, buf, 0, len);
+            assertArrayEquals(plain, buf);
+        }
+        for (int len = 0; len < 8; len++) {
+            assertEquals(-1, bfc.encryptCS3(iv, enc, 0, enc, 0, len));
+            assertEquals(-1, bfc.decryptCS3(iv, enc, 0, enc, 0, len));
+        }
+
+        // many records at once
+        for (int count : new int[] { 0, 1, 4, 5, 9, 100 }) {
+            long[] ivs = new long[count];
+            byte[][] plains = new byte[count][];
+            byte[][] inbufs = new byte[count][];
+            int[] inpos = new int[count];
+            byte[][] outbufs = new byte[count][];
+            int[] outpos = new int[count];
+            int[] lens = new int[count];
+            int total = 0;
+            for (int r = 0; r < count; r++) {
+                ivs[r] = rnd.nextLong();
+                lens[r] = 8 + rnd.nextInt(0 == r % 7 ? 300 : 40);
+                total += lens[r];
+                plains[r] = new byte[lens[r]];
+                rnd.nextBytes(plains[r]);
+                inpos[r] = rnd.nextInt(5);
+                inbufs[r] = new byte[inpos[r] + lens[r]];
+                System.arraycopy(plains[r], 0, inbufs[r], inpos[r], lens[r]);
+                // every third one in place
+                if (0 == r % 3) {
+                    outbufs[r] = inbufs[r];
+                    outpos[r] = inpos[r];
+                }
+                else {
+                    outpos[r] = rnd.nextInt(5);
+                    outbufs[r] = new byte[outpos[r] + lens[r]];
+                }
+            }
+            assertEquals(total, bfc.encryptCS3(ivs, inbufs, inpos, outbufs,
+                                               outpos, lens));
+            for (int r = 0; r < count; r++) {
+                assertArrayEquals(cs3Reference(bfc, ivs[r], plains[r]),
+                    Arrays.copyOfRange(outbufs[r], outpos[r],
+                                       outpos[r] + lens[r]));
+            }
+            assertEquals(total, bfc.decryptCS3(ivs, outbufs, outpos, outbufs,
+                                               outpos, lens));
+            for (int r = 0; r < count; r++) {
+                assertArrayEquals(plains[r], Arrays.copyOfRange(outbufs[r],
+                    outpos[r], outpos[r] + lens[r]));
+            }
+        }
+        try {
+            bfc.encryptCS3(new long[2], new byte[][] { enc, enc },
+                           new int[2], new byte[][] { enc, enc }, new int[2],
+                           new int[] { 8, 7 });
+            fail();
+        }
+        catch (IllegalArgumentException iae) {
+        }
+
+        assertEquals(0L, bfc.getCBCIV());
     }
 }
@@ -0,0 +1,234 @@
+package de.org.mchahn.crypto.blowfishj;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for the BlowfishCompressedInputStream and
+ * BlowfishCompressedOutputStream.
+ */
+public class CompressedStreamTest {
+
+    static final int[] SIZES = { 0, 1, 7, 8, 9, 100, 65535, 65536, 200001 };
+
+    static final int[] LEVELS = {
+        Deflater.DEFAULT_COMPRESSION, Deflater.BEST_SPEED,
+        Deflater.NO_COMPRESSION
+    };
+
+    static final byte[] KEY = "compressed stream test key".getBytes();
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    // log lines, compressing well
+    static byte[] logs(int size) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; sb.length() < size; i++) {
+            sb.append("{\"seq\":").append(i)
+              .append(",\"level\":\"INFO\",\"msg\":\"request served\"}\n");
+        }
+        return Arrays.copyOf(sb.toString().getBytes(StandardCharsets.UTF_8),
+                             size);
+    }
+
+    static byte[] encrypt(
+        byte[] plain,
+        boolean cfb,
+        int level) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        BlowfishCompressedOutputStream bfos =
+            new BlowfishCompressedOutputStream(
+                KEY, 0, KEY.length, baos, cfb, level);
+        for (int ofs = 0; ofs < plain.length;) {
+            int len = Math.min(plain.length - ofs, 1 + (ofs % 4093));
+            if (1 == len) {
+                bfos.write(plain[ofs]);
+            }
+            else {
+                bfos.write(plain, ofs, len);
+            }
+            ofs += len;
+        }
+        bfos.close();
+        bfos.close();
+        return baos.toByteArray();
+    }
+
+    static byte[] decrypt(byte[] enc) throws IOException {
+        BlowfishCompressedInputStream bfis = new BlowfishCompressedInputStream(
+            KEY, 0, KEY.length, new ByteArrayInputStream(enc));
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        byte[] buf = new byte[777];
+        int read;
+        while (-1 != (read = bfis.read(buf, 0, buf.length))) {
+            baos.write(buf, 0, read);
+        }
+        assertEquals(-1, bfis.read());
+        bfis.close();
+        bfis.close();
+        return baos.toByteArray();
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        for (int cfb = 0; cfb < 2; cfb++) {
+            for (int level : LEVELS) {
+                for (int size : SIZES) {
+                    byte[] plain = logs(size);
+                    byte[] enc = encrypt(plain, 1 == cfb, level);
+
+                    int flags = (1 == cfb ?
+                        BlowfishCompressedOutputStream.FLAG_CFB : 0) |
+                        (Deflater.NO_COMPRESSION == level ? 0 :
+                        BlowfishCompressedOutputStream.FLAG_DEFLATE);
+                    assertEquals(BlowfishCompressedOutputStream.FORMAT_VERSION,
+                                 enc[0]);
+                    assertEquals(flags, enc[1]);
+
+                    if (Deflater.NO_COMPRESSION == level) {
+                        int payload = 1 == cfb ? size :
+                            BlowfishCBC.outputSize(size);
+                        assertEquals(
+                            BlowfishCompressedOutputStream.HEADER_SIZE +
+                            Blowfish.BLOCKSIZE + payload, enc.length);
+                    }
+                    else if (65536 < size) {
+                        assertTrue(enc.length * 5 < size);
+                    }
+
+                    assertArrayEquals(plain, decrypt(enc));
+                }
+            }
+        }
+
+        // the plain payload in CBC mode is the same as the one of the
+        // BlowfishOutputStream, just with the header in front
+        byte[] plain = logs(1000);
+        byte[] enc = encrypt(plain, false, Deflater.NO_COMPRESSION);
+        BlowfishInputStream bis = new BlowfishInputStream(KEY, 0, KEY.length,
+            new ByteArrayInputStream(enc,
+                BlowfishCompressedOutputStream.HEADER_SIZE,
+                enc.length - BlowfishCompressedOutputStream.HEADER_SIZE));
+        assertArrayEquals(plain, bis.readAllBytes());
+        bis.close();
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    @Test
+    public void testFlush() throws IOException {
+        for (int cfb = 0; cfb < 2; cfb++) {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            BlowfishCompressedOutputStream bfos =
+                new BlowfishCompressedOutputStream(KEY, 0, KEY.length, baos,
+                    1 == cfb, Deflater.DEFAULT_COMPRESSION);
+            byte[] msg = logs(5000);
+            bfos.write(msg);
+            bfos.flush();
+
+            // everything flushed can be read, in CBC mode the held back block
+            // may cut it short only if it carries the very end of the data
+            byte[] enc = baos.toByteArray();
+            BlowfishCompressedInputStream bfis =
+                new BlowfishCompressedInputStream(KEY, 0, KEY.length,
+                    new ByteArrayInputStream(enc));
+            assertTrue(bfis.isCompressed());
+            assertEquals(1 == cfb, bfis.isCFB());
+            byte[] buf = new byte[msg.length];
+            int total = 0;
+            try {
+                while (total < buf.length) {
+                    total += bfis.read(buf, total, buf.length - total);
+                }
+            }
+            catch (IOException ioe) {
+                assertEquals(0, cfb);
+            }
+            if (1 == cfb) {
+                assertEquals(msg.length, total);
+            }
+            assertArrayEquals(Arrays.copyOf(msg, total),
+                              Arrays.copyOf(buf, total));
+
+            bfos.write(msg);
+            bfos.close();
+            byte[] both = new byte[msg.length * 2];
+            System.arraycopy(msg, 0, both, 0, msg.length);
+            System.arraycopy(msg, 0, both, msg.length, msg.length);
+            assertArrayEquals(both, decrypt(baos.toByteArray()));
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    @Test
+    public void testErrors() throws IOException {
+        byte[] enc = encrypt(logs(10000), false, Deflater.DEFAULT_COMPRESSION);
+
+        for (int cut : new int[] { 1, 8, 9, enc.length - 20 }) {
+            try {
+                decrypt(Arrays.copyOf(enc, enc.length - cut));
+                fail();
+            }
+            catch (IOException ioe) {
+            }
+        }
+
+        byte[] bad = enc.clone();
+        bad[1] |= 0x10;
+        try {
+            decrypt(bad);
+            fail();
+        }
+        catch (IOException ioe) {
+            assertTrue(ioe.getMessage().startsWith("unknown flags"));
+        }
+
+        // the compressed data goes wrong
+        bad = enc.clone();
+        bad[BlowfishCompressedOutputStream.HEADER_SIZE + 20] ^= 1;
+        try {
+            decrypt(bad);
+            fail();
+        }
+        catch (IOException ioe) {
+        }
+
+        // trailing data behind the compressed stream
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        BlowfishCompressedOutputStream bfos =
+            new BlowfishCompressedOutputStream(KEY, 0, KEY.length, baos,
+                true, Deflater.DEFAULT_COMPRESSION);
+        bfos.write(logs(100));
+        bfos.close();
+        byte[] cfb = Arrays.copyOf(baos.toByteArray(), baos.size() + 1);
+        try {
+            decrypt(cfb);
+            fail();
+        }
+        catch (IOException ioe) {
+            assertEquals("unexpected data at the end", ioe.getMessage());
+        }
+
+        BlowfishCompressedInputStream bfis = new BlowfishCompressedInputStream(
+            KEY, 0, KEY.length, new ByteArrayInputStream(
+                encrypt(new byte[0], false, Deflater.NO_COMPRESSION)));
+        assertFalse(bfis.isCompressed());
+        assertEquals(-1, bfis.read());
+        bfis.close();
+    }
+}
@@ -0,0 +1,169 @@
+package de.org.mchahn.crypto.blowfishj;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for the flight recorder events, recorded with the settings profile.
+ */
+public class EventsTest {
+
+    static List<RecordedEvent> record(Runnable work) throws Exception {
+        Path file = Files.createTempFile("blowfishj", ".jfr");
+        try {
+            try (Recording rec = new Recording(BlowfishEvents.settings())) {
+                rec.start();
+                work.run();
+                rec.stop();
+                rec.dump(file);
+            }
+            return RecordingFile.readAllEvents(file);
+        }
+        finally {
+            Files.delete(file);
+        }
+    }
+
+    static Map<String, Integer> count(List<RecordedEvent> events) {
+        Map<String, Integer> result = new HashMap<>();
+        for (RecordedEvent ev : events) {
+            String name = ev.getEventType().getName();
+            if (name.startsWith(BlowfishEvents.PREFIX)) {
+                result.merge(name.substring(BlowfishEvents.PREFIX.length()),
+                             1, Integer::sum);
+            }
+        }
+        return result;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    @Test
+    public void testEvents() throws Exception {
+        final byte[] key = "flight recorder".getBytes();
+        final byte[] big = new byte[BlowfishEvents.MIN_BYTES];
+        final byte[] small = new byte[BlowfishEvents.MIN_BYTES - 8];
+
+        List<RecordedEvent> events = record(() -> {
+            BlowfishCBC bfc = new BlowfishCBC(key, 0, key.length, 0L);
+            bfc.encrypt(big, 0, big, 0, big.length);
+            bfc.decrypt(big, 0, big, 0, big.length);
+            bfc.encrypt(small, 0, small, 0, small.length);
+            bfc.weakKeyCheck();
+            bfc.weakKeyCheck();
+
+            try {
+                ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                BlowfishOutputStream bos = new BlowfishOutputStream(
+                    key, 0, key.length, baos);
+                bos.write(small);
+                bos.close();
+                BlowfishInputStream bis = new BlowfishInputStream(key, 0,
+                    key.length, new ByteArrayInputStream(baos.toByteArray()));
+                bis.readAllBytes();
+                bis.close();
+            }
+            catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+
+        Map<String, Integer> counts = count(events);
+        assertEquals(3, (int)counts.get("KeySetup"));
+        assertEquals(1, (int)counts.get("WeakKeyCheck"));
+        assertEquals(2, (int)counts.get("Cipher"));
+        assertEquals(2, (int)counts.get("Stream"));
+
+        for (RecordedEvent ev : events) {
+            String name = ev.getEventType().getName();
+            if (name.endsWith(".Cipher")) {
+                assertEquals("CBC", ev.getString("mode"));
+                assertEquals(big.length, ev.getLong("bytes"));
+            }
+            else if (name.endsWith(".Stream")) {
+                // the IV, the data and the padding block
+                assertEquals(8 + small.length + 8, ev.getLong("transferred"));
+                assertTrue(0 < ev.getLong("lifetime"));
+            }
+            else if (name.endsWith(".KeySetup")) {
+                assertTrue(0 < ev.getInt("keyLength"));
+            }
+            else if (name.endsWith(".WeakKeyCheck")) {
+                assertFalse(ev.getBoolean("weak"));
+            }
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    @Test
+    public void testKeyCache() throws Exception {
+        Path dir = Files.createTempDirectory("bfsrv");
+        final BlowfishServer srv = new BlowfishServer(dir.resolve("s.sock"));
+        try {
+            List<RecordedEvent> events = record(() -> {
+                byte[] key = "cached".getBytes();
+                srv.key(key, 0, key.length);
+                srv.key(key, 0, key.length);
+                srv.key(key, 0, key.length);
+            });
+            int hits = 0;
+            int misses = 0;
+            for (RecordedEvent ev : events) {
+                if (ev.getEventType().getName().endsWith(".KeyCache")) {
+                    if (ev.getBoolean("hit")) {
+                        hits++;
+                    }
+                    else {
+                        misses++;
+                    }
+                    assertEquals(BlowfishServer.fingerprint(
+                        "cached".getBytes(), 0, 6), ev.getString("key"));
+                }
+            }
+            assertEquals(2, hits);
+            assertEquals(1, misses);
+        }
+        finally {
+            srv.close();
+            Files.delete(dir);
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    @Test
+    public void testDisabled() throws Exception {
+        // nothing gets recorded without the profile
+        Path file = Files.createTempFile("blowfishj", ".jfr");
+        try {
+            try (Recording rec = new Recording()) {
+                rec.start();
+                byte[] key = "off".getBytes();
+                new BlowfishECB(key, 0, key.length).encrypt(
+                    new byte[1 << 16], 0, new byte[1 << 16], 0, 1 << 16);
+                rec.stop();
+                rec.dump(file);
+            }
+            assertTrue(count(RecordingFile.readAllEvents(file)).isEmpty());
+        }
+        finally {
+            Files.delete(file);
+        }
+    }
+}
@@ -0,0 +1,341 @@
+package de.org.mchahn.crypto.blowfishj;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Flow;
+import java.util.function.BiFunction;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for the BlowfishFlowProcessor.
+ */
+public class FlowProcessorTest {
+
+    static final byte[] KEY = "flow processor test key".getBytes();
+
+    static final int[] SIZES = { 0, 1, 7, 8, 9, 16, 17, 100, 1000, 20000 };
+
+    static final int[] CHUNKS = { 1, 3, 8, 13, 64, 5000 };
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    // emits the buffers synchronously when they get requested, counting the
+    // requests made
+    static final class ListPublisher implements Flow.Publisher<ByteBuffer> {
+        final List<ByteBuffer> items;
+        long requested;
+        int next;
+        boolean emitting;
+        boolean cancelled;
+
+        ListPublisher(List<ByteBuffer> items) {
+            this.items = items;
+        }
+
+        @Override
+        public void subscribe(Flow.Subscriber<? super ByteBuffer> sub) {
+            sub.onSubscribe(new Flow.Subscription() {
+                long demand;
+
+                @Override
+                public void request(long n) {
+                    ListPublisher.this.requested += n;
+                    this.demand += n;
+                    if (ListPublisher.this.emitting) {
+                        return;
+                    }
+                    ListPublisher.this.emitting = true;
+                    List<ByteBuffer> items = ListPublisher.this.items;
+                    while (0 < this.demand &&
+                           ListPublisher.this.next < items.size() &&
+                           !ListPublisher.this.cancelled) {
+                        this.demand--;
+                        sub.onNext(items.get(ListPublisher.this.next++));
+                    }
+                    if (ListPublisher.this.next == items.size() &&
+                        !ListPublisher.this.cancelled) {
+                        ListPublisher.this.next++;
+                        sub.onComplete();
+                    }
+                    ListPublisher.this.emitting = false;
+                }
+
+                @Override
+                public void cancel() {
+                    ListPublisher.this.cancelled = true;
+                }
+            });
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    // collects everything, requesting a given number of buffers at a time
+    static final class Collector implements Flow.Subscriber<ByteBuffer> {
+        final BlowfishFlowProcessor proc;
+        final int batch;
+        final ByteArrayOutputStream data = new ByteArrayOutputStream();
+        Flow.Subscription subscription;
+        int received;
+        boolean completed;
+        Throwable error;
+
+        Collector(BlowfishFlowProcessor proc, int batch) {
+            this.proc = proc;
+            this.batch = batch;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            if (0 < this.batch) {
+                subscription.request(this.batch);
+            }
+        }
+
+        @Override
+        public void onNext(ByteBuffer item) {
+            while (item.hasRemaining()) {
+                this.data.write(item.get());
+            }
+            this.proc.release(item);
+            if (0 < this.batch && 0 == ++this.received % this.batch) {
+                this.subscription.request(this.batch);
+            }
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            this.error = throwable;
+        }
+
+        @Override
+        public void onComplete() {
+            this.completed = true;
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    static List<ByteBuffer> chunks(byte[] data, int chunk, boolean direct) {
+        List<ByteBuffer> result = new ArrayList<>();
+        for (int ofs = 0; ofs < data.length; ofs += chunk) {
+            int len = Math.min(chunk, data.length - ofs);
+            ByteBuffer buf;
+            if (direct) {
+                buf = ByteBuffer.allocateDirect(len);
+                buf.put(data, ofs, len).flip();
+            }
+            else {
+                // (with some space around it, to check offsets)
+                buf = ByteBuffer.wrap(new byte[len + 4], 2, len).slice();
+                buf.put(data, ofs, len).flip();
+            }
+            result.add(buf);
+        }
+        return result;
+    }
+
+    static Collector run(
+        BlowfishFlowProcessor proc,
+        List<ByteBuffer> input,
+        int batch) {
+        Collector col = new Collector(proc, batch);
+        proc.subscribe(col);
+        new ListPublisher(input).subscribe(proc);
+        return col;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    void roundTrip(
+        BiFunction<byte[], Integer, BlowfishFlowProcessor> encryptor,
+        BiFunction<byte[], Integer, BlowfishFlowProcessor> decryptor,
+        boolean padded) {
+        for (int size : SIZES) {
+            byte[] plain = TestData.plain(size);
+            for (int chunk : CHUNKS) {
+                for (int batch = 1; batch < 4; batch += 2) {
+                    boolean direct = 3 == batch;
+
+                    Collector enc = run(encryptor.apply(KEY, KEY.length),
+                        chunks(plain, chunk, direct), batch);
+                    assertTrue(enc.completed);
+                    assertNull(enc.error);
+                    byte[] ctxt = enc.data.toByteArray();
+                    assertEquals(Blowfish.BLOCKSIZE + (padded ?
+                        (size & ~7) + Blowfish.BLOCKSIZE : size),
+                        ctxt.length);
+
+                    Collector dec = run(decryptor.apply(KEY, KEY.length),
+                        chunks(ctxt, chunk, !direct), batch);
+                    assertTrue(dec.completed);
+                    assertNull(dec.error);
+                    assertArrayEquals(plain, dec.data.toByteArray());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testCBC() throws IOException {
+        roundTrip((k, l) -> BlowfishFlowProcessor.cbcEncryptor(k, 0, l),
+                  (k, l) -> BlowfishFlowProcessor.cbcDecryptor(k, 0, l),
+                  true);
+
+        // compatible with the streams, in both directions
+        byte[] plain = TestData.plain(1234);
+
+        Collector enc = run(BlowfishFlowProcessor.cbcEncryptor(
+            KEY, 0, KEY.length), chunks(plain, 100, false), 1);
+        BlowfishInputStream bis = new BlowfishInputStream(KEY, 0, KEY.length,
+            new ByteArrayInputStream(enc.data.toByteArray()));
+        assertArrayEquals(plain, bis.readAllBytes());
+        bis.close();
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        BlowfishOutputStream bos = new BlowfishOutputStream(KEY, 0, KEY.length,
+                                                            baos);
+        bos.write(plain);
+        bos.close();
+        Collector dec = run(BlowfishFlowProcessor.cbcDecryptor(
+            KEY, 0, KEY.length), chunks(baos.toByteArray(), 77, true), 1);
+        assertArrayEquals(plain, dec.data.toByteArray());
+    }
+
+    @Test
+    public void testCFB() {
+        roundTrip((k, l) -> BlowfishFlowProcessor.cfbEncryptor(k, 0, l),
+                  (k, l) -> BlowfishFlowProcessor.cfbDecryptor(k, 0, l),
+                  false);
+    }
+
+    @Test
+    public void testCTR() {
+        roundTrip((k, l) -> BlowfishFlowProcessor.ctrEncryptor(k, 0, l),
+                  (k, l) -> BlowfishFlowProcessor.ctrDecryptor(k, 0, l),
+                  false);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    @Test
+    public void testBackpressure() {
+        byte[] plain = TestData.plain(1000);
+        ListPublisher pub = new ListPublisher(chunks(plain, 10, false));
+
+        BlowfishFlowProcessor proc = BlowfishFlowProcessor.cbcEncryptor(
+            KEY, 0, KEY.length);
+        Collector col = new Collector(proc, 0);
+        proc.subscribe(col);
+        pub.subscribe(proc);
+
+        // no demand, no input requested
+        assertEquals(0, pub.requested);
+
+        // every input produces output, so one gets requested per output
+        col.subscription.request(3);
+        assertEquals(3, pub.requested);
+        assertEquals(3 * 10 - 6 + Blowfish.BLOCKSIZE, col.data.size());
+
+        col.subscription.request(Long.MAX_VALUE);
+        assertTrue(col.completed);
+        assertEquals(1000 + 2 * Blowfish.BLOCKSIZE, col.data.size());
+
+        // cancellation goes upstream
+        pub = new ListPublisher(chunks(plain, 10, false));
+        proc = BlowfishFlowProcessor.cbcEncryptor(KEY, 0, KEY.length);
+        col = new Collector(proc, 0);
+        proc.subscribe(col);
+        pub.subscribe(proc);
+        col.subscription.request(2);
+        int received = col.data.size();
+        // (as if an onNext() was still running on another thread)
+        assertTrue(proc.enter());
+        col.subscription.cancel();
+        assertTrue(pub.cancelled);
+        assertFalse(col.completed);
+        assertEquals(1, proc.users.get());
+        proc.leave();
+        assertEquals(0, proc.users.get());
+        // items arriving late are dropped
+        proc.onNext(ByteBuffer.wrap(plain));
+        proc.onComplete();
+        assertEquals(received, col.data.size());
+        assertFalse(col.completed);
+
+        // invalid requests fail and cancel the upstream too
+        pub = new ListPublisher(chunks(plain, 10, false));
+        proc = BlowfishFlowProcessor.cbcEncryptor(KEY, 0, KEY.length);
+        col = new Collector(proc, 0);
+        proc.subscribe(col);
+        pub.subscribe(proc);
+        col.subscription.request(0);
+        assertTrue(pub.cancelled);
+        assertTrue(col.error instanceof IllegalArgumentException);
+        assertEquals(0, proc.users.get());
+
+        // a second subscriber gets rejected
+        Collector second = new Collector(proc, 1);
+        proc.subscribe(second);
+        assertTrue(second.error instanceof IllegalStateException);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    @Test
+    public void testInvalidData() {
+        byte[] plain = TestData.plain(100);
+        Collector enc = run(BlowfishFlowProcessor.cbcEncryptor(
+            KEY, 0, KEY.length), chunks(plain, 100, false), 1);
+        byte[] ctxt = enc.data.toByteArray();
+
+        // truncated, not on a block boundary and on one
+        for (int cut : new int[] { 3, Blowfish.BLOCKSIZE }) {
+            byte[] trunc = new byte[ctxt.length - cut];
+            System.arraycopy(ctxt, 0, trunc, 0, trunc.length);
+            Collector dec = run(BlowfishFlowProcessor.cbcDecryptor(
+                KEY, 0, KEY.length), chunks(trunc, 9, false), 1);
+            assertFalse(dec.completed);
+            assertTrue(dec.error instanceof IOException);
+        }
+
+        // missing IV in the stream modes
+        Collector dec = run(BlowfishFlowProcessor.ctrDecryptor(
+            KEY, 0, KEY.length), chunks(new byte[5], 5, false), 1);
+        assertTrue(dec.error instanceof IOException);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    @Test
+    public void testBufferPool() {
+        BlowfishFlowProcessor proc = BlowfishFlowProcessor.ctrEncryptor(
+            KEY, 0, KEY.length);
+
+        ByteBuffer buf = proc.take(100);
+        assertEquals(100, buf.limit());
+        assertTrue(BlowfishFlowProcessor.MIN_BUFFER_SIZE <= buf.capacity());
+        proc.release(buf);
+        assertSame(buf, proc.take(200));
+
+        // too small ones get dropped, foreign slices are ignored
+        proc.release(buf);
+        ByteBuffer big = proc.take(BlowfishFlowProcessor.MIN_BUFFER_SIZE * 2);
+        assertTrue(buf != big);
+        proc.release(ByteBuffer.wrap(new byte[10000], 1, 9000).slice());
+        assertEquals(0, proc.pooled.get());
+    }
+}
@@ -2,7 +2,11 @@ package de.org.mchahn.crypto.blowfishj;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
 import org.junit.Test;
 
 import de.org.mchahn.crypto.blowfishj.Blowfish;
@@ -11,6 +15,9 @@ import de.org.mchahn.crypto.blowfishj.BlowfishOutputStream;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 /**
  * Simple tests for the BlowfishInputStream and BlowfishOutputStream.
@@ -80,6 +87,75 @@ public class InOutputStreamTest {
 
     ///////////////////////////////////////////////////////////////////////////
 
+    @Test
+    public void testFactory() throws Exception {
+        final byte[] key = "factory key".getBytes();
+
+        final BlowfishStreamFactory bfsf = new BlowfishStreamFactory(
+            key, 0, key.length);
+
+        // many threads sharing the factory, crossing over with the streams
+        // set up in the classic way
+
+        Thread[] threads = new Thread[4];
+        final Throwable[] errors = new Throwable[threads.length];
+
+        for (int t = 0; t < threads.length; t++) {
+            final int tn = t;
+            threads[t] = new Thread(() -> {
+                try {
+                    for (int s = 0; s < SIZES.length; s++) {
+                        byte[] plain = new byte[SIZES[s]];
+                        for (int j = 0; j < plain.length; j++) {
+                            plain[j] = (byte)(j + tn);
+                        }
+
+                        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                        OutputStream bfos = 0 == (s & 1) ?
+                            bfsf.newOutputStream(baos) :
+                            new BlowfishOutputStream(key, 0, key.length, baos);
+                        bfos.write(plain);
+                        bfos.close();
+
+                        ByteArrayInputStream bais = new ByteArrayInputStream(
+                            baos.toByteArray());
+                        InputStream bfis = 0 == (s & 2) ?
+                            bfsf.newInputStream(bais) :
+                            new BlowfishInputStream(key, 0, key.length, bais);
+                        for (int j = 0; j < plain.length; j++) {
+                            assertEquals(plain[j], (byte)bfis.read());
+                        }
+                        assertEquals(-1, bfis.read());
+                        bfis.close();
+                    }
+                }
+                catch (Throwable err) {
+                    errors[tn] = err;
+                }
+            });
+            threads[t].start();
+        }
+        for (int t = 0; t < threads.length; t++) {
+            threads[t].join();
+            assertNull(errors[t]);
+        }
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        OutputStream bfos = bfsf.newSegmentedOutputStream(
+            baos, 64, Runnable::run, 1);
+        bfos.write(new byte[1000]);
+        bfos.close();
+
+        InputStream bfis = new BlowfishSegmentedInputStream(
+            key, 0, key.length, new ByteArrayInputStream(baos.toByteArray()));
+        assertEquals(1000, bfis.readAllBytes().length);
+        bfis.close();
+
+        bfsf.destroy();
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
     // (this reference data was produced in C# with Blowfish.NET; its main
     // purpose is to test cross-platform compatibility)
 
@@ -127,4 +203,109 @@ public class InOutputStreamTest {
 
         bfis.close();
     }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    // counts what gets read from a stream, optionally hiding how much of it
+    // is available, like network streams do
+    static final class CountingInputStream extends FilterInputStream {
+        final boolean hideAvailable;
+        long read;
+
+        CountingInputStream(InputStream is, boolean hideAvailable) {
+            super(is);
+            this.hideAvailable = hideAvailable;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int result = super.read();
+            this.read += -1 == result ? 0 : 1;
+            return result;
+        }
+
+        @Override
+        public int read(byte[] buf, int ofs, int len) throws IOException {
+            int result = super.read(buf, ofs, len);
+            this.read += Math.max(0, result);
+            return result;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return this.hideAvailable ? 0 : super.available();
+        }
+    }
+
+    @Test
+    public void testSkip() throws IOException {
+        byte[] key = "skipping".getBytes();
+        for (int size : SIZES) {
+            byte[] plain = new byte[size];
+            for (int i = 0; i < size; i++) {
+                plain[i] = (byte)(i * 7);
+            }
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            OutputStream bfos = new BlowfishOutputStream(key, 0, key.length,
+                                                         baos);
+            bfos.write(plain);
+            bfos.close();
+            byte[] enc = baos.toByteArray();
+
+            for (boolean hide : new boolean[] { false, true }) {
+                for (int first : new int[] { 0, 3, 8, 13 }) {
+                    for (int n : new int[] {
+                            0, 1, 7, 8, 9, 16, 23, size - first - 1,
+                            size - first, size + 100 }) {
+                        CountingInputStream cis = new CountingInputStream(
+                            new ByteArrayInputStream(enc), hide);
+                        InputStream bfis = new BlowfishInputStream(key, 0,
+                            key.length, cis);
+                        int pos = Math.min(first, size);
+                        for (int i = 0; i < pos; i++) {
+                            assertEquals(plain[i], (byte)bfis.read());
+                        }
+                        long expected = Math.max(0, Math.min(n, size - pos));
+                        assertEquals(expected, bfis.skip(n));
+                        pos += expected;
+                        byte[] rest = bfis.readAllBytes();
+                        assertEquals(size - pos, rest.length);
+                        for (int i = 0; i < rest.length; i++) {
+                            assertEquals(plain[pos + i], rest[i]);
+                        }
+                        bfis.close();
+                    }
+                }
+            }
+
+            // skipping to the end only reads the last blocks, besides what
+            // got buffered when the stream was opened
+            CountingInputStream cis = new CountingInputStream(
+                new ByteArrayInputStream(enc), false);
+            InputStream bfis = new BlowfishInputStream(key, 0, key.length,
+                                                       cis);
+            assertEquals(size, bfis.skip(Long.MAX_VALUE));
+            assertEquals(-1, bfis.read());
+            assertTrue(size < 65536 || cis.read < size / 4);
+            bfis.close();
+        }
+
+        // the padding still gets checked
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        OutputStream bfos = new BlowfishOutputStream(key, 0, key.length,
+                                                     baos);
+        bfos.write(new byte[1000]);
+        bfos.close();
+        byte[] enc = baos.toByteArray();
+        enc[enc.length - 9] ^= 1;
+        InputStream bfis = new BlowfishInputStream(key, 0, key.length,
+            new ByteArrayInputStream(enc));
+        try {
+            bfis.skip(2000);
+            fail();
+        }
+        catch (IOException ioe) {
+        }
+        bfis.close();
+    }
 }
@@ -0,0 +1,166 @@
+package de.org.mchahn.crypto.blowfishj;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for the BlowfishMetrics. The histograms get tested in any case, the
+ * hooks only if the instrumentation got enabled, e.g. by running the tests
+ * with -Dblowfishj.metrics=true.
+ */
+public class MetricsTest {
+
+    @Test
+    public void testHistogramBuckets() {
+        // exact for small values, then within 1/16 of the value
+        for (long val = 0; val < 32; val++) {
+            int idx = BlowfishMetrics.Histogram.index(val);
+            assertEquals(val, idx);
+            assertEquals(val, BlowfishMetrics.Histogram.highest(idx));
+        }
+        int last = -1;
+        for (long val = 32; val > 0 && val < Long.MAX_VALUE / 3;
+             val += (val / 7) + 1) {
+            int idx = BlowfishMetrics.Histogram.index(val);
+            assertTrue(idx >= last);
+            assertTrue(idx < BlowfishMetrics.Histogram.BUCKETS);
+            long high = BlowfishMetrics.Histogram.highest(idx);
+            assertTrue(high >= val);
+            assertTrue(high - val <= val >> 4);
+            assertEquals(idx, BlowfishMetrics.Histogram.index(high));
+            assertEquals(idx + 1, BlowfishMetrics.Histogram.index(high + 1));
+            last = idx;
+        }
+        assertEquals(BlowfishMetrics.Histogram.BUCKETS - 1,
+                     BlowfishMetrics.Histogram.index(Long.MAX_VALUE));
+        assertEquals(0, BlowfishMetrics.Histogram.index(-5));
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    @Test
+    public void testHistogramPercentiles() {
+        BlowfishMetrics.Histogram hist = new BlowfishMetrics.Histogram();
+        assertEquals(0, hist.getP50());
+        assertEquals(0, hist.getMean());
+
+        for (int i = 1; i <= 1000; i++) {
+            hist.record(i * 1000L);
+        }
+        assertEquals(1000, hist.getCount());
+        assertEquals(500500000L, hist.getSum());
+        assertEquals(1000000L, hist.getMax());
+        assertEquals(500500L, hist.getMean());
+
+        long[][] expected = {
+            { 50, 500000 }, { 90, 900000 }, { 99, 990000 }, { 100, 1000000 }
+        };
+        for (long[] exp : expected) {
+            long val = hist.getValueAtPercentile(exp[0]);
+            assertTrue(val >= exp[1]);
+            assertTrue(val <= exp[1] + (exp[1] >> 4));
+        }
+
+        hist.reset();
+        assertEquals(0, hist.getCount());
+        assertEquals(0, hist.getP99());
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    @Test
+    public void testHooks() throws Exception {
+        Assume.assumeTrue(BlowfishMetrics.ENABLED);
+
+        byte[] key = "metrics".getBytes();
+        byte[] data = new byte[100];
+
+        // (a zero IV and a block with a padding value out of range)
+        byte[] badPad = new byte[16];
+        badPad[15] = Blowfish.BLOCKSIZE + 1;
+        BlowfishCBC bfcs = BlowfishStreamFactory.createCipher(
+            key, 0, key.length);
+        bfcs.encrypt(0L, badPad, 8, badPad, 8, 8);
+
+        BlowfishMetrics.reset();
+
+        BlowfishECB bfe = new BlowfishECB(key, 0, key.length);
+        bfe.encrypt(data, 0, data, 0, data.length);
+        bfe.decrypt(data, 0, data, 0, data.length);
+        BlowfishCBC bfc = new BlowfishCBC(key, 0, key.length, 0L);
+        bfc.encrypt(data, 0, data, 0, data.length);
+        bfc.decrypt(data, 0, data, 0, data.length);
+        BlowfishCTR bft = new BlowfishCTR(key, 0, key.length);
+        bft.decrypt(data, 0, data, 0, data.length);
+
+        assertEquals(96, BlowfishMetrics.getBytesEncrypted(
+            BlowfishMetrics.Mode.ECB));
+        assertEquals(96, BlowfishMetrics.getBytesDecrypted(
+            BlowfishMetrics.Mode.ECB));
+        assertEquals(96, BlowfishMetrics.getBytesEncrypted(
+            BlowfishMetrics.Mode.CBC));
+        assertEquals(96, BlowfishMetrics.getBytesDecrypted(
+            BlowfishMetrics.Mode.CBC));
+        assertEquals(0, BlowfishMetrics.getBytesEncrypted(
+            BlowfishMetrics.Mode.CTR));
+        assertEquals(100, BlowfishMetrics.getBytesDecrypted(
+            BlowfishMetrics.Mode.CTR));
+        assertEquals(3, BlowfishMetrics.getKeySetups());
+        assertEquals(2, BlowfishMetrics.getEncryptTimes().getCount());
+        assertEquals(3, BlowfishMetrics.getDecryptTimes().getCount());
+
+        // streams, with a padding failure at the end
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        BlowfishOutputStream bos = new BlowfishOutputStream(
+            key, 0, key.length, baos);
+        bos.write(data);
+        bos.close();
+        byte[] enc = baos.toByteArray();
+
+        BlowfishInputStream bis = new BlowfishInputStream(
+            key, 0, key.length, new ByteArrayInputStream(enc));
+        bis.readAllBytes();
+        bis.close();
+
+        bis = new BlowfishInputStream(key, 0, key.length,
+                                      new ByteArrayInputStream(badPad));
+        try {
+            bis.readAllBytes();
+            fail();
+        }
+        catch (IOException ioe) {
+        }
+        bis.close();
+
+        assertEquals(6, BlowfishMetrics.getKeySetups());
+        assertEquals(3, BlowfishMetrics.getStreamsOpened());
+        assertEquals(3, BlowfishMetrics.getStreamsClosed());
+        assertEquals(3, BlowfishMetrics.getStreamOpenTimes().getCount());
+        assertTrue(0 < BlowfishMetrics.getStreamReadTimes().getCount());
+        assertEquals(1, BlowfishMetrics.getPaddingFailures());
+
+        // the very same numbers via JMX
+        MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(BlowfishMetrics.OBJECT_NAME);
+        assertEquals(1L, mbs.getAttribute(name, "PaddingFailures"));
+        assertEquals(BlowfishMetrics.getKeySetups(),
+                     mbs.getAttribute(name, "KeySetups"));
+        CompositeData setups = (CompositeData)mbs.getAttribute(
+            name, "KeySetupTimes");
+        assertEquals(BlowfishMetrics.getKeySetups(), setups.get("count"));
+        assertTrue((Long)setups.get("p50") > 0);
+    }
+}
@@ -0,0 +1,301 @@
+package de.org.mchahn.crypto.blowfishj;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Performance regression gate, not part of the regular tests. It runs with
+ * the "perf" profile, i.e. mvn -Pperf test, measuring key setup, the bulk
+ * modes and the streams, and fails if any of the results drops below its
+ * baseline by more than the tolerance configured. The results are written as
+ * JSON to target/perf-results.json, for tracking trends.<p>
+ * Baselines depend on the machine, so the baseline file keeps them per
+ * machine, with the values prefixed by its identifier (derived from the
+ * operating system, the architecture, the number of processors and the Java
+ * version, or set explicitly with -Dblowfishj.perf.machine=...). The first
+ * run on a machine without a baseline only records one and passes; the gate
+ * fails only once a baseline for the current machine exists. To make it
+ * meaningful on CI either commit the baseline recorded on the runner, or
+ * keep the file (-Dblowfishj.perf.baseline=...) somewhere persisting between
+ * builds. Adding -Dblowfishj.perf.update=true records the results again,
+ * keeping the tolerances, which need to stay clearly below 0.5, otherwise
+ * halving the throughput could pass, depending on the noise.</p>
+ */
+public class PerformanceGate {
+
+    static final Path BASELINE = Paths.get(System.getProperty(
+        "blowfishj.perf.baseline", "src/test/perf/baseline.properties"));
+    static final Path RESULTS = Paths.get(System.getProperty(
+        "blowfishj.perf.results", "target/perf-results.json"));
+    static final boolean UPDATE = Boolean.getBoolean("blowfishj.perf.update");
+    static final String MACHINE = System.getProperty("blowfishj.perf.machine",
+                                                     machine());
+
+    // each measurement is the best of some rounds, after a warm-up
+    static final long ROUND_MILLIS = Long.getLong("blowfishj.perf.millis", 300);
+    static final int ROUNDS = 7;
+
+    static final int BULK_SIZE = 1 << 16;
+    static final int STREAM_SIZE = 1 << 16;
+
+    static final String TOLERANCE = ".tolerance";
+    static final String DEFAULT_TOLERANCE = "default.tolerance";
+
+    interface Work {
+        // does one unit of work, returns the number of MB or operations
+        double run() throws IOException;
+    }
+
+    static final class Metric {
+        final String name;
+        final String unit;
+        final Work work;
+
+        Metric(String name, String unit, Work work) {
+            this.name = name;
+            this.unit = unit;
+            this.work = work;
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    static String machine() {
+        String id = System.getProperty("os.name") + "-" +
+                    System.getProperty("os.arch") + "-" +
+                    Runtime.getRuntime().availableProcessors() + "cpu-java" +
+                    Runtime.version().feature();
+        return id.toLowerCase(Locale.ROOT).replaceAll("[^a-z0-9]+", "-");
+    }
+
+    static String key(String name) {
+        return MACHINE + "." + name;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    static double measure(Work work, long millis) throws IOException {
+        double total = 0.0;
+        long start = System.nanoTime();
+        long end = start + millis * 1000000L;
+        long now;
+        do {
+            total += work.run();
+        }
+        while ((now = System.nanoTime()) < end);
+        return total * 1e9 / (now - start);
+    }
+
+    static double best(Work work) throws IOException {
+        measure(work, ROUND_MILLIS);
+        double result = 0.0;
+        for (int r = 0; r < ROUNDS; r++) {
+            result = Math.max(result, measure(work, ROUND_MILLIS));
+        }
+        return result;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    static List<Metric> metrics() {
+        final byte[] key = "performance gate".getBytes();
+        final byte[] buf = new byte[BULK_SIZE];
+        final byte[] data = new byte[STREAM_SIZE];
+
+        final BlowfishECB ecb = new BlowfishECB(key, 0, key.length);
+        final BlowfishCBC cbc = new BlowfishCBC(key, 0, key.length);
+        final BlowfishCFB cfb = new BlowfishCFB(key, 0, key.length);
+
+        final byte[] stream;
+        try {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            OutputStream os = new BlowfishOutputStream(key, 0, key.length,
+                                                       baos);
+            os.write(data);
+            os.close();
+            stream = baos.toByteArray();
+        }
+        catch (IOException ioe) {
+            throw new IllegalStateException(ioe);
+        }
+
+        final double mb = 1e6;
+        List<Metric> result = new ArrayList<>();
+        result.add(new Metric("keysetup", "ops/s", () -> {
+            ecb.initialize(key, 0, key.length);
+            return 1.0;
+        }));
+        result.add(new Metric("ecb.encrypt", "MB/s",
+            () -> ecb.encrypt(buf, 0, buf, 0, buf.length) / mb));
+        result.add(new Metric("ecb.decrypt", "MB/s",
+            () -> ecb.decrypt(buf, 0, buf, 0, buf.length) / mb));
+        result.add(new Metric("cbc.encrypt", "MB/s",
+            () -> cbc.encrypt(buf, 0, buf, 0, buf.length) / mb));
+        result.add(new Metric("cbc.decrypt", "MB/s",
+            () -> cbc.decrypt(buf, 0, buf, 0, buf.length) / mb));
+        result.add(new Metric("cfb.encrypt", "MB/s",
+            () -> cfb.encrypt(buf, 0, buf, 0, buf.length) / mb));
+        result.add(new Metric("cfb.decrypt", "MB/s",
+            () -> cfb.decrypt(buf, 0, buf, 0, buf.length) / mb));
+        result.add(new Metric("stream.output", "MB/s", () -> {
+            OutputStream os = new BlowfishOutputStream(key, 0, key.length,
+                OutputStream.nullOutputStream());
+            os.write(data);
+            os.close();
+            return data.length / mb;
+        }));
+        result.add(new Metric("stream.input", "MB/s", () -> {
+            InputStream is = new BlowfishInputStream(key, 0, key.length,
+                new ByteArrayInputStream(stream));
+            int total = is.readAllBytes().length;
+            is.close();
+            return total / mb;
+        }));
+        return result;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    static void writeJson(
+        List<Metric> metrics,
+        Map<String, Double> results,
+        Properties baseline) throws IOException {
+        Path parent = RESULTS.toAbsolutePath().getParent();
+        if (null != parent) {
+            Files.createDirectories(parent);
+        }
+        try (Writer wr = Files.newBufferedWriter(RESULTS,
+                                                 StandardCharsets.UTF_8)) {
+            wr.write("{\n");
+            wr.write("  \"machine\": \"" + MACHINE + "\",\n");
+            wr.write("  \"timestamp\": \"" + Instant.now() + "\",\n");
+            wr.write("  \"java\": \"" + System.getProperty("java.version") +
+                     "\",\n");
+            wr.write("  \"os\": \"" + System.getProperty("os.name") + " " +
+                     System.getProperty("os.arch") + "\",\n");
+            wr.write("  \"processors\": " +
+                     Runtime.getRuntime().availableProcessors() + ",\n");
+            wr.write("  \"results\": {");
+            String sep = "\n";
+            for (Metric metric : metrics) {
+                String base = baseline.getProperty(key(metric.name));
+                wr.write(sep);
+                wr.write(String.format(Locale.ROOT,
+                    "    \"%s\": { \"value\": %.3f, \"unit\": \"%s\"",
+                    metric.name, results.get(metric.name), metric.unit));
+                if (null != base) {
+                    wr.write(String.format(Locale.ROOT,
+                        ", \"baseline\": %s, \"tolerance\": %s",
+                        base, tolerance(baseline, metric.name)));
+                }
+                wr.write(" }");
+                sep = ",\n";
+            }
+            wr.write("\n  }\n}\n");
+        }
+    }
+
+    static double tolerance(Properties baseline, String name) {
+        return Double.parseDouble(baseline.getProperty(name + TOLERANCE,
+            baseline.getProperty(DEFAULT_TOLERANCE, "0.5")));
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    static void updateBaseline(
+        List<Metric> metrics,
+        Map<String, Double> results) throws IOException {
+        // keeps everything but the values of the metrics for this machine,
+        // like the comments, the tolerances and the other machines
+        List<String> lines = Files.exists(BASELINE) ?
+            Files.readAllLines(BASELINE, StandardCharsets.UTF_8) :
+            new ArrayList<>();
+        for (Metric metric : metrics) {
+            String name = key(metric.name);
+            String line = String.format(Locale.ROOT, "%s=%.1f", name,
+                                        results.get(metric.name));
+            boolean found = false;
+            for (int i = 0; i < lines.size(); i++) {
+                if (lines.get(i).startsWith(name + "=")) {
+                    lines.set(i, line);
+                    found = true;
+                }
+            }
+            if (!found) {
+                lines.add(line);
+            }
+        }
+        Files.write(BASELINE, lines, StandardCharsets.UTF_8);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    @Test
+    public void testRegressions() throws IOException {
+        Properties baseline = new Properties();
+        if (Files.exists(BASELINE)) {
+            try (InputStream is = Files.newInputStream(BASELINE)) {
+                baseline.load(is);
+            }
+        }
+
+        List<Metric> metrics = metrics();
+        Map<String, Double> results = new LinkedHashMap<>();
+        for (Metric metric : metrics) {
+            double value = best(metric.work);
+            results.put(metric.name, value);
+            System.out.println(String.format(Locale.ROOT,
+                "%-14s %12.1f %s", metric.name, value, metric.unit));
+        }
+
+        writeJson(metrics, results, baseline);
+
+        boolean recorded = false;
+        for (Metric metric : metrics) {
+            recorded |= null != baseline.getProperty(key(metric.name));
+        }
+        if (UPDATE || !recorded) {
+            updateBaseline(metrics, results);
+            System.out.println("baseline for " + MACHINE + " recorded in " +
+                               BASELINE);
+            return;
+        }
+
+        List<String> regressions = new ArrayList<>();
+        for (Metric metric : metrics) {
+            String base = baseline.getProperty(key(metric.name));
+            if (null == base) {
+                continue;
+            }
+            double expected = Double.parseDouble(base);
+            double min = expected * (1.0 - tolerance(baseline, metric.name));
+            double value = results.get(metric.name);
+            if (value < min) {
+                regressions.add(String.format(Locale.ROOT,
+                    "%s: %.1f %s, baseline %.1f, minimum %.1f",
+                    metric.name, value, metric.unit, expected, min));
+            }
+        }
+        assertTrue("performance regressions:\n" +
+                   String.join("\n", regressions), regressions.isEmpty());
+    }
+}
@@ -0,0 +1,300 @@
+package de.org.mchahn.crypto.blowfishj;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for the BlowfishSegmentedInputStream and BlowfishSegmentedOutputStream.
+ */
+public class SegmentedStreamTest {
+
+    static final int[] SIZES = {
+        0, 1, 7, 8, 9, 15, 16, 17, 31, 32, 33, 64, 1000, 65537
+    };
+
+    static final int[] SEGMENT_SIZES = { 8, 16, 24, 1024 };
+
+    static final byte[] KEY = "segmented stream test key".getBytes();
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    static byte[] encrypt(
+        byte[] plain,
+        int segmentSize,
+        ExecutorService exec,
+        boolean bytewise) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+
+        BlowfishSegmentedOutputStream bfos = new BlowfishSegmentedOutputStream(
+            KEY, 0, KEY.length, baos, segmentSize, exec, 3);
+
+        if (bytewise) {
+            for (byte b : plain) {
+                bfos.write(b);
+            }
+        }
+        else {
+            // (odd chunks to cross segment boundaries in all kinds of ways)
+            for (int ofs = 0; ofs < plain.length;) {
+                int len = Math.min(plain.length - ofs, 1 + (ofs % 37));
+                bfos.write(plain, ofs, len);
+                ofs += len;
+            }
+        }
+        bfos.close();
+        bfos.close();
+
+        return baos.toByteArray();
+    }
+
+    static byte[] decrypt(
+        byte[] enc,
+        ExecutorService exec,
+        boolean bytewise) throws IOException {
+        BlowfishSegmentedInputStream bfis = new BlowfishSegmentedInputStream(
+            KEY, 0, KEY.length, new ByteArrayInputStream(enc), exec, 2);
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+
+        if (bytewise) {
+            int b;
+            while (-1 != (b = bfis.read())) {
+                baos.write(b);
+            }
+        }
+        else {
+            byte[] buf = new byte[13];
+            int read;
+            while (-1 != (read = bfis.read(buf, 0, buf.length))) {
+                baos.write(buf, 0, read);
+            }
+        }
+        assertEquals(-1, bfis.read());
+
+        bfis.close();
+        bfis.close();
+
+        return baos.toByteArray();
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        ExecutorService exec = Executors.newFixedThreadPool(4);
+        try {
+            for (int segSize : SEGMENT_SIZES) {
+                for (int size : SIZES) {
+                    byte[] plain = new byte[size];
+                    for (int i = 0; i < size; i++) {
+                        plain[i] = (byte)(i * 7);
+                    }
+
+                    for (int mode = 0; mode < 4; mode++) {
+                        byte[] enc = encrypt(plain, segSize, exec,
+                                             0 != (mode & 1));
+
+                        int segs = size / segSize + 1;
+                        int last = size % segSize;
+                        assertEquals(
+                            BlowfishSegmentedOutputStream.HEADER_SIZE +
+                            segs * Blowfish.BLOCKSIZE +
+                            (size - last) +
+                            (last - last % Blowfish.BLOCKSIZE) +
+                            Blowfish.BLOCKSIZE,
+                            enc.length);
+
+                        assertEquals(
+                            BlowfishSegmentedOutputStream.FORMAT_VERSION,
+                            enc[0]);
+                        assertEquals(segSize,
+                            BinConverter.byteArrayToInt(enc, 1));
+
+                        assertArrayEquals(plain,
+                            decrypt(enc, exec, 0 != (mode & 2)));
+                    }
+                }
+            }
+        }
+        finally {
+            exec.shutdown();
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    @Test
+    public void testDefaults() throws IOException {
+        byte[] plain = new byte[(BlowfishSegmentedOutputStream.
+                                 DEFAULT_SEGMENT_SIZE * 3) + 5];
+        for (int i = 0; i < plain.length; i++) {
+            plain[i] = (byte)(i >>> 3);
+        }
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+
+        BlowfishSegmentedOutputStream bfos = new BlowfishSegmentedOutputStream(
+            KEY, 0, KEY.length, baos);
+        bfos.write(plain);
+        bfos.close();
+
+        BlowfishSegmentedInputStream bfis = new BlowfishSegmentedInputStream(
+            KEY, 0, KEY.length, new ByteArrayInputStream(baos.toByteArray()));
+
+        assertEquals(BlowfishSegmentedOutputStream.DEFAULT_SEGMENT_SIZE,
+                     bfis.getSegmentSize());
+        assertArrayEquals(plain, bfis.readAllBytes());
+        bfis.close();
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    @Test
+    public void testCloseWhileEncrypting() throws Exception {
+        // the tasks get run by hand: the first one right away, the second
+        // one on a thread of its own, the last one never
+        final List<Runnable> tasks = new ArrayList<>();
+        final int segmentSize = 1 << 22;
+        BrokenStream broken = new BrokenStream();
+        BlowfishSegmentedOutputStream bfos = new BlowfishSegmentedOutputStream(
+            KEY, 0, KEY.length, broken, segmentSize, tasks::add, 3);
+
+        byte[] plain = new byte[segmentSize * 2];
+        for (int i = 0; i < plain.length; i++) {
+            plain[i] = (byte)(i * 7);
+        }
+        bfos.write(plain, 0, plain.length);
+        BlowfishSegmentedOutputStream.Segment running = bfos.pending.getLast();
+
+        tasks.get(0).run();
+        Thread worker = new Thread(tasks.get(1));
+        worker.start();
+        while (!running.claimed.get()) {
+            Thread.yield();
+        }
+
+        // writing the first segment fails, the second one is still busy
+        try {
+            bfos.close();
+            fail();
+        }
+        catch (IOException expected) {
+        }
+        assertEquals(3, tasks.size());
+        assertTrue(broken.closed);
+        assertNull(bfos.bfc);
+
+        // close() waited for the segment, whose cipher-text is intact, so the
+        // key schedule did not get wiped in the middle of it
+        assertTrue(running.done.isDone());
+        assertFalse(running.done.isCancelled());
+        worker.join();
+        BlowfishCBC bfc = BlowfishStreamFactory.createCipher(
+            KEY, 0, KEY.length);
+        byte[] dec = new byte[segmentSize];
+        bfc.decrypt(BinConverter.byteArrayToLong(running.buf, 0),
+                    running.buf, Blowfish.BLOCKSIZE, dec, 0, segmentSize);
+        bfc.cleanUp();
+        assertArrayEquals(Arrays.copyOfRange(plain, segmentSize,
+                                             plain.length), dec);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    @Test
+    public void testCorruption() throws IOException {
+        ExecutorService exec = Executors.newFixedThreadPool(2);
+        try {
+            byte[] plain = new byte[100];
+            byte[] enc = encrypt(plain, 16, exec, false);
+
+            // truncated in the middle of the last segment
+            byte[] trunc = new byte[enc.length - 3];
+            System.arraycopy(enc, 0, trunc, 0, trunc.length);
+            expectFailure(trunc, exec);
+
+            // last segment removed entirely
+            trunc = new byte[enc.length - 2 * Blowfish.BLOCKSIZE];
+            System.arraycopy(enc, 0, trunc, 0, trunc.length);
+            expectFailure(trunc, exec);
+
+            // unknown version
+            byte[] bad = enc.clone();
+            bad[0] = 42;
+            expectFailure(bad, exec);
+
+            // invalid segment size
+            bad = enc.clone();
+            bad[4] = 9;
+            expectFailure(bad, exec);
+
+            // damaged padding (through the IV of the single block segment)
+            bad = enc.clone();
+            bad[bad.length - Blowfish.BLOCKSIZE - 1] ^= 0x55;
+            expectFailure(bad, exec);
+
+            // a failing target still gets closed, and the key schedule wiped
+            BrokenStream broken = new BrokenStream();
+            BlowfishSegmentedOutputStream bfos =
+                new BlowfishSegmentedOutputStream(KEY, 0, KEY.length,
+                                                  broken, 16, exec, 3);
+            bfos.write(plain, 0, 40);
+            try {
+                bfos.close();
+                fail();
+            }
+            catch (IOException expected) {
+            }
+            assertTrue(broken.closed);
+            assertNull(bfos.bfc);
+            assertTrue(bfos.pending.isEmpty());
+            bfos.close();
+        }
+        finally {
+            exec.shutdown();
+        }
+    }
+
+    // takes the header, fails on anything after it
+    static final class BrokenStream extends OutputStream {
+        int written;
+        boolean closed;
+
+        @Override
+        public void write(int b) throws IOException {
+            if (BlowfishSegmentedOutputStream.HEADER_SIZE <= this.written++) {
+                throw new IOException("disk full");
+            }
+        }
+
+        @Override
+        public void close() {
+            this.closed = true;
+        }
+    }
+
+    static void expectFailure(byte[] enc, ExecutorService exec) {
+        try {
+            decrypt(enc, exec, false);
+            fail();
+        }
+        catch (IOException expected) {
+        }
+    }
+}
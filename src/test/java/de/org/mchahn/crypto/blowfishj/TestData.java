@@ -0,0 +1,30 @@
+package de.org.mchahn.crypto.blowfishj;
+
+/**
+ * Test data shared by the test cases.
+ */
+final class TestData {
+
+    private TestData() {
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Creates plaintext, a pattern not repeating within a block or a page.
+     * @param size number of bytes
+     * @param seed to get different data of the same size
+     * @return the data
+     */
+    static byte[] plain(int size, int seed) {
+        byte[] result = new byte[size];
+        for (int i = 0; i < size; i++) {
+            result[i] = (byte)(i * 7 + (i >> 8) + seed);
+        }
+        return result;
+    }
+
+    static byte[] plain(int size) {
+        return plain(size, 0);
+    }
+}
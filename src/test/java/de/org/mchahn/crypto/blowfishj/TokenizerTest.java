@@ -0,0 +1,142 @@
+package de.org.mchahn.crypto.blowfishj;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for the BlowfishTokenizer, with and without a cache.
+ */
+public class TokenizerTest {
+
+    static final byte[] KEY = "tokenizer key".getBytes();
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    @Test
+    public void testMapping() {
+        BlowfishECB bfe = new BlowfishECB(KEY, 0, KEY.length);
+        BlowfishTokenizer plain = new BlowfishTokenizer(KEY, 0, KEY.length);
+        BlowfishTokenizer cached = new BlowfishTokenizer(KEY, 0, KEY.length,
+                                                         100);
+        assertEquals(0, plain.getCacheSize());
+        assertEquals(128, cached.getCacheSize());
+        assertEquals(4, new BlowfishTokenizer(KEY, 0, KEY.length, 1)
+                            .getCacheSize());
+
+        // way more IDs than the cache holds, most of them asked for often
+        Random rnd = new Random(0x70c);
+        Set<Long> ids = new HashSet<>();
+        Set<Long> tokens = new HashSet<>();
+        for (int i = 0; i < 20000; i++) {
+            long id = 0 == i % 10 ? rnd.nextLong() : rnd.nextInt(50);
+            long token = bfe.encryptBlock(id);
+            assertEquals(token, plain.tokenize(id));
+            assertEquals(token, cached.tokenize(id));
+            assertEquals(id, plain.detokenize(token));
+            assertEquals(id, cached.detokenize(token));
+            // (tokens never seen before, so they come from the cipher)
+            long other = rnd.nextLong();
+            assertEquals(bfe.decryptBlock(other), cached.detokenize(other));
+            ids.add(id);
+            tokens.add(token);
+        }
+        for (long id : new long[] { 0L, -1L, Long.MIN_VALUE }) {
+            assertEquals(bfe.encryptBlock(id), cached.tokenize(id));
+            assertEquals(id, cached.detokenize(cached.tokenize(id)));
+        }
+        assertEquals(ids.size(), tokens.size());
+
+        cached.clearCache();
+        assertEquals(bfe.encryptBlock(7L), cached.tokenize(7L));
+
+        cached.cleanUp();
+        plain.cleanUp();
+
+        for (int size : new int[] {
+                -1, BlowfishTokenizer.MAX_CACHE_SIZE + 1 }) {
+            try {
+                new BlowfishTokenizer(KEY, 0, KEY.length, size);
+                fail();
+            }
+            catch (IllegalArgumentException iae) {
+            }
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    @Test
+    public void testBulk() {
+        BlowfishECB bfe = new BlowfishECB(KEY, 0, KEY.length);
+        Random rnd = new Random(0xb01c);
+        for (int cacheSize : new int[] { 0, 16 }) {
+            BlowfishTokenizer bft = new BlowfishTokenizer(KEY, 0, KEY.length,
+                                                          cacheSize);
+            long[] ids = new long[1000];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = rnd.nextInt(40);
+            }
+            long[] expected = new long[ids.length];
+            for (int i = 0; i < ids.length; i++) {
+                expected[i] = bfe.encryptBlock(ids[i]);
+            }
+
+            long[] tokens = new long[ids.length + 2];
+            bft.tokenize(ids, 0, tokens, 2, ids.length);
+            for (int i = 0; i < ids.length; i++) {
+                assertEquals(expected[i], tokens[i + 2]);
+            }
+            long[] back = new long[ids.length];
+            bft.detokenize(tokens, 2, back, 0, ids.length);
+            assertArrayEquals(ids, back);
+
+            // in place
+            bft.tokenize(back, 0, back, 0, back.length);
+            assertArrayEquals(expected, back);
+            bft.detokenize(back, 0, back, 0, back.length);
+            assertArrayEquals(ids, back);
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    @Test
+    public void testConcurrent() throws InterruptedException {
+        BlowfishECB bfe = new BlowfishECB(KEY, 0, KEY.length);
+        // a tiny cache, so the threads keep replacing each other's mappings
+        BlowfishTokenizer bft = new BlowfishTokenizer(KEY, 0, KEY.length, 8);
+
+        AtomicInteger errors = new AtomicInteger();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            final Random rnd = new Random(t);
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < 200000; i++) {
+                    long id = rnd.nextInt(64);
+                    long token = bft.tokenize(id);
+                    if (bfe.encryptBlock(id) != token ||
+                        id != bft.detokenize(token)) {
+                        errors.incrementAndGet();
+                    }
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(0, errors.get());
+    }
+}
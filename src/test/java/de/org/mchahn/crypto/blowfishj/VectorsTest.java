@@ -23,6 +23,9 @@ public class VectorsTest {
             long plainl = TEST_DATA[i++];
             long cipherl = TEST_DATA[i++];
 
+            final long plainRef = plainl;
+            final long cipherRef = cipherl;
+
             for (int j = 7; j >= 0; j--) {
                 key[j] = (byte) (keyl & 0x0ff);
                 keyl >>>= 8;
@@ -39,6 +42,9 @@ public class VectorsTest {
             for (int j = 0; j < 8; j++) {
                 assertEquals(testBuf[j], cipher[j]);
             }
+
+            assertEquals(cipherRef, bfecb.encryptBlock(plainRef));
+            assertEquals(plainRef, bfecb.decryptBlock(cipherRef));
         }
     }
 
@@ -0,0 +1,85 @@
+package de.org.mchahn.crypto.blowfishj.demo;
+
+import de.org.mchahn.crypto.blowfishj.BlowfishCBC;
+import de.org.mchahn.crypto.blowfishj.BlowfishCFB;
+import de.org.mchahn.crypto.blowfishj.BlowfishECB;
+
+/**
+ * Benchmark measuring the raw throughput of the block modes, on buffers of
+ * different sizes. Useful to see the effects of changes in the block loading
+ * and storing code, which dominates once the buffers get large.
+ */
+public class BlockModeBenchmark {
+
+    // benchmark settings
+    static final int[] SIZES = { 64, 4096, 1 << 20 };
+    static final long RUN_MILLIS = 1000;
+    static final int ROUNDS = 3;
+
+    interface Mode {
+        void run(byte[] buf, int len);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    static double measure(Mode mode, byte[] buf) {
+        long bytes = 0;
+        long end = System.currentTimeMillis() + RUN_MILLIS;
+        long start = System.nanoTime();
+        do {
+            mode.run(buf, buf.length);
+            bytes += buf.length;
+        }
+        while (System.currentTimeMillis() < end);
+
+        return (bytes * 1000.0) / (System.nanoTime() - start);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * The application entry point
+     * @param args (command line) parameters
+     * @throws Throwable If any kind of unexpected error occurred.
+     */
+    public static void main(String args[]) throws Throwable {
+        byte[] key = "block mode benchmark".getBytes();
+
+        final BlowfishECB ecb = new BlowfishECB(key, 0, key.length);
+        final BlowfishCBC cbc = new BlowfishCBC(key, 0, key.length, 0L);
+        final BlowfishCFB cfb = new BlowfishCFB(key, 0, key.length);
+        cfb.setIV(new byte[BlowfishCFB.BLOCKSIZE], 0);
+
+        String[] names = {
+            "ECB encrypt", "ECB decrypt",
+            "CBC encrypt", "CBC decrypt",
+            "CFB encrypt", "CFB decrypt"
+        };
+        Mode[] modes = {
+            (buf, len) -> ecb.encrypt(buf, 0, buf, 0, len),
+            (buf, len) -> ecb.decrypt(buf, 0, buf, 0, len),
+            (buf, len) -> cbc.encrypt(buf, 0, buf, 0, len),
+            (buf, len) -> cbc.decrypt(buf, 0, buf, 0, len),
+            (buf, len) -> cfb.encrypt(buf, 0, buf, 0, len),
+            (buf, len) -> cfb.decrypt(buf, 0, buf, 0, len)
+        };
+
+        System.out.println("size      mode              MB/s");
+
+        for (int size : SIZES) {
+            byte[] buf = new byte[size];
+            for (int m = 0; m < modes.length; m++) {
+                double best = 0;
+                for (int r = 0; r < ROUNDS; r++) {
+                    best = Math.max(best, measure(modes[m], buf));
+                }
+                System.out.println(String.format("%-9d %-12s %,9.1f",
+                    size, names[m], best));
+            }
+        }
+
+        ecb.cleanUp();
+        cbc.cleanUp();
+        cfb.cleanUp();
+    }
+}
@@ -0,0 +1,104 @@
+package de.org.mchahn.crypto.blowfishj.demo;
+
+import java.util.concurrent.CountDownLatch;
+
+import de.org.mchahn.crypto.blowfishj.BlowfishEasy;
+
+/**
+ * Benchmark showing how string encryption scales when one BlowfishEasy
+ * instance is shared by a growing number of threads. Since there is no lock
+ * involved the throughput should grow linearly, up to the number of cores.
+ */
+public class BlowfishEasyScalability {
+
+    // benchmark settings
+    static final int[] THREADS = { 1, 2, 4, 8, 16, 32, 64 };
+    static final long RUN_MILLIS = 2000;
+    static final long WARMUP_MILLIS = 1000;
+
+    static final String PLAIN_TEXT = "Some short value, like a column of a row.";
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    static long run(
+        final BlowfishEasy bfes,
+        int threadCount,
+        final long millis) throws InterruptedException {
+        final long[] counts = new long[threadCount];
+        final CountDownLatch start = new CountDownLatch(1);
+
+        Thread[] threads = new Thread[threadCount];
+
+        for (int t = 0; t < threadCount; t++) {
+            final int tn = t;
+            threads[t] = new Thread(() -> {
+                try {
+                    start.await();
+                }
+                catch (InterruptedException ie) {
+                    return;
+                }
+                long end = System.currentTimeMillis() + millis;
+                long count = 0;
+                while (System.currentTimeMillis() < end) {
+                    for (int i = 0; i < 100; i++) {
+                        String enc = bfes.encryptString(PLAIN_TEXT);
+                        if (!PLAIN_TEXT.equals(bfes.decryptString(enc))) {
+                            throw new IllegalStateException("corrupted!?");
+                        }
+                    }
+                    count += 100;
+                }
+                counts[tn] = count;
+            });
+            threads[t].start();
+        }
+
+        start.countDown();
+
+        long total = 0;
+        for (int t = 0; t < threadCount; t++) {
+            threads[t].join();
+            total += counts[t];
+        }
+        return total;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * The application entry point
+     * @param args (command line) parameters
+     * @throws Throwable If any kind of unexpected error occurred.
+     */
+    public static void main(String args[]) throws Throwable {
+        int cores = Runtime.getRuntime().availableProcessors();
+
+        BlowfishEasy bfes = new BlowfishEasy("scalability".toCharArray());
+
+        System.out.println("warming up on " + cores + " cores...");
+
+        run(bfes, cores, WARMUP_MILLIS);
+
+        System.out.println("threads  round-trips/second  speedup  per core");
+
+        double single = 0;
+
+        for (int threadCount : THREADS) {
+            long total = run(bfes, threadCount, RUN_MILLIS);
+
+            double rate = (total * 1000.0) / RUN_MILLIS;
+            if (1 == threadCount) {
+                single = rate;
+            }
+
+            double speedup = rate / single;
+            double perCore = speedup / Math.min(threadCount, cores);
+
+            System.out.println(String.format("%7d  %,18d  %6.2fx  %7.0f%%",
+                threadCount, (long)rate, speedup, perCore * 100));
+        }
+
+        bfes.destroy();
+    }
+}
@@ -0,0 +1,102 @@
+package de.org.mchahn.crypto.blowfishj.demo;
+
+import java.util.HexFormat;
+import java.util.Random;
+
+import de.org.mchahn.crypto.blowfishj.BinConverter;
+
+/**
+ * Benchmark comparing the hex codec of the BinConverter, for character and
+ * ASCII byte arrays, against the one of the JDK (java.util.HexFormat).
+ */
+public class HexCodecBenchmark {
+
+    // benchmark settings
+    static final int[] SIZES = { 8, 64, 1024, 65536 };
+    static final long RUN_MILLIS = 1000;
+    static final int ROUNDS = 3;
+
+    // keeps the results alive, so nothing gets optimized away
+    static long sink;
+
+    interface Codec {
+        void run();
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    static double measure(Codec codec, int size) {
+        long bytes = 0;
+        long end = System.currentTimeMillis() + RUN_MILLIS;
+        long start = System.nanoTime();
+        do {
+            for (int i = 0; i < 100; i++) {
+                codec.run();
+            }
+            bytes += 100L * size;
+        }
+        while (System.currentTimeMillis() < end);
+
+        return (bytes * 1000.0) / (System.nanoTime() - start);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * The application entry point
+     * @param args (command line) parameters
+     * @throws Throwable If any kind of unexpected error occurred.
+     */
+    public static void main(String args[]) throws Throwable {
+        final HexFormat hf = HexFormat.of();
+
+        System.out.println("size   codec                       MB/s");
+
+        for (int size : SIZES) {
+            final byte[] data = new byte[size];
+            new Random(size).nextBytes(data);
+
+            final String hex = hf.formatHex(data);
+            final char[] chars = hex.toCharArray();
+            final char[] charsOut = new char[chars.length];
+            final byte[] ascii = hex.getBytes();
+            final byte[] asciiOut = new byte[ascii.length];
+            final byte[] dec = new byte[size];
+
+            String[] names = {
+                "encode HexFormat.formatHex",
+                "encode bytesToHexStr (old)",
+                "encode to char[]",
+                "encode to ASCII byte[]",
+                "decode HexFormat.parseHex",
+                "decode hexStrToBytes (old)",
+                "decode from char[]",
+                "decode from ASCII byte[]"
+            };
+            Codec[] codecs = {
+                () -> sink += hf.formatHex(data).length(),
+                () -> sink += BinConverter.bytesToHexStr(data).length(),
+                () -> sink += BinConverter.bytesToHex(
+                                  data, 0, size, charsOut, 0),
+                () -> sink += BinConverter.bytesToHex(
+                                  data, 0, size, asciiOut, 0),
+                () -> sink += hf.parseHex(hex).length,
+                () -> sink += BinConverter.hexStrToBytes(
+                                  hex, dec, 0, 0, size),
+                () -> sink += BinConverter.hexToBytes(
+                                  chars, 0, chars.length, dec, 0),
+                () -> sink += BinConverter.hexToBytes(
+                                  ascii, 0, ascii.length, dec, 0)
+            };
+
+            for (int c = 0; c < codecs.length; c++) {
+                double best = 0;
+                for (int r = 0; r < ROUNDS; r++) {
+                    best = Math.max(best, measure(codecs[c], size));
+                }
+                System.out.println(String.format("%-6d %-26s %,8.1f",
+                    size, names[c], best));
+            }
+        }
+    }
+}
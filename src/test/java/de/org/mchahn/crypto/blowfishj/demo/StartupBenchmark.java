@@ -0,0 +1,130 @@
+package de.org.mchahn.crypto.blowfishj.demo;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStreamReader;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import de.org.mchahn.crypto.blowfishj.BlowfishOutputStream;
+
+/**
+ * Benchmark measuring the time it takes a fresh process to produce its first
+ * encrypted block, which is what matters for short-lived command line tools.
+ * Without arguments it does exactly that once, through a BlowfishOutputStream
+ * (hashing the key, key setup, IV generation and the block itself), and
+ * prints the times. With arguments it launches the given command repeatedly
+ * and reports the medians, so the JVM and a native image can be compared:
+ * <pre>
+ * java -cp target/classes:target/test-classes \
+ *   de.org.mchahn.crypto.blowfishj.demo.StartupBenchmark 20 \
+ *   java -cp target/classes:target/test-classes \
+ *   de.org.mchahn.crypto.blowfishj.demo.StartupBenchmark
+ *
+ * native-image -cp target/classes:target/test-classes \
+ *   de.org.mchahn.crypto.blowfishj.demo.StartupBenchmark startup
+ * java -cp target/classes:target/test-classes \
+ *   de.org.mchahn.crypto.blowfishj.demo.StartupBenchmark 20 ./startup
+ * </pre>
+ */
+public class StartupBenchmark {
+
+    // the line a single run prints: the runtime, the wall clock time when
+    // main got entered and the time from there to the first encrypted block,
+    // both in microseconds
+    static final String PREFIX = "startup";
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    static void single() throws Exception {
+        long main = System.nanoTime();
+        long now = micros(Instant.now());
+
+        byte[] key = "startup benchmark".getBytes();
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        BlowfishOutputStream bos = new BlowfishOutputStream(key, 0, key.length,
+                                                            baos);
+        bos.write(new byte[7]);
+        bos.close();
+        long block = System.nanoTime() - main;
+        if (8 + 8 != baos.size()) {
+            throw new IllegalStateException();
+        }
+
+        String runtime = null == System.getProperty(
+            "org.graalvm.nativeimage.imagecode") ? "jvm" : "native";
+
+        System.out.println(PREFIX + " " + runtime + " " + now + " " +
+                           block / 1000L);
+    }
+
+    static long micros(Instant instant) {
+        return ChronoUnit.MICROS.between(Instant.EPOCH, instant);
+    }
+
+    static long median(List<Long> values) {
+        Collections.sort(values);
+        return values.get(values.size() >> 1);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * The application entry point
+     * @param args Nothing for a single run, or the number of runs followed by
+     * the command launching a single run.
+     * @throws Throwable If any kind of unexpected error occurred.
+     */
+    public static void main(String args[]) throws Throwable {
+        if (0 == args.length) {
+            single();
+            return;
+        }
+
+        int runs = Integer.parseInt(args[0]);
+        List<String> cmd = Arrays.asList(args).subList(1, args.length);
+
+        String runtime = "?";
+        List<Long> walls = new ArrayList<>();
+        List<Long> toMains = new ArrayList<>();
+        List<Long> blocks = new ArrayList<>();
+
+        for (int r = 0; r < runs; r++) {
+            long launched = micros(Instant.now());
+            long start = System.nanoTime();
+            Process proc = new ProcessBuilder(cmd)
+                .redirectErrorStream(true)
+                .start();
+            String result = null;
+            try (BufferedReader br = new BufferedReader(
+                    new InputStreamReader(proc.getInputStream()))) {
+                String line;
+                while (null != (line = br.readLine())) {
+                    if (line.startsWith(PREFIX + " ")) {
+                        result = line;
+                    }
+                }
+            }
+            if (0 != proc.waitFor() || null == result) {
+                throw new IllegalStateException("run failed: " + cmd);
+            }
+            walls.add((System.nanoTime() - start) / 1000000L);
+
+            String[] parts = result.split(" ");
+            runtime = parts[1];
+            toMains.add((Long.parseLong(parts[2]) - launched) / 1000L);
+            blocks.add(Long.parseLong(parts[3]));
+        }
+
+        System.out.println(String.format(
+            "%s, %d runs (medians)%n" +
+            "process wall time        %,8d ms%n" +
+            "launch to main           %,8d ms%n" +
+            "main to first block      %,8d us",
+            runtime, runs, median(walls), median(toMains), median(blocks)));
+    }
+}